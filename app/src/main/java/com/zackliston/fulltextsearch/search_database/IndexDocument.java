@@ -0,0 +1,61 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.Map;
+
+/**
+ * Everything SearchDatabase needs to index a single file. Used to hand a batch of files
+ * to SearchDatabase.indexFiles so they can all be written in one transaction.
+ */
+public class IndexDocument
+{
+    //region Properties
+    String moduleId = null;
+    String fileId = null;
+    String language = null;
+    double boost = 0.0;
+    Map<String, String> searchableStrings = null;
+    Map<String, String> fileMetadata = null;
+    // Set once the searchable strings have been through searchableStringFromString for the language
+    boolean searchableStringsAreNormalized = false;
+    //endregion
+
+    //region Constructors
+    public static IndexDocument newIndexDocument(String moduleId, String fileId, String language, double boost, Map<String, String> searchableStrings, Map<String, String> fileMetadata) {
+        IndexDocument document = new IndexDocument();
+        document.moduleId = moduleId;
+        document.fileId = fileId;
+        document.language = language;
+        document.boost = boost;
+        document.searchableStrings = searchableStrings;
+        document.fileMetadata = fileMetadata;
+
+        return document;
+    }
+    //endregion
+
+    //region Getters
+    public String getModuleId() {
+        return moduleId;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    public double getBoost() {
+        return boost;
+    }
+
+    public Map<String, String> getSearchableStrings() {
+        return searchableStrings;
+    }
+
+    public Map<String, String> getFileMetadata() {
+        return fileMetadata;
+    }
+    //endregion
+}
@@ -0,0 +1,101 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads an index info file written by SearchManager.saveIndexFileInfoToFile with a streaming
+ * JsonReader. Each value goes straight from the file into the IndexDocument that gets bound to
+ * the insert statement, so the whole file is never held as a String or a JSONObject tree.
+ */
+class IndexFileInfoReader
+{
+    private IndexFileInfoReader() {}
+
+    /**
+     * Returns the document in the file, or null if it could not be read or is missing a required field.
+     */
+    static IndexDocument readIndexDocument(File file) {
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8"));
+            IndexDocument document = new IndexDocument();
+            boolean hasBoost = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (SearchTaskWorker.MODULE_ID_KEY.equals(name)) {
+                    document.moduleId = nextStringOrNull(reader);
+                } else if (SearchTaskWorker.FILE_ID_KEY.equals(name)) {
+                    document.fileId = nextStringOrNull(reader);
+                } else if (SearchTaskWorker.LANGUAGE_KEY.equals(name)) {
+                    document.language = nextStringOrNull(reader);
+                } else if (SearchTaskWorker.BOOST_KEY.equals(name)) {
+                    document.boost = reader.nextDouble();
+                    hasBoost = true;
+                } else if (SearchTaskWorker.SEARCHABLE_STRINGS_KEY.equals(name)) {
+                    document.searchableStrings = readStringMap(reader);
+                } else if (SearchTaskWorker.FILE_METADATA_KEY.equals(name)) {
+                    document.fileMetadata = readStringMap(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (document.moduleId == null || document.fileId == null || document.language == null || !hasBoost || document.searchableStrings == null || document.fileMetadata == null) {
+                Log.e("IndexFileInfoReader", "Index info file is missing required fields " + file);
+                return null;
+            }
+            return document;
+        } catch (IOException | IllegalStateException | NumberFormatException exception) {
+            Log.e("IndexFileInfoReader", "Error reading index info file " + file + " " + exception);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException exception) {
+                    Log.e("IndexFileInfoReader", "Error closing index info file " + exception);
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> readStringMap(JsonReader reader) throws IOException {
+        Map<String, String> map = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            map.put(key, nextStringOrNull(reader));
+        }
+        reader.endObject();
+        return map;
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (reader.peek() == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,503 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only journal of files waiting to be indexed. Instead of one JSON file per document,
+ * documents are appended as length prefixed binary records to numbered segment files, and a task
+ * carries a reference (segment, offset) to each record rather than a file URL.
+ *
+ * Appends go through a FileChannel and are fsynced once per batch. Reads go through a memory map
+ * of the segment. Each segment has a companion .done file listing the offsets that have been
+ * indexed; once the active segment has moved on and every record is done the segment is deleted.
+ *
+ * A crash part way through an append can leave a torn record at the end of the active segment. It
+ * was never handed out as a reference, so it is cut off when the segment is next opened for appends.
+ */
+class IndexJournal
+{
+    //region Reference
+    static class Reference {
+        final int segment;
+        final long offset;
+
+        Reference(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Override
+        public String toString() {
+            return REFERENCE_PREFIX + segment + ":" + offset;
+        }
+
+        static boolean isReference(String url) {
+            return url != null && url.startsWith(REFERENCE_PREFIX);
+        }
+
+        static Reference fromString(String url) {
+            if (!isReference(url)) {
+                return null;
+            }
+            String[] components = url.substring(REFERENCE_PREFIX.length()).split(":");
+            if (components.length != 2) {
+                return null;
+            }
+            try {
+                return new Reference(Integer.parseInt(components[0]), Long.parseLong(components[1]));
+            } catch (NumberFormatException exception) {
+                return null;
+            }
+        }
+    }
+    //endregion
+
+    //region Constants
+    static final String REFERENCE_PREFIX = "journal:";
+    static final String SEGMENT_PREFIX = "index.";
+    static final String SEGMENT_EXTENSION = ".journal";
+    static final String DONE_EXTENSION = ".done";
+    static final long DEFAULT_MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int NULL_LENGTH = -1;
+    // boost + two map counts + the length prefixes of the module id, file id and language
+    private static final int MIN_RECORD_LENGTH = 8 + 4 + 4 + 3 * 4;
+    //endregion
+
+    //region Properties
+    private final File directory;
+    private final long maxSegmentSize;
+
+    private int activeSegment = -1;
+    private RandomAccessFile activeFile;
+    private final Map<Integer, MappedByteBuffer> mappedSegments = new HashMap<>();
+    //endregion
+
+    //region Initialize
+    IndexJournal(File directory) {
+        this(directory, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    IndexJournal(File directory, long maxSegmentSize) {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+    //endregion
+
+    //region Append
+    /**
+     * Appends every document and fsyncs once for the whole batch. Returns a reference for each
+     * document in the same order, or null if the batch could not be written.
+     */
+    synchronized List<Reference> append(List<IndexDocument> documents) {
+        List<Reference> references = new ArrayList<>(documents.size());
+        try {
+            FileChannel channel = activeChannel();
+            for (IndexDocument document: documents) {
+                ByteBuffer record = encode(document);
+                if (channel.size() > 0 && channel.size() + record.remaining() > maxSegmentSize) {
+                    channel.force(false);
+                    channel = rollSegment();
+                }
+                long offset = channel.size();
+                channel.position(offset);
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                references.add(new Reference(activeSegment, offset));
+            }
+            channel.force(false);
+        } catch (IOException exception) {
+            Log.e("IndexJournal", "Error appending to index journal " + exception);
+            return null;
+        }
+        return references;
+    }
+
+    private FileChannel activeChannel() throws IOException {
+        if (activeFile == null) {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create journal directory " + directory);
+            }
+            activeSegment = Math.max(activeSegment, highestSegmentOnDisk());
+            if (activeSegment < 0) {
+                activeSegment = 0;
+            }
+            activeFile = new RandomAccessFile(segmentFile(activeSegment), "rw");
+            truncateTornRecord(activeFile.getChannel());
+        }
+        return activeFile.getChannel();
+    }
+
+    /**
+     * Cuts the segment off after its last complete record, so a record torn by a crash is not
+     * left in front of the records appended after it.
+     */
+    private void truncateTornRecord(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            lengthBuffer.clear();
+            while (lengthBuffer.hasRemaining() && channel.read(lengthBuffer, position + lengthBuffer.position()) >= 0) {
+                // Keep reading until the whole length prefix is in the buffer
+            }
+            int length = lengthBuffer.getInt(0);
+            if (!isCompleteRecord(position, length, size)) {
+                break;
+            }
+            position += 4 + length;
+        }
+        if (position < size) {
+            Log.e("IndexJournal", "Truncating torn record at " + REFERENCE_PREFIX + activeSegment + ":" + position);
+            channel.truncate(position);
+            channel.force(false);
+            mappedSegments.remove(activeSegment);
+        }
+    }
+
+    private FileChannel rollSegment() throws IOException {
+        int sealedSegment = activeSegment;
+        activeFile.close();
+        activeFile = null;
+        activeSegment++;
+        FileChannel channel = activeChannel();
+        collectSegmentIfDone(sealedSegment);
+        return channel;
+    }
+
+    private int highestSegmentOnDisk() {
+        int highest = -1;
+        String[] names = directory.list();
+        if (names == null) {
+            return highest;
+        }
+        for (String name: names) {
+            int segment = segmentNumberForName(name);
+            if (segment > highest) {
+                highest = segment;
+            }
+        }
+        return highest;
+    }
+    //endregion
+
+    //region Read
+    /**
+     * Decodes the document at the reference straight out of the mapped segment.
+     */
+    IndexDocument read(Reference reference) {
+        try {
+            ByteBuffer buffer = mappedSegment(reference.segment, reference.offset);
+            if (buffer == null) {
+                return null;
+            }
+            buffer.position((int) reference.offset);
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                Log.e("IndexJournal", "Corrupt record in index journal at " + reference);
+                return null;
+            }
+            return decode(buffer);
+        } catch (IOException | RuntimeException exception) {
+            Log.e("IndexJournal", "Error reading index journal at " + reference + " " + exception);
+            return null;
+        }
+    }
+
+    private synchronized ByteBuffer mappedSegment(int segment, long offset) throws IOException {
+        MappedByteBuffer mapped = mappedSegments.get(segment);
+        if (mapped == null || offset + 4 > mapped.capacity()) {
+            // The active segment grows after it is mapped, remap it to see the new records
+            File file = segmentFile(segment);
+            if (!file.exists()) {
+                return null;
+            }
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                FileChannel channel = inputStream.getChannel();
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                inputStream.close();
+            }
+            mappedSegments.put(segment, mapped);
+        }
+        // Each reader gets its own view so positions do not collide between threads
+        return mapped.duplicate();
+    }
+    //endregion
+
+    //region Garbage Collection
+    /**
+     * Records that the referenced documents have been indexed and deletes any segment
+     * that is no longer being appended to and has nothing left to index.
+     */
+    synchronized void markIndexed(List<Reference> references) {
+        Map<Integer, List<Long>> offsetsBySegment = new HashMap<>();
+        for (Reference reference: references) {
+            List<Long> offsets = offsetsBySegment.get(reference.segment);
+            if (offsets == null) {
+                offsets = new ArrayList<>();
+                offsetsBySegment.put(reference.segment, offsets);
+            }
+            offsets.add(reference.offset);
+        }
+
+        for (Map.Entry<Integer, List<Long>> entry: offsetsBySegment.entrySet()) {
+            int segment = entry.getKey();
+            if (!segmentFile(segment).exists()) {
+                continue;
+            }
+            ByteBuffer doneRecords = ByteBuffer.allocate(entry.getValue().size() * 8);
+            for (Long offset: entry.getValue()) {
+                doneRecords.putLong(offset);
+            }
+            doneRecords.flip();
+
+            FileOutputStream outputStream = null;
+            try {
+                outputStream = new FileOutputStream(doneFile(segment), true);
+                FileChannel channel = outputStream.getChannel();
+                while (doneRecords.hasRemaining()) {
+                    channel.write(doneRecords);
+                }
+                channel.force(false);
+            } catch (IOException exception) {
+                Log.e("IndexJournal", "Error marking journal records as indexed " + exception);
+                continue;
+            } finally {
+                closeQuietly(outputStream);
+            }
+
+            if (segment != activeSegment) {
+                collectSegmentIfDone(segment);
+            }
+        }
+    }
+
+    private void collectSegmentIfDone(int segment) {
+        // Drop any mapping taken while the segment was still growing so every record is counted
+        mappedSegments.remove(segment);
+        try {
+            Set<Long> doneOffsets = doneOffsets(segment);
+            List<Long> recordOffsets = recordOffsets(segment);
+            if (!doneOffsets.containsAll(recordOffsets)) {
+                return;
+            }
+        } catch (IOException exception) {
+            Log.e("IndexJournal", "Error checking index journal segment " + segment + " " + exception);
+            return;
+        }
+        mappedSegments.remove(segment);
+        if (!segmentFile(segment).delete()) {
+            Log.e("IndexJournal", "Could not delete index journal segment " + segment);
+        }
+        File doneFile = doneFile(segment);
+        if (doneFile.exists() && !doneFile.delete()) {
+            Log.e("IndexJournal", "Could not delete index journal done file " + segment);
+        }
+    }
+
+    private Set<Long> doneOffsets(int segment) throws IOException {
+        Set<Long> offsets = new HashSet<>();
+        File file = doneFile(segment);
+        if (!file.exists()) {
+            return offsets;
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the whole done file is in the buffer
+            }
+            buffer.flip();
+            while (buffer.remaining() >= 8) {
+                offsets.add(buffer.getLong());
+            }
+        } finally {
+            inputStream.close();
+        }
+        return offsets;
+    }
+
+    private List<Long> recordOffsets(int segment) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        ByteBuffer buffer = mappedSegment(segment, 0);
+        if (buffer == null) {
+            return offsets;
+        }
+        int position = 0;
+        while (position + 4 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (!isCompleteRecord(position, length, buffer.limit())) {
+                break;
+            }
+            offsets.add((long) position);
+            position += 4 + length;
+        }
+        return offsets;
+    }
+
+    private static boolean isCompleteRecord(long position, int length, long size) {
+        return length >= MIN_RECORD_LENGTH && position + 4 + length <= size;
+    }
+    //endregion
+
+    //region Reset
+    /**
+     * Forgets the active segment and any mappings. Called after the journal directory is deleted.
+     */
+    synchronized void reset() {
+        closeQuietly(activeFile);
+        activeFile = null;
+        activeSegment = -1;
+        mappedSegments.clear();
+    }
+    //endregion
+
+    //region Encoding
+    static ByteBuffer encode(IndexDocument document) {
+        List<byte[]> strings = new ArrayList<>();
+        strings.add(bytes(document.moduleId));
+        strings.add(bytes(document.fileId));
+        strings.add(bytes(document.language));
+        addMap(strings, document.searchableStrings);
+        addMap(strings, document.fileMetadata);
+
+        // boost + two map counts, then a length prefix and the bytes of every string; the record's own length prefix is added at allocate
+        int length = 8 + 4 + 4;
+        for (byte[] string: strings) {
+            length += 4 + (string == null ? 0 : string.length);
+        }
+
+        int searchableCount = document.searchableStrings == null ? 0 : document.searchableStrings.size();
+        int metadataCount = document.fileMetadata == null ? 0 : document.fileMetadata.size();
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        putString(buffer, strings.get(0));
+        putString(buffer, strings.get(1));
+        putString(buffer, strings.get(2));
+        buffer.putDouble(document.boost);
+        int index = 3;
+        buffer.putInt(searchableCount);
+        for (int i=0; i<searchableCount * 2; i++) {
+            putString(buffer, strings.get(index++));
+        }
+        buffer.putInt(metadataCount);
+        for (int i=0; i<metadataCount * 2; i++) {
+            putString(buffer, strings.get(index++));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static IndexDocument decode(ByteBuffer buffer) {
+        String moduleId = getString(buffer);
+        String fileId = getString(buffer);
+        String language = getString(buffer);
+        double boost = buffer.getDouble();
+
+        int searchableCount = buffer.getInt();
+        Map<String, String> searchableStrings = new HashMap<>(searchableCount);
+        for (int i=0; i<searchableCount; i++) {
+            searchableStrings.put(getString(buffer), getString(buffer));
+        }
+        int metadataCount = buffer.getInt();
+        Map<String, String> fileMetadata = new HashMap<>(metadataCount);
+        for (int i=0; i<metadataCount; i++) {
+            fileMetadata.put(getString(buffer), getString(buffer));
+        }
+        return IndexDocument.newIndexDocument(moduleId, fileId, language, boost, searchableStrings, fileMetadata);
+    }
+
+    private static void addMap(List<byte[]> strings, Map<String, String> map) {
+        if (map == null) {
+            return;
+        }
+        for (Map.Entry<String, String> entry: map.entrySet()) {
+            strings.add(bytes(entry.getKey()));
+            strings.add(bytes(entry.getValue()));
+        }
+    }
+
+    private static byte[] bytes(String string) {
+        return string == null ? null : string.getBytes(UTF8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] string) {
+        if (string == null) {
+            buffer.putInt(NULL_LENGTH);
+            return;
+        }
+        buffer.putInt(string.length);
+        buffer.put(string);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (buffer.hasArray()) {
+            String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+            buffer.position(buffer.position() + length);
+            return string;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+    //endregion
+
+    //region Helpers
+    File segmentFile(int segment) {
+        return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_EXTENSION);
+    }
+
+    File doneFile(int segment) {
+        return new File(directory, SEGMENT_PREFIX + segment + DONE_EXTENSION);
+    }
+
+    static int segmentNumberForName(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_EXTENSION)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException exception) {
+            Log.e("IndexJournal", "Error closing index journal file " + exception);
+        }
+    }
+    //endregion
+}
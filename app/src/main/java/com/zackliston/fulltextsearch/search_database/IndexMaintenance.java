@@ -0,0 +1,129 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.INDEX_TABLE_NAME;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.OPTIMIZE_COMMAND;
+
+
+/**
+ * Merges the segments of an FTS index. Every transaction that writes to the index adds a segment,
+ * and a query has to read every segment a term appears in, so after a large import the index
+ * is kept fast by merging them again.
+ *
+ * Incremental merges ("merge=X,Y") write at most X pages per step, so each step is a short
+ * transaction and indexing can carry on between steps. A full optimize merges everything into
+ * one segment in a single transaction and is only worth it after a bulk load. In write-ahead
+ * logging mode searches keep reading the last commit while either runs.
+ */
+public final class IndexMaintenance
+{
+    //region Report
+    /**
+     * What a round of maintenance did to the index. Sizes count the pages of the FTS segments, the
+     * space reclaimed is left free in the database file and reused by later writes.
+     */
+    public static class Report {
+        int segmentsBefore;
+        int segmentsAfter;
+        long bytesBefore;
+        long bytesAfter;
+        int numberOfMergeSteps;
+        boolean wasOptimized;
+        boolean wasSegmentWritten;
+        boolean isComplete;
+
+        public int getSegmentsBefore() {
+            return segmentsBefore;
+        }
+        public int getSegmentsAfter() {
+            return segmentsAfter;
+        }
+        public long getBytesReclaimed() {
+            return Math.max(bytesBefore - bytesAfter, 0);
+        }
+        public int getNumberOfMergeSteps() {
+            return numberOfMergeSteps;
+        }
+        public boolean wasOptimized() {
+            return wasOptimized;
+        }
+        /**
+         * True if the in-memory index was written to a new segment.
+         */
+        public boolean wasSegmentWritten() {
+            return wasSegmentWritten;
+        }
+        /**
+         * False if maintenance stopped early because the index was being searched.
+         */
+        public boolean isComplete() {
+            return isComplete;
+        }
+
+        @Override
+        public String toString() {
+            return "segments " + segmentsBefore + " -> " + segmentsAfter + ", reclaimed " + getBytesReclaimed() + " bytes in " +
+                    (wasOptimized ? "an optimize" : numberOfMergeSteps + " merge steps") + (wasSegmentWritten ? ", wrote segment" : "") + (isComplete ? "" : ", stopped early");
+        }
+    }
+    //endregion
+
+    //region Constants
+    static final int DEFAULT_MERGE_PAGES_PER_STEP = 256;
+    static final int DEFAULT_MERGE_MIN_SEGMENTS = 8;
+    static final int DEFAULT_SEGMENTS_BEFORE_MERGE = 16;
+    static final int DEFAULT_DOCUMENTS_BEFORE_OPTIMIZE = 10000;
+
+    static final String SEGMENT_COUNT_QUERY = "SELECT count(*) FROM " + INDEX_TABLE_NAME + "_segdir;";
+    static final String SEGMENT_BYTES_QUERY = "SELECT (SELECT total(length(block)) FROM " + INDEX_TABLE_NAME + "_segments) + (SELECT total(length(root)) FROM " + INDEX_TABLE_NAME + "_segdir);";
+    static final String OPTIMIZE_COMMAND = "INSERT INTO " + INDEX_TABLE_NAME + "(" + INDEX_TABLE_NAME + ") VALUES('optimize');";
+    //endregion
+
+    private IndexMaintenance() {}
+
+    //region Statistics
+    static int numberOfSegments(SQLiteDatabase database) {
+        return (int) DatabaseUtils.longForQuery(database, SEGMENT_COUNT_QUERY, null);
+    }
+
+    static long segmentBytes(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, SEGMENT_BYTES_QUERY, null);
+    }
+    //endregion
+
+    //region Merge
+    static String mergeCommand(int pagesPerStep, int minSegments) {
+        return "INSERT INTO " + INDEX_TABLE_NAME + "(" + INDEX_TABLE_NAME + ") VALUES('merge=" + pagesPerStep + "," + Math.max(minSegments, 2) + "');";
+    }
+
+    /**
+     * Runs one incremental merge step in its own transaction. Returns true if there is more to
+     * merge. A step that changes fewer than two rows found nothing left to merge.
+     */
+    static boolean mergeStep(SQLiteDatabase database, int pagesPerStep, int minSegments) {
+        // total_changes is per connection, the transaction keeps every statement on the same one
+        database.beginTransaction();
+        try {
+            long changesBefore = DatabaseUtils.longForQuery(database, "SELECT total_changes();", null);
+            database.execSQL(mergeCommand(pagesPerStep, minSegments));
+            long changesAfter = DatabaseUtils.longForQuery(database, "SELECT total_changes();", null);
+            database.setTransactionSuccessful();
+            return changesAfter - changesBefore >= 2;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    static void optimize(SQLiteDatabase database) {
+        database.beginTransaction();
+        try {
+            database.execSQL(OPTIMIZE_COMMAND);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,149 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexes a list of files in two stages that overlap. Reading, parsing and normalizing each file
+ * runs on a pool of threads, while the thread that runs the pipeline is the single writer, handing
+ * the prepared documents to SQLite in batches of one transaction each.
+ *
+ * At most queueCapacity files are being prepared or waiting to be written at any time, so the
+ * parsers stop reading ahead when the writer falls behind. Documents are written in the order of
+ * the urls, so a file listed twice still ends up with its last version indexed.
+ */
+class IndexPipeline
+{
+    //region Stages
+    interface Stages {
+        /**
+         * Reads, parses and normalizes the file at url, or returns null if it can not be read.
+         * Called from several threads at once.
+         */
+        IndexDocument prepareDocument(String url);
+
+        /**
+         * Writes the batch in one transaction and returns true if every document was indexed.
+         * Only called from the thread running the pipeline.
+         */
+        boolean writeDocuments(List<IndexDocument> documents, List<String> urls);
+
+        boolean isCancelled();
+    }
+    //endregion
+
+    //region Properties
+    private final int numberOfThreads;
+    private final int batchSize;
+    private final int queueCapacity;
+    //endregion
+
+    //region Initialize
+    /**
+     * The queue should hold at least two batches, so the parsers have a full batch to work on
+     * while the writer commits the previous one.
+     */
+    IndexPipeline(int numberOfThreads, int batchSize, int queueCapacity) {
+        this.numberOfThreads = Math.max(numberOfThreads, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.queueCapacity = Math.max(queueCapacity, this.batchSize);
+    }
+    //endregion
+
+    //region Run
+    /**
+     * Returns false if any file could not be read or indexed. Stops before the next write as soon
+     * as the stages are cancelled or the thread is interrupted, leaving the rest unindexed.
+     */
+    boolean run(List<String> urls, final Stages stages) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PipelineThreadFactory());
+        Deque<Future<IndexDocument>> pending = new ArrayDeque<>(queueCapacity);
+        boolean success = true;
+        try {
+            List<IndexDocument> batch = new ArrayList<>(batchSize);
+            List<String> batchUrls = new ArrayList<>(batchSize);
+            int nextUrl = 0;
+            while (true) {
+                while (pending.size() < queueCapacity && nextUrl < urls.size()) {
+                    final String url = urls.get(nextUrl++);
+                    pending.add(executor.submit(new Callable<IndexDocument>() {
+                        @Override
+                        public IndexDocument call() {
+                            return stages.prepareDocument(url);
+                        }
+                    }));
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                if (stages.isCancelled()) {
+                    return false;
+                }
+
+                String url = urls.get(nextUrl - pending.size());
+                IndexDocument document = pending.poll().get();
+                if (document == null) {
+                    success = false;
+                } else {
+                    batch.add(document);
+                    batchUrls.add(url);
+                }
+                if (batch.size() >= batchSize) {
+                    success = stages.writeDocuments(batch, batchUrls) && success;
+                    batch = new ArrayList<>(batchSize);
+                    batchUrls = new ArrayList<>(batchSize);
+                }
+            }
+            if (batch.size() > 0) {
+                if (stages.isCancelled()) {
+                    return false;
+                }
+                success = stages.writeDocuments(batch, batchUrls) && success;
+            }
+            return success;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<IndexDocument> future: pending) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+    //endregion
+
+    //region Thread Factory
+    private static class PipelineThreadFactory implements ThreadFactory {
+        private static final AtomicInteger pipelineCount = new AtomicInteger();
+        private final int pipelineNumber = pipelineCount.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "IndexPipeline-" + pipelineNumber + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,457 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable copy of a MemorySearchIndex in one flat buffer, written by SearchDatabase's
+ * maintenance and memory mapped when the database is opened again. Nothing is deserialized when it
+ * is opened: searches binary search the term dictionary and read postings, column lengths and
+ * docids straight out of the buffer, and only the strings of the results they return are decoded.
+ *
+ * Rows are stored in docid order, so a row's slot is found by binary searching the docids. The
+ * layout, every number big endian:
+ *
+ * header       magic, version, row, term and module counts, the total length of every column
+ *              and the offset of every section below
+ * docIds       a long per row
+ * boosts       a double per row
+ * modules      the ordinal of every row's module
+ * lengths      the number of tokens in every column of every row, a column at a time, quantized
+ *              like their norms for the weighted columns
+ * terms        per term: where its characters, postings and skip blocks start and how long they
+ *              are, then the number of rows with it in every weighted column
+ * blocks       for every BLOCK_SIZE rows of a term's postings, MemorySearchIndex.INTS_PER_BLOCK
+ *              ints: where they start, the previous slot, and the bounds of their term frequency
+ * strings      a (start, length) pair per string, length -1 for null: the indexed columns and
+ *              metadata of every row, then the id of every module
+ * termChars    the terms in order, UTF-16
+ * stringChars  the strings, UTF-16
+ * postings     the postings of every term, encoded like MemorySearchIndex.Postings
+ */
+class IndexSegment
+{
+    //region Constants
+    static final int MAGIC = 0x46545347;
+    static final int VERSION = 3;
+
+    static final int NUMBER_OF_COLUMNS = MemorySearchIndex.NUMBER_OF_COLUMNS;
+    // The indexed columns then title, subtitle, uri, type and image uri
+    static final int STRINGS_PER_ROW = NUMBER_OF_COLUMNS + 5;
+
+    private static final int INTS_PER_TERM = 6 + Rank.NUMBER_OF_WEIGHTED_COLUMNS;
+    private static final int HEADER_SIZE = 5 * 4 + NUMBER_OF_COLUMNS * 8 + 10 * 4;
+    //endregion
+
+    //region Properties
+    private final ByteBuffer buffer;
+    final int numberOfRows;
+    final int numberOfTerms;
+    final int numberOfModules;
+    final long[] totalColumnLengths = new long[NUMBER_OF_COLUMNS];
+
+    private final int docIdsOffset;
+    private final int boostsOffset;
+    private final int modulesOffset;
+    private final int lengthsOffset;
+    private final int termsOffset;
+    private final int blocksOffset;
+    private final int stringsOffset;
+    private final int termCharsOffset;
+    private final int stringCharsOffset;
+    private final int postingsOffset;
+    //endregion
+
+    //region Initialize
+    private IndexSegment(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an index segment");
+        }
+        numberOfRows = buffer.getInt(8);
+        numberOfTerms = buffer.getInt(12);
+        numberOfModules = buffer.getInt(16);
+        int position = 20;
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            totalColumnLengths[column] = buffer.getLong(position);
+            position += 8;
+        }
+        docIdsOffset = buffer.getInt(position);
+        boostsOffset = buffer.getInt(position + 4);
+        modulesOffset = buffer.getInt(position + 8);
+        lengthsOffset = buffer.getInt(position + 12);
+        termsOffset = buffer.getInt(position + 16);
+        blocksOffset = buffer.getInt(position + 20);
+        stringsOffset = buffer.getInt(position + 24);
+        termCharsOffset = buffer.getInt(position + 28);
+        stringCharsOffset = buffer.getInt(position + 32);
+        postingsOffset = buffer.getInt(position + 36);
+        if (numberOfRows < 0 || numberOfTerms < 0 || numberOfModules < 0 || postingsOffset < HEADER_SIZE || postingsOffset > buffer.capacity()) {
+            throw new IOException("Index segment is truncated");
+        }
+        // The last term's postings end the buffer
+        if (numberOfTerms > 0) {
+            long lastTerm = termsOffset + (numberOfTerms - 1L) * INTS_PER_TERM * 4;
+            if (termsOffset < HEADER_SIZE || lastTerm + INTS_PER_TERM * 4 > postingsOffset ||
+                    (long) postingsOffset + buffer.getInt((int) lastTerm + 8) + buffer.getInt((int) lastTerm + 12) > buffer.capacity()) {
+                throw new IOException("Index segment is truncated");
+            }
+        }
+    }
+
+    static IndexSegment newIndexSegment(ByteBuffer buffer) throws IOException {
+        return new IndexSegment(buffer);
+    }
+
+    /**
+     * Maps the segment in file. The mapping outlives the file, so the file can be replaced or
+     * deleted while the segment is searched.
+     */
+    static IndexSegment open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return new IndexSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+    //endregion
+
+    //region Rows
+    long docId(int slot) {
+        return buffer.getLong(docIdsOffset + slot * 8);
+    }
+
+    double boost(int slot) {
+        return buffer.getDouble(boostsOffset + slot * 8);
+    }
+
+    int moduleOrdinal(int slot) {
+        return buffer.getInt(modulesOffset + slot * 4);
+    }
+
+    int columnLength(int column, int slot) {
+        return buffer.getInt(lengthsOffset + (column * numberOfRows + slot) * 4);
+    }
+
+    String columnText(int column, int slot) {
+        return string(slot * STRINGS_PER_ROW + column);
+    }
+
+    String moduleId(int moduleOrdinal) {
+        return string(numberOfRows * STRINGS_PER_ROW + moduleOrdinal);
+    }
+
+    /**
+     * The slot of the row with docId, or -1 if the segment does not have one.
+     */
+    int slotForDocId(long docId) {
+        int low = 0;
+        int high = numberOfRows - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleDocId = docId(middle);
+            if (middleDocId < docId) {
+                low = middle + 1;
+            } else if (middleDocId > docId) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    SearchRefinement.Candidate row(int slot) {
+        int first = slot * STRINGS_PER_ROW;
+        String[] columns = new String[NUMBER_OF_COLUMNS];
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            columns[column] = string(first + column);
+        }
+        int metadata = first + NUMBER_OF_COLUMNS;
+        return new SearchRefinement.Candidate(docId(slot), boost(slot), columns, columns[0], columns[1], string(metadata), string(metadata + 1),
+                string(metadata + 2), string(metadata + 3), string(metadata + 4));
+    }
+
+    private String string(int index) {
+        int entry = stringsOffset + index * 8;
+        int length = buffer.getInt(entry + 4);
+        if (length < 0) {
+            return null;
+        }
+        int start = stringCharsOffset + buffer.getInt(entry) * 2;
+        char[] characters = new char[length];
+        for (int i=0; i<length; i++) {
+            characters[i] = buffer.getChar(start + i * 2);
+        }
+        return new String(characters);
+    }
+    //endregion
+
+    //region Terms
+    /**
+     * The index of term, or -1 if no row has it.
+     */
+    int termIndex(String term) {
+        int index = lowerBound(term);
+        return (index < numberOfTerms && compareTerm(index, term) == 0) ? index : -1;
+    }
+
+    /**
+     * The index of the first term at or after term, numberOfTerms if there is none.
+     */
+    int lowerBound(String term) {
+        int low = 0;
+        int high = numberOfTerms;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTerm(middle, term) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    MemorySearchIndex.PostingsCursor cursor(int termIndex) {
+        int entry = termsOffset + termIndex * INTS_PER_TERM * 4;
+        int start = postingsOffset + buffer.getInt(entry + 8);
+        int length = buffer.getInt(entry + 12);
+        int firstBlock = blocksOffset + buffer.getInt(entry + 16) * MemorySearchIndex.INTS_PER_BLOCK * 4;
+        int numberOfBlocks = buffer.getInt(entry + 20);
+        return new MemorySearchIndex.PostingsCursor(buffer, start, start + length, firstBlock, numberOfBlocks);
+    }
+
+    /**
+     * The number of rows with the term at termIndex in the weighted column, removed or not.
+     */
+    int numberOfRowsWithHit(int termIndex, int weightedColumn) {
+        return buffer.getInt(termsOffset + termIndex * INTS_PER_TERM * 4 + 24 + weightedColumn * 4);
+    }
+
+    /**
+     * Compares the term at index with term the way String.compareTo does.
+     */
+    private int compareTerm(int index, String term) {
+        int entry = termsOffset + index * INTS_PER_TERM * 4;
+        int start = termCharsOffset + buffer.getInt(entry) * 2;
+        int length = buffer.getInt(entry + 4);
+        int sharedLength = Math.min(length, term.length());
+        for (int i=0; i<sharedLength; i++) {
+            char character = buffer.getChar(start + i * 2);
+            if (character != term.charAt(i)) {
+                return character - term.charAt(i);
+            }
+        }
+        return length - term.length();
+    }
+    //endregion
+
+    //region Write
+    /**
+     * Writes the rows as a segment to file, making sure it reached the disk before returning.
+     */
+    static void write(List<SearchRefinement.Candidate> rows, File file) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            BufferedOutputStream bufferedStream = new BufferedOutputStream(outputStream, 64 * 1024);
+            write(rows, bufferedStream);
+            bufferedStream.flush();
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * A segment of the rows held on the heap, for databases that are not stored in a file.
+     */
+    static IndexSegment newHeapSegment(List<SearchRefinement.Candidate> rows) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        write(rows, outputStream);
+        return new IndexSegment(ByteBuffer.wrap(outputStream.toByteArray()));
+    }
+
+    static void write(List<SearchRefinement.Candidate> rows, OutputStream outputStream) throws IOException {
+        rows = new ArrayList<>(rows);
+        Collections.sort(rows, new Comparator<SearchRefinement.Candidate>() {
+            @Override
+            public int compare(SearchRefinement.Candidate lhs, SearchRefinement.Candidate rhs) {
+                return lhs.docId < rhs.docId ? -1 : (lhs.docId == rhs.docId ? 0 : 1);
+            }
+        });
+        int numberOfRows = rows.size();
+
+        TreeMap<String, MemorySearchIndex.Postings> postingsByTerm = new TreeMap<>();
+        int[][] columnLengths = new int[NUMBER_OF_COLUMNS][numberOfRows];
+        long[] totalColumnLengths = new long[NUMBER_OF_COLUMNS];
+        Map<String, Integer> moduleOrdinalsByModuleId = new LinkedHashMap<>();
+        int[] moduleOrdinals = new int[numberOfRows];
+        int[] rowColumnLengths = new int[NUMBER_OF_COLUMNS];
+        long numberOfStringChars = 0;
+        for (int slot=0; slot<numberOfRows; slot++) {
+            SearchRefinement.Candidate row = rows.get(slot);
+            MemorySearchIndex.addPostings(postingsByTerm, slot, row.columns, rowColumnLengths);
+            for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                columnLengths[column][slot] = rowColumnLengths[column];
+                totalColumnLengths[column] += rowColumnLengths[column];
+            }
+            Integer moduleOrdinal = moduleOrdinalsByModuleId.get(row.moduleId);
+            if (moduleOrdinal == null) {
+                moduleOrdinal = moduleOrdinalsByModuleId.size();
+                moduleOrdinalsByModuleId.put(row.moduleId, moduleOrdinal);
+            }
+            moduleOrdinals[slot] = moduleOrdinal;
+            for (String string: strings(row)) {
+                numberOfStringChars += (string == null) ? 0 : string.length();
+            }
+        }
+        for (String moduleId: moduleOrdinalsByModuleId.keySet()) {
+            numberOfStringChars += (moduleId == null) ? 0 : moduleId.length();
+        }
+
+        int numberOfTerms = postingsByTerm.size();
+        int numberOfModules = moduleOrdinalsByModuleId.size();
+        long numberOfTermChars = 0;
+        long numberOfBlocks = 0;
+        long numberOfPostingsBytes = 0;
+        for (Map.Entry<String, MemorySearchIndex.Postings> entry: postingsByTerm.entrySet()) {
+            numberOfTermChars += entry.getKey().length();
+            numberOfBlocks += entry.getValue().numberOfBlocks;
+            numberOfPostingsBytes += entry.getValue().length;
+        }
+        int numberOfStrings = numberOfRows * STRINGS_PER_ROW + numberOfModules;
+
+        long docIdsOffset = HEADER_SIZE;
+        long boostsOffset = docIdsOffset + numberOfRows * 8L;
+        long modulesOffset = boostsOffset + numberOfRows * 8L;
+        long lengthsOffset = modulesOffset + numberOfRows * 4L;
+        long termsOffset = lengthsOffset + (long) NUMBER_OF_COLUMNS * numberOfRows * 4L;
+        long blocksOffset = termsOffset + (long) numberOfTerms * INTS_PER_TERM * 4L;
+        long stringsOffset = blocksOffset + numberOfBlocks * MemorySearchIndex.INTS_PER_BLOCK * 4L;
+        long termCharsOffset = stringsOffset + numberOfStrings * 8L;
+        long stringCharsOffset = termCharsOffset + numberOfTermChars * 2L;
+        long postingsOffset = stringCharsOffset + numberOfStringChars * 2L;
+        if (postingsOffset + numberOfPostingsBytes > Integer.MAX_VALUE) {
+            throw new IOException("Index is too large for a segment");
+        }
+
+        DataOutputStream output = new DataOutputStream(outputStream);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(numberOfRows);
+        output.writeInt(numberOfTerms);
+        output.writeInt(numberOfModules);
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            output.writeLong(totalColumnLengths[column]);
+        }
+        for (long offset: new long[] {docIdsOffset, boostsOffset, modulesOffset, lengthsOffset, termsOffset, blocksOffset, stringsOffset, termCharsOffset, stringCharsOffset, postingsOffset}) {
+            output.writeInt((int) offset);
+        }
+
+        for (SearchRefinement.Candidate row: rows) {
+            output.writeLong(row.docId);
+        }
+        for (SearchRefinement.Candidate row: rows) {
+            output.writeDouble(row.boost);
+        }
+        for (int moduleOrdinal: moduleOrdinals) {
+            output.writeInt(moduleOrdinal);
+        }
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            for (int slot=0; slot<numberOfRows; slot++) {
+                output.writeInt(columnLengths[column][slot]);
+            }
+        }
+
+        int termCharStart = 0;
+        int postingsStart = 0;
+        int blockStart = 0;
+        for (Map.Entry<String, MemorySearchIndex.Postings> entry: postingsByTerm.entrySet()) {
+            MemorySearchIndex.Postings postings = entry.getValue();
+            output.writeInt(termCharStart);
+            output.writeInt(entry.getKey().length());
+            output.writeInt(postingsStart);
+            output.writeInt(postings.length);
+            output.writeInt(blockStart);
+            output.writeInt(postings.numberOfBlocks);
+            for (int numberOfRowsWithHit: postings.numberOfRowsWithHit) {
+                output.writeInt(numberOfRowsWithHit);
+            }
+            termCharStart += entry.getKey().length();
+            postingsStart += postings.length;
+            blockStart += postings.numberOfBlocks;
+        }
+        for (MemorySearchIndex.Postings postings: postingsByTerm.values()) {
+            for (int i=0; i<postings.numberOfBlocks * MemorySearchIndex.INTS_PER_BLOCK; i++) {
+                output.writeInt(postings.blocks[i]);
+            }
+        }
+
+        int stringCharStart = 0;
+        for (SearchRefinement.Candidate row: rows) {
+            for (String string: strings(row)) {
+                stringCharStart = writeStringEntry(output, string, stringCharStart);
+            }
+        }
+        for (String moduleId: moduleOrdinalsByModuleId.keySet()) {
+            stringCharStart = writeStringEntry(output, moduleId, stringCharStart);
+        }
+
+        for (String term: postingsByTerm.keySet()) {
+            output.writeChars(term);
+        }
+        for (SearchRefinement.Candidate row: rows) {
+            for (String string: strings(row)) {
+                if (string != null) {
+                    output.writeChars(string);
+                }
+            }
+        }
+        for (String moduleId: moduleOrdinalsByModuleId.keySet()) {
+            if (moduleId != null) {
+                output.writeChars(moduleId);
+            }
+        }
+
+        for (MemorySearchIndex.Postings postings: postingsByTerm.values()) {
+            output.write(postings.bytes, 0, postings.length);
+        }
+        output.flush();
+    }
+
+    private static String[] strings(SearchRefinement.Candidate row) {
+        String[] strings = new String[STRINGS_PER_ROW];
+        System.arraycopy(row.columns, 0, strings, 0, NUMBER_OF_COLUMNS);
+        strings[NUMBER_OF_COLUMNS] = row.title;
+        strings[NUMBER_OF_COLUMNS + 1] = row.subtitle;
+        strings[NUMBER_OF_COLUMNS + 2] = row.uri;
+        strings[NUMBER_OF_COLUMNS + 3] = row.type;
+        strings[NUMBER_OF_COLUMNS + 4] = row.imageUri;
+        return strings;
+    }
+
+    private static int writeStringEntry(DataOutputStream output, String string, int charStart) throws IOException {
+        output.writeInt(charStart);
+        output.writeInt(string == null ? -1 : string.length());
+        return charStart + (string == null ? 0 : string.length());
+    }
+    //endregion
+}
@@ -0,0 +1,129 @@
+package com.zackliston.fulltextsearch.search_database;
+
+/**
+ * The corpus statistics Rank needs besides a row's hit counts: how many documents there are, the
+ * total length of each of the weight0 to weight4 columns, and for every document a norm, its
+ * length in each of those columns quantized to a byte.
+ *
+ * SearchStatementCache keeps the searchstatistics table up to date as documents are written and
+ * removed, and the norms of each document are stored with it in the content table. So ranking a
+ * row only needs matchinfo's 'x' hit counts, instead of FTS reading the row's sizes back with 'l'
+ * and the column averages with 'n' and 'a' for every match.
+ *
+ * Norms keep lengths below NUMBER_OF_EXACT_NORMS exactly and longer ones to four significant
+ * bits, rounding down, the way Lucene does. The totals are sums of quantized lengths, so a
+ * document that is removed takes away exactly what it added. Every backend ranks with the same
+ * quantized lengths, so their ranks stay the same.
+ */
+final class IndexStatistics
+{
+    //region Constants
+    static final int NUMBER_OF_FIELDS = Rank.NUMBER_OF_WEIGHTED_COLUMNS;
+    static final int NUMBER_OF_EXACT_NORMS = 24;
+
+    static final IndexStatistics EMPTY = new IndexStatistics(0, new long[NUMBER_OF_FIELDS]);
+    //endregion
+
+    //region Properties
+    final long numberOfDocuments;
+    final long[] totalLengths;
+    /** The average length of every field, rounded the way FTS rounds matchinfo's 'a'. */
+    final int[] averageLengths;
+    //endregion
+
+    //region Initialize
+    IndexStatistics(long numberOfDocuments, long[] totalLengths) {
+        this.numberOfDocuments = numberOfDocuments;
+        this.totalLengths = totalLengths;
+        averageLengths = new int[NUMBER_OF_FIELDS];
+        for (int field=0; field<NUMBER_OF_FIELDS; field++) {
+            averageLengths[field] = averageLength(totalLengths[field], numberOfDocuments);
+        }
+    }
+    //endregion
+
+    //region Norms
+    /**
+     * The norm byte, as an int from 0 to 255, for a length.
+     */
+    static int encodeNorm(int length) {
+        if (length < NUMBER_OF_EXACT_NORMS) {
+            return Math.max(length, 0);
+        }
+        return NUMBER_OF_EXACT_NORMS + encodeFloat4(length - NUMBER_OF_EXACT_NORMS);
+    }
+
+    static int decodeNorm(int norm) {
+        if (norm < NUMBER_OF_EXACT_NORMS) {
+            return norm;
+        }
+        return (int) Math.min(NUMBER_OF_EXACT_NORMS + decodeFloat4(norm - NUMBER_OF_EXACT_NORMS), Integer.MAX_VALUE);
+    }
+
+    /**
+     * The length a norm keeps of length.
+     */
+    static int quantizedLength(int length) {
+        return decodeNorm(encodeNorm(length));
+    }
+
+    /**
+     * The packed norms of a document with the given weight0 to weight4 text.
+     */
+    static long normsForSearchableStrings(String[] searchableStrings) {
+        int[] lengths = new int[NUMBER_OF_FIELDS];
+        for (int field=0; field<NUMBER_OF_FIELDS; field++) {
+            String searchableString = (searchableStrings != null && field < searchableStrings.length) ? searchableStrings[field] : null;
+            lengths[field] = (searchableString == null) ? 0 : SimpleTokenizer.tokenize(searchableString).count;
+        }
+        return packNorms(lengths);
+    }
+
+    /**
+     * Packs the norms of the weighted fields, whose lengths are given in lengths, a byte each with
+     * weight0 in the lowest.
+     */
+    static long packNorms(int[] lengths) {
+        long norms = 0;
+        for (int field=0; field<NUMBER_OF_FIELDS; field++) {
+            norms |= ((long) encodeNorm(lengths[field])) << (field * 8);
+        }
+        return norms;
+    }
+
+    /**
+     * The quantized length of field in packed norms.
+     */
+    static int lengthFromNorms(long norms, int field) {
+        return decodeNorm((int) (norms >>> (field * 8)) & 0xFF);
+    }
+
+    /**
+     * A float with a three bit mantissa and an implicit leading bit, small values exact.
+     */
+    private static int encodeFloat4(long value) {
+        int numberOfBits = 64 - Long.numberOfLeadingZeros(value);
+        if (numberOfBits < 4) {
+            return (int) value;
+        }
+        int shift = numberOfBits - 4;
+        int encoded = (int) (value >>> shift) & 0x07;
+        return encoded | ((shift + 1) << 3);
+    }
+
+    private static long decodeFloat4(int encoded) {
+        long bits = encoded & 0x07;
+        int shift = (encoded >>> 3) - 1;
+        return (shift == -1) ? bits : (bits | 0x08) << shift;
+    }
+    //endregion
+
+    //region Averages
+    static int averageLength(long totalLength, long numberOfDocuments) {
+        if (numberOfDocuments < 1) {
+            return 0;
+        }
+        return (int) ((totalLength + numberOfDocuments / 2) / numberOfDocuments);
+    }
+    //endregion
+}
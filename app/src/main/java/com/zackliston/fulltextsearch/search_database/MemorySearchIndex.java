@@ -0,0 +1,1537 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A SearchBackend that holds the whole index in memory, for databases small enough to fit.
+ *
+ * Rows are split into terms the way the FTS "simple" tokenizer splits them, and searched the way
+ * FTS evaluates the queries SearchDatabase makes: every word has to match, a word of several tokens
+ * is a phrase, a '*' makes a prefix, and a quoted query is one phrase. FTS operators like OR are
+ * matched as plain words. Matches are ranked from the same numbers FTS and the stored norms would
+ * have given Rank.rank, with the same arithmetic, so results come in the same order as a search of the
+ * FTS tables, and snippets come from SearchRefinement.
+ *
+ * Postings are kept per term as a varint compressed stream of the rows it occurs in, each with its
+ * positions in every column, and a skip table entry for every BLOCK_SIZE rows that also bounds the
+ * term frequency of the rows in it. Every term keeps the number of rows it occurs in for each
+ * weighted column, so its IDF is known before its postings are read. Everything else is
+ * kept in arrays indexed by slot, the order rows were added in: the text and token count of every
+ * column, and the metadata results are made from.
+ *
+ * Removing a row only marks its slot, so postings are only ever appended to. Once more than half
+ * of the slots are removed the index is rebuilt from the rows that are left. Searches share a read
+ * lock and writes take the write lock.
+ *
+ * The index can also start from an IndexSegment, whose rows take the first slots and are searched
+ * where they are. Rows added after it take the slots after those, and rows removed from it are
+ * marked until replaceWithSegment swaps in a segment written from rows().
+ */
+class MemorySearchIndex implements SearchBackend
+{
+    //region Constants
+    static final int NUMBER_OF_COLUMNS = SearchRefinement.NUMBER_OF_INDEXED_COLUMNS;
+    static final int BLOCK_SIZE = 64;
+    // Where a block starts, the slot of the row before it, then the most hits and the fewest tokens
+    // in every weighted column among its rows that have a hit there
+    static final int INTS_PER_BLOCK = 2 + 2 * Rank.NUMBER_OF_WEIGHTED_COLUMNS;
+    static final int MIN_REMOVED_SLOTS_BEFORE_REBUILD = 1024;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int ROWS_BETWEEN_CANCEL_CHECKS = 256;
+    private static final double RANK_BOUND_TOLERANCE = 1e-9;
+    private static final int MATCH_WINDOW_SIZE = 4096;
+
+    private static final int BLOCK_OFFSET = 0;
+    private static final int BLOCK_PREVIOUS_SLOT = 1;
+    private static final int BLOCK_MAX_HITS = 2;
+    private static final int BLOCK_MIN_LENGTHS = BLOCK_MAX_HITS + Rank.NUMBER_OF_WEIGHTED_COLUMNS;
+    //endregion
+
+    //region Occurrences
+    /**
+     * The positions of one term in every column of a row.
+     */
+    static final class Occurrences {
+        final int[] counts = new int[NUMBER_OF_COLUMNS];
+        final int[][] positions = new int[NUMBER_OF_COLUMNS][];
+
+        Occurrences() {
+            for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                positions[column] = new int[4];
+            }
+        }
+
+        void add(int column, int position) {
+            if (counts[column] == positions[column].length) {
+                positions[column] = Arrays.copyOf(positions[column], counts[column] * 2);
+            }
+            positions[column][counts[column]++] = position;
+        }
+
+        void clear() {
+            Arrays.fill(counts, 0);
+        }
+    }
+    //endregion
+
+    //region Postings
+    /**
+     * Every row a term occurs in, in slot order. A row is written as the difference from the
+     * previous slot and the length of the rest of the entry, so rows can be skipped without
+     * decoding them, then a mask of the columns the term occurs in and, for each of those, the
+     * number of occurrences and their positions as differences from the one before.
+     *
+     * numberOfRowsWithHit counts the rows with the term in each weighted column. Rows are only
+     * ever added to the postings, so MemorySearchIndex takes removed rows off it.
+     */
+    static final class Postings {
+        byte[] bytes = new byte[16];
+        int length = 0;
+        int numberOfRows = 0;
+        int lastSlot = -1;
+        final int[] numberOfRowsWithHit = new int[Rank.NUMBER_OF_WEIGHTED_COLUMNS];
+
+        // INTS_PER_BLOCK for every block of BLOCK_SIZE rows, laid out the way IndexSegment stores them
+        int[] blocks = new int[INTS_PER_BLOCK];
+        int numberOfBlocks = 0;
+
+        void add(int slot, Occurrences occurrences, int[] columnLengths) {
+            if (numberOfRows % BLOCK_SIZE == 0) {
+                if ((numberOfBlocks + 1) * INTS_PER_BLOCK > blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                }
+                int block = numberOfBlocks * INTS_PER_BLOCK;
+                blocks[block + BLOCK_OFFSET] = length;
+                blocks[block + BLOCK_PREVIOUS_SLOT] = lastSlot;
+                Arrays.fill(blocks, block + BLOCK_MAX_HITS, block + BLOCK_MIN_LENGTHS, 0);
+                Arrays.fill(blocks, block + BLOCK_MIN_LENGTHS, block + INTS_PER_BLOCK, Integer.MAX_VALUE);
+                numberOfBlocks++;
+            }
+            int block = (numberOfBlocks - 1) * INTS_PER_BLOCK;
+            for (int weightedColumn=0; weightedColumn<Rank.NUMBER_OF_WEIGHTED_COLUMNS; weightedColumn++) {
+                int column = Rank.WEIGHT_0_COLUMN_NUMBER + weightedColumn;
+                if (occurrences.counts[column] > 0) {
+                    numberOfRowsWithHit[weightedColumn]++;
+                    blocks[block + BLOCK_MAX_HITS + weightedColumn] = Math.max(blocks[block + BLOCK_MAX_HITS + weightedColumn], occurrences.counts[column]);
+                    blocks[block + BLOCK_MIN_LENGTHS + weightedColumn] = Math.min(blocks[block + BLOCK_MIN_LENGTHS + weightedColumn], columnLengths[column]);
+                }
+            }
+
+            int columnMask = 0;
+            int entryLength = 0;
+            for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                int count = occurrences.counts[column];
+                if (count < 1) {
+                    continue;
+                }
+                columnMask |= 1 << column;
+                entryLength += varintLength(count);
+                int previous = 0;
+                for (int i=0; i<count; i++) {
+                    entryLength += varintLength(occurrences.positions[column][i] - previous);
+                    previous = occurrences.positions[column][i];
+                }
+            }
+            entryLength += varintLength(columnMask);
+
+            int maxLength = length + 10 + entryLength;
+            if (maxLength > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(maxLength, bytes.length * 2));
+            }
+            writeVarint(slot - lastSlot);
+            writeVarint(entryLength);
+            writeVarint(columnMask);
+            for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                int count = occurrences.counts[column];
+                if (count < 1) {
+                    continue;
+                }
+                writeVarint(count);
+                int previous = 0;
+                for (int i=0; i<count; i++) {
+                    writeVarint(occurrences.positions[column][i] - previous);
+                    previous = occurrences.positions[column][i];
+                }
+            }
+            lastSlot = slot;
+            numberOfRows++;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private static int varintLength(int value) {
+            int length = 1;
+            while ((value & ~0x7F) != 0) {
+                value >>>= 7;
+                length++;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Reads a postings stream in slot order, from a Postings being built or from the buffer of an
+     * IndexSegment. slot is Integer.MAX_VALUE once it is exhausted.
+     */
+    static final class PostingsCursor {
+        private final ByteBuffer bytes;
+        private final int end;
+        // The skip table, either as an array or as ints in bytes from blocksStart
+        private final int[] blocks;
+        private final int blocksStart;
+        private final int numberOfBlocks;
+        private final int start;
+        private int offset;
+        private int entryOffset = 0;
+        // A block at or before the current row, which advance searches on from
+        private int block = 0;
+        private final int[] boundHits = new int[NUMBER_OF_COLUMNS];
+        private final int[] boundLengths = new int[NUMBER_OF_COLUMNS];
+        int slot = -1;
+
+        PostingsCursor(Postings postings) {
+            bytes = ByteBuffer.wrap(postings.bytes);
+            start = 0;
+            end = postings.length;
+            blocks = postings.blocks;
+            blocksStart = 0;
+            numberOfBlocks = postings.numberOfBlocks;
+            offset = start;
+        }
+
+        PostingsCursor(ByteBuffer bytes, int start, int end, int blocksStart, int numberOfBlocks) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+            blocks = null;
+            this.blocksStart = blocksStart;
+            this.numberOfBlocks = numberOfBlocks;
+            offset = start;
+        }
+
+        boolean next() {
+            if (offset >= end) {
+                slot = Integer.MAX_VALUE;
+                return false;
+            }
+            slot += readVarint();
+            int entryLength = readVarint();
+            entryOffset = offset;
+            offset += entryLength;
+            return true;
+        }
+
+        /**
+         * Moves to the first row at or after target, skipping whole blocks where it can.
+         */
+        boolean advance(int target) {
+            if (slot >= target) {
+                return slot != Integer.MAX_VALUE;
+            }
+            // Only search the skip table if target is past the block the cursor is in
+            if (block + 1 < numberOfBlocks && blockInt(block + 1, BLOCK_PREVIOUS_SLOT) < target) {
+                int low = block + 1;
+                int high = numberOfBlocks - 1;
+                while (low < high) {
+                    int middle = (low + high + 1) >>> 1;
+                    if (blockInt(middle, BLOCK_PREVIOUS_SLOT) < target) {
+                        low = middle;
+                    } else {
+                        high = middle - 1;
+                    }
+                }
+                if (start + blockInt(low, BLOCK_OFFSET) > offset) {
+                    moveToBlock(low);
+                } else {
+                    block = low;
+                }
+            }
+            while (slot < target) {
+                if (!next()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds the positions of the term in the current row to occurrences.
+         */
+        void readOccurrences(Occurrences occurrences) {
+            int savedOffset = offset;
+            offset = entryOffset;
+            int columnMask = readVarint();
+            for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                if ((columnMask & (1 << column)) == 0) {
+                    continue;
+                }
+                int count = readVarint();
+                int position = 0;
+                for (int i=0; i<count; i++) {
+                    position += readVarint();
+                    occurrences.add(column, position);
+                }
+            }
+            offset = savedOffset;
+        }
+
+        /**
+         * Adds the number of times the term occurs in each column of the current row to counts,
+         * from start on, stepping over the positions without decoding them.
+         */
+        void readCounts(int[] counts, int start) {
+            int savedOffset = offset;
+            offset = entryOffset;
+            int columnMask = readVarint();
+            for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                if ((columnMask & (1 << column)) == 0) {
+                    continue;
+                }
+                int count = readVarint();
+                counts[start + column] += count;
+                for (int i=0; i<count; i++) {
+                    while (bytes.get(offset++) < 0) {
+                        // The last byte of a varint is the one without the high bit set
+                    }
+                }
+            }
+            offset = savedOffset;
+        }
+
+        int numberOfBlocks() {
+            return numberOfBlocks;
+        }
+
+        /**
+         * Moves to just before the first row of block, so next reads it.
+         */
+        void moveToBlock(int block) {
+            this.block = block;
+            offset = start + blockInt(block, BLOCK_OFFSET);
+            slot = blockInt(block, BLOCK_PREVIOUS_SLOT);
+        }
+
+        /**
+         * Moves to the next row if it is in block, which the cursor has to be in already.
+         */
+        boolean nextInBlock(int block) {
+            int blockEnd = (block + 1 < numberOfBlocks) ? start + blockInt(block + 1, BLOCK_OFFSET) : end;
+            return offset < blockEnd && next();
+        }
+
+        /**
+         * The most the term frequency of any row in block can be. Rank only grows with hits and
+         * shrinks with length, so it is the term frequency of a row with the block's most hits
+         * and fewest tokens in every weighted column.
+         */
+        double maxTermFrequency(int block, int[] averageColumnLengths, RankingProfile profile) {
+            for (int weightedColumn=0; weightedColumn<Rank.NUMBER_OF_WEIGHTED_COLUMNS; weightedColumn++) {
+                boundHits[Rank.WEIGHT_0_COLUMN_NUMBER + weightedColumn] = blockInt(block, BLOCK_MAX_HITS + weightedColumn);
+                boundLengths[Rank.WEIGHT_0_COLUMN_NUMBER + weightedColumn] = blockInt(block, BLOCK_MIN_LENGTHS + weightedColumn);
+            }
+            return Rank.termFrequencyForPhrase(boundHits, boundLengths, averageColumnLengths, profile);
+        }
+
+        private int blockInt(int block, int index) {
+            int position = block * INTS_PER_BLOCK + index;
+            return (blocks != null) ? blocks[position] : bytes.getInt(blocksStart + position * 4);
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = bytes.get(offset++);
+                value |= (current & 0x7F) << shift;
+                shift += 7;
+            } while ((current & 0x80) != 0);
+            return value;
+        }
+    }
+
+    /**
+     * The rows matching one token of a phrase, which for a prefix is every term starting with it.
+     */
+    private static final class TokenCursor {
+        private final PriorityQueue<PostingsCursor> cursors;
+        private final List<PostingsCursor> current = new ArrayList<>();
+
+        TokenCursor(List<PostingsCursor> postingsCursors) {
+            cursors = new PriorityQueue<>(Math.max(postingsCursors.size(), 1), new Comparator<PostingsCursor>() {
+                @Override
+                public int compare(PostingsCursor lhs, PostingsCursor rhs) {
+                    return lhs.slot < rhs.slot ? -1 : (lhs.slot == rhs.slot ? 0 : 1);
+                }
+            });
+            for (PostingsCursor cursor: postingsCursors) {
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+        }
+
+        int slot() {
+            PostingsCursor first = cursors.peek();
+            return first == null ? Integer.MAX_VALUE : first.slot;
+        }
+
+        void advance(int target) {
+            while (!cursors.isEmpty() && cursors.peek().slot < target) {
+                PostingsCursor cursor = cursors.poll();
+                if (cursor.advance(target)) {
+                    cursors.add(cursor);
+                }
+            }
+        }
+
+        void readOccurrences(Occurrences occurrences) {
+            int slot = slot();
+            while (!cursors.isEmpty() && cursors.peek().slot == slot) {
+                current.add(cursors.poll());
+            }
+            for (PostingsCursor cursor: current) {
+                cursor.readOccurrences(occurrences);
+            }
+            if (current.size() > 1) {
+                for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                    Arrays.sort(occurrences.positions[column], 0, occurrences.counts[column]);
+                }
+            }
+            cursors.addAll(current);
+            current.clear();
+        }
+    }
+
+    /**
+     * The rows of an exact term: its postings in the segment, then those of the rows added since,
+     * whose slots all come after the segment's.
+     */
+    private static final class TermCursor {
+        private final PostingsCursor[] cursors;
+        private int current = 0;
+
+        TermCursor(PostingsCursor[] cursors) {
+            this.cursors = cursors;
+        }
+
+        /**
+         * Moves to the first row at or after slot, and returns whether it is the row at slot.
+         */
+        boolean moveTo(int slot) {
+            while (current < cursors.length) {
+                if (cursors[current].advance(slot)) {
+                    return cursors[current].slot == slot;
+                }
+                current++;
+            }
+            return false;
+        }
+
+        void readCounts(int[] counts) {
+            cursors[current].readCounts(counts, 0);
+        }
+    }
+    //endregion
+
+    //region Phrase Matches
+    /**
+     * Every row a phrase occurs in, with the phrase's term frequency in it as Rank weighs it, and
+     * the number of rows with a hit in each column that its IDF is worked out from. The highest
+     * frequency in every BLOCK_SIZE rows bounds what the phrase can add to their rank.
+     */
+    private static final class PhraseMatches {
+        int count = 0;
+        int[] slots = new int[16];
+        double[] termFrequencies = new double[16];
+        double[] maxTermFrequencies = new double[1];
+        double maxTermFrequency = 0.0;
+        final int[] numberOfRowsWithHit = new int[NUMBER_OF_COLUMNS];
+
+        void add(int slot, int[] columnHits, double termFrequency) {
+            if (count == slots.length) {
+                slots = Arrays.copyOf(slots, count * 2);
+                termFrequencies = Arrays.copyOf(termFrequencies, count * 2);
+            }
+            int block = count / BLOCK_SIZE;
+            if (block == maxTermFrequencies.length) {
+                maxTermFrequencies = Arrays.copyOf(maxTermFrequencies, block * 2);
+            }
+            if (count % BLOCK_SIZE == 0 || termFrequency > maxTermFrequencies[block]) {
+                maxTermFrequencies[block] = termFrequency;
+            }
+            maxTermFrequency = Math.max(maxTermFrequency, termFrequency);
+            slots[count] = slot;
+            termFrequencies[count] = termFrequency;
+            for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                if (columnHits[column] > 0) {
+                    numberOfRowsWithHit[column]++;
+                }
+            }
+            count++;
+        }
+
+        /**
+         * The index of slot, searching from start, or -1 - the index it would be inserted at.
+         */
+        int indexOf(int slot, int start) {
+            return Arrays.binarySearch(slots, start, count, slot);
+        }
+    }
+    //endregion
+
+    //region Properties
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> moduleOrdinalsByModuleId = new HashMap<>();
+    private final long[] totalColumnLengths = new long[NUMBER_OF_COLUMNS];
+    private int numberOfRows = 0;
+
+    // Slots below segmentRows are the segment's rows, in its order
+    private IndexSegment segment;
+    private int segmentRows = 0;
+    private BitSet removedSegmentSlots = new BitSet();
+    // Per term, how many of the rows the segment counts with a hit in each weighted column are removed
+    private Map<String, int[]> removedSegmentRowsWithHit = new HashMap<>();
+    private int[] segmentModuleOrdinals = new int[0];
+
+    // Rows added since the segment, in slots from segmentRows on
+    private final TreeMap<String, Postings> postingsByTerm = new TreeMap<>();
+    private final Map<Long, Integer> slotsByDocId = new HashMap<>();
+    private int numberOfAddedSlots = 0;
+    private int numberOfAddedRows = 0;
+
+    // Indexed by slot - segmentRows
+    private long[] docIds;
+    private double[] boosts;
+    private boolean[] isRemoved;
+    private int[] moduleOrdinals;
+    private String[][] columnTexts;
+    private int[][] columnLengths;
+    private String[] titles;
+    private String[] subtitles;
+    private String[] uris;
+    private String[] types;
+    private String[] imageUris;
+    //endregion
+
+    //region Initialize
+    MemorySearchIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * An index of the rows in segment, searched where it is without reading it in.
+     */
+    MemorySearchIndex(IndexSegment segment) {
+        allocate(INITIAL_CAPACITY);
+        useSegment(segment);
+    }
+
+    private void allocate(int capacity) {
+        docIds = new long[capacity];
+        boosts = new double[capacity];
+        isRemoved = new boolean[capacity];
+        moduleOrdinals = new int[capacity];
+        columnTexts = new String[NUMBER_OF_COLUMNS][capacity];
+        columnLengths = new int[NUMBER_OF_COLUMNS][capacity];
+        titles = new String[capacity];
+        subtitles = new String[capacity];
+        uris = new String[capacity];
+        types = new String[capacity];
+        imageUris = new String[capacity];
+    }
+
+    private void ensureCapacity(int minimumCapacity) {
+        if (docIds.length >= minimumCapacity) {
+            return;
+        }
+        int capacity = Math.max(minimumCapacity, docIds.length * 2);
+        docIds = Arrays.copyOf(docIds, capacity);
+        boosts = Arrays.copyOf(boosts, capacity);
+        isRemoved = Arrays.copyOf(isRemoved, capacity);
+        moduleOrdinals = Arrays.copyOf(moduleOrdinals, capacity);
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            columnTexts[column] = Arrays.copyOf(columnTexts[column], capacity);
+            columnLengths[column] = Arrays.copyOf(columnLengths[column], capacity);
+        }
+        titles = Arrays.copyOf(titles, capacity);
+        subtitles = Arrays.copyOf(subtitles, capacity);
+        uris = Arrays.copyOf(uris, capacity);
+        types = Arrays.copyOf(types, capacity);
+        imageUris = Arrays.copyOf(imageUris, capacity);
+    }
+    //endregion
+
+    //region Segment
+    /**
+     * Every row in the index, for writing a new segment.
+     */
+    List<SearchRefinement.Candidate> rows() {
+        lock.readLock().lock();
+        try {
+            List<SearchRefinement.Candidate> rows = new ArrayList<>(numberOfRows);
+            for (int slot=0; slot<numberOfSlots(); slot++) {
+                if (!isRemoved(slot)) {
+                    rows.add(row(slot));
+                }
+            }
+            return rows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces everything in the index with the rows of segment, which has to have been written
+     * from rows() with nothing changing since.
+     */
+    void replaceWithSegment(IndexSegment segment) {
+        lock.writeLock().lock();
+        try {
+            clearRows();
+            useSegment(segment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The number of rows added or removed since the segment was written.
+     */
+    int getNumberOfChangesSinceSegment() {
+        lock.readLock().lock();
+        try {
+            return numberOfAddedSlots + removedSegmentSlots.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void useSegment(IndexSegment segment) {
+        this.segment = segment;
+        segmentRows = segment.numberOfRows;
+        removedSegmentSlots = new BitSet(segmentRows);
+        removedSegmentRowsWithHit = new HashMap<>();
+        segmentModuleOrdinals = new int[segment.numberOfModules];
+        for (int i=0; i<segment.numberOfModules; i++) {
+            segmentModuleOrdinals[i] = moduleOrdinal(segment.moduleId(i));
+        }
+        numberOfRows = segmentRows;
+        System.arraycopy(segment.totalColumnLengths, 0, totalColumnLengths, 0, NUMBER_OF_COLUMNS);
+    }
+    //endregion
+
+    //region Write
+    @Override
+    public void indexFile(SearchRefinement.Candidate row) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotForDocId(row.docId);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+            addRow(row);
+            rebuildIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeFileFromIndex(long docId) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotForDocId(docId);
+            if (slot >= 0) {
+                removeSlot(slot);
+                rebuildIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeModule(String moduleId) {
+        lock.writeLock().lock();
+        try {
+            Integer moduleOrdinal = moduleOrdinalsByModuleId.get(moduleId);
+            if (moduleOrdinal == null) {
+                return;
+            }
+            for (int slot=0; slot<numberOfSlots(); slot++) {
+                if (!isRemoved(slot) && moduleOrdinal(slot) == moduleOrdinal) {
+                    removeSlot(slot);
+                }
+            }
+            rebuildIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearRows();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addRow(SearchRefinement.Candidate row) {
+        int slot = numberOfSlots();
+        int added = numberOfAddedSlots;
+        ensureCapacity(added + 1);
+        numberOfAddedSlots++;
+        numberOfAddedRows++;
+        numberOfRows++;
+
+        docIds[added] = row.docId;
+        boosts[added] = row.boost;
+        isRemoved[added] = false;
+        moduleOrdinals[added] = moduleOrdinal(row.moduleId);
+        titles[added] = row.title;
+        subtitles[added] = row.subtitle;
+        uris[added] = row.uri;
+        types[added] = row.type;
+        imageUris[added] = row.imageUri;
+        slotsByDocId.put(row.docId, slot);
+
+        int[] rowColumnLengths = new int[NUMBER_OF_COLUMNS];
+        addPostings(postingsByTerm, slot, row.columns, rowColumnLengths);
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            columnTexts[column][added] = row.columns[column];
+            columnLengths[column][added] = rowColumnLengths[column];
+            totalColumnLengths[column] += rowColumnLengths[column];
+        }
+    }
+
+    /**
+     * Adds the terms of a row's columns to postingsByTerm, and the number of tokens in each column
+     * to columnLengths. The lengths of the weighted columns are quantized the way their norms are
+     * in the database, so rows rank the same here as they do there.
+     */
+    static void addPostings(Map<String, Postings> postingsByTerm, int slot, String[] columns, int[] columnLengths) {
+        Map<String, Occurrences> occurrencesByTerm = new HashMap<>();
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            String text = columns[column];
+            SimpleTokenizer.Tokens tokens = SimpleTokenizer.tokenize(text);
+            columnLengths[column] = (column >= Rank.WEIGHT_0_COLUMN_NUMBER) ? IndexStatistics.quantizedLength(tokens.count) : tokens.count;
+            for (int i=0; i<tokens.count; i++) {
+                String term = term(text, tokens.starts[i], tokens.ends[i]);
+                Occurrences occurrences = occurrencesByTerm.get(term);
+                if (occurrences == null) {
+                    occurrences = new Occurrences();
+                    occurrencesByTerm.put(term, occurrences);
+                }
+                occurrences.add(column, i);
+            }
+        }
+        for (Map.Entry<String, Occurrences> entry: occurrencesByTerm.entrySet()) {
+            Postings postings = postingsByTerm.get(entry.getKey());
+            if (postings == null) {
+                postings = new Postings();
+                postingsByTerm.put(entry.getKey(), postings);
+            }
+            postings.add(slot, entry.getValue(), columnLengths);
+        }
+    }
+
+    private void removeSlot(int slot) {
+        numberOfRows--;
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            totalColumnLengths[column] -= columnLength(column, slot);
+        }
+        removeRowsWithHit(slot);
+        if (slot < segmentRows) {
+            removedSegmentSlots.set(slot);
+            return;
+        }
+        int added = slot - segmentRows;
+        isRemoved[added] = true;
+        numberOfAddedRows--;
+        slotsByDocId.remove(docIds[added]);
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            columnTexts[column][added] = null;
+        }
+        titles[added] = null;
+        subtitles[added] = null;
+        uris[added] = null;
+        types[added] = null;
+        imageUris[added] = null;
+    }
+
+    /**
+     * Takes the row at slot off the number of rows with a hit that its terms keep for every
+     * weighted column. A segment's counts cannot change, so its rows are counted off apart.
+     */
+    private void removeRowsWithHit(int slot) {
+        for (int weightedColumn=0; weightedColumn<Rank.NUMBER_OF_WEIGHTED_COLUMNS; weightedColumn++) {
+            String text = columnText(Rank.WEIGHT_0_COLUMN_NUMBER + weightedColumn, slot);
+            SimpleTokenizer.Tokens tokens = SimpleTokenizer.tokenize(text);
+            Set<String> terms = new HashSet<>();
+            for (int i=0; i<tokens.count; i++) {
+                terms.add(term(text, tokens.starts[i], tokens.ends[i]));
+            }
+            for (String term: terms) {
+                if (slot < segmentRows) {
+                    int[] removedRowsWithHit = removedSegmentRowsWithHit.get(term);
+                    if (removedRowsWithHit == null) {
+                        removedRowsWithHit = new int[Rank.NUMBER_OF_WEIGHTED_COLUMNS];
+                        removedSegmentRowsWithHit.put(term, removedRowsWithHit);
+                    }
+                    removedRowsWithHit[weightedColumn]++;
+                } else {
+                    postingsByTerm.get(term).numberOfRowsWithHit[weightedColumn]--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the postings of the rows added since the segment once removed slots outnumber them.
+     * Rows removed from the segment stay marked until the next segment is written.
+     */
+    private void rebuildIfNeeded() {
+        int numberOfRemovedSlots = numberOfAddedSlots - numberOfAddedRows;
+        if (numberOfRemovedSlots < MIN_REMOVED_SLOTS_BEFORE_REBUILD || numberOfRemovedSlots <= numberOfAddedRows) {
+            return;
+        }
+        List<SearchRefinement.Candidate> rows = new ArrayList<>(numberOfAddedRows);
+        for (int slot=segmentRows; slot<numberOfSlots(); slot++) {
+            if (!isRemoved(slot)) {
+                rows.add(row(slot));
+            }
+        }
+        for (SearchRefinement.Candidate row: rows) {
+            removeSlot(slotsByDocId.get(row.docId));
+        }
+        clearAddedRows();
+        for (SearchRefinement.Candidate row: rows) {
+            addRow(row);
+        }
+    }
+
+    private void clearRows() {
+        segment = null;
+        segmentRows = 0;
+        removedSegmentSlots = new BitSet();
+        removedSegmentRowsWithHit = new HashMap<>();
+        segmentModuleOrdinals = new int[0];
+        moduleOrdinalsByModuleId.clear();
+        numberOfRows = 0;
+        Arrays.fill(totalColumnLengths, 0);
+        clearAddedRows();
+    }
+
+    private void clearAddedRows() {
+        postingsByTerm.clear();
+        slotsByDocId.clear();
+        numberOfAddedSlots = 0;
+        numberOfAddedRows = 0;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private int moduleOrdinal(String moduleId) {
+        Integer moduleOrdinal = moduleOrdinalsByModuleId.get(moduleId);
+        if (moduleOrdinal == null) {
+            moduleOrdinal = moduleOrdinalsByModuleId.size();
+            moduleOrdinalsByModuleId.put(moduleId, moduleOrdinal);
+        }
+        return moduleOrdinal;
+    }
+    //endregion
+
+    //region Slots
+    private int numberOfSlots() {
+        return segmentRows + numberOfAddedSlots;
+    }
+
+    /**
+     * The slot of the row with docId, or -1 if the index does not have one.
+     */
+    private int slotForDocId(long docId) {
+        Integer slot = slotsByDocId.get(docId);
+        if (slot != null) {
+            return slot;
+        }
+        if (segment != null) {
+            int segmentSlot = segment.slotForDocId(docId);
+            if (segmentSlot >= 0 && !removedSegmentSlots.get(segmentSlot)) {
+                return segmentSlot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isRemoved(int slot) {
+        return (slot < segmentRows) ? removedSegmentSlots.get(slot) : isRemoved[slot - segmentRows];
+    }
+
+    private long docId(int slot) {
+        return (slot < segmentRows) ? segment.docId(slot) : docIds[slot - segmentRows];
+    }
+
+    private double boost(int slot) {
+        return (slot < segmentRows) ? segment.boost(slot) : boosts[slot - segmentRows];
+    }
+
+    private int moduleOrdinal(int slot) {
+        return (slot < segmentRows) ? segmentModuleOrdinals[segment.moduleOrdinal(slot)] : moduleOrdinals[slot - segmentRows];
+    }
+
+    private int columnLength(int column, int slot) {
+        return (slot < segmentRows) ? segment.columnLength(column, slot) : columnLengths[column][slot - segmentRows];
+    }
+
+    private String columnText(int column, int slot) {
+        return (slot < segmentRows) ? segment.columnText(column, slot) : columnTexts[column][slot - segmentRows];
+    }
+
+    private SearchRefinement.Candidate row(int slot) {
+        if (slot < segmentRows) {
+            return segment.row(slot);
+        }
+        int added = slot - segmentRows;
+        String[] columns = new String[NUMBER_OF_COLUMNS];
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            columns[column] = columnTexts[column][added];
+        }
+        return new SearchRefinement.Candidate(docIds[added], boosts[added], columns, columns[0], columns[1], titles[added], subtitles[added], uris[added], types[added], imageUris[added]);
+    }
+    //endregion
+
+    //region Search
+    /**
+     * Ranked with the default profile.
+     */
+    List<SearchDatabase.RankedDocument> rankedDocuments(String formattedSearchText, int maxNumberOfResults, SearchHandle handle, List<String> moduleIds) {
+        return rankedDocuments(formattedSearchText, maxNumberOfResults, RankingProfile.DEFAULT, handle, moduleIds);
+    }
+
+    /**
+     * Every phrase has to match, so the rows of the phrase with the fewest are walked, a block of
+     * BLOCK_SIZE at a time, and looked up in the rest. An exact term is read straight from its
+     * postings: its IDF comes from the rows with a hit it keeps count of, and each block of its
+     * skip table bounds the term frequency of the rows in it. Prefixes and phrases of several
+     * tokens are matched in full first, since their IDF needs every row they match.
+     *
+     * Once the heap is full, a block is skipped without being read or looked up if the most its
+     * rows could rank, from the bound of the block and the highest term frequency of every other
+     * phrase, would not make the heap. So only rows that might are ever ranked. A profile that
+     * lets boost count turns this off, since it can lift any row past the bound.
+     */
+    @Override
+    public List<SearchDatabase.RankedDocument> rankedDocuments(String formattedSearchText, int maxNumberOfResults, RankingProfile profile, SearchHandle handle, List<String> moduleIds) {
+        SearchRefinement.Phrase[] phrases = phrasesForSearchText(formattedSearchText);
+        if (phrases.length < 1 || maxNumberOfResults < 1) {
+            return new ArrayList<>(0);
+        }
+        lock.readLock().lock();
+        try {
+            return new TopRanks(phrases, maxNumberOfResults, profile, handle, moduleFilter(moduleIds)).rankedDocuments();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<Long, SearchResult> searchResultsByDocId(String formattedSearchText, List<SearchDatabase.RankedDocument> rankedDocuments, int snippetSize) {
+        SearchRefinement.Phrase[] phrases = phrasesForSearchText(formattedSearchText);
+        Map<Long, SearchResult> resultsByDocId = new HashMap<>(rankedDocuments.size());
+        lock.readLock().lock();
+        try {
+            for (SearchDatabase.RankedDocument rankedDocument: rankedDocuments) {
+                int slot = slotForDocId(rankedDocument.docId);
+                if (slot < 0) {
+                    continue;
+                }
+                SearchRefinement.Candidate row = row(slot);
+                SearchResult result = SearchResult.newSearchResult(row.title, row.subtitle, null, row.uri, row.type, row.imageUri, false, row.fileId, row.moduleId);
+                result.snippet = SearchRefinement.snippet(row, phrases, snippetSize);
+                resultsByDocId.put(row.docId, result);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return resultsByDocId;
+    }
+
+    /**
+     * Finds every row the phrase occurs in, by stepping the cursors of its tokens forward until
+     * they agree on a row and then checking the tokens follow each other in some column.
+     */
+    private PhraseMatches phraseMatches(SearchRefinement.Phrase phrase, int[] averageColumnLengths, RankingProfile profile, SearchHandle handle) {
+        if (phrase.terms.length == 1) {
+            return tokenMatches(postingsCursorsForTerm(phrase.terms[0], phrase.isPrefix[0]), averageColumnLengths, profile, handle);
+        }
+        PhraseMatches matches = new PhraseMatches();
+        int numberOfTokens = phrase.terms.length;
+        TokenCursor[] cursors = new TokenCursor[numberOfTokens];
+        Occurrences[] occurrences = new Occurrences[numberOfTokens];
+        for (int i=0; i<numberOfTokens; i++) {
+            List<PostingsCursor> postingsCursors = postingsCursorsForTerm(phrase.terms[i], phrase.isPrefix[i]);
+            if (postingsCursors.isEmpty()) {
+                return matches;
+            }
+            cursors[i] = new TokenCursor(postingsCursors);
+            occurrences[i] = new Occurrences();
+        }
+
+        int[] columnHits = new int[NUMBER_OF_COLUMNS];
+        int[] rowColumnLengths = new int[NUMBER_OF_COLUMNS];
+        int slot = 0;
+        for (int row=0; ; row++) {
+            if (row % ROWS_BETWEEN_CANCEL_CHECKS == 0 && isCancelled(handle)) {
+                return matches;
+            }
+            boolean isAgreed;
+            do {
+                isAgreed = true;
+                for (TokenCursor cursor: cursors) {
+                    cursor.advance(slot);
+                    int cursorSlot = cursor.slot();
+                    if (cursorSlot == Integer.MAX_VALUE) {
+                        return matches;
+                    }
+                    if (cursorSlot > slot) {
+                        slot = cursorSlot;
+                        isAgreed = false;
+                    }
+                }
+            } while (!isAgreed);
+
+            if (!isRemoved(slot)) {
+                for (int i=0; i<numberOfTokens; i++) {
+                    occurrences[i].clear();
+                    cursors[i].readOccurrences(occurrences[i]);
+                }
+                for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                    columnHits[column] = phraseHits(occurrences, column);
+                }
+                boolean isMatch = false;
+                for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                    isMatch |= columnHits[column] > 0;
+                }
+                if (isMatch) {
+                    for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                        rowColumnLengths[column] = columnLength(column, slot);
+                    }
+                    matches.add(slot, columnHits, Rank.termFrequencyForPhrase(columnHits, rowColumnLengths, averageColumnLengths, profile));
+                }
+            }
+            slot++;
+        }
+    }
+
+    /**
+     * Finds every row a phrase of one token occurs in, which only takes its counts, so positions
+     * are never decoded. The postings of all the terms a prefix matches are read a term at a time
+     * into a window of MATCH_WINDOW_SIZE slots, rather than merged row by row, and the rows in the
+     * window are then taken in slot order.
+     */
+    private PhraseMatches tokenMatches(List<PostingsCursor> postingsCursors, int[] averageColumnLengths, RankingProfile profile, SearchHandle handle) {
+        PhraseMatches matches = new PhraseMatches();
+        int[] windowHits = new int[MATCH_WINDOW_SIZE * NUMBER_OF_COLUMNS];
+        long[] isSlotInWindow = new long[MATCH_WINDOW_SIZE / 64];
+        int[] columnHits = new int[NUMBER_OF_COLUMNS];
+        int[] rowColumnLengths = new int[NUMBER_OF_COLUMNS];
+        for (PostingsCursor cursor: postingsCursors) {
+            cursor.next();
+        }
+
+        while (!isCancelled(handle)) {
+            int windowStart = Integer.MAX_VALUE;
+            for (PostingsCursor cursor: postingsCursors) {
+                windowStart = Math.min(windowStart, cursor.slot);
+            }
+            if (windowStart == Integer.MAX_VALUE) {
+                break;
+            }
+            int windowEnd = (int) Math.min((long) windowStart + MATCH_WINDOW_SIZE, Integer.MAX_VALUE);
+            for (PostingsCursor cursor: postingsCursors) {
+                while (cursor.slot < windowEnd) {
+                    int windowSlot = cursor.slot - windowStart;
+                    cursor.readCounts(windowHits, windowSlot * NUMBER_OF_COLUMNS);
+                    isSlotInWindow[windowSlot >>> 6] |= 1L << windowSlot;
+                    cursor.next();
+                }
+            }
+
+            for (int word=0; word<isSlotInWindow.length; word++) {
+                while (isSlotInWindow[word] != 0) {
+                    int windowSlot = word * 64 + Long.numberOfTrailingZeros(isSlotInWindow[word]);
+                    isSlotInWindow[word] &= isSlotInWindow[word] - 1;
+                    int slot = windowStart + windowSlot;
+                    System.arraycopy(windowHits, windowSlot * NUMBER_OF_COLUMNS, columnHits, 0, NUMBER_OF_COLUMNS);
+                    Arrays.fill(windowHits, windowSlot * NUMBER_OF_COLUMNS, (windowSlot + 1) * NUMBER_OF_COLUMNS, 0);
+                    if (isRemoved(slot)) {
+                        continue;
+                    }
+                    for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                        rowColumnLengths[column] = columnLength(column, slot);
+                    }
+                    matches.add(slot, columnHits, Rank.termFrequencyForPhrase(columnHits, rowColumnLengths, averageColumnLengths, profile));
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * The number of places in the column where every token follows the one before it.
+     */
+    private static int phraseHits(Occurrences[] occurrences, int column) {
+        if (occurrences.length == 1) {
+            return occurrences[0].counts[column];
+        }
+        int hits = 0;
+        int[] next = new int[occurrences.length];
+        for (int start=0; start<occurrences[0].counts[column]; start++) {
+            int position = occurrences[0].positions[column][start];
+            boolean isMatch = true;
+            for (int i=1; i<occurrences.length && isMatch; i++) {
+                int[] positions = occurrences[i].positions[column];
+                while (next[i] < occurrences[i].counts[column] && positions[next[i]] < position + i) {
+                    next[i]++;
+                }
+                isMatch = next[i] < occurrences[i].counts[column] && positions[next[i]] == position + i;
+            }
+            if (isMatch) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Cursors over the postings of term, or of every term starting with it if it is a prefix,
+     * in the segment first and then in the rows added since.
+     */
+    private List<PostingsCursor> postingsCursorsForTerm(String term, boolean isPrefix) {
+        String end = null;
+        if (isPrefix) {
+            char last = term.charAt(term.length() - 1);
+            if (last != Character.MAX_VALUE) {
+                end = term.substring(0, term.length() - 1) + (char) (last + 1);
+            }
+        }
+
+        List<PostingsCursor> postingsCursors = new ArrayList<>();
+        if (segment != null) {
+            if (!isPrefix) {
+                int termIndex = segment.termIndex(term);
+                if (termIndex >= 0) {
+                    postingsCursors.add(segment.cursor(termIndex));
+                }
+            } else {
+                int endIndex = (end == null) ? segment.numberOfTerms : segment.lowerBound(end);
+                for (int termIndex=segment.lowerBound(term); termIndex<endIndex; termIndex++) {
+                    postingsCursors.add(segment.cursor(termIndex));
+                }
+            }
+        }
+
+        Collection<Postings> postings;
+        if (!isPrefix) {
+            Postings termPostings = postingsByTerm.get(term);
+            postings = (termPostings == null) ? Collections.<Postings>emptyList() : Collections.singletonList(termPostings);
+        } else if (end == null) {
+            postings = postingsByTerm.tailMap(term, true).values();
+        } else {
+            postings = postingsByTerm.subMap(term, true, end, false).values();
+        }
+        for (Postings termPostings: postings) {
+            postingsCursors.add(new PostingsCursor(termPostings));
+        }
+        return postingsCursors;
+    }
+
+    /**
+     * The number of rows with term in every column, as phraseMatches would count them, from the
+     * counts kept by the segment and by the postings of the rows added since.
+     */
+    private int[] numberOfRowsWithHit(String term) {
+        int[] numberOfRowsWithHit = new int[NUMBER_OF_COLUMNS];
+        int termIndex = (segment == null) ? -1 : segment.termIndex(term);
+        int[] removedRowsWithHit = removedSegmentRowsWithHit.get(term);
+        Postings postings = postingsByTerm.get(term);
+        for (int weightedColumn=0; weightedColumn<Rank.NUMBER_OF_WEIGHTED_COLUMNS; weightedColumn++) {
+            int count = 0;
+            if (termIndex >= 0) {
+                count += segment.numberOfRowsWithHit(termIndex, weightedColumn);
+            }
+            if (removedRowsWithHit != null) {
+                count -= removedRowsWithHit[weightedColumn];
+            }
+            if (postings != null) {
+                count += postings.numberOfRowsWithHit[weightedColumn];
+            }
+            numberOfRowsWithHit[Rank.WEIGHT_0_COLUMN_NUMBER + weightedColumn] = count;
+        }
+        return numberOfRowsWithHit;
+    }
+
+    /**
+     * The average number of tokens in every column, rounded to the nearest token the way FTS
+     * reports it to matchinfo.
+     */
+    private int[] averageColumnLengths() {
+        int[] averageColumnLengths = new int[NUMBER_OF_COLUMNS];
+        for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+            averageColumnLengths[column] = IndexStatistics.averageLength(totalColumnLengths[column], numberOfRows);
+        }
+        return averageColumnLengths;
+    }
+
+    private boolean[] moduleFilter(List<String> moduleIds) {
+        if (moduleIds == null || moduleIds.size() < 1) {
+            return null;
+        }
+        boolean[] isModuleIncluded = new boolean[moduleOrdinalsByModuleId.size()];
+        for (String moduleId: moduleIds) {
+            Integer moduleOrdinal = moduleOrdinalsByModuleId.get(moduleId);
+            if (moduleOrdinal != null) {
+                isModuleIncluded[moduleOrdinal] = true;
+            }
+        }
+        return isModuleIncluded;
+    }
+    //endregion
+
+    //region Top Ranks
+    /**
+     * The phrases of one search and the heap of the best rows ranked so far. Exact terms are
+     * looked up through cursors over their postings as rows come up, every other phrase in the
+     * PhraseMatches found for it up front. Only used under the read lock.
+     */
+    private final class TopRanks {
+        private final SearchRefinement.Phrase[] phrases;
+        private final int maxNumberOfResults;
+        private final RankingProfile profile;
+        private final SearchHandle handle;
+        private final boolean[] isModuleIncluded;
+        private final boolean canSkipBlocks;
+        private final int[] averageColumnLengths;
+        private final PriorityQueue<SearchDatabase.RankedDocument> heap;
+
+        // Per phrase, either its matches or the cursors over its postings
+        private final PhraseMatches[] matches;
+        private final PostingsCursor[][] termCursors;
+        private final TermCursor[] otherTermCursors;
+        private final double[] inverseDocumentFrequencies;
+        private final double[] maxTermFrequencies;
+        private int leading = 0;
+        private double otherMaxRank = 0.0;
+
+        private final double[] termFrequencies;
+        private final int[] nextMatch;
+        private final int[] columnHits = new int[NUMBER_OF_COLUMNS];
+        private final int[] rowColumnLengths = new int[NUMBER_OF_COLUMNS];
+        private int rowColumnLengthsSlot = -1;
+        private PostingsCursor leadingCursor;
+        private int numberOfRowsRanked = 0;
+
+        TopRanks(SearchRefinement.Phrase[] phrases, int maxNumberOfResults, RankingProfile profile, SearchHandle handle, boolean[] isModuleIncluded) {
+            this.phrases = phrases;
+            this.maxNumberOfResults = maxNumberOfResults;
+            this.profile = profile;
+            this.handle = handle;
+            this.isModuleIncluded = isModuleIncluded;
+            canSkipBlocks = profile.boostInfluence == 0.0;
+            averageColumnLengths = averageColumnLengths();
+            heap = new PriorityQueue<>(maxNumberOfResults, new Comparator<SearchDatabase.RankedDocument>() {
+                @Override
+                public int compare(SearchDatabase.RankedDocument lhs, SearchDatabase.RankedDocument rhs) {
+                    return Double.compare(lhs.rank, rhs.rank);
+                }
+            });
+
+            int numberOfPhrases = phrases.length;
+            matches = new PhraseMatches[numberOfPhrases];
+            termCursors = new PostingsCursor[numberOfPhrases][];
+            otherTermCursors = new TermCursor[numberOfPhrases];
+            inverseDocumentFrequencies = new double[numberOfPhrases];
+            maxTermFrequencies = new double[numberOfPhrases];
+            termFrequencies = new double[numberOfPhrases];
+            nextMatch = new int[numberOfPhrases];
+        }
+
+        /**
+         * The best rows, best first. Empty if a phrase matches nothing or the search is cancelled.
+         */
+        List<SearchDatabase.RankedDocument> rankedDocuments() {
+            if (!preparePhrases()) {
+                return new ArrayList<>(0);
+            }
+            boolean isComplete = (matches[leading] != null) ? rankMatches(matches[leading]) : rankPostings(termCursors[leading]);
+            if (!isComplete) {
+                return new ArrayList<>(0);
+            }
+            List<SearchDatabase.RankedDocument> rankedDocuments = new ArrayList<>(heap);
+            Collections.sort(rankedDocuments, Collections.reverseOrder(heap.comparator()));
+            return rankedDocuments;
+        }
+
+        /**
+         * Works out the IDF and the highest term frequency of every phrase, and picks the one with
+         * the fewest rows to lead. False if a phrase matches nothing or the search is cancelled.
+         */
+        private boolean preparePhrases() {
+            long leadingRows = Long.MAX_VALUE;
+            for (int i=0; i<phrases.length; i++) {
+                SearchRefinement.Phrase phrase = phrases[i];
+                long numberOfPhraseRows = 0;
+                if (phrase.terms.length == 1 && !phrase.isPrefix[0]) {
+                    List<PostingsCursor> cursors = postingsCursorsForTerm(phrase.terms[0], false);
+                    if (cursors.isEmpty()) {
+                        return false;
+                    }
+                    termCursors[i] = cursors.toArray(new PostingsCursor[cursors.size()]);
+                    for (PostingsCursor cursor: termCursors[i]) {
+                        for (int block=0; block<cursor.numberOfBlocks(); block++) {
+                            maxTermFrequencies[i] = Math.max(maxTermFrequencies[i], cursor.maxTermFrequency(block, averageColumnLengths, profile));
+                        }
+                        numberOfPhraseRows += (long) cursor.numberOfBlocks() * BLOCK_SIZE;
+                    }
+                    inverseDocumentFrequencies[i] = Rank.inverseDocumentFrequencyForPhrase(numberOfRows, numberOfRowsWithHit(phrase.terms[0]), profile);
+                } else {
+                    matches[i] = phraseMatches(phrase, averageColumnLengths, profile, handle);
+                    if (matches[i].count == 0) {
+                        return false;
+                    }
+                    numberOfPhraseRows = matches[i].count;
+                    maxTermFrequencies[i] = matches[i].maxTermFrequency;
+                    inverseDocumentFrequencies[i] = Rank.inverseDocumentFrequencyForPhrase(numberOfRows, matches[i].numberOfRowsWithHit, profile);
+                }
+                if (isCancelled(handle)) {
+                    return false;
+                }
+                if (numberOfPhraseRows < leadingRows) {
+                    leading = i;
+                    leadingRows = numberOfPhraseRows;
+                }
+            }
+
+            for (int i=0; i<phrases.length; i++) {
+                if (i == leading) {
+                    continue;
+                }
+                otherMaxRank += Rank.maxPhraseRank(maxTermFrequencies[i], inverseDocumentFrequencies[i], profile);
+                if (termCursors[i] != null) {
+                    otherTermCursors[i] = new TermCursor(termCursors[i]);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Ranks the rows of the leading phrase's matches. False if the search is cancelled.
+         */
+        private boolean rankMatches(PhraseMatches leadingMatches) {
+            for (int block=0; block * BLOCK_SIZE < leadingMatches.count; block++) {
+                if (isOutOfReach(leadingMatches.maxTermFrequencies[block])) {
+                    continue;
+                }
+                int blockEnd = Math.min((block + 1) * BLOCK_SIZE, leadingMatches.count);
+                for (int row=block * BLOCK_SIZE; row<blockEnd; row++) {
+                    if (!rank(leadingMatches.slots[row], row)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Ranks the rows in the postings of the leading term, whose blocks are skipped without
+         * being decoded. False if the search is cancelled.
+         */
+        private boolean rankPostings(PostingsCursor[] cursors) {
+            for (PostingsCursor cursor: cursors) {
+                leadingCursor = cursor;
+                for (int block=0; block<cursor.numberOfBlocks(); block++) {
+                    if (isOutOfReach(cursor.maxTermFrequency(block, averageColumnLengths, profile))) {
+                        continue;
+                    }
+                    cursor.moveToBlock(block);
+                    while (cursor.nextInBlock(block)) {
+                        if (!rank(cursor.slot, -1)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Whether no row in which the leading phrase's term frequency is at most
+         * leadingMaxTermFrequency could make the heap.
+         */
+        private boolean isOutOfReach(double leadingMaxTermFrequency) {
+            if (!canSkipBlocks || heap.size() < maxNumberOfResults) {
+                return false;
+            }
+            double maxRank = otherMaxRank + Rank.maxPhraseRank(leadingMaxTermFrequency, inverseDocumentFrequencies[leading], profile);
+            // The bound sums in a different order from the rank, so leave it room for rounding
+            return maxRank + Math.abs(maxRank) * RANK_BOUND_TOLERANCE < heap.peek().rank;
+        }
+
+        /**
+         * Ranks the row at slot if every phrase occurs in it, and keeps it if it makes the heap.
+         * leadingRow is its index in the leading phrase's matches, if the leading phrase has them.
+         * Rows have to come in slot order. False if the search is cancelled.
+         */
+        private boolean rank(int slot, int leadingRow) {
+            if (numberOfRowsRanked++ % ROWS_BETWEEN_CANCEL_CHECKS == 0 && isCancelled(handle)) {
+                return false;
+            }
+            if (isRemoved(slot) || (isModuleIncluded != null && !isModuleIncluded[moduleOrdinal(slot)])) {
+                return true;
+            }
+            for (int i=0; i<phrases.length; i++) {
+                if (i == leading) {
+                    continue;
+                }
+                if (matches[i] != null) {
+                    int index = matches[i].indexOf(slot, nextMatch[i]);
+                    if (index < 0) {
+                        nextMatch[i] = -1 - index;
+                        return true;
+                    }
+                    nextMatch[i] = index;
+                    termFrequencies[i] = matches[i].termFrequencies[index];
+                } else {
+                    if (!otherTermCursors[i].moveTo(slot)) {
+                        return true;
+                    }
+                    Arrays.fill(columnHits, 0);
+                    otherTermCursors[i].readCounts(columnHits);
+                    termFrequencies[i] = Rank.termFrequencyForPhrase(columnHits, rowColumnLengths(slot), averageColumnLengths, profile);
+                }
+            }
+            if (matches[leading] != null) {
+                termFrequencies[leading] = matches[leading].termFrequencies[leadingRow];
+            } else {
+                Arrays.fill(columnHits, 0);
+                leadingCursor.readCounts(columnHits, 0);
+                termFrequencies[leading] = Rank.termFrequencyForPhrase(columnHits, rowColumnLengths(slot), averageColumnLengths, profile);
+            }
+
+            double rank = Rank.BM25F(termFrequencies, inverseDocumentFrequencies, profile.saturationConstant, phrases.length);
+            if (!canSkipBlocks) {
+                rank *= profile.boostFactor(boost(slot));
+            }
+            if (heap.size() < maxNumberOfResults) {
+                heap.add(new SearchDatabase.RankedDocument(docId(slot), rank));
+            } else if (heap.peek().rank < rank) {
+                heap.poll();
+                heap.add(new SearchDatabase.RankedDocument(docId(slot), rank));
+            }
+            return true;
+        }
+
+        private int[] rowColumnLengths(int slot) {
+            if (rowColumnLengthsSlot != slot) {
+                for (int column=0; column<NUMBER_OF_COLUMNS; column++) {
+                    rowColumnLengths[column] = columnLength(column, slot);
+                }
+                rowColumnLengthsSlot = slot;
+            }
+            return rowColumnLengths;
+        }
+    }
+    //endregion
+
+    //region Getters
+    int getNumberOfRows() {
+        lock.readLock().lock();
+        try {
+            return numberOfRows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int getNumberOfSlots() {
+        lock.readLock().lock();
+        try {
+            return numberOfSlots();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    //endregion
+
+    //region Helpers
+    /**
+     * The phrases FTS would make of formattedSearchText: one for a quoted query, otherwise one for
+     * every word.
+     */
+    static SearchRefinement.Phrase[] phrasesForSearchText(String formattedSearchText) {
+        if (formattedSearchText == null) {
+            return new SearchRefinement.Phrase[0];
+        }
+        List<SearchRefinement.Phrase> phrases = new ArrayList<>();
+        if (formattedSearchText.startsWith("\"")) {
+            SearchRefinement.Phrase phrase = SearchRefinement.Phrase.newPhrase(formattedSearchText);
+            if (phrase != null) {
+                phrases.add(phrase);
+            }
+        } else {
+            for (String word: formattedSearchText.split(" ")) {
+                SearchRefinement.Phrase phrase = SearchRefinement.Phrase.newPhrase(word);
+                if (phrase != null) {
+                    phrases.add(phrase);
+                }
+            }
+        }
+        return phrases.toArray(new SearchRefinement.Phrase[phrases.size()]);
+    }
+
+    /**
+     * A token lower cased the way the simple tokenizer folds it, ASCII letters only.
+     */
+    private static String term(String text, int start, int end) {
+        for (int i=start; i<end; i++) {
+            char character = text.charAt(i);
+            if (character >= 'A' && character <= 'Z') {
+                char[] characters = new char[end - start];
+                for (int j=0; j<characters.length; j++) {
+                    characters[j] = SimpleTokenizer.toLowerCase(text.charAt(start + j));
+                }
+                return new String(characters);
+            }
+        }
+        return text.substring(start, end);
+    }
+
+    private static boolean isCancelled(SearchHandle handle) {
+        return handle != null && handle.isCancelled();
+    }
+    //endregion
+}
@@ -0,0 +1,168 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Java port of the BM25F scorer in Rank.cpp. Android does not let us register
+ * a custom SQL function, so the search query selects matchinfo(searchindex, 'pcx')
+ * and the score is computed here for every matching row, from its hit counts, its
+ * norms and the IndexStatistics of the whole index.
+ */
+final class Rank
+{
+    //region Constants
+    static final int WEIGHT_0_COLUMN_NUMBER = 4;
+    static final int WEIGHT_4_COLUMN_NUMBER = 8;
+    static final int NUMBER_OF_WEIGHTED_COLUMNS = 5;
+
+    static final double[] DEFAULT_WEIGHTS = {1, 2, 10, 20, 50};
+    static final double SATURATION_CONSTANT = 1.7;
+    static final double B_CONSTANT = 0.4;
+
+    private static final int PHRASE_INDEX = 0;
+    private static final int COLUMN_INDEX = 1;
+    private static final int PHRASE_INFO_INDEX = 2;
+    //endregion
+
+    private Rank() {}
+
+    //region Private Methods
+    static double inverseDocumentFrequency(int totalNumberOfDocuments, int numberOfDocumentsContainingSearchPhrase) {
+        if (totalNumberOfDocuments < 1) {
+            return 0.0;
+        }
+
+        double constant = 0.5;
+        double numerator = totalNumberOfDocuments - numberOfDocumentsContainingSearchPhrase + constant;
+        double denominator = numberOfDocumentsContainingSearchPhrase + constant;
+
+        return Math.log(numerator/denominator);
+    }
+
+    static double normalizedTermFrequencyForField(int numberOfMatches, int lengthOfFieldInWords, int averageLengthOfFieldInWords, double bConstant) {
+        if (lengthOfFieldInWords == 0) {
+            return 0.0;
+        }
+        if (averageLengthOfFieldInWords == 0) {
+            averageLengthOfFieldInWords = 1;
+        }
+
+        double numerator = numberOfMatches;
+        double denominator = 1 + (bConstant * (((double)lengthOfFieldInWords/(double)averageLengthOfFieldInWords) - 1));
+
+        return numerator/denominator;
+    }
+
+    static double BM25F(double[] normalizedWeightedTermFrequencies, double[] inverseDocumentFrequencies, double saturationConstant, int numberOfTerms) {
+        double rank = 0.0;
+        for (int i=0; i<numberOfTerms; i++) {
+            double normalizedTermFrequency = normalizedWeightedTermFrequencies[i];
+            double termIDF = inverseDocumentFrequencies[i];
+
+            rank += (normalizedTermFrequency/(normalizedTermFrequency + saturationConstant)*termIDF);
+        }
+        return rank;
+    }
+
+    /**
+     * The inverse document frequency rank gives a phrase: the average over the columns profile
+     * weights, given the number of rows with a hit in every column.
+     */
+    static double inverseDocumentFrequencyForPhrase(int totalNumberOfRows, int[] numberOfRowsWithHit, RankingProfile profile) {
+        double aggregateIDF = 0.0;
+        for (int weightedColumn: profile.weightedColumns) {
+            aggregateIDF += inverseDocumentFrequency(totalNumberOfRows, numberOfRowsWithHit[WEIGHT_0_COLUMN_NUMBER + weightedColumn]);
+        }
+        return aggregateIDF/(double)profile.weightedColumns.length;
+    }
+
+    /**
+     * The weighted term frequency rank gives a phrase in one row, given its hits and the number of
+     * words in every column of the row and the average over all rows. Works the same sums in the
+     * same order as rank, so the two agree exactly.
+     */
+    static double termFrequencyForPhrase(int[] hits, int[] wordCounts, int[] averageWordCounts, RankingProfile profile) {
+        double termFrequency = 0.0;
+        for (int weightedColumn: profile.weightedColumns) {
+            int currentColumn = WEIGHT_0_COLUMN_NUMBER + weightedColumn;
+            termFrequency += profile.weights[weightedColumn]*normalizedTermFrequencyForField(hits[currentColumn], wordCounts[currentColumn], averageWordCounts[currentColumn], profile.bConstants[weightedColumn]);
+        }
+        return termFrequency;
+    }
+
+    /**
+     * The most a phrase can add to the rank of a row in which its term frequency is at most
+     * maxTermFrequency, before boost. Saturation only grows with frequency, and a phrase common
+     * enough to have a negative IDF can only take away.
+     */
+    static double maxPhraseRank(double maxTermFrequency, double inverseDocumentFrequency, RankingProfile profile) {
+        if (inverseDocumentFrequency <= 0.0) {
+            return 0.0;
+        }
+        return maxTermFrequency/(maxTermFrequency + profile.saturationConstant)*inverseDocumentFrequency;
+    }
+    //endregion
+
+    //region Public Methods
+    /**
+     * matchinfo() hands back an array of unsigned 32 bit integers in the machine byte order.
+     */
+    static int[] matchinfoFromBlob(byte[] blob) {
+        ByteBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder());
+        int[] matchinfo = new int[blob.length/4];
+        buffer.asIntBuffer().get(matchinfo);
+        return matchinfo;
+    }
+
+    /**
+     * The inverse document frequency of every phrase in matchinfo, which is the same for every row
+     * of a query.
+     */
+    static double[] inverseDocumentFrequencies(int[] matchinfo, IndexStatistics statistics, RankingProfile profile) {
+        int numberOfPhrasesInQuery = matchinfo[PHRASE_INDEX];
+        int phraseInfoLength = matchinfo[COLUMN_INDEX]*3;
+        int totalNumberOfRows = (int) statistics.numberOfDocuments;
+
+        double[] termIDFs = new double[numberOfPhrasesInQuery];
+        for (int currentPhrase=0; currentPhrase<numberOfPhrasesInQuery; currentPhrase++) {
+            int phraseInfo = PHRASE_INFO_INDEX + (currentPhrase * phraseInfoLength);
+
+            double aggregateIDF = 0.0;
+            for (int weightedColumn: profile.weightedColumns) {
+                int numberOfRowsWithHit = matchinfo[phraseInfo + ((WEIGHT_0_COLUMN_NUMBER + weightedColumn) * 3) + 2];
+                aggregateIDF += inverseDocumentFrequency(totalNumberOfRows, numberOfRowsWithHit);
+            }
+            termIDFs[currentPhrase] = aggregateIDF/(double)profile.weightedColumns.length;
+        }
+        return termIDFs;
+    }
+
+    static double rank(int[] matchinfo, long norms, IndexStatistics statistics, double boost, RankingProfile profile) {
+        return rank(matchinfo, norms, statistics, inverseDocumentFrequencies(matchinfo, statistics, profile), boost, profile);
+    }
+
+    static double rank(int[] matchinfo, long norms, IndexStatistics statistics, double[] inverseDocumentFrequencies, double boost, RankingProfile profile) {
+        int numberOfPhrasesInQuery = matchinfo[PHRASE_INDEX];
+        int phraseInfoLength = matchinfo[COLUMN_INDEX]*3;
+
+        double[] termFrequencies = new double[numberOfPhrasesInQuery];
+        for (int currentPhrase=0; currentPhrase<numberOfPhrasesInQuery; currentPhrase++) {
+            int phraseInfo = PHRASE_INFO_INDEX + (currentPhrase * phraseInfoLength);
+
+            double termFrequency = 0.0;
+            // Columns the profile does not weight add nothing, so they are not looked at
+            for (int weightedColumn: profile.weightedColumns) {
+                int hitCountInCurrentRow = matchinfo[phraseInfo + ((WEIGHT_0_COLUMN_NUMBER + weightedColumn) * 3)];
+                int wordCount = IndexStatistics.lengthFromNorms(norms, weightedColumn);
+                int averageNumberOfWordsInColumn = statistics.averageLengths[weightedColumn];
+
+                termFrequency += profile.weights[weightedColumn]*normalizedTermFrequencyForField(hitCountInCurrentRow, wordCount, averageNumberOfWordsInColumn, profile.bConstants[weightedColumn]);
+            }
+            termFrequencies[currentPhrase] = termFrequency;
+        }
+
+        return BM25F(termFrequencies, inverseDocumentFrequencies, profile.saturationConstant, numberOfPhrasesInQuery)*profile.boostFactor(boost);
+    }
+    //endregion
+}
@@ -0,0 +1,151 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * How local search results are ranked: a BM25F weight for each of the weight0 to weight4 columns,
+ * the saturation constant k1, the length normalization b of each column, and how much a file's
+ * boost counts.
+ *
+ * A profile is checked and worked out once, when it is made, so keep the instance around and pass
+ * the same one to every search of a screen. Columns with a weight of 0 are left out of the rank
+ * altogether, both their term frequency and their share of the inverse document frequency, which
+ * makes a profile like a title only quick search cheaper to rank than the default. Changing the
+ * profile never needs a reindex.
+ *
+ * The rank is multiplied by boost to the power of boostInfluence, so with the default of 0 the
+ * boost is ignored, as it always has been.
+ */
+public final class RankingProfile
+{
+    //region Constants
+    public static final int NUMBER_OF_WEIGHTED_COLUMNS = Rank.NUMBER_OF_WEIGHTED_COLUMNS;
+
+    /** Ranks the way local searches always have. */
+    public static final RankingProfile DEFAULT = new RankingProfile(Rank.DEFAULT_WEIGHTS, Rank.SATURATION_CONSTANT, defaultBConstants(), 0.0);
+    //endregion
+
+    //region Properties
+    final double[] weights;
+    final double saturationConstant;
+    final double[] bConstants;
+    final double boostInfluence;
+
+    /** Indexes into weights of the columns with a weight above 0, in column order. */
+    final int[] weightedColumns;
+    /** Identifies the profile in a SearchResultCache key. */
+    final String key;
+    //endregion
+
+    //region Initialize
+    RankingProfile(double[] weights, double saturationConstant, double[] bConstants, double boostInfluence) {
+        this.weights = weights.clone();
+        this.saturationConstant = saturationConstant;
+        this.bConstants = bConstants.clone();
+        this.boostInfluence = boostInfluence;
+
+        int numberOfWeightedColumns = 0;
+        for (double weight: weights) {
+            if (weight > 0.0) {
+                numberOfWeightedColumns++;
+            }
+        }
+        weightedColumns = new int[numberOfWeightedColumns];
+        int index = 0;
+        for (int column=0; column<weights.length; column++) {
+            if (weights[column] > 0.0) {
+                weightedColumns[index] = column;
+                index++;
+            }
+        }
+        key = Arrays.toString(weights) + saturationConstant + Arrays.toString(bConstants) + boostInfluence;
+    }
+
+    /**
+     * A profile with the default k1 and b that ignores boost.
+     */
+    public static RankingProfile newRankingProfile(double[] weights) {
+        return newRankingProfile(weights, Rank.SATURATION_CONSTANT, defaultBConstants(), 0.0);
+    }
+
+    /**
+     * Returns null if weights or bConstants do not have a value for every weighted column, if a
+     * weight is negative or none is above 0, if saturationConstant is not above 0, or if a b is
+     * outside 0 to 1.
+     */
+    public static RankingProfile newRankingProfile(double[] weights, double saturationConstant, double[] bConstants, double boostInfluence) {
+        if (weights == null || weights.length != NUMBER_OF_WEIGHTED_COLUMNS || bConstants == null || bConstants.length != NUMBER_OF_WEIGHTED_COLUMNS) {
+            Log.e("RankingProfile", "A ranking profile needs a weight and a b for each of the " + NUMBER_OF_WEIGHTED_COLUMNS + " weighted columns");
+            return null;
+        }
+        boolean hasWeight = false;
+        for (int column=0; column<NUMBER_OF_WEIGHTED_COLUMNS; column++) {
+            if (!(weights[column] >= 0.0) || Double.isInfinite(weights[column])) {
+                Log.e("RankingProfile", "Invalid weight " + weights[column] + " for weight" + column);
+                return null;
+            }
+            if (!(bConstants[column] >= 0.0 && bConstants[column] <= 1.0)) {
+                Log.e("RankingProfile", "Invalid b " + bConstants[column] + " for weight" + column);
+                return null;
+            }
+            hasWeight |= weights[column] > 0.0;
+        }
+        if (!hasWeight) {
+            Log.e("RankingProfile", "A ranking profile needs at least one weight above 0");
+            return null;
+        }
+        if (!(saturationConstant > 0.0) || Double.isInfinite(saturationConstant)) {
+            Log.e("RankingProfile", "Invalid saturation constant " + saturationConstant);
+            return null;
+        }
+        if (Double.isNaN(boostInfluence) || Double.isInfinite(boostInfluence)) {
+            Log.e("RankingProfile", "Invalid boost influence " + boostInfluence);
+            return null;
+        }
+        return new RankingProfile(weights, saturationConstant, bConstants, boostInfluence);
+    }
+
+    private static double[] defaultBConstants() {
+        double[] bConstants = new double[NUMBER_OF_WEIGHTED_COLUMNS];
+        Arrays.fill(bConstants, Rank.B_CONSTANT);
+        return bConstants;
+    }
+    //endregion
+
+    //region Getters
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    public double getSaturationConstant() {
+        return saturationConstant;
+    }
+
+    public double[] getBConstants() {
+        return bConstants.clone();
+    }
+
+    public double getBoostInfluence() {
+        return boostInfluence;
+    }
+    //endregion
+
+    //region Package Methods
+    /**
+     * What a rank is multiplied by for a row with the given boost.
+     */
+    double boostFactor(double boost) {
+        if (boostInfluence == 0.0) {
+            return 1.0;
+        }
+        return Math.pow(Math.max(boost, 0.0), boostInfluence);
+    }
+    //endregion
+
+    @Override
+    public String toString() {
+        return "RankingProfile weights " + Arrays.toString(weights) + " k1 " + saturationConstant + " b " + Arrays.toString(bConstants) + " boost influence " + boostInfluence;
+    }
+}
@@ -0,0 +1,273 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns text into the terms that are indexed for it: a tokenizer splits it into words, stopwords
+ * are dropped, and a stemmer reduces the rest to their stem. The terms are joined with spaces, so
+ * the FTS tokenizer splits them exactly the same way again.
+ *
+ * Analyzers are registered per language. Documents are analyzed with the analyzer for their
+ * language after being normalized, and queries with the one for the search language, so both
+ * sides end up with the same terms. Languages without an analyzer are indexed as normalized text.
+ *
+ * English, Spanish and French analyzers are built in. Their stemmers are light ones that only
+ * fold plurals, so a stem is nearly always a prefix of the word and type-ahead prefix queries keep
+ * finding it while the word is still being typed.
+ */
+public class SearchAnalyzer
+{
+    //region Interfaces
+    public interface Tokenizer {
+        /**
+         * The words of text in order. Every word must be a single token to the FTS tokenizer.
+         */
+        List<String> tokenize(String text);
+    }
+
+    public interface Stemmer {
+        /**
+         * The stem of a lower case word.
+         */
+        String stem(String word);
+    }
+    //endregion
+
+    //region Constants
+    static final String[] ENGLISH_STOPWORDS = {"a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "from", "has", "have", "he", "her", "his", "if", "in", "into", "is", "it", "its", "of", "on", "or", "she", "such", "than", "that", "the", "their", "them", "then", "there", "these", "they", "this", "to", "was", "were", "which", "will", "with"};
+    // Stopwords are matched after normalizing, so they are written without accents
+    static final String[] SPANISH_STOPWORDS = {"a", "al", "como", "con", "de", "del", "el", "ella", "ellas", "ellos", "en", "entre", "es", "esta", "este", "esto", "la", "las", "le", "les", "lo", "los", "mas", "o", "para", "pero", "por", "que", "se", "sin", "sobre", "su", "sus", "un", "una", "unas", "uno", "unos", "y"};
+    // The single letters are what the tokenizer leaves of elisions like l' and d'
+    static final String[] FRENCH_STOPWORDS = {"au", "aux", "avec", "c", "ce", "ces", "d", "dans", "de", "des", "du", "elle", "en", "est", "et", "il", "ils", "j", "l", "la", "le", "les", "leur", "leurs", "m", "n", "ou", "par", "pour", "qu", "que", "qui", "s", "sa", "se", "ses", "son", "sur", "t", "un", "une"};
+
+    static final Tokenizer SIMPLE_TOKENIZER = new Tokenizer() {
+        @Override
+        public List<String> tokenize(String text) {
+            SimpleTokenizer.Tokens tokens = SimpleTokenizer.tokenize(text);
+            List<String> words = new ArrayList<>(tokens.count);
+            for (int i=0; i<tokens.count; i++) {
+                words.add(text.substring(tokens.starts[i], tokens.ends[i]));
+            }
+            return words;
+        }
+    };
+    //endregion
+
+    //region Properties
+    private static final Map<String, SearchAnalyzer> analyzersByLanguage = new ConcurrentHashMap<>();
+
+    private final Tokenizer tokenizer;
+    private final Set<String> stopwords;
+    private final Stemmer stemmer;
+    //endregion
+
+    //region Constructors
+    private SearchAnalyzer(Tokenizer tokenizer, Set<String> stopwords, Stemmer stemmer) {
+        this.tokenizer = tokenizer;
+        this.stopwords = stopwords;
+        this.stemmer = stemmer;
+    }
+
+    /**
+     * tokenizer may be null to split words the way FTS does, and stemmer may be null to keep words
+     * as they are. stopwords must be lower case and normalized.
+     */
+    public static SearchAnalyzer newSearchAnalyzer(Tokenizer tokenizer, Collection<String> stopwords, Stemmer stemmer) {
+        Set<String> stopwordSet = (stopwords == null) ? new HashSet<String>(0) : new HashSet<>(stopwords);
+        return new SearchAnalyzer(tokenizer == null ? SIMPLE_TOKENIZER : tokenizer, stopwordSet, stemmer);
+    }
+
+    public static SearchAnalyzer newEnglishAnalyzer() {
+        return newSearchAnalyzer(null, Arrays.asList(ENGLISH_STOPWORDS), new Stemmer() {
+            @Override
+            public String stem(String word) {
+                return stemEnglish(word);
+            }
+        });
+    }
+
+    public static SearchAnalyzer newSpanishAnalyzer() {
+        return newSearchAnalyzer(null, Arrays.asList(SPANISH_STOPWORDS), new Stemmer() {
+            @Override
+            public String stem(String word) {
+                return stemSpanish(word);
+            }
+        });
+    }
+
+    public static SearchAnalyzer newFrenchAnalyzer() {
+        return newSearchAnalyzer(null, Arrays.asList(FRENCH_STOPWORDS), new Stemmer() {
+            @Override
+            public String stem(String word) {
+                return stemFrench(word);
+            }
+        });
+    }
+    //endregion
+
+    //region Registry
+    /**
+     * Analyzes documents and searches in language with analyzer from now on. A null analyzer goes
+     * back to indexing the normalized text.
+     */
+    static void setAnalyzerForLanguage(String language, SearchAnalyzer analyzer) {
+        String code = SearchNormalizer.languageCode(language);
+        if (code == null) {
+            return;
+        }
+        if (analyzer == null) {
+            analyzersByLanguage.remove(code);
+        } else {
+            analyzersByLanguage.put(code, analyzer);
+        }
+    }
+
+    /**
+     * The analyzer for language, or null if text in it is not analyzed.
+     */
+    static SearchAnalyzer forLanguage(String language) {
+        String code = SearchNormalizer.languageCode(language);
+        if (code == null) {
+            return null;
+        }
+        return analyzersByLanguage.get(code);
+    }
+    //endregion
+
+    //region Analyze
+    /**
+     * text normalized for language, then reduced to its terms if language has an analyzer. This is
+     * what SearchDatabase.searchableStringFromString indexes, kept here so it does not need Android.
+     */
+    static String searchableString(String text, String language) {
+        String normalizedText = SearchNormalizer.forLanguage(language).normalize(text);
+        SearchAnalyzer analyzer = forLanguage(language);
+        if (analyzer == null || normalizedText == null) {
+            return normalizedText;
+        }
+        return analyzer.analyze(normalizedText);
+    }
+
+    /**
+     * The terms of text joined by single spaces. Expects normalized text.
+     */
+    public String analyze(String text) {
+        if (text == null) {
+            return null;
+        }
+        List<String> words = tokenizer.tokenize(text);
+        StringBuilder builder = new StringBuilder(text.length());
+        for (String word: words) {
+            String term = lowerCase(word);
+            if (term.length() < 1 || stopwords.contains(term)) {
+                continue;
+            }
+            if (stemmer != null) {
+                term = stemmer.stem(term);
+            }
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(term);
+        }
+        return builder.toString();
+    }
+    //endregion
+
+    //region Stemmers
+    /**
+     * Folds English plurals: sses to ss, ies to y, es to e and a trailing s, leaving words like
+     * "bus", "glass" and "toes" alone.
+     */
+    static String stemEnglish(String word) {
+        int length = word.length();
+        if (length < 3 || word.charAt(length - 1) != 's') {
+            return word;
+        }
+        if (word.endsWith("sses")) {
+            return word.substring(0, length - 2);
+        }
+        char beforeS = word.charAt(length - 2);
+        if (beforeS == 'u' || beforeS == 's') {
+            return word;
+        }
+        if (beforeS == 'e') {
+            char beforeE = word.charAt(length - 3);
+            if (length > 3 && beforeE == 'i') {
+                char beforeI = word.charAt(length - 4);
+                if (beforeI != 'a' && beforeI != 'e') {
+                    return word.substring(0, length - 3) + "y";
+                }
+            }
+            if (beforeE == 'i' || beforeE == 'a' || beforeE == 'o' || beforeE == 'e') {
+                return word;
+            }
+        }
+        return word.substring(0, length - 1);
+    }
+
+    /**
+     * Folds Spanish plurals: ces to z, and a trailing s. Plurals of words ending in a consonant
+     * add es, so an e left after l, n, r, d, z, j or s is dropped too. It is dropped from singulars
+     * as well, so that "madre" and "madres" still share a stem.
+     */
+    static String stemSpanish(String word) {
+        int length = word.length();
+        if (length > 4 && word.endsWith("ces")) {
+            return word.substring(0, length - 3) + "z";
+        }
+        if (length > 3 && word.charAt(length - 1) == 's') {
+            word = word.substring(0, --length);
+        }
+        if (length > 3 && word.charAt(length - 1) == 'e' && "lnrdzjs".indexOf(word.charAt(length - 2)) >= 0) {
+            return word.substring(0, length - 1);
+        }
+        return word;
+    }
+
+    /**
+     * Folds French plurals: eaux to eau, aux to al, and a trailing s or x.
+     */
+    static String stemFrench(String word) {
+        int length = word.length();
+        if (length < 4) {
+            return word;
+        }
+        if (word.endsWith("eaux")) {
+            return word.substring(0, length - 1);
+        }
+        if (length > 4 && word.endsWith("aux")) {
+            return word.substring(0, length - 3) + "al";
+        }
+        char last = word.charAt(length - 1);
+        if ((last == 's' || last == 'x') && word.charAt(length - 2) != 's') {
+            return word.substring(0, length - 1);
+        }
+        return word;
+    }
+    //endregion
+
+    //region Helpers
+    private static String lowerCase(String word) {
+        for (int i=0; i<word.length(); i++) {
+            char character = word.charAt(i);
+            if (SimpleTokenizer.toLowerCase(character) != character || (character >= 0x80 && Character.toLowerCase(character) != character)) {
+                char[] characters = word.toCharArray();
+                for (int j=i; j<characters.length; j++) {
+                    char upper = characters[j];
+                    characters[j] = upper < 0x80 ? SimpleTokenizer.toLowerCase(upper) : Character.toLowerCase(upper);
+                }
+                return new String(characters);
+            }
+        }
+        return word;
+    }
+    //endregion
+}
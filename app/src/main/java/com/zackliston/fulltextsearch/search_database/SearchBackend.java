@@ -0,0 +1,38 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers the searches of a SearchDatabase from a copy of its index. The FTS tables stay the store
+ * of record: SearchDatabase writes to them first and passes every write on to the backend once it
+ * has committed, so a backend only ever sees committed rows.
+ *
+ * Search text reaches a backend already formatted, with the last word turned into a prefix and the
+ * whole of it quoted when phrase searching is preferred.
+ */
+interface SearchBackend
+{
+    /**
+     * Adds the row, replacing any row with the same docid. row.columns holds the text of every
+     * indexed column as it was written to the FTS table.
+     */
+    void indexFile(SearchRefinement.Candidate row);
+
+    void removeFileFromIndex(long docId);
+
+    void removeModule(String moduleId);
+
+    void clear();
+
+    /**
+     * The best maxNumberOfResults matches, best first, ranked with Rank.rank under profile. Only
+     * rows from moduleIds are returned unless it is null or empty.
+     */
+    List<SearchDatabase.RankedDocument> rankedDocuments(String formattedSearchText, int maxNumberOfResults, RankingProfile profile, SearchHandle handle, List<String> moduleIds);
+
+    /**
+     * Results with snippets for the ranked documents that are still in the index.
+     */
+    Map<Long, SearchResult> searchResultsByDocId(String formattedSearchText, List<SearchDatabase.RankedDocument> rankedDocuments, int snippetSize);
+}
@@ -1,23 +1,97 @@
 package com.zackliston.fulltextsearch.search_database;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
 
-import java.net.URI;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.BOOST_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.CONTENT_TABLE_CREATE_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.CONTENT_TABLE_NAME;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.DOCID_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.DOCUMENTS_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.FILE_ID_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.IMAGE_URI_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.INDEX_TABLE_NAME;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.LANGUAGE_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.LEGACY_INDEX_TABLE_NAME;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.MAX_DOCIDS_PER_RESULTS_QUERY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.MAX_MODULE_IDS_PER_RANK_QUERY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.MAX_NUMBER_OF_ARGUMENTS;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.METADATA_TABLE_CREATE_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.METADATA_TABLE_NAME;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.MODULE_ID_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.NORMS_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.RANK_QUERY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.STATISTICS_QUERY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.STATISTICS_TABLE_CREATE_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.STATISTICS_TABLE_INITIALIZE_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.STATISTICS_TABLE_NAME;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.SUBTITLE_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.TITLE_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.TYPE_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.URI_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.WEIGHT_0_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.WEIGHT_1_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.WEIGHT_2_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.WEIGHT_3_KEY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.WEIGHT_4_KEY;
 
 /**
  * Created by Zack Liston on 5/27/15.
  */
 public class SearchDatabase extends SQLiteOpenHelper {
 
-    class SearchReturn {
+    static class SearchReturn {
         private List<SearchResult> results;
         private List<String> suggestions;
 
+        SearchReturn() {
+            this(new ArrayList<SearchResult>(0), new ArrayList<String>(0));
+        }
+
+        SearchReturn(List<SearchResult> results, List<String> suggestions) {
+            this.results = results;
+            this.suggestions = suggestions;
+        }
+
+        /**
+         * A copy that shares nothing mutable with this one, for keeping in a cache.
+         */
+        SearchReturn snapshot() {
+            List<SearchResult> resultsCopy = new ArrayList<>(results.size());
+            for (SearchResult result: results) {
+                SearchResult copy = SearchResult.newSearchResult(result.title, result.subtitle, result.parentTitle, result.uri, result.type, result.imageUri, result.isFavorited, result.fileId, result.moduleId);
+                copy.snippet = result.snippet;
+                resultsCopy.add(copy);
+            }
+            return new SearchReturn(resultsCopy, new ArrayList<>(suggestions));
+        }
+
         public List<SearchResult> getResults() {
             return results;
         }
@@ -26,41 +100,87 @@ public class SearchDatabase extends SQLiteOpenHelper {
         }
     }
 
+    static class RankedDocument {
+        final long docId;
+        final double rank;
+
+        RankedDocument(long docId, double rank) {
+            this.docId = docId;
+            this.rank = rank;
+        }
+    }
+
+    private static class CachedStatistics {
+        final long indexGeneration;
+        final IndexStatistics statistics;
+
+        CachedStatistics(long indexGeneration, IndexStatistics statistics) {
+            this.indexGeneration = indexGeneration;
+            this.statistics = statistics;
+        }
+    }
+
     //region Constants
-    private static final int    DATABASE_VERSION        = 1;
+    private static final int    DATABASE_VERSION        = 4;
 
-    //region Table Names
-    static final String INDEX_TABLE_NAME        = "searchindex";
-    static final String METADATA_TABLE_NAME     = "searchmetadata";
-    //endregion
+    private static final int MAX_SNIPPET_TOKENS = 64;
+    private static final int MAX_SNAPSHOT_RETRIES = 1;
+    private static final int MIGRATION_CHUNK_SIZE = 500;
+    static final long DEFAULT_IDLE_CLOSE_DELAY_MILLIS = 60 * 1000;
+    // How long the index has to go unsearched before maintenance starts or takes another step
+    static final long MAINTENANCE_IDLE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // Appended to the database's path for the file its in-memory index is written to
+    static final String SEGMENT_FILE_SUFFIX = "-segment";
 
-    //region Field Names
-    static final String MODULE_ID_KEY           = "moduleid";
-    static final String FILE_ID_KEY             = "fileid";
-    static final String LANGUAGE_KEY            = "language";
-    static final String BOOST_KEY               = "boost";
-    static final String WEIGHT_0_KEY            = "weight0";
-    static final String WEIGHT_1_KEY            = "weight1";
-    static final String WEIGHT_2_KEY            = "weight2";
-    static final String WEIGHT_3_KEY            = "weight3";
-    static final String WEIGHT_4_KEY            = "weight4";
-
-    static final String[] INDEX_TABLE_COLUMNS = {MODULE_ID_KEY, FILE_ID_KEY, LANGUAGE_KEY, BOOST_KEY, WEIGHT_0_KEY, WEIGHT_1_KEY, WEIGHT_2_KEY, WEIGHT_3_KEY, WEIGHT_4_KEY};
-
-    static final String TITLE_KEY               = "title";
-    static final String SUBTITLE_KEY            = "subtitle";
-    static final String URI_KEY                 = "uri";
-    static final String TYPE_KEY                = "type";
-    static final String IMAGE_URI_KEY           = "imageuri";
-
-    static final String[] METADATA_TABLE_COLUMNS = {MODULE_ID_KEY, FILE_ID_KEY, TITLE_KEY, SUBTITLE_KEY, URI_KEY, TYPE_KEY, IMAGE_URI_KEY};
+    // FTS tokenizes boost as SQLite's own text for the REAL, which CAST reproduces and Cursor.getString does not
+    private static final String MEMORY_INDEX_LOAD_QUERY = "SELECT " + CONTENT_TABLE_NAME + "." + DOCID_KEY + ", " + MODULE_ID_KEY + ", " + FILE_ID_KEY + ", " + LANGUAGE_KEY + ", CAST(" + BOOST_KEY + " AS TEXT), " +
+            WEIGHT_0_KEY + ", " + WEIGHT_1_KEY + ", " + WEIGHT_2_KEY + ", " + WEIGHT_3_KEY + ", " + WEIGHT_4_KEY + ", " +
+            TITLE_KEY + ", " + SUBTITLE_KEY + ", " + URI_KEY + ", " + TYPE_KEY + ", " + IMAGE_URI_KEY + ", " + BOOST_KEY +
+            " FROM " + CONTENT_TABLE_NAME + " LEFT JOIN " + METADATA_TABLE_NAME + " USING(" + MODULE_ID_KEY + ", " + FILE_ID_KEY + ");";
     //endregion
+
+    //region Properties
+    private final Object statementLock = new Object();
+    private SearchStatementCache statementCache;
+    // Shared by every SearchDatabase so a generation never repeats, even for a database reopened under the same name
+    private static final AtomicLong indexGenerations = new AtomicLong();
+    private volatile long indexGeneration = indexGenerations.incrementAndGet();
+    private volatile String searchLanguage = null;
+
+    private final AtomicInteger references = new AtomicInteger();
+    private volatile long lastReleaseNanos = System.nanoTime();
+    private volatile long idleCloseDelayMillis = DEFAULT_IDLE_CLOSE_DELAY_MILLIS;
+    private boolean isIdleCloseScheduled = false;
+    private static ScheduledThreadPoolExecutor idleCloser;
+
+    private final AtomicInteger activeSearches = new AtomicInteger();
+    private volatile long lastSearchNanos = System.nanoTime() - MAINTENANCE_IDLE_DELAY_NANOS;
+    private final AtomicLong documentsWrittenSinceOptimize = new AtomicLong();
+    private final AtomicBoolean isMaintenanceQueued = new AtomicBoolean();
+    private volatile int segmentsBeforeMerge = IndexMaintenance.DEFAULT_SEGMENTS_BEFORE_MERGE;
+    private volatile int documentsBeforeOptimize = IndexMaintenance.DEFAULT_DOCUMENTS_BEFORE_OPTIMIZE;
+
+    private volatile boolean isInMemorySearchEnabled = false;
+    // Loaded by the first search after in-memory search is enabled, written under statementLock
+    private volatile SearchBackend searchBackend;
+    // Null for a database in memory. The rest are guarded by statementLock
+    private final File segmentFile;
+    private boolean isSegmentFileCurrent = true;
+    private long numberOfSegmentChanges = 0;
+
+    // The statistics table as of an index generation, so it is read once per write rather than per search
+    private volatile CachedStatistics cachedStatistics;
+
     //endregion
 
     //region Initialize
     SearchDatabase(Context context, String databaseName)
     {
         super(context, databaseName, null, DATABASE_VERSION);
+        segmentFile = (databaseName == null) ? null : new File(context.getDatabasePath(databaseName).getPath() + SEGMENT_FILE_SUFFIX);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            WriteAheadLogging.enable(this);
+        }
     }
     //endregion
 
@@ -68,70 +188,1548 @@ public class SearchDatabase extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db)
     {
-        //initializeDatabaseTable(db);
-        //issueAutomergeCommand(db);
+        // A segment left behind by a database that was deleted does not belong to this one
+        discardSearchBackend();
+        initializeDatabaseTable(db);
+    }
+
+    /**
+     * In write-ahead logging mode the writable connection is the only one that writes, and
+     * searches read from a pool of read-only connections that see the last committed batch. So
+     * indexing never blocks searching, and searching never blocks a commit.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db)
+    {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            WriteAheadLogging.enable(db);
+        }
     }
 
+    /**
+     * Version 3 moved the index to an external content FTS4 table keyed by the docids of the
+     * content table, so version 2 indexes are rebuilt from their own rows. Version 4 added the
+     * norms of every document and the statistics table, which are worked out from the content
+     * table, and dropped the document sizes FTS4 kept in the index. Anything older is dropped and
+     * has to be indexed again from its source files.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
     {
-        this.onCreate(db);
+        invalidateStatementCache();
+        indexDidChange();
+        discardSearchBackend();
+        if (oldVersion < 2) {
+            dropTables(db);
+            this.onCreate(db);
+            return;
+        }
+        if (oldVersion < 3) {
+            migrateToExternalContent(db);
+        } else if (oldVersion < 4) {
+            addStatistics(db);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        invalidateStatementCache();
+        super.close();
+    }
+
+    /**
+     * Drops and recreates every table, removing everything from the index.
+     */
+    public boolean resetDatabase() {
+        acquire();
+        try {
+            return performResetDatabase();
+        } finally {
+            release();
+        }
+    }
+
+    private boolean performResetDatabase() {
+        try {
+            // Open the database before taking the statement lock, close() takes them in that order
+            SQLiteDatabase database = getWritableDatabase();
+            synchronized (statementLock) {
+                invalidateStatementCache();
+                indexWillChange();
+                dropTables(database);
+                initializeDatabaseTable(database);
+                if (searchBackend != null) {
+                    searchBackend.clear();
+                }
+                indexDidChange();
+            }
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error resetting database " + exception);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Changes every time a write to the index commits, so anything cached from an earlier search
+     * can tell whether it is still accurate.
+     */
+    long getIndexGeneration() {
+        return indexGeneration;
+    }
+
+    /**
+     * Moves the index to a new generation, discarding every search result cached from this database.
+     */
+    void indexDidChange() {
+        indexGeneration = indexGenerations.incrementAndGet();
+    }
+    //endregion
+
+    //region Maintenance
+    /**
+     * Merges the index's segments if it is idle, meaning nothing has searched it for a couple of
+     * seconds. Once more than the optimize threshold of documents has been written or removed
+     * since the last optimize, the whole index is optimized in one go. Otherwise it is merged
+     * incrementally, a step at a time, until there is nothing left to merge or a search starts.
+     *
+     * Searches never wait for maintenance, they read the last commit while it writes. Returns null
+     * if the index could not be maintained.
+     *
+     * When searches are answered from memory, the index in memory is then written to a new segment
+     * file if it changed since the last one, which merges the rows written since into it.
+     */
+    public IndexMaintenance.Report maintainIndex() {
+        acquire();
+        try {
+            return performMaintainIndex();
+        } finally {
+            release();
+        }
+    }
+
+    private IndexMaintenance.Report performMaintainIndex() {
+        isMaintenanceQueued.set(false);
+        SQLiteDatabase database;
+        try {
+            database = getWritableDatabase();
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Could not open database to maintain index " + exception);
+            return null;
+        }
+
+        IndexMaintenance.Report report = new IndexMaintenance.Report();
+        try {
+            synchronized (statementLock) {
+                report.segmentsBefore = IndexMaintenance.numberOfSegments(database);
+                report.bytesBefore = IndexMaintenance.segmentBytes(database);
+            }
+            // Incremental merges need SQLite 3.7.16, older versions can only optimize
+            boolean canMerge = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            long documentsWritten = documentsWrittenSinceOptimize.get();
+            boolean shouldOptimize = documentsWritten >= documentsBeforeOptimize || (!canMerge && report.segmentsBefore >= segmentsBeforeMerge);
+
+            report.isComplete = true;
+            if (shouldOptimize) {
+                if (isIdleForMaintenance()) {
+                    synchronized (statementLock) {
+                        IndexMaintenance.optimize(database);
+                    }
+                    documentsWrittenSinceOptimize.addAndGet(-documentsWritten);
+                    report.wasOptimized = true;
+                } else {
+                    report.isComplete = false;
+                }
+            } else if (canMerge) {
+                boolean hasMoreToMerge = true;
+                while (hasMoreToMerge) {
+                    if (!isIdleForMaintenance()) {
+                        report.isComplete = false;
+                        break;
+                    }
+                    // Only held for one step, so indexing can write between steps
+                    synchronized (statementLock) {
+                        hasMoreToMerge = IndexMaintenance.mergeStep(database, IndexMaintenance.DEFAULT_MERGE_PAGES_PER_STEP, IndexMaintenance.DEFAULT_MERGE_MIN_SEGMENTS);
+                    }
+                    report.numberOfMergeSteps++;
+                }
+            }
+
+            MemorySearchIndex index = memorySearchIndex();
+            if (report.isComplete && index != null && index.getNumberOfChangesSinceSegment() > 0) {
+                report.wasSegmentWritten = isIdleForMaintenance() && writeSegment(index);
+                report.isComplete = report.wasSegmentWritten;
+            }
+
+            synchronized (statementLock) {
+                report.segmentsAfter = IndexMaintenance.numberOfSegments(database);
+                report.bytesAfter = IndexMaintenance.segmentBytes(database);
+            }
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error maintaining index " + exception);
+            return null;
+        }
+        return report;
+    }
+
+    /**
+     * Whether enough has been written since the last optimize, or enough segments have piled up,
+     * for maintenance to be worth queueing. An index in memory that changed since its segment was
+     * written always needs it.
+     */
+    boolean needsMaintenance() {
+        if (documentsWrittenSinceOptimize.get() >= documentsBeforeOptimize) {
+            return true;
+        }
+        MemorySearchIndex index = memorySearchIndex();
+        if (index != null && index.getNumberOfChangesSinceSegment() > 0) {
+            return true;
+        }
+        try {
+            return IndexMaintenance.numberOfSegments(getReadableDatabase()) >= segmentsBeforeMerge;
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Could not count index segments " + exception);
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if maintenance was not queued already, and marks it queued until it runs.
+     */
+    boolean markMaintenanceQueued() {
+        return isMaintenanceQueued.compareAndSet(false, true);
+    }
+
+    void clearMaintenanceQueued() {
+        isMaintenanceQueued.set(false);
+    }
+
+    void setMaintenanceThresholds(int segmentsBeforeMerge, int documentsBeforeOptimize) {
+        this.segmentsBeforeMerge = segmentsBeforeMerge;
+        this.documentsBeforeOptimize = documentsBeforeOptimize;
+    }
+
+    boolean isIdleForMaintenance() {
+        return activeSearches.get() == 0 && System.nanoTime() - lastSearchNanos >= MAINTENANCE_IDLE_DELAY_NANOS;
+    }
+
+    private void searchStarted() {
+        activeSearches.incrementAndGet();
+    }
+
+    private void searchFinished() {
+        lastSearchNanos = System.nanoTime();
+        activeSearches.decrementAndGet();
+    }
+    //endregion
+
+    //region Search Language
+    /**
+     * The language searches are typed in. Queries are folded and analyzed with the rules for that
+     * language, so they match documents indexed with the same language. null uses the rules
+     * shared by every language.
+     */
+    void setSearchLanguage(String language) {
+        searchLanguage = language;
+    }
+
+    String normalizedSearchText(String searchText) {
+        String normalizedSearchText = SearchNormalizer.forLanguage(searchLanguage).normalize(searchText);
+        SearchAnalyzer analyzer = SearchAnalyzer.forLanguage(searchLanguage);
+        if (analyzer == null || normalizedSearchText == null) {
+            return normalizedSearchText;
+        }
+        String analyzedSearchText = analyzer.analyze(normalizedSearchText);
+        // A query of nothing but stopwords still finds the longer words they begin
+        return analyzedSearchText.length() > 0 ? analyzedSearchText : normalizedSearchText;
+    }
+    //endregion
+
+    //region References
+    /**
+     * Marks the database as in use so it is not closed for being idle. Every call has to be
+     * balanced by a call to release. Each public method holds a reference while it runs, callers
+     * only need their own to keep the database open across several calls.
+     */
+    void acquire() {
+        references.incrementAndGet();
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            lastReleaseNanos = System.nanoTime();
+            scheduleIdleClose(idleCloseDelayMillis);
+        }
+    }
+
+    /**
+     * How long the database has to go unused before its connections are closed, releasing their
+     * file descriptors and page cache. It is reopened the next time it is used. A negative delay
+     * keeps it open.
+     */
+    void setIdleCloseDelayMillis(long delayMillis) {
+        idleCloseDelayMillis = delayMillis;
+    }
+
+    private synchronized void scheduleIdleClose(long delayMillis) {
+        if (isIdleCloseScheduled || delayMillis < 0) {
+            return;
+        }
+        isIdleCloseScheduled = true;
+        idleCloser().schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeIfIdle();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the database if nothing has used it for the idle delay. Holds the same lock as
+     * getWritableDatabase, so a caller that acquires the database while it is closing just reopens it.
+     */
+    synchronized boolean closeIfIdle() {
+        isIdleCloseScheduled = false;
+        if (references.get() > 0 || idleCloseDelayMillis < 0) {
+            return false;
+        }
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReleaseNanos);
+        if (idleMillis < idleCloseDelayMillis) {
+            scheduleIdleClose(idleCloseDelayMillis - idleMillis);
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor idleCloser() {
+        if (idleCloser == null) {
+            idleCloser = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SearchDatabase-idle");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return idleCloser;
+    }
+    //endregion
+
+    //region Write Ahead Logging
+    private static class WriteAheadLogging {
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        static void enable(SQLiteOpenHelper helper) {
+            helper.setWriteAheadLoggingEnabled(true);
+        }
+
+        static void enable(SQLiteDatabase database) {
+            if (!database.enableWriteAheadLogging()) {
+                Log.e("SearchDatabase", "Could not enable write-ahead logging, searches will wait for index commits");
+            }
+        }
+    }
+    //endregion
+
+    //region Statement Cache
+    /**
+     * Returns the statement cache for the open writable database, recompiling it if the database
+     * was closed and reopened since the cache was built. Callers must hold statementLock.
+     */
+    private SearchStatementCache statementCache(SQLiteDatabase database) {
+        if (statementCache != null && statementCache.database != database) {
+            statementCache.close();
+            statementCache = null;
+        }
+        if (statementCache == null) {
+            statementCache = new SearchStatementCache(database);
+        }
+        return statementCache;
+    }
+
+    private void invalidateStatementCache() {
+        synchronized (statementLock) {
+            if (statementCache != null) {
+                statementCache.close();
+                statementCache = null;
+            }
+        }
     }
     //endregion
 
     //region Setup
+    /**
+     * The documents live in an ordinary table whose docid is the rowid, with a unique index on
+     * (moduleid, fileid) so a file is found without scanning the index. searchindex is an FTS4
+     * table over the same columns that keeps only the terms, and reads the text for snippets back
+     * from the content table by docid. With matchinfo=fts3 it keeps no %_docsize table either, the
+     * rank takes its lengths from the norms column and only asks matchinfo for 'pcx'.
+     *
+     * External content and the matchinfo option need a newer SQLite than older versions of Android
+     * have, so those keep a copy of the text and the document sizes in the index as well.
+     */
     private void initializeDatabaseTable(SQLiteDatabase db) {
-        // Create statement
-        //todo crashes if we use if not exists. Figure out if not using it is ok
-        final String INDEX_TABLE_CREATE_COMMAND = "CREATE VIRTUAL TABLE " + INDEX_TABLE_NAME + " USING FTS3 ( " +
-                MODULE_ID_KEY + " TEXT NOT NULL, " +
-                FILE_ID_KEY + " TEXT NOT NULL, " +
-                LANGUAGE_KEY + " TEXT NOT NULL, " +
-                BOOST_KEY + " FLOAT NOT NULL, " +
-                WEIGHT_0_KEY + " TEXT, " +
-                WEIGHT_1_KEY + " TEXT, " +
-                WEIGHT_2_KEY + " TEXT, " +
-                WEIGHT_3_KEY + " TEXT, " +
-                WEIGHT_4_KEY + " TEXT, " +
-                "PRIMARY KEY (" + MODULE_ID_KEY + ", " + FILE_ID_KEY + ")); ";
-
-        final String METADATA_TABLE_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + METADATA_TABLE_NAME + " (" +
-                MODULE_ID_KEY + " TEXT NOT NULL, " +
-                FILE_ID_KEY + " TEXT NOT NULL, " +
-                TITLE_KEY + " TEXT, " +
-                SUBTITLE_KEY + " TEXT, " +
-                URI_KEY + " TEXT, " +
-                TYPE_KEY + " TEXT, " +
-                IMAGE_URI_KEY + " TEXT, " +
-                "PRIMARY KEY (" + MODULE_ID_KEY + ", " + FILE_ID_KEY + "));";
-
-        db.execSQL(INDEX_TABLE_CREATE_COMMAND);
+        db.execSQL(CONTENT_TABLE_CREATE_COMMAND);
+        db.execSQL(SearchSchema.indexTableCreateCommand(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN));
         db.execSQL(METADATA_TABLE_CREATE_COMMAND);
+        initializeStatisticsTable(db);
+    }
+
+    /**
+     * The statistics table has a single row, which starts out empty.
+     */
+    private void initializeStatisticsTable(SQLiteDatabase db) {
+        db.execSQL(STATISTICS_TABLE_CREATE_COMMAND);
+        db.execSQL(STATISTICS_TABLE_INITIALIZE_COMMAND);
+    }
+
+    private void dropTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + INDEX_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_INDEX_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + CONTENT_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + METADATA_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + STATISTICS_TABLE_NAME + ";");
     }
 
-    private void issueAutomergeCommand(SQLiteDatabase database) {
-        final int AUTOMERGE_NUMBER = 2;
-        final String COMMAND = "INSERT INTO " + INDEX_TABLE_NAME + "("+INDEX_TABLE_NAME +") VALUES('automerge=" + AUTOMERGE_NUMBER + "');";
-        database.execSQL(COMMAND);
+    /**
+     * Rebuilds a version 2 index, a self contained FTS4 table whose PRIMARY KEY clause FTS took for
+     * an extra column, into the content table and an external content index. Rows are copied
+     * MIGRATION_CHUNK_SIZE at a time, newest first, keeping their docids, so only one chunk is in
+     * memory and the newest row wins if a file was ever indexed twice. The text is folded again
+     * with searchableStringFromString since version 2 indexed it as it was written.
+     *
+     * onUpgrade runs in a transaction, so an interrupted migration leaves the old index untouched.
+     */
+    private void migrateToExternalContent(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_INDEX_TABLE_NAME + ";");
+        db.execSQL("ALTER TABLE " + INDEX_TABLE_NAME + " RENAME TO " + LEGACY_INDEX_TABLE_NAME + ";");
+        initializeDatabaseTable(db);
+
+        final String CHUNK_QUERY = "SELECT " + DOCID_KEY + ", " + MODULE_ID_KEY + ", " + FILE_ID_KEY + ", " + LANGUAGE_KEY + ", " + BOOST_KEY + ", " +
+                WEIGHT_0_KEY + ", " + WEIGHT_1_KEY + ", " + WEIGHT_2_KEY + ", " + WEIGHT_3_KEY + ", " + WEIGHT_4_KEY +
+                " FROM " + LEGACY_INDEX_TABLE_NAME + " WHERE " + DOCID_KEY + " < ? ORDER BY " + DOCID_KEY + " DESC LIMIT " + MIGRATION_CHUNK_SIZE + ";";
+
+        SearchStatementCache statements = new SearchStatementCache(db);
+        try {
+            long lastDocId = Long.MAX_VALUE;
+            int numberOfRows = MIGRATION_CHUNK_SIZE;
+            while (numberOfRows == MIGRATION_CHUNK_SIZE) {
+                numberOfRows = 0;
+                Cursor cursor = db.rawQuery(CHUNK_QUERY, new String[]{String.valueOf(lastDocId)});
+                try {
+                    while (cursor.moveToNext()) {
+                        numberOfRows++;
+                        lastDocId = cursor.getLong(0);
+                        String moduleId = cursor.getString(1);
+                        String fileId = cursor.getString(2);
+                        String language = cursor.getString(3);
+                        if (moduleId == null || fileId == null || language == null) {
+                            continue;
+                        }
+                        String[] searchableStrings = new String[SearchStatementCache.NUMBER_OF_SEARCHABLE_STRINGS];
+                        for (int i=0; i<searchableStrings.length; i++) {
+                            searchableStrings[i] = searchableStringFromString(cursor.getString(5 + i), language);
+                        }
+                        statements.insertDocument(lastDocId, moduleId, fileId, language, cursor.getDouble(4), searchableStrings);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            statements.writeStatisticsChange();
+        } finally {
+            statements.close();
+        }
+        db.execSQL("DROP TABLE " + LEGACY_INDEX_TABLE_NAME + ";");
+    }
+
+    /**
+     * Adds the norms column to a version 3 content table and works out every document's norms and
+     * the statistics table from its text, MIGRATION_CHUNK_SIZE rows at a time in docid order.
+     *
+     * An external content index is then created again with matchinfo=fts3 and rebuilt from the
+     * content table, so it stops keeping the document sizes. The docids stay the same.
+     */
+    private void addStatistics(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + CONTENT_TABLE_NAME + " ADD COLUMN " + NORMS_KEY + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("DROP TABLE IF EXISTS " + STATISTICS_TABLE_NAME + ";");
+
+        final String CHUNK_QUERY = "SELECT " + DOCID_KEY + ", " + WEIGHT_0_KEY + ", " + WEIGHT_1_KEY + ", " + WEIGHT_2_KEY + ", " + WEIGHT_3_KEY + ", " + WEIGHT_4_KEY +
+                " FROM " + CONTENT_TABLE_NAME + " WHERE " + DOCID_KEY + " > ? ORDER BY " + DOCID_KEY + " LIMIT " + MIGRATION_CHUNK_SIZE + ";";
+        long numberOfDocuments = 0;
+        long[] totalLengths = new long[IndexStatistics.NUMBER_OF_FIELDS];
+        SQLiteStatement normsUpdate = db.compileStatement("UPDATE " + CONTENT_TABLE_NAME + " SET " + NORMS_KEY + " = ? WHERE " + DOCID_KEY + " = ?;");
+        try {
+            long lastDocId = Long.MIN_VALUE;
+            int numberOfRows = MIGRATION_CHUNK_SIZE;
+            while (numberOfRows == MIGRATION_CHUNK_SIZE) {
+                numberOfRows = 0;
+                Cursor cursor = db.rawQuery(CHUNK_QUERY, new String[]{String.valueOf(lastDocId)});
+                try {
+                    while (cursor.moveToNext()) {
+                        numberOfRows++;
+                        lastDocId = cursor.getLong(0);
+                        String[] searchableStrings = new String[SearchStatementCache.NUMBER_OF_SEARCHABLE_STRINGS];
+                        for (int i=0; i<searchableStrings.length; i++) {
+                            searchableStrings[i] = cursor.getString(1 + i);
+                        }
+                        long norms = IndexStatistics.normsForSearchableStrings(searchableStrings);
+                        normsUpdate.bindLong(1, norms);
+                        normsUpdate.bindLong(2, lastDocId);
+                        normsUpdate.execute();
+
+                        numberOfDocuments++;
+                        for (int field=0; field<totalLengths.length; field++) {
+                            totalLengths[field] += IndexStatistics.lengthFromNorms(norms, field);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            normsUpdate.close();
+        }
+
+        initializeStatisticsTable(db);
+        db.execSQL("UPDATE " + STATISTICS_TABLE_NAME + " SET " + DOCUMENTS_KEY + " = ?, " + WEIGHT_0_KEY + " = ?, " + WEIGHT_1_KEY + " = ?, " + WEIGHT_2_KEY + " = ?, " +
+                WEIGHT_3_KEY + " = ?, " + WEIGHT_4_KEY + " = ?;", new Object[]{numberOfDocuments, totalLengths[0], totalLengths[1], totalLengths[2], totalLengths[3], totalLengths[4]});
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            db.execSQL("DROP TABLE " + INDEX_TABLE_NAME + ";");
+            initializeDatabaseTable(db);
+            db.execSQL("INSERT INTO " + INDEX_TABLE_NAME + "(" + INDEX_TABLE_NAME + ") VALUES('rebuild');");
+        }
     }
 
     //endregion
 
+    //region Search
     public SearchReturn search(String searchText, int limit, int offset, boolean preferPhraseSearching) {
+        return search(searchText, limit, offset, preferPhraseSearching, (SearchHandle) null);
+    }
+
+    /**
+     * Searches like search(String, int, int, boolean) but only finds documents from moduleIds. The
+     * modules are filtered in the query that ranks the matches, so limit and offset count only
+     * documents from those modules. A null or empty moduleIds searches every module.
+     */
+    public SearchReturn search(String searchText, int limit, int offset, boolean preferPhraseSearching, List<String> moduleIds) {
+        return search(searchText, limit, offset, preferPhraseSearching, null, null, moduleIds);
+    }
+
+    /**
+     * Searches like search(String, int, int, boolean, List) but ranks the matches with profile. A
+     * null profile ranks with RankingProfile.DEFAULT.
+     */
+    public SearchReturn search(String searchText, int limit, int offset, boolean preferPhraseSearching, List<String> moduleIds, RankingProfile profile) {
+        return search(searchText, limit, offset, preferPhraseSearching, null, null, moduleIds, profile);
+    }
+
+    /**
+     * Searches like search(String, int, int, boolean) but stops as soon as the handle is cancelled,
+     * returning empty results. handle may be null.
+     */
+    SearchReturn search(String searchText, int limit, int offset, boolean preferPhraseSearching, SearchHandle handle) {
+        return search(searchText, limit, offset, preferPhraseSearching, handle, null);
+    }
+
+    /**
+     * Phrase searches made with a refinement are answered from its candidates when the query only
+     * grew since the last one, and leave their own match set in it when that set is small enough.
+     */
+    SearchReturn search(String searchText, int limit, int offset, boolean preferPhraseSearching, SearchHandle handle, SearchRefinement refinement) {
+        return search(searchText, limit, offset, preferPhraseSearching, handle, refinement, null);
+    }
+
+    /**
+     * Searches restricted to moduleIds are never refined, the refinement's match set is left as it is.
+     */
+    SearchReturn search(String searchText, int limit, int offset, boolean preferPhraseSearching, SearchHandle handle, SearchRefinement refinement, List<String> moduleIds) {
+        return search(searchText, limit, offset, preferPhraseSearching, handle, refinement, moduleIds, null);
+    }
+
+    SearchReturn search(String searchText, int limit, int offset, boolean preferPhraseSearching, SearchHandle handle, SearchRefinement refinement, List<String> moduleIds, RankingProfile profile) {
+        if (profile == null) {
+            profile = RankingProfile.DEFAULT;
+        }
+        acquire();
+        searchStarted();
+        try {
+            return performSearch(searchText, limit, offset, preferPhraseSearching, handle, refinement, moduleIds, profile);
+        } finally {
+            searchFinished();
+            release();
+        }
+    }
+
+    private SearchReturn performSearch(String searchText, int limit, int offset, boolean preferPhraseSearching, SearchHandle handle, SearchRefinement refinement, List<String> moduleIds, RankingProfile profile) {
         SearchReturn searchReturn = new SearchReturn();
-        searchReturn.results = new ArrayList<>(0);
-        searchReturn.suggestions = new ArrayList<>(0);
 
+        String formattedSearchText = formatSearchText(normalizedSearchText(searchText));
+        if (formattedSearchText == null || limit < 1 || offset < 0) {
+            return searchReturn;
+        }
+        // We want to get a snippet one word larger than the number of words we are searching
+        int snippetSize = Math.min(numberOfWords(formattedSearchText) + 1, MAX_SNIPPET_TOKENS);
+
+        SearchBackend backend = searchBackend();
+        if (backend != null) {
+            String backendSearchText = preferPhraseSearching ? stringForPhraseSearching(formattedSearchText) : formattedSearchText;
+            return performBackendSearch(backend, backendSearchText, limit, offset, snippetSize, profile, handle, moduleIds);
+        }
+
+        if (!preferPhraseSearching || (moduleIds != null && moduleIds.size() > 0)) {
+            refinement = null;
+        }
+        // Read before searching, so a write that commits while we search makes the refinement stale
+        long generation = getIndexGeneration();
+        if (refinement != null) {
+            SearchRefinement.State state = refinement.stateForRefinement(this, generation, formattedSearchText);
+            if (state != null) {
+                SearchRefinement.State refinedState = state.refine(formattedSearchText, profile, handle);
+                if (refinedState != null && !isCancelled(handle)) {
+                    refinement.update(this, generation, refinedState);
+                    searchReturn.results = refinedState.searchResults(limit, offset, snippetSize);
+                }
+                return searchReturn;
+            }
+        }
+
+        String phraseSearchText = formattedSearchText;
+        if (preferPhraseSearching) {
+            phraseSearchText = stringForPhraseSearching(formattedSearchText);
+        }
+
+        try {
+            SQLiteDatabase database = getReadableDatabase();
+            for (int attempt=0; ; attempt++) {
+                SearchRefinement.Collector collector = (refinement != null) ? new SearchRefinement.Collector() : null;
+                SearchRefinement.State state = null;
+                IndexStatistics statistics = statistics(database);
+                List<RankedDocument> rankedDocuments = rankedDocuments(database, statistics, phraseSearchText, limit + offset, profile, handle, collector, moduleIds);
+                searchReturn.results = new ArrayList<>(0);
+                if (rankedDocuments.size() > offset && !isCancelled(handle)) {
+                    List<RankedDocument> page = rankedDocuments.subList(offset, rankedDocuments.size());
+                    searchReturn.results = searchResultsForRankedDocuments(database, phraseSearchText, page, snippetSize);
+                }
+                if (collector != null && collector.isComplete() && !isCancelled(handle)) {
+                    state = SearchRefinement.State.newState(formattedSearchText, statistics, candidatesForCollector(database, collector));
+                }
+
+                // Each statement reads from whichever pooled connection is free, so a batch that
+                // commits between them can leave the passes looking at different versions of the
+                // index. When that happens run the search again against the new one.
+                long generationAfterSearch = getIndexGeneration();
+                boolean isConsistent = generationAfterSearch == generation;
+                if (refinement != null && !isCancelled(handle)) {
+                    if (state != null && isConsistent) {
+                        refinement.update(this, generation, state);
+                    } else {
+                        refinement.clear();
+                    }
+                }
+                if (isConsistent || attempt >= MAX_SNAPSHOT_RETRIES || isCancelled(handle)) {
+                    break;
+                }
+                generation = generationAfterSearch;
+            }
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error searching for " + searchText + " " + exception);
+        } catch (RuntimeException exception) {
+            // A cancelled CancellationSignal surfaces as an OperationCanceledException, which only exists on API 16+
+            if (!isCancelled(handle)) {
+                throw exception;
+            }
+        }
+        if (isCancelled(handle)) {
+            searchReturn.results = new ArrayList<>(0);
+        }
+
+        return searchReturn;
+    }
+
+    /**
+     * Answers a search from the backend rather than the FTS tables. The backend only ever holds
+     * committed rows, so both passes see the same index without the snapshot checks.
+     */
+    private SearchReturn performBackendSearch(SearchBackend backend, String formattedSearchText, int limit, int offset, int snippetSize, RankingProfile profile, SearchHandle handle, List<String> moduleIds) {
+        SearchReturn searchReturn = new SearchReturn();
+        List<RankedDocument> rankedDocuments = backend.rankedDocuments(formattedSearchText, limit + offset, profile, handle, moduleIds);
+        if (rankedDocuments.size() > offset && !isCancelled(handle)) {
+            List<RankedDocument> page = rankedDocuments.subList(offset, rankedDocuments.size());
+            Map<Long, SearchResult> resultsByDocId = backend.searchResultsByDocId(formattedSearchText, page, snippetSize);
+            searchReturn.results = new ArrayList<>(resultsByDocId.size());
+            for (RankedDocument rankedDocument: page) {
+                SearchResult result = resultsByDocId.get(rankedDocument.docId);
+                if (result != null) {
+                    searchReturn.results.add(result);
+                }
+            }
+        }
+        if (isCancelled(handle)) {
+            searchReturn.results = new ArrayList<>(0);
+        }
         return searchReturn;
     }
 
+    /**
+     * The first pass of a search split across several databases: the best maxNumberOfResults
+     * matches for searchText in this one, ranked with profile but without any of their metadata or
+     * snippets.
+     */
+    List<RankedDocument> rankedDocuments(String searchText, int maxNumberOfResults, boolean preferPhraseSearching, RankingProfile profile, SearchHandle handle) {
+        String formattedSearchText = formatSearchText(normalizedSearchText(searchText));
+        if (formattedSearchText == null || maxNumberOfResults < 1) {
+            return new ArrayList<>(0);
+        }
+        if (preferPhraseSearching) {
+            formattedSearchText = stringForPhraseSearching(formattedSearchText);
+        }
+
+        acquire();
+        searchStarted();
+        try {
+            SearchBackend backend = searchBackend();
+            if (backend != null) {
+                return backend.rankedDocuments(formattedSearchText, maxNumberOfResults, profile, handle, null);
+            }
+            SQLiteDatabase database = getReadableDatabase();
+            return rankedDocuments(database, statistics(database), formattedSearchText, maxNumberOfResults, profile, handle, null, null);
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error ranking documents for " + searchText + " " + exception);
+        } catch (RuntimeException exception) {
+            if (!isCancelled(handle)) {
+                throw exception;
+            }
+        } finally {
+            searchFinished();
+            release();
+        }
+        return new ArrayList<>(0);
+    }
+
+    /**
+     * The second pass of a search split across several databases: loads the results for the
+     * documents from this database that made it onto the page. Documents removed since they were
+     * ranked are left out.
+     */
+    Map<Long, SearchResult> searchResultsByDocId(String searchText, List<RankedDocument> rankedDocuments, boolean preferPhraseSearching) {
+        String formattedSearchText = formatSearchText(normalizedSearchText(searchText));
+        if (formattedSearchText == null || rankedDocuments.size() < 1) {
+            return new HashMap<>(0);
+        }
+        int snippetSize = Math.min(numberOfWords(formattedSearchText) + 1, MAX_SNIPPET_TOKENS);
+        if (preferPhraseSearching) {
+            formattedSearchText = stringForPhraseSearching(formattedSearchText);
+        }
+
+        acquire();
+        searchStarted();
+        try {
+            SearchBackend backend = searchBackend();
+            if (backend != null) {
+                return backend.searchResultsByDocId(formattedSearchText, rankedDocuments, snippetSize);
+            }
+            return searchResultsByDocId(getReadableDatabase(), formattedSearchText, rankedDocuments, snippetSize);
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error loading results for " + searchText + " " + exception);
+        } finally {
+            searchFinished();
+            release();
+        }
+        return new HashMap<>(0);
+    }
+
+    /**
+     * The statistics table of database, read again only once a write has moved the index to a new
+     * generation.
+     */
+    IndexStatistics statistics(SQLiteDatabase database) {
+        long generation = getIndexGeneration();
+        CachedStatistics cached = cachedStatistics;
+        if (cached != null && cached.indexGeneration == generation) {
+            return cached.statistics;
+        }
+        IndexStatistics statistics = readStatistics(database);
+        // A write that committed while it was read leaves it to the next search
+        if (getIndexGeneration() == generation) {
+            cachedStatistics = new CachedStatistics(generation, statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * The statistics as they are in database, or IndexStatistics.EMPTY if it has none.
+     */
+    private static IndexStatistics readStatistics(SQLiteDatabase database) {
+        Cursor cursor = database.rawQuery(STATISTICS_QUERY, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return IndexStatistics.EMPTY;
+            }
+            long[] totalLengths = new long[IndexStatistics.NUMBER_OF_FIELDS];
+            for (int field=0; field<IndexStatistics.NUMBER_OF_FIELDS; field++) {
+                totalLengths[field] = cursor.getLong(1 + field);
+            }
+            return new IndexStatistics(cursor.getLong(0), totalLengths);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Scores every row matching the query from its matchinfo hit counts, its norms and statistics,
+     * and keeps the best maxNumberOfResults in a bounded heap, so only the page we return ever gets
+     * its metadata and snippet loaded. The inverse document frequencies are the same for every row,
+     * so they are worked out from the first. Rows from modules outside moduleIds are left out by
+     * the query itself, unless moduleIds is null or empty. More modules than one query can bind are
+     * ranked a chunk of modules at a time into the same heap.
+     */
+    List<RankedDocument> rankedDocuments(SQLiteDatabase database, IndexStatistics statistics, String formattedSearchText, int maxNumberOfResults, RankingProfile profile, SearchHandle handle, SearchRefinement.Collector collector, List<String> moduleIds) {
+        PriorityQueue<RankedDocument> heap = new PriorityQueue<>(Math.max(maxNumberOfResults, 1), new Comparator<RankedDocument>() {
+            @Override
+            public int compare(RankedDocument lhs, RankedDocument rhs) {
+                return Double.compare(lhs.rank, rhs.rank);
+            }
+        });
+
+        if (moduleIds == null || moduleIds.size() < 1) {
+            String[] arguments = new String[]{formattedSearchText};
+            Cursor cursor = (handle == null) ? database.rawQuery(RANK_QUERY, arguments) : handle.rawQuery(database, RANK_QUERY, arguments);
+            rankRows(cursor, statistics, null, maxNumberOfResults, profile, handle, collector, heap);
+        } else {
+            // A module repeated across two chunks would rank its rows twice
+            List<String> uniqueModuleIds = new ArrayList<>(new LinkedHashSet<>(moduleIds));
+            double[] inverseDocumentFrequencies = null;
+            for (int start=0; start<uniqueModuleIds.size() && !isCancelled(handle); start+=MAX_MODULE_IDS_PER_RANK_QUERY) {
+                List<String> chunk = uniqueModuleIds.subList(start, Math.min(start + MAX_MODULE_IDS_PER_RANK_QUERY, uniqueModuleIds.size()));
+                // Pad the list to a power of two by repeating the last id, so only a few queries are ever compiled
+                int numberOfModuleIdArguments = SearchSchema.numberOfPlaceholdersForCount(chunk.size(), MAX_MODULE_IDS_PER_RANK_QUERY);
+                String query = SearchSchema.rankQueryForModulePlaceholders(numberOfModuleIdArguments);
+                String[] arguments = new String[numberOfModuleIdArguments + 1];
+                arguments[0] = formattedSearchText;
+                for (int i=0; i<numberOfModuleIdArguments; i++) {
+                    arguments[i + 1] = chunk.get(Math.min(i, chunk.size() - 1));
+                }
+                Cursor cursor = (handle == null) ? database.rawQuery(query, arguments) : handle.rawQuery(database, query, arguments);
+                inverseDocumentFrequencies = rankRows(cursor, statistics, inverseDocumentFrequencies, maxNumberOfResults, profile, handle, collector, heap);
+            }
+        }
+
+        List<RankedDocument> rankedDocuments = new ArrayList<>(heap);
+        Collections.sort(rankedDocuments, Collections.reverseOrder(heap.comparator()));
+        return rankedDocuments;
+    }
+
+    /**
+     * Ranks the rows of a rank query into heap and closes the cursor. Returns the inverse document
+     * frequencies, worked out from the first row unless they were passed in, so the next chunk of
+     * the same search can reuse them.
+     */
+    private static double[] rankRows(Cursor cursor, IndexStatistics statistics, double[] inverseDocumentFrequencies, int maxNumberOfResults, RankingProfile profile, SearchHandle handle, SearchRefinement.Collector collector, PriorityQueue<RankedDocument> heap) {
+        try {
+            while (cursor.moveToNext()) {
+                if (isCancelled(handle)) {
+                    break;
+                }
+                long docId = cursor.getLong(0);
+                int[] matchinfo = Rank.matchinfoFromBlob(cursor.getBlob(1));
+                double boost = cursor.getDouble(2);
+                if (inverseDocumentFrequencies == null) {
+                    inverseDocumentFrequencies = Rank.inverseDocumentFrequencies(matchinfo, statistics, profile);
+                }
+                double rank = Rank.rank(matchinfo, cursor.getLong(3), statistics, inverseDocumentFrequencies, boost, profile);
+                if (collector != null) {
+                    collector.add(docId, boost);
+                }
+
+                if (heap.size() < maxNumberOfResults) {
+                    heap.add(new RankedDocument(docId, rank));
+                } else if (heap.peek().rank < rank) {
+                    heap.poll();
+                    heap.add(new RankedDocument(docId, rank));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return inverseDocumentFrequencies;
+    }
+
+    List<SearchResult> searchResultsForRankedDocuments(SQLiteDatabase database, String formattedSearchText, List<RankedDocument> rankedDocuments, int snippetSize) {
+        Map<Long, SearchResult> resultsByDocId = searchResultsByDocId(database, formattedSearchText, rankedDocuments, snippetSize);
+        List<SearchResult> results = new ArrayList<>(resultsByDocId.size());
+        for (RankedDocument rankedDocument: rankedDocuments) {
+            SearchResult result = resultsByDocId.get(rankedDocument.docId);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * A page of more than MAX_DOCIDS_PER_RESULTS_QUERY results is loaded a chunk at a time, so no
+     * statement binds more arguments than SQLite allows.
+     */
+    private Map<Long, SearchResult> searchResultsByDocId(SQLiteDatabase database, String formattedSearchText, List<RankedDocument> rankedDocuments, int snippetSize) {
+        Map<Long, SearchResult> resultsByDocId = new HashMap<>(rankedDocuments.size());
+        for (int start=0; start<rankedDocuments.size(); start+=MAX_DOCIDS_PER_RESULTS_QUERY) {
+            List<RankedDocument> chunk = rankedDocuments.subList(start, Math.min(start + MAX_DOCIDS_PER_RESULTS_QUERY, rankedDocuments.size()));
+            addSearchResultsByDocId(database, formattedSearchText, chunk, snippetSize, resultsByDocId);
+        }
+        return resultsByDocId;
+    }
+
+    private void addSearchResultsByDocId(SQLiteDatabase database, String formattedSearchText, List<RankedDocument> rankedDocuments, int snippetSize, Map<Long, SearchResult> resultsByDocId) {
+        int numberOfDocIdArguments = SearchSchema.numberOfPlaceholdersForCount(rankedDocuments.size(), MAX_DOCIDS_PER_RESULTS_QUERY);
+        String resultsQuery = SearchSchema.resultsQueryForPlaceholders(numberOfDocIdArguments);
+        String[] arguments = new String[numberOfDocIdArguments + 2];
+        arguments[0] = String.valueOf(snippetSize);
+        arguments[1] = formattedSearchText;
+        for (int i=0; i<numberOfDocIdArguments; i++) {
+            // Pad the unused placeholders with the last docid so the IN list keeps its size
+            arguments[i + 2] = String.valueOf(rankedDocuments.get(Math.min(i, rankedDocuments.size() - 1)).docId);
+        }
+
+        Cursor cursor = database.rawQuery(resultsQuery, arguments);
+        try {
+            while (cursor.moveToNext()) {
+                SearchResult result = SearchResult.newSearchResult(cursor.getString(3), cursor.getString(4), null, cursor.getString(5), cursor.getString(6), cursor.getString(7), false, cursor.getString(2), cursor.getString(1));
+                result.snippet = cursor.getString(8);
+                resultsByDocId.put(cursor.getLong(0), result);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Loads the text of every indexed column for the rows the collector saw, along with their
+     * metadata. The rows are looked up by docid, so this does not touch the full-text index.
+     */
+    List<SearchRefinement.Candidate> candidatesForCollector(SQLiteDatabase database, SearchRefinement.Collector collector) {
+        List<SearchRefinement.Candidate> candidates = new ArrayList<>(collector.getCount());
+        if (collector.getCount() < 1) {
+            return candidates;
+        }
+        int numberOfDocIdArguments = SearchSchema.numberOfPlaceholdersForCount(collector.getCount(), MAX_NUMBER_OF_ARGUMENTS);
+        String[] arguments = new String[numberOfDocIdArguments];
+        Map<Long, Double> boostsByDocId = new HashMap<>(collector.getCount());
+        for (int i=0; i<numberOfDocIdArguments; i++) {
+            arguments[i] = String.valueOf(collector.getDocId(Math.min(i, collector.getCount() - 1)));
+        }
+        for (int i=0; i<collector.getCount(); i++) {
+            boostsByDocId.put(collector.getDocId(i), collector.getBoost(i));
+        }
+
+        Cursor cursor = database.rawQuery(SearchSchema.candidateQueryForPlaceholders(numberOfDocIdArguments), arguments);
+        try {
+            while (cursor.moveToNext()) {
+                long docId = cursor.getLong(0);
+                Double boost = boostsByDocId.remove(docId);
+                if (boost == null) {
+                    continue;
+                }
+                String[] columns = new String[SearchRefinement.NUMBER_OF_INDEXED_COLUMNS];
+                for (int column=0; column<columns.length; column++) {
+                    columns[column] = cursor.getString(1 + column);
+                }
+                int metadataStart = 1 + columns.length;
+                candidates.add(new SearchRefinement.Candidate(docId, boost, columns, columns[0], columns[1], cursor.getString(metadataStart), cursor.getString(metadataStart + 1),
+                        cursor.getString(metadataStart + 2), cursor.getString(metadataStart + 3), cursor.getString(metadataStart + 4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return candidates;
+    }
+
+    //endregion
+
+    //region Remove
     public boolean removeFileFromIndex(String moduleId, String fileId) {
-        return false;
+        acquire();
+        try {
+            return performRemoveFileFromIndex(moduleId, fileId);
+        } finally {
+            release();
+        }
+    }
+
+    private boolean performRemoveFileFromIndex(String moduleId, String fileId) {
+        if (moduleId == null || fileId == null) {
+            Log.e("SearchDatabase", "Cannot remove file from index without a moduleId and fileId");
+            return false;
+        }
+        SQLiteDatabase database;
+        try {
+            database = getWritableDatabase();
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Could not open database to remove file " + exception);
+            return false;
+        }
+
+        boolean success = false;
+        synchronized (statementLock) {
+            SearchStatementCache statements = statementCache(database);
+            try {
+                long docId = -1;
+                indexWillChange();
+                database.beginTransaction();
+                try {
+                    statements.clearStatisticsChange();
+                    docId = statements.delete(moduleId, fileId);
+                    statements.writeStatisticsChange();
+                    database.setTransactionSuccessful();
+                    success = true;
+                } finally {
+                    database.endTransaction();
+                    if (success && docId >= 0) {
+                        documentsWrittenSinceOptimize.incrementAndGet();
+                        if (searchBackend != null) {
+                            searchBackend.removeFileFromIndex(docId);
+                        }
+                    }
+                    indexDidChange();
+                }
+            } catch (SQLiteException exception) {
+                Log.e("SearchDatabase", "Error removing file " + moduleId + "." + fileId + " from index " + exception);
+                success = false;
+            }
+        }
+        return success;
     }
+
+    /**
+     * Removes every file in the module from the index in a single transaction. The module's docids
+     * are read from the content table's index and each is removed from the FTS table by docid.
+     */
+    public boolean removeModule(String moduleId) {
+        acquire();
+        try {
+            return performRemoveModule(moduleId);
+        } finally {
+            release();
+        }
+    }
+
+    private boolean performRemoveModule(String moduleId) {
+        if (moduleId == null) {
+            Log.e("SearchDatabase", "Cannot remove module from index without a moduleId");
+            return false;
+        }
+        SQLiteDatabase database;
+        try {
+            database = getWritableDatabase();
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Could not open database to remove module " + exception);
+            return false;
+        }
+
+        boolean success = false;
+        synchronized (statementLock) {
+            SearchStatementCache statements = statementCache(database);
+            try {
+                indexWillChange();
+                database.beginTransaction();
+                try {
+                    statements.clearStatisticsChange();
+                    documentsWrittenSinceOptimize.addAndGet(statements.deleteModule(moduleId));
+                    statements.writeStatisticsChange();
+                    database.setTransactionSuccessful();
+                    success = true;
+                } finally {
+                    database.endTransaction();
+                    if (success && searchBackend != null) {
+                        searchBackend.removeModule(moduleId);
+                    }
+                    indexDidChange();
+                }
+            } catch (SQLiteException exception) {
+                Log.e("SearchDatabase", "Error removing module " + moduleId + " from index " + exception);
+                success = false;
+            }
+        }
+        return success;
+    }
+    //endregion
+
+    //region Index
+    public boolean doesFileExist(String moduleId, String fileId) {
+        acquire();
+        try {
+            return performDoesFileExist(moduleId, fileId);
+        } finally {
+            release();
+        }
+    }
+
+    private boolean performDoesFileExist(String moduleId, String fileId) {
+        if (moduleId == null || fileId == null) {
+            return false;
+        }
+        try {
+            SQLiteDatabase database = getWritableDatabase();
+            synchronized (statementLock) {
+                return statementCache(database).doesFileExist(moduleId, fileId);
+            }
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error checking if file " + moduleId + "." + fileId + " exists " + exception);
+            return false;
+        }
+    }
+
     public boolean indexFile(String moduleId, String fileid, String language, double boost, Map<String,String> searchableStrings, Map<String, String> fileMetadata) {
+        IndexDocument document = IndexDocument.newIndexDocument(moduleId, fileid, language, boost, searchableStrings, fileMetadata);
+        List<IndexDocument> documents = new ArrayList<>(1);
+        documents.add(document);
+
+        return indexFiles(documents).size() == 1;
+    }
+
+    /**
+     * Replaces every document in the list inside a single transaction, reusing the same compiled
+     * statements for each one. Returns the documents that were indexed, so callers can tell which
+     * ones still need to be retried. If the transaction fails to commit nothing was indexed.
+     */
+    public List<IndexDocument> indexFiles(List<IndexDocument> documents) {
+        acquire();
+        try {
+            return performIndexFiles(documents);
+        } finally {
+            release();
+        }
+    }
+
+    private List<IndexDocument> performIndexFiles(List<IndexDocument> documents) {
+        List<IndexDocument> indexedDocuments = new ArrayList<>(documents.size());
+        if (documents.size() < 1) {
+            return indexedDocuments;
+        }
+        SQLiteDatabase database;
+        try {
+            database = getWritableDatabase();
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Could not open database to index files " + exception);
+            return indexedDocuments;
+        }
+
+        synchronized (statementLock) {
+            SearchStatementCache statements = statementCache(database);
+            // What the batch did to each docid, null for a removed row, passed on to the backend once it commits
+            Map<Long, SearchRefinement.Candidate> backendRows = (searchBackend != null) ? new LinkedHashMap<Long, SearchRefinement.Candidate>() : null;
+            try {
+                boolean isCommitted = false;
+                indexWillChange();
+                database.beginTransaction();
+                try {
+                    statements.clearStatisticsChange();
+                    for (IndexDocument document: documents) {
+                        if (indexDocument(statements, document, backendRows)) {
+                            indexedDocuments.add(document);
+                        }
+                    }
+                    statements.writeStatisticsChange();
+                    database.setTransactionSuccessful();
+                    isCommitted = true;
+                } finally {
+                    database.endTransaction();
+                    if (isCommitted && backendRows != null) {
+                        updateSearchBackend(backendRows);
+                    }
+                    indexDidChange();
+                }
+            } catch (SQLiteException exception) {
+                Log.e("SearchDatabase", "Error committing index transaction " + exception);
+                indexedDocuments.clear();
+            }
+        }
+        documentsWrittenSinceOptimize.addAndGet(indexedDocuments.size());
+        return indexedDocuments;
+    }
+
+    /**
+     * Writes the document, recording the row it leaves behind in backendRows unless that is null.
+     * The document's writes are undone together if any of them fails, so a file that was indexed
+     * before keeps its old version rather than losing it or being left half written.
+     */
+    private boolean indexDocument(SearchStatementCache statements, IndexDocument document, Map<Long, SearchRefinement.Candidate> backendRows) {
+        if (document.moduleId == null || document.fileId == null || document.language == null) {
+            Log.e("SearchDatabase", "Cannot index file without a moduleId, fileId and language");
+            return false;
+        }
+        Map<String, String> searchableStrings = document.searchableStrings;
+        Map<String, String> fileMetadata = document.fileMetadata;
+        if (searchableStrings == null) {
+            searchableStrings = Collections.emptyMap();
+        }
+        if (fileMetadata == null) {
+            fileMetadata = Collections.emptyMap();
+        }
+
+        try {
+            statements.beginDocument();
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error indexing file " + document.moduleId + "." + document.fileId + " " + exception);
+            return false;
+        }
+        // The backendRows entries the document replaced, and the docids it added, to put back if it is rolled back
+        Map<Long, SearchRefinement.Candidate> replacedBackendRows = new HashMap<>(2);
+        List<Long> addedBackendDocIds = new ArrayList<>(2);
+        boolean isIndexed = false;
+        try {
+            // A file that is indexed again keeps its docid
+            long previousDocId = statements.delete(document.moduleId, document.fileId);
+            if (backendRows != null && previousDocId >= 0) {
+                putBackendRow(backendRows, previousDocId, null, replacedBackendRows, addedBackendDocIds);
+            }
+
+            String[] weightedStrings = {
+                    searchableStringOrNull(searchableStrings.get(WEIGHT_0_KEY), document),
+                    searchableStringOrNull(searchableStrings.get(WEIGHT_1_KEY), document),
+                    searchableStringOrNull(searchableStrings.get(WEIGHT_2_KEY), document),
+                    searchableStringOrNull(searchableStrings.get(WEIGHT_3_KEY), document),
+                    searchableStringOrNull(searchableStrings.get(WEIGHT_4_KEY), document)};
+            long docId = statements.insertDocument(previousDocId, document.moduleId, document.fileId, document.language, document.boost, weightedStrings);
+            if (docId >= 0) {
+                String type = fileMetadata.get(TYPE_KEY);
+                if (type == null) {
+                    type = fileMetadata.get(SearchManager.FILE_TYPE);
+                }
+                SQLiteStatement metadataInsert = statements.metadataInsert();
+                metadataInsert.bindString(1, document.moduleId);
+                metadataInsert.bindString(2, document.fileId);
+                bindStringOrNull(metadataInsert, 3, fileMetadata.get(TITLE_KEY));
+                bindStringOrNull(metadataInsert, 4, fileMetadata.get(SUBTITLE_KEY));
+                bindStringOrNull(metadataInsert, 5, type);
+                bindStringOrNull(metadataInsert, 6, fileMetadata.get(URI_KEY));
+                bindStringOrNull(metadataInsert, 7, fileMetadata.get(IMAGE_URI_KEY));
+                if (metadataInsert.executeInsert() >= 0) {
+                    if (backendRows != null) {
+                        String[] columns = {document.moduleId, document.fileId, document.language, boostText(document.boost),
+                                weightedStrings[0], weightedStrings[1], weightedStrings[2], weightedStrings[3], weightedStrings[4]};
+                        putBackendRow(backendRows, docId, new SearchRefinement.Candidate(docId, document.boost, columns, document.moduleId, document.fileId,
+                                fileMetadata.get(TITLE_KEY), fileMetadata.get(SUBTITLE_KEY), fileMetadata.get(URI_KEY), type, fileMetadata.get(IMAGE_URI_KEY)),
+                                replacedBackendRows, addedBackendDocIds);
+                    }
+                    isIndexed = true;
+                }
+            }
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error indexing file " + document.moduleId + "." + document.fileId + " " + exception);
+        }
+
+        if (isIndexed) {
+            statements.endDocument();
+            return true;
+        }
+        statements.rollBackDocument();
+        if (backendRows != null) {
+            for (Long docId: addedBackendDocIds) {
+                backendRows.remove(docId);
+            }
+            backendRows.putAll(replacedBackendRows);
+        }
         return false;
     }
+
+    /**
+     * Puts row in backendRows, first noting in replacedBackendRows or addedBackendDocIds what was
+     * there before, unless an earlier put of the same document already did.
+     */
+    private static void putBackendRow(Map<Long, SearchRefinement.Candidate> backendRows, long docId, SearchRefinement.Candidate row,
+                                      Map<Long, SearchRefinement.Candidate> replacedBackendRows, List<Long> addedBackendDocIds) {
+        if (!replacedBackendRows.containsKey(docId) && !addedBackendDocIds.contains(docId)) {
+            if (backendRows.containsKey(docId)) {
+                replacedBackendRows.put(docId, backendRows.get(docId));
+            } else {
+                addedBackendDocIds.add(docId);
+            }
+        }
+        backendRows.put(docId, row);
+    }
+
+    private void updateSearchBackend(Map<Long, SearchRefinement.Candidate> backendRows) {
+        for (Map.Entry<Long, SearchRefinement.Candidate> entry: backendRows.entrySet()) {
+            if (entry.getValue() == null) {
+                searchBackend.removeFileFromIndex(entry.getKey());
+            } else {
+                searchBackend.indexFile(entry.getValue());
+            }
+        }
+    }
+    //endregion
+
+    //region Search Backend
+    /**
+     * Answers searches from an index held in memory instead of the FTS tables. If a segment was
+     * written for the database it is memory mapped straight away and searched where it is.
+     * Otherwise the index is loaded from the content table by the first search after this is
+     * enabled. From then on every committed write is applied to it as well, and maintenance writes
+     * it to a new segment. Disabling it drops the index.
+     */
+    void setInMemorySearchEnabled(boolean isEnabled) {
+        synchronized (statementLock) {
+            isInMemorySearchEnabled = isEnabled;
+            if (!isEnabled) {
+                searchBackend = null;
+            } else if (searchBackend == null) {
+                searchBackend = openSegment();
+            }
+        }
+    }
+
+    /**
+     * The backend to search, or null to search the FTS tables, which is also what happens if the
+     * in-memory index cannot be loaded.
+     */
+    private SearchBackend searchBackend() {
+        if (!isInMemorySearchEnabled) {
+            return null;
+        }
+        SearchBackend backend = searchBackend;
+        if (backend != null) {
+            return backend;
+        }
+        try {
+            // Open the database before taking the statement lock, close() takes them in that order
+            SQLiteDatabase database = getReadableDatabase();
+            synchronized (statementLock) {
+                if (searchBackend == null && isInMemorySearchEnabled) {
+                    searchBackend = loadMemorySearchIndex(database);
+                }
+                return searchBackend;
+            }
+        } catch (SQLiteException exception) {
+            Log.e("SearchDatabase", "Error loading the in-memory index " + exception);
+            return null;
+        }
+    }
+
+    private MemorySearchIndex memorySearchIndex() {
+        SearchBackend backend = searchBackend;
+        return (backend instanceof MemorySearchIndex) ? (MemorySearchIndex) backend : null;
+    }
+
+    /**
+     * Called before anything is written to the index. The segment file stops matching the index
+     * as soon as the write commits, so it is deleted before the write starts, and a crash can
+     * never leave an out of date segment to be opened next time. Callers must hold statementLock.
+     */
+    private void indexWillChange() {
+        numberOfSegmentChanges++;
+        if (isSegmentFileCurrent && segmentFile != null) {
+            if (segmentFile.exists() && !segmentFile.delete()) {
+                Log.e("SearchDatabase", "Could not delete index segment " + segmentFile);
+                return;
+            }
+            isSegmentFileCurrent = false;
+        }
+    }
+
+    /**
+     * Drops the in-memory index and its segment, for when the tables are created or upgraded.
+     */
+    private void discardSearchBackend() {
+        synchronized (statementLock) {
+            indexWillChange();
+            searchBackend = null;
+        }
+    }
+
+    /**
+     * A MemorySearchIndex of the segment file, or null if there is none or it cannot be read, in
+     * which case the file is deleted. Callers must hold statementLock.
+     */
+    private MemorySearchIndex openSegment() {
+        if (segmentFile == null || !isSegmentFileCurrent || !segmentFile.exists()) {
+            return null;
+        }
+        try {
+            return new MemorySearchIndex(IndexSegment.open(segmentFile));
+        } catch (IOException exception) {
+            Log.e("SearchDatabase", "Could not open index segment " + segmentFile + " " + exception);
+            if (segmentFile.delete()) {
+                isSegmentFileCurrent = false;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes the rows of index to a new segment and swaps it in for them. The segment is written
+     * to a temporary file without holding statementLock, so writes carry on meanwhile, and is only
+     * renamed into place if nothing was written in the meantime. A database in memory keeps its
+     * segment on the heap. Returns true if the segment replaced the index's rows.
+     */
+    private boolean writeSegment(MemorySearchIndex index) {
+        long changes;
+        synchronized (statementLock) {
+            changes = numberOfSegmentChanges;
+        }
+        List<SearchRefinement.Candidate> rows = index.rows();
+        File temporaryFile = (segmentFile == null) ? null : new File(segmentFile.getPath() + ".tmp");
+        try {
+            IndexSegment segment = null;
+            if (temporaryFile == null) {
+                segment = IndexSegment.newHeapSegment(rows);
+            } else {
+                IndexSegment.write(rows, temporaryFile);
+            }
+            synchronized (statementLock) {
+                if (changes != numberOfSegmentChanges || searchBackend != index) {
+                    return false;
+                }
+                if (temporaryFile != null) {
+                    if (!temporaryFile.renameTo(segmentFile)) {
+                        Log.e("SearchDatabase", "Could not move index segment to " + segmentFile);
+                        return false;
+                    }
+                    isSegmentFileCurrent = true;
+                    segment = IndexSegment.open(segmentFile);
+                }
+                index.replaceWithSegment(segment);
+                return true;
+            }
+        } catch (IOException exception) {
+            Log.e("SearchDatabase", "Error writing index segment " + exception);
+            return false;
+        } finally {
+            if (temporaryFile != null && temporaryFile.exists() && !temporaryFile.delete()) {
+                Log.e("SearchDatabase", "Could not delete " + temporaryFile);
+            }
+        }
+    }
+
+    /**
+     * Reads every row of the content table into a new MemorySearchIndex. Callers must hold
+     * statementLock, so no write can commit while the rows are read.
+     */
+    private static MemorySearchIndex loadMemorySearchIndex(SQLiteDatabase database) {
+        MemorySearchIndex index = new MemorySearchIndex();
+        Cursor cursor = database.rawQuery(MEMORY_INDEX_LOAD_QUERY, null);
+        try {
+            while (cursor.moveToNext()) {
+                String[] columns = new String[SearchRefinement.NUMBER_OF_INDEXED_COLUMNS];
+                for (int column=0; column<columns.length; column++) {
+                    columns[column] = cursor.getString(1 + column);
+                }
+                int metadataStart = 1 + columns.length;
+                index.indexFile(new SearchRefinement.Candidate(cursor.getLong(0), cursor.getDouble(metadataStart + 5), columns, columns[0], columns[1], cursor.getString(metadataStart),
+                        cursor.getString(metadataStart + 1), cursor.getString(metadataStart + 2), cursor.getString(metadataStart + 3), cursor.getString(metadataStart + 4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return index;
+    }
+
+    /**
+     * The text FTS tokenizes for a boost bound as a REAL, which is SQLite's "%!.15g": fifteen
+     * significant digits, trailing zeros dropped but at least one digit after the point.
+     */
+    static String boostText(double boost) {
+        String text = String.format(Locale.US, "%.15g", boost);
+        int exponentStart = text.indexOf('e');
+        String mantissa = (exponentStart < 0) ? text : text.substring(0, exponentStart);
+        String exponent = (exponentStart < 0) ? "" : text.substring(exponentStart);
+        if (mantissa.indexOf('.') >= 0) {
+            int end = mantissa.length();
+            while (mantissa.charAt(end - 1) == '0') {
+                end--;
+            }
+            mantissa = mantissa.substring(0, end);
+            if (mantissa.endsWith(".")) {
+                mantissa += "0";
+            }
+        } else {
+            mantissa += ".0";
+        }
+        return mantissa + exponent;
+    }
+    //endregion
+
     public static String searchableStringFromString(String oldString) {
-        return oldString;
+        return searchableStringFromString(oldString, null);
     }
+
+    /**
+     * The text indexed for oldString in a document in language. It is folded with SearchNormalizer,
+     * with accents stripped, case folded, and punctuation and whitespace collapsed. If the language
+     * has a SearchAnalyzer, the folded text is then reduced to its terms.
+     */
+    public static String searchableStringFromString(String oldString, String language) {
+        return SearchAnalyzer.searchableString(oldString, language);
+    }
+
+    //region Helpers
+    /**
+     * Trims the text, collapses runs of whitespace and turns the last word into a prefix query.
+     * Returns null if there is nothing to search for.
+     */
+    static String formatSearchText(String searchText) {
+        if (searchText == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder(searchText.length() + 1);
+        boolean pendingSpace = false;
+        for (int i=0; i<searchText.length(); i++) {
+            char character = searchText.charAt(i);
+            if (character == ' ' || character == '\t') {
+                pendingSpace = builder.length() > 0;
+            } else if (character != '"') {
+                if (pendingSpace) {
+                    builder.append(' ');
+                    pendingSpace = false;
+                }
+                builder.append(character);
+            }
+        }
+        if (builder.length() < 1) {
+            return null;
+        }
+        return builder.append('*').toString();
+    }
+
+    static int numberOfWords(String formattedSearchText) {
+        int count = 1;
+        for (int i=0; i<formattedSearchText.length(); i++) {
+            if (formattedSearchText.charAt(i) == ' ') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static String stringForPhraseSearching(String searchText) {
+        return "\"" + searchText + "\"";
+    }
+
+    private static boolean isCancelled(SearchHandle handle) {
+        return handle != null && handle.isCancelled();
+    }
+
+    /**
+     * Binds the value as searchableStringFromString makes it for the document's language, unless
+     * the document's searchable strings have already been through it.
+     */
+    private static String searchableStringOrNull(String value, IndexDocument document) {
+        return document.searchableStringsAreNormalized ? value : searchableStringFromString(value, document.language);
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+    //endregion
 }
@@ -0,0 +1,319 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs local searches on a fixed number of threads with a bounded queue. The pool should be no
+ * larger than the number of connections that can read from a SearchDatabase at once, anything
+ * more just adds threads waiting on the same connection.
+ *
+ * Searches submitted with the same supersession key (SearchManager uses the SearchCallback) are
+ * latest-wins: submitting a new one cancels the older one whether it is still queued or running.
+ *
+ * For type-ahead a search can also be debounced. It waits debounceMillis before it is queued, and a
+ * newer search with the same key that arrives in that time replaces it. A coalescing window caps
+ * how long a burst of keystrokes can keep pushing the search back: once the first search of the
+ * burst has waited coalescingMillis, the latest one is queued immediately.
+ */
+public class SearchExecutor
+{
+    //region Constants
+    public static final int DEFAULT_POOL_SIZE = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    public static final int DEFAULT_SHARD_POOL_SIZE = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    //endregion
+
+    //region Properties
+    private final ThreadPoolExecutor executor;
+    private ScheduledThreadPoolExecutor debounceTimer;
+    private ThreadPoolExecutor shardExecutor;
+    private final Map<Object, SearchTask> latestTasks = new HashMap<>();
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final AtomicLong debouncedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalExecutionNanos = new AtomicLong();
+    private final AtomicLong maxExecutionNanos = new AtomicLong();
+    //endregion
+
+    //region Initialize
+    SearchExecutor(int poolSize, int queueCapacity) {
+        poolSize = Math.max(poolSize, 1);
+        queueCapacity = Math.max(queueCapacity, 1);
+        executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new SearchThreadFactory("SearchExecutor-"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+    //endregion
+
+    //region Execute
+    /**
+     * Queues the search. If supersessionKey is not null any older search queued with the same key
+     * is cancelled, and interrupted if it already started. Returns null if the queue is full.
+     */
+    Future<?> execute(Object supersessionKey, Runnable search) {
+        return execute(supersessionKey, search, null, 0, 0);
+    }
+
+    /**
+     * Queues the search after the debounce delay. handle, if not null, is told when the search is
+     * cancelled so it can interrupt its query. A debounced search that finds the queue full when
+     * its delay is up is cancelled, otherwise returns null if the queue is full.
+     */
+    Future<?> execute(Object supersessionKey, Runnable search, SearchHandle handle, long debounceMillis, long coalescingMillis) {
+        final SearchTask task = new SearchTask(supersessionKey, search, handle);
+        submittedCount.incrementAndGet();
+
+        if (supersessionKey != null) {
+            SearchTask previousTask;
+            synchronized (latestTasks) {
+                previousTask = latestTasks.put(supersessionKey, task);
+            }
+            if (previousTask != null) {
+                if (!previousTask.started) {
+                    // Still part of the same burst, so the coalescing window keeps counting from its start
+                    task.burstStartNanos = previousTask.burstStartNanos;
+                }
+                if (previousTask.cancel(true)) {
+                    supersededCount.incrementAndGet();
+                    executor.purge();
+                }
+            }
+        }
+
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMillis, 0));
+        if (delayNanos > 0 && coalescingMillis > 0) {
+            long remainingNanos = task.burstStartNanos + TimeUnit.MILLISECONDS.toNanos(coalescingMillis) - System.nanoTime();
+            delayNanos = Math.max(Math.min(delayNanos, remainingNanos), 0);
+        }
+        if (delayNanos > 0) {
+            try {
+                debounceTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        submit(task);
+                    }
+                }, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException exception) {
+                rejectedCount.incrementAndGet();
+                task.cancel(false);
+                return null;
+            }
+            debouncedCount.incrementAndGet();
+            return task;
+        }
+
+        return submit(task) ? task : null;
+    }
+
+    private boolean submit(SearchTask task) {
+        if (task.isCancelled()) {
+            return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException exception) {
+            rejectedCount.incrementAndGet();
+            task.cancel(false);
+            return false;
+        }
+    }
+
+    private synchronized ScheduledThreadPoolExecutor debounceTimer() {
+        if (debounceTimer == null) {
+            debounceTimer = new ScheduledThreadPoolExecutor(1, new SearchThreadFactory("SearchExecutor-debounce-"));
+            debounceTimer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            debounceTimer.allowCoreThreadTimeOut(true);
+        }
+        return debounceTimer;
+    }
+
+    /**
+     * Runs the per-database passes of searches that span several databases. It is kept apart from
+     * the search pool, so a search waiting on its databases can never starve them of threads.
+     */
+    synchronized Executor shardExecutor() {
+        if (shardExecutor == null) {
+            shardExecutor = new ThreadPoolExecutor(DEFAULT_SHARD_POOL_SIZE, DEFAULT_SHARD_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new SearchThreadFactory("SearchExecutor-shard-"));
+            shardExecutor.allowCoreThreadTimeOut(true);
+        }
+        return shardExecutor;
+    }
+
+    synchronized void shutdown() {
+        if (shardExecutor != null) {
+            shardExecutor.shutdownNow();
+        }
+        if (debounceTimer != null) {
+            debounceTimer.shutdownNow();
+        }
+        executor.shutdownNow();
+        synchronized (latestTasks) {
+            latestTasks.clear();
+        }
+    }
+    //endregion
+
+    //region Metrics
+    public int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getQueueCapacity() {
+        return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    int getLatestTaskCount() {
+        synchronized (latestTasks) {
+            return latestTasks.size();
+        }
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    /**
+     * The number of searches that were held back by a debounce delay.
+     */
+    public long getDebouncedCount() {
+        return debouncedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public double getAverageExecutionTimeMillis() {
+        long completed = completedCount.get();
+        if (completed == 0) {
+            return 0.0;
+        }
+        return (totalExecutionNanos.get() / (double) completed) / 1000000.0;
+    }
+
+    public double getMaxExecutionTimeMillis() {
+        return maxExecutionNanos.get() / 1000000.0;
+    }
+    //endregion
+
+    //region Search Task
+    private class SearchTask extends FutureTask<Void> {
+        private final Object supersessionKey;
+        private final SearchHandle handle;
+        private long startNanos;
+        private long burstStartNanos = System.nanoTime();
+        private volatile boolean started = false;
+
+        SearchTask(Object supersessionKey, Runnable search, SearchHandle handle) {
+            super(search, null);
+            this.supersessionKey = supersessionKey;
+            this.handle = handle;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+            started = true;
+            startNanos = System.nanoTime();
+            super.run();
+        }
+
+        // set and setException run before the future completes, so the metrics are up to date
+        // by the time anyone waiting on it wakes up
+        @Override
+        protected void set(Void result) {
+            recordExecution();
+            super.set(result);
+        }
+
+        @Override
+        protected void setException(Throwable throwable) {
+            recordExecution();
+            super.setException(throwable);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                // a task cancelled before it ran never reaches recordExecution, so it has to let go
+                // of its slot (and the caller's callback) here
+                removeFromLatestTasks();
+                if (handle != null) {
+                    handle.cancelQuery();
+                }
+            }
+        }
+
+        private void recordExecution() {
+            long elapsed = System.nanoTime() - startNanos;
+            completedCount.incrementAndGet();
+            totalExecutionNanos.addAndGet(elapsed);
+            long max = maxExecutionNanos.get();
+            while (elapsed > max && !maxExecutionNanos.compareAndSet(max, elapsed)) {
+                max = maxExecutionNanos.get();
+            }
+            removeFromLatestTasks();
+        }
+
+        void removeFromLatestTasks() {
+            if (supersessionKey == null) {
+                return;
+            }
+            synchronized (latestTasks) {
+                if (latestTasks.get(supersessionKey) == this) {
+                    latestTasks.remove(supersessionKey);
+                }
+            }
+        }
+    }
+
+    private static class SearchThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+
+        SearchThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,114 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+
+/**
+ * A local search that has been queued with SearchManager.localSearch. Cancelling the handle drops
+ * the search if it has not started yet, otherwise it interrupts the query that is running. The
+ * callback is never called for a cancelled search.
+ *
+ * On Jelly Bean and above the rank query is given a CancellationSignal so SQLite itself stops
+ * stepping through matches. Below that the search stops at the next row it reads.
+ */
+public class SearchHandle
+{
+    //region Properties
+    private volatile boolean cancelled = false;
+    private volatile Future<?> future;
+    private final Object cancellationSignal;
+    private final List<SearchHandle> children = new CopyOnWriteArrayList<>();
+    //endregion
+
+    //region Initialize
+    SearchHandle() {
+        cancellationSignal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? CancellationSignalCompat.newCancellationSignal() : null;
+    }
+    //endregion
+
+    //region Public Methods
+    public void cancel() {
+        cancelQuery();
+        Future<?> currentFuture = future;
+        if (currentFuture != null) {
+            currentFuture.cancel(true);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * True once the search has finished, or has been cancelled or rejected.
+     */
+    public boolean isDone() {
+        Future<?> currentFuture = future;
+        return cancelled || (currentFuture != null && currentFuture.isDone());
+    }
+    //endregion
+
+    //region Package Methods
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    void cancelQuery() {
+        cancelled = true;
+        if (cancellationSignal != null) {
+            CancellationSignalCompat.cancel(cancellationSignal);
+        }
+        for (SearchHandle child: children) {
+            child.cancelQuery();
+        }
+    }
+
+    /**
+     * A handle that is cancelled along with this one. A CancellationSignal can only interrupt one
+     * query at a time, so queries that run in parallel for the same search each need their own.
+     */
+    SearchHandle newChildHandle() {
+        SearchHandle child = new SearchHandle();
+        children.add(child);
+        // Checked after adding, so a cancel that raced the add still reaches the child
+        if (cancelled) {
+            child.cancelQuery();
+        }
+        return child;
+    }
+
+    Cursor rawQuery(SQLiteDatabase database, String sql, String[] selectionArgs) {
+        if (cancellationSignal == null) {
+            return database.rawQuery(sql, selectionArgs);
+        }
+        return CancellationSignalCompat.rawQuery(database, sql, selectionArgs, cancellationSignal);
+    }
+    //endregion
+
+    //region Cancellation Signal
+    /**
+     * Keeps every reference to CancellationSignal in a class that is only loaded on API 16 and above.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class CancellationSignalCompat {
+        static Object newCancellationSignal() {
+            return new CancellationSignal();
+        }
+
+        static void cancel(Object cancellationSignal) {
+            ((CancellationSignal) cancellationSignal).cancel();
+        }
+
+        static Cursor rawQuery(SQLiteDatabase database, String sql, String[] selectionArgs, Object cancellationSignal) {
+            return database.rawQuery(sql, selectionArgs, (CancellationSignal) cancellationSignal);
+        }
+    }
+    //endregion
+}
@@ -25,11 +25,13 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 /**
  * Created by Zack Liston on 6/1/15.
@@ -57,12 +59,18 @@ public class SearchManager extends Manager
     public interface RemoteSearch {
         boolean remoteSearch(String searchText, int limit, int offset, SearchCallback callback);
     }
+
+    public interface IndexMaintenanceDelegate {
+        void indexMaintenanceFinished(String searchDatabaseName, IndexMaintenance.Report report);
+    }
     //endregion
 
     //region Constants
     public enum ActionType {
         INDEX_FILE(0),
-        REMOVE_FILE_FROM_INDEX(1);
+        REMOVE_FILE_FROM_INDEX(1),
+        REMOVE_MODULE_FROM_INDEX(2),
+        MAINTAIN_INDEX(3);
 
         private final int value;
         ActionType(int value) {
@@ -89,6 +97,8 @@ public class SearchManager extends Manager
     static final int MAJOR_PRIORITY = 1000;
     static final int MINOR_PRIORITY_INDEX = 1000;
     static final int MINOR_PRIORITY_REMOVE = 10000;
+    // Below indexing and removals, so maintenance only runs once there is nothing else to do
+    static final int MINOR_PRIORITY_MAINTENANCE = 100;
 
     static final String WEIGHT_0 = "weight0";
     static final String WEIGHT_1 = "weight1";
@@ -104,14 +114,28 @@ public class SearchManager extends Manager
 
     //region Properties
     private Context context;
-    private ExecutorService backgroundExecutor = Executors.newCachedThreadPool();
+    private volatile SearchExecutor searchExecutor = new SearchExecutor(SearchExecutor.DEFAULT_POOL_SIZE, SearchExecutor.DEFAULT_QUEUE_CAPACITY);
 
     private IsSearchResultFavorited favoritedDelegate;
     private BackupSearch backupSearchDelegate;
     private RemoteSearch remoteSearchDelegate;
     SearchWorkerProtocol searchWorkerDelegate;
-
-    Map<String, SearchDatabase> searchDatabaseMap = new HashMap<>();
+    IndexMaintenanceDelegate indexMaintenanceDelegate;
+    boolean isIndexMaintenanceEnabled = true;
+    int indexBatchSize = SearchTaskWorker.DEFAULT_INDEX_BATCH_SIZE;
+    int indexPipelineThreadCount = 0;
+
+    // Read from task manager and search executor threads, only ever written under its own lock
+    final ConcurrentMap<String, SearchDatabase> searchDatabaseMap = new ConcurrentHashMap<>();
+    private volatile long databaseIdleCloseDelayMillis = SearchDatabase.DEFAULT_IDLE_CLOSE_DELAY_MILLIS;
+    private volatile String searchLanguage = null;
+    private int segmentsBeforeMerge = IndexMaintenance.DEFAULT_SEGMENTS_BEFORE_MERGE;
+    private int documentsBeforeOptimize = IndexMaintenance.DEFAULT_DOCUMENTS_BEFORE_OPTIMIZE;
+    private boolean isInMemorySearchEnabled = false;
+    IndexJournal indexJournal;
+    // One refinement per type-ahead session, which is everything searched with the same callback
+    final SearchResultCache searchResultCache = new SearchResultCache(SearchResultCache.DEFAULT_MAX_SIZE);
+    final Map<SearchCallback, SearchRefinement> searchRefinements = Collections.synchronizedMap(new WeakHashMap<SearchCallback, SearchRefinement>());
     //endregion
 
     //region Setters
@@ -127,9 +151,158 @@ public class SearchManager extends Manager
     public void setSearchWorkerDelegate(SearchWorkerProtocol delegate) {
         searchWorkerDelegate = delegate;
     }
+    public void setIndexMaintenanceDelegate(IndexMaintenanceDelegate delegate) {
+        indexMaintenanceDelegate = delegate;
+    }
+
+    /**
+     * Whether index and remove tasks queue index maintenance when they leave the index needing it.
+     * Maintenance can still be queued by hand with queueIndexMaintenance.
+     */
+    public void setIndexMaintenanceEnabled(boolean enabled) {
+        isIndexMaintenanceEnabled = enabled;
+    }
+
+    /**
+     * Maintenance merges the index incrementally once it has segmentsBeforeMerge segments, and
+     * optimizes it completely once documentsBeforeOptimize documents have been indexed or removed
+     * since it was last optimized.
+     */
+    public void setIndexMaintenanceThresholds(int segmentsBeforeMerge, int documentsBeforeOptimize) {
+        if (segmentsBeforeMerge < 2 || documentsBeforeOptimize < 1) {
+            Log.e("SearchManager", "Index maintenance needs at least 2 segments to merge and 1 document to optimize");
+            return;
+        }
+        synchronized (searchDatabaseMap) {
+            this.segmentsBeforeMerge = segmentsBeforeMerge;
+            this.documentsBeforeOptimize = documentsBeforeOptimize;
+            for (SearchDatabase database: searchDatabaseMap.values()) {
+                database.setMaintenanceThresholds(segmentsBeforeMerge, documentsBeforeOptimize);
+            }
+        }
+    }
+
+    /**
+     * Answers searches from a copy of each database's index held in memory, which is much faster
+     * than FTS for databases small enough to keep there. The copy is kept up to date with every
+     * write; the database on disk stays the store of record. Index maintenance writes the copy to a
+     * segment file next to the database, which is memory mapped when the database is set up again,
+     * so searches after a restart start straight away. Without one the copy is loaded by the first
+     * search of each database. Off by default.
+     */
+    public void setInMemorySearchEnabled(boolean enabled) {
+        synchronized (searchDatabaseMap) {
+            isInMemorySearchEnabled = enabled;
+            for (SearchDatabase database: searchDatabaseMap.values()) {
+                database.setInMemorySearchEnabled(enabled);
+            }
+        }
+    }
+
+    /**
+     * The number of files a SearchTaskWorker indexes per database transaction.
+     */
+    public void setIndexBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            Log.e("SearchManager", "Index batch size must be at least 1");
+            return;
+        }
+        indexBatchSize = batchSize;
+    }
+
+    /**
+     * The number of threads that read, parse and normalize files while a SearchTaskWorker writes
+     * the ones already prepared. Only one thread ever writes, so more threads than cores minus one
+     * just wait on it. 0, the default, does everything on the task thread.
+     */
+    public void setIndexPipelineThreadCount(int threadCount) {
+        if (threadCount < 0) {
+            Log.e("SearchManager", "Index pipeline thread count can not be negative");
+            return;
+        }
+        indexPipelineThreadCount = threadCount;
+    }
+
+    /**
+     * Replaces the executor local searches run on. poolSize should match the number of connections
+     * that can read from the search databases at once. Searches already queued on the old executor
+     * are cancelled.
+     */
+    public void setSearchExecutorConfiguration(int poolSize, int queueCapacity) {
+        SearchExecutor oldExecutor = searchExecutor;
+        searchExecutor = new SearchExecutor(poolSize, queueCapacity);
+        oldExecutor.shutdown();
+    }
+
+    /**
+     * The number of local searches whose results are kept. 0 turns the cache off.
+     */
+    public void setSearchResultCacheSize(int maxSize) {
+        searchResultCache.setMaxSize(maxSize);
+    }
+
+    /**
+     * The language local searches are typed in, like "sv" or "en-US". Queries are folded with the
+     * same rules as documents indexed with that language, which only differ from the default
+     * for a few languages. null, the default, uses the rules shared by every language.
+     */
+    public void setSearchLanguage(String language) {
+        synchronized (searchDatabaseMap) {
+            searchLanguage = language;
+            for (SearchDatabase database: searchDatabaseMap.values()) {
+                database.setSearchLanguage(language);
+            }
+        }
+        // Results and match sets kept so far were found with queries folded the old way
+        searchResultCache.clear();
+        searchRefinements.clear();
+    }
+
+    /**
+     * Analyzes documents in language, and searches when it is the search language, with analyzer.
+     * Only the terms it leaves are indexed, so stopwords are not and plurals find their singular.
+     * Built in analyzers are available from SearchAnalyzer.newEnglishAnalyzer, newSpanishAnalyzer
+     * and newFrenchAnalyzer. null stops analyzing the language.
+     *
+     * Snippets come from the indexed text, so they show the terms rather than the original text.
+     * Documents already indexed in the language keep their old terms until they are indexed again.
+     */
+    public void setSearchAnalyzer(String language, SearchAnalyzer analyzer) {
+        SearchAnalyzer.setAnalyzerForLanguage(language, analyzer);
+        searchResultCache.clear();
+        searchRefinements.clear();
+    }
+
+    /**
+     * How long a search database has to go unused before it is closed to release its file
+     * descriptors and page cache. It is reopened the next time it is searched or indexed. A
+     * negative delay keeps every database open.
+     */
+    public void setDatabaseIdleCloseDelay(long delayMillis) {
+        synchronized (searchDatabaseMap) {
+            databaseIdleCloseDelayMillis = delayMillis;
+            for (SearchDatabase database: searchDatabaseMap.values()) {
+                database.setIdleCloseDelayMillis(delayMillis);
+            }
+        }
+    }
     //endregion
 
     //region Getters
+    /**
+     * The executor local searches run on, exposed for its queue depth, rejection and timing metrics.
+     */
+    public SearchExecutor getSearchExecutor() {
+        return searchExecutor;
+    }
+
+    /**
+     * The cache of local search results, exposed for its hit, miss and eviction counts.
+     */
+    public SearchResultCache getSearchResultCache() {
+        return searchResultCache;
+    }
+
     public SearchDatabase searchDatabaseForName(String name) {
         return searchDatabaseMap.get(name);
     }
@@ -157,6 +330,10 @@ public class SearchManager extends Manager
     public void initialize(Context context) {
         this.context = context;
         setupFileDirectories(context);
+        // Keep the journal from the first initialize, it owns the open active segment
+        if (indexJournal == null) {
+            indexJournal = new IndexJournal(new File(context.getFilesDir(), SEARCH_INDEX_INFO_DIRECTORY_NAME));
+        }
     }
     //endregion
 
@@ -172,8 +349,18 @@ public class SearchManager extends Manager
         if (searchDatabaseForName(name) != null) {
             return;
         }
-        SearchDatabase database = new SearchDatabase(context, name);
-        searchDatabaseMap.put(name, database);
+        synchronized (searchDatabaseMap) {
+            // Another thread may have set it up while we waited, each name gets exactly one database
+            if (searchDatabaseForName(name) != null) {
+                return;
+            }
+            SearchDatabase database = new SearchDatabase(context, name);
+            database.setIdleCloseDelayMillis(databaseIdleCloseDelayMillis);
+            database.setSearchLanguage(searchLanguage);
+            database.setMaintenanceThresholds(segmentsBeforeMerge, documentsBeforeOptimize);
+            database.setInMemorySearchEnabled(isInMemorySearchEnabled);
+            searchDatabaseMap.put(name, database);
+        }
     }
 
     void setupFileDirectories(Context context) {
@@ -194,6 +381,10 @@ public class SearchManager extends Manager
         if (internalWorkItem.getTaskType().equals(TASK_TYPE)) {
             SearchTaskWorker searchWorker = new SearchTaskWorker();
             searchWorker.delegate = searchWorkerDelegate;
+            searchWorker.indexBatchSize = indexBatchSize;
+            searchWorker.indexPipelineThreadCount = indexPipelineThreadCount;
+            searchWorker.indexMaintenanceDelegate = indexMaintenanceDelegate;
+            searchWorker.isIndexMaintenanceEnabled = isIndexMaintenanceEnabled;
             worker = searchWorker;
         } else {
             Log.e("SearchManager", "Error in taskWorkerForWorkItem unrecognized task type " + internalWorkItem.getTaskType());
@@ -209,16 +400,7 @@ public class SearchManager extends Manager
     //region Queue Search Tasks
     @Nullable
     public static String saveIndexFileInfoToFile(String moduleId, String fileId, String language, double boost, Map<String, String> searchableStrings, Map<String, String> fileMetadata) throws InvalidParameterException {
-        boolean hasSearchableText = false;
-        for (String key: searchableStrings.keySet()) {
-            if (searchableStrings.get(key).length() > 0) {
-                hasSearchableText = true;
-                break;
-            }
-        }
-        if (moduleId == null || moduleId.length() < 1 || fileId == null || fileId.length() < 1 || language == null || language.length() < 1 || !hasSearchableText) {
-            throw new InvalidParameterException("Missing required fields");
-        }
+        validateIndexFileInfo(moduleId, fileId, language, searchableStrings);
 
         JSONObject jsonObject = new JSONObject();
         try {
@@ -252,6 +434,49 @@ public class SearchManager extends Manager
         return null;
     }
 
+    /**
+     * Appends the documents to the index journal with a single fsync and returns a journal
+     * reference for each one, in order. The references can be queued with queueIndexFileCollection
+     * in place of file URLs.
+     */
+    @Nullable
+    public List<String> saveIndexFileInfoToJournal(List<IndexDocument> documents) throws InvalidParameterException {
+        for (IndexDocument document: documents) {
+            validateIndexFileInfo(document.moduleId, document.fileId, document.language, document.searchableStrings);
+        }
+        IndexJournal journal = indexJournal;
+        if (journal == null) {
+            Log.e("SearchManager", "Cannot save to the index journal because the SearchManager has not been initialized");
+            return null;
+        }
+
+        List<IndexJournal.Reference> references = journal.append(documents);
+        if (references == null) {
+            return null;
+        }
+        List<String> urls = new ArrayList<>(references.size());
+        for (IndexJournal.Reference reference: references) {
+            urls.add(reference.toString());
+        }
+        return urls;
+    }
+
+    private static void validateIndexFileInfo(String moduleId, String fileId, String language, Map<String, String> searchableStrings) throws InvalidParameterException {
+        boolean hasSearchableText = false;
+        if (searchableStrings != null) {
+            for (String key: searchableStrings.keySet()) {
+                String text = searchableStrings.get(key);
+                if (text != null && text.length() > 0) {
+                    hasSearchableText = true;
+                    break;
+                }
+            }
+        }
+        if (moduleId == null || moduleId.length() < 1 || fileId == null || fileId.length() < 1 || language == null || language.length() < 1 || !hasSearchableText) {
+            throw new InvalidParameterException("Missing required fields");
+        }
+    }
+
     public boolean queueIndexFileCollection(List<String> urlArray, String databaseName) {
         if (urlArray == null || urlArray.size() < 1) {
             Log.e("SearchManager", "Error in queueIndexFileCollection. URL array contained no URLs");
@@ -283,16 +508,26 @@ public class SearchManager extends Manager
     }
 
     public boolean queueIndexFile(String moduleId, String fileId, String language, double boost, Map<String, String> searchableStrings, Map<String, String> fileMetadata, String searchDatabaseName) {
-        String fileLocation;
+        List<IndexDocument> documents = new ArrayList<>(1);
+        documents.add(IndexDocument.newIndexDocument(moduleId, fileId, language, boost, searchableStrings, fileMetadata));
+        return queueIndexFiles(documents, searchDatabaseName);
+    }
+
+    /**
+     * Writes the documents to the index journal in one append and queues a single task to index them.
+     */
+    public boolean queueIndexFiles(List<IndexDocument> documents, String searchDatabaseName) {
+        List<String> urlArray;
         try {
-            fileLocation = saveIndexFileInfoToFile(moduleId, fileId, language, boost, searchableStrings, fileMetadata);
+            urlArray = saveIndexFileInfoToJournal(documents);
         } catch (InvalidParameterException exception) {
-            Log.e("SearchManager", "Error in queueIndexFile error saving search info to file " + exception);
+            Log.e("SearchManager", "Error in queueIndexFiles error saving search info to the journal " + exception);
+            return false;
+        }
+        if (urlArray == null) {
+            Log.e("SearchManager", "Error in queueIndexFiles could not write to the index journal");
             return false;
         }
-
-        List<String> urlArray = new ArrayList<>(1);
-        urlArray.add(fileLocation);
         return queueIndexFileCollection(urlArray, searchDatabaseName);
     }
 
@@ -320,48 +555,310 @@ public class SearchManager extends Manager
 
         return getTaskManager(context).queueTask(task);
     }
+
+    /**
+     * Queues a single task that removes every file in the module from the database, in one
+     * transaction, instead of a task per file.
+     */
+    public boolean queueRemoveModule(String moduleId, String searchDatabaseName) {
+        if (moduleId == null || moduleId.length() < 1 || searchDatabaseName == null || searchDatabaseName.length() < 1) {
+            Log.e("SearchManager", "Error in queueRemoveModule - one or more paramter is missing. Cannot queue");
+            return false;
+        }
+
+        JSONObject jsonData = new JSONObject();
+        try {
+            jsonData.put(SearchTaskWorker.MODULE_ID_KEY, moduleId);
+            jsonData.put(SearchTaskWorker.ACTION_TYPE_KEY, ActionType.REMOVE_MODULE_FROM_INDEX.getValue());
+            jsonData.put(SearchTaskWorker.DATABASE_NAME_KEY, searchDatabaseName);
+        } catch (JSONException exception) {
+            Log.e("SearchManager", "Could not parse input into json for Task in queueRemoveModule " + exception);
+            return false;
+        }
+        Task task = new Task(TASK_TYPE, jsonData);
+        task.setMajorPriority(MAJOR_PRIORITY);
+        task.setMinorPriority(MINOR_PRIORITY_REMOVE);
+        task.setRequiresInternet(false);
+        task.setShouldHoldAfterMaxRetries(true);
+
+        return getTaskManager(context).queueTask(task);
+    }
+
+    /**
+     * Queues a low priority task that merges the database's index segments once nothing is
+     * searching it. Does nothing if maintenance is already queued for the database.
+     */
+    public boolean queueIndexMaintenance(String searchDatabaseName) {
+        SearchDatabase searchDatabase = searchDatabaseForName(searchDatabaseName);
+        if (searchDatabase == null) {
+            Log.e("SearchManager", "Error in queueIndexMaintenance - database " + searchDatabaseName + " has not been setup. Cannot queue");
+            return false;
+        }
+        if (!searchDatabase.markMaintenanceQueued()) {
+            return true;
+        }
+
+        JSONObject jsonData = new JSONObject();
+        try {
+            jsonData.put(SearchTaskWorker.ACTION_TYPE_KEY, ActionType.MAINTAIN_INDEX.getValue());
+            jsonData.put(SearchTaskWorker.DATABASE_NAME_KEY, searchDatabaseName);
+        } catch (JSONException exception) {
+            Log.e("SearchManager", "Could not parse input into json for Task in queueIndexMaintenance " + exception);
+            searchDatabase.clearMaintenanceQueued();
+            return false;
+        }
+        Task task = new Task(TASK_TYPE, jsonData);
+        task.setMajorPriority(MAJOR_PRIORITY);
+        task.setMinorPriority(MINOR_PRIORITY_MAINTENANCE);
+        task.setRequiresInternet(false);
+        // The next index task queues it again if it is still needed
+        task.setShouldHoldAfterMaxRetries(false);
+
+        boolean success = getTaskManager(context).queueTask(task);
+        if (!success) {
+            searchDatabase.clearMaintenanceQueued();
+        }
+        return success;
+    }
     //endregion
 
     //region Search
     public boolean localSearch(final String searchText, final int limit, final int offset, final String searchDatabaseName, final SearchCallback searchCallback) {
-        boolean success = true;
         if (limit < 1) {
-            return success;
+            return true;
+        }
+        return localSearch(searchText, limit, offset, searchDatabaseName, 0, 0, searchCallback) != null;
+    }
+
+    /**
+     * Type-ahead version of localSearch. Any earlier search for the same callback that has not
+     * delivered its results yet is cancelled, and its query interrupted if it is running.
+     *
+     * The search waits debounceMillis before it starts, so a newer keystroke can replace it before
+     * it touches the database. coalescingMillis, if greater than 0, caps how long a burst of
+     * keystrokes can keep postponing the search. Pass 0 for both to search immediately.
+     *
+     * Returns a handle that can cancel the search, or null if it could not be queued.
+     */
+    public SearchHandle localSearch(final String searchText, final int limit, final int offset, final String searchDatabaseName, long debounceMillis, long coalescingMillis, final SearchCallback searchCallback) {
+        return localSearch(searchText, limit, offset, searchDatabaseName, null, debounceMillis, coalescingMillis, searchCallback);
+    }
+
+    /**
+     * Type-ahead localSearch that only finds documents from the modules in moduleIds. The modules
+     * are filtered while the matches are ranked, so limit and offset count only their documents.
+     * A null or empty moduleIds searches every module.
+     *
+     * Returns a handle that can cancel the search, or null if it could not be queued.
+     */
+    public SearchHandle localSearch(final String searchText, final int limit, final int offset, final String searchDatabaseName, List<String> moduleIds, long debounceMillis, long coalescingMillis, final SearchCallback searchCallback) {
+        return localSearch(searchText, limit, offset, searchDatabaseName, moduleIds, null, debounceMillis, coalescingMillis, searchCallback);
+    }
+
+    /**
+     * Type-ahead localSearch that ranks its matches with profile, for instance a title only
+     * profile for a quick search screen. A null profile ranks with RankingProfile.DEFAULT. Results
+     * are cached apart for every profile, so reuse one instance per screen.
+     *
+     * Returns a handle that can cancel the search, or null if it could not be queued.
+     */
+    public SearchHandle localSearch(final String searchText, final int limit, final int offset, final String searchDatabaseName, List<String> moduleIds, RankingProfile profile, long debounceMillis, long coalescingMillis, final SearchCallback searchCallback) {
+        if (limit < 1) {
+            Log.e("SearchManager", "Cannot perform search in localSearch because limit is less than 1.");
+            return null;
         }
         if (searchCallback == null) {
             Log.e("SearchManager", "Cannot perform search in localSearch because no callback was specified.");
-            return false;
+            return null;
+        }
+        final SearchDatabase searchDatabase = searchDatabaseForName(searchDatabaseName);
+        if (searchDatabase == null) {
+            Log.e("SearchManager", "Cannot perform search in localSearch because database " + searchDatabaseName + " has not been setup.");
+            return null;
         }
 
-        backgroundExecutor.execute(new Runnable() {
+        final List<String> moduleIdFilter = new ArrayList<>();
+        StringBuilder cacheName = new StringBuilder();
+        if (moduleIds != null) {
+            for (String moduleId: moduleIds) {
+                if (moduleId != null) {
+                    moduleIdFilter.add(moduleId);
+                    cacheName.append('\0').append(moduleId);
+                }
+            }
+        }
+
+        final RankingProfile rankingProfile = (profile == null) ? RankingProfile.DEFAULT : profile;
+        if (rankingProfile != RankingProfile.DEFAULT) {
+            cacheName.append('\0').append(rankingProfile.key);
+        }
+
+        // Filtered searches are cached apart from the unfiltered ones for the same database
+        final String searchCacheName = (cacheName.length() == 0) ? searchDatabaseName : searchDatabaseName + cacheName;
+        final SearchHandle handle = new SearchHandle();
+        final SearchRefinement refinement = refinementForCallback(searchCallback);
+        Future<?> future = searchExecutor.execute(searchCallback, new Runnable() {
             @Override
             public void run() {
-                List<SearchResult> results;
+                SearchResultCache.Key cacheKey = SearchResultCache.Key.newKey(searchCacheName, searchText, limit, offset, true);
+                long indexGeneration = searchDatabase.getIndexGeneration();
+                SearchDatabase.SearchReturn cachedSearchReturn = searchResultCache.get(cacheKey, indexGeneration);
+                if (cachedSearchReturn == null) {
+                    cachedSearchReturn = searchDatabase.search(searchText, limit, offset, true, handle, refinement, moduleIdFilter, rankingProfile);
+                    if (!handle.isCancelled()) {
+                        searchResultCache.put(cacheKey, indexGeneration, cachedSearchReturn);
+                    }
+                }
+                deliverLocalSearchReturn(cachedSearchReturn, searchText, limit, offset, handle, searchCallback);
+            }
+        }, handle, debounceMillis, coalescingMillis);
+        if (future == null) {
+            Log.e("SearchManager", "Cannot perform search in localSearch because too many searches are queued.");
+            handle.cancelQuery();
+            return null;
+        }
+        handle.setFuture(future);
+        return handle;
+    }
 
-                SearchDatabase searchDatabase = searchDatabaseForName(searchDatabaseName);
-                final SearchDatabase.SearchReturn searchReturn = searchDatabase.search(searchText, limit, offset, true);
-                results = searchReturn.getResults();
+    /**
+     * Searches several databases as if they were one, for content split into a database per
+     * module. Each database is searched in parallel, the results merged by score, and limit and
+     * offset applied to the merged results. Databases that have not been set up are skipped.
+     *
+     * Supersession and debouncing work like the single database localSearch, but searches across
+     * databases are not refined from their previous match set.
+     *
+     * Returns a handle that can cancel the search, or null if it could not be queued.
+     */
+    public SearchHandle localSearch(final String searchText, final int limit, final int offset, List<String> searchDatabaseNames, long debounceMillis, long coalescingMillis, final SearchCallback searchCallback) {
+        return localSearch(searchText, limit, offset, searchDatabaseNames, null, debounceMillis, coalescingMillis, searchCallback);
+    }
 
-                if (results.size() > 0) {
-                    for (SearchResult result : results) {
-                        result.isSearchResultFavoritedDelegate = SearchManager.this.favoritedDelegate;
-                    }
-                } else {
-                    if (backupSearchDelegate != null) {
-                        results = backupSearchDelegate.backupSearch(searchText, limit, offset);
+    /**
+     * localSearch across several databases that ranks their matches with profile. A null profile
+     * ranks with RankingProfile.DEFAULT.
+     *
+     * Returns a handle that can cancel the search, or null if it could not be queued.
+     */
+    public SearchHandle localSearch(final String searchText, final int limit, final int offset, List<String> searchDatabaseNames, RankingProfile profile, long debounceMillis, long coalescingMillis, final SearchCallback searchCallback) {
+        if (limit < 1) {
+            Log.e("SearchManager", "Cannot perform search in localSearch because limit is less than 1.");
+            return null;
+        }
+        if (searchCallback == null) {
+            Log.e("SearchManager", "Cannot perform search in localSearch because no callback was specified.");
+            return null;
+        }
+        if (searchDatabaseNames == null || searchDatabaseNames.size() < 1) {
+            Log.e("SearchManager", "Cannot perform search in localSearch because no databases were specified.");
+            return null;
+        }
+
+        final List<SearchDatabase> searchDatabases = new ArrayList<>(searchDatabaseNames.size());
+        StringBuilder cacheName = new StringBuilder();
+        for (String name: searchDatabaseNames) {
+            SearchDatabase searchDatabase = searchDatabaseForName(name);
+            if (searchDatabase == null) {
+                Log.e("SearchManager", "Skipping database " + name + " in localSearch because it has not been setup.");
+                continue;
+            }
+            searchDatabases.add(searchDatabase);
+            cacheName.append(name).append('\0');
+        }
+        if (searchDatabases.size() < 1) {
+            Log.e("SearchManager", "Cannot perform search in localSearch because none of the databases have been setup.");
+            return null;
+        }
+
+        final RankingProfile rankingProfile = (profile == null) ? RankingProfile.DEFAULT : profile;
+        if (rankingProfile != RankingProfile.DEFAULT) {
+            cacheName.append(rankingProfile.key).append('\0');
+        }
+        final String searchDatabasesCacheName = cacheName.toString();
+        final SearchHandle handle = new SearchHandle();
+        Future<?> future = searchExecutor.execute(searchCallback, new Runnable() {
+            @Override
+            public void run() {
+                SearchResultCache.Key cacheKey = SearchResultCache.Key.newKey(searchDatabasesCacheName, searchText, limit, offset, true);
+                // Generations come from one counter shared by every database, so the newest one
+                // changes whenever any of them does
+                long indexGeneration = 0;
+                for (SearchDatabase searchDatabase: searchDatabases) {
+                    indexGeneration = Math.max(indexGeneration, searchDatabase.getIndexGeneration());
+                }
+                SearchDatabase.SearchReturn cachedSearchReturn = searchResultCache.get(cacheKey, indexGeneration);
+                if (cachedSearchReturn == null) {
+                    cachedSearchReturn = ShardedSearch.search(searchDatabases, searchText, limit, offset, true, rankingProfile, handle, searchExecutor.shardExecutor());
+                    if (!handle.isCancelled()) {
+                        searchResultCache.put(cacheKey, indexGeneration, cachedSearchReturn);
                     }
                 }
+                deliverLocalSearchReturn(cachedSearchReturn, searchText, limit, offset, handle, searchCallback);
+            }
+        }, handle, debounceMillis, coalescingMillis);
+        if (future == null) {
+            Log.e("SearchManager", "Cannot perform search in localSearch because too many searches are queued.");
+            handle.cancelQuery();
+            return null;
+        }
+        handle.setFuture(future);
+        return handle;
+    }
 
-                final List<SearchResult> finalResults = results;
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        searchCallback.searchComplete(finalResults, searchReturn.getSuggestions(), null);
-                    }
-                });
+    /**
+     * Falls back to the backup search when nothing was found locally, then posts the results to
+     * the callback on the main thread unless the search has been cancelled by then.
+     */
+    private void deliverLocalSearchReturn(final SearchDatabase.SearchReturn searchReturn, String searchText, int limit, int offset, final SearchHandle handle, final SearchCallback searchCallback) {
+        List<SearchResult> results = searchReturn.getResults();
+        if (handle.isCancelled()) {
+            // A newer search for the same callback superseded this one
+            return;
+        }
+
+        if (results.size() > 0) {
+            for (SearchResult result : results) {
+                result.isSearchResultFavoritedDelegate = SearchManager.this.favoritedDelegate;
+            }
+        } else {
+            if (backupSearchDelegate != null) {
+                results = backupSearchDelegate.backupSearch(searchText, limit, offset);
+            }
+        }
+        if (handle.isCancelled()) {
+            return;
+        }
+
+        final List<SearchResult> finalResults = results;
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                if (handle.isCancelled()) {
+                    return;
+                }
+                searchCallback.searchComplete(finalResults, searchReturn.getSuggestions(), null);
             }
         });
-        return true;
+    }
+
+    /**
+     * Forgets the match set kept for refining searches made with this callback. Sessions are also
+     * dropped on their own once the callback is no longer referenced.
+     */
+    public void endSearchSession(SearchCallback searchCallback) {
+        searchRefinements.remove(searchCallback);
+    }
+
+    private SearchRefinement refinementForCallback(SearchCallback searchCallback) {
+        synchronized (searchRefinements) {
+            SearchRefinement refinement = searchRefinements.get(searchCallback);
+            if (refinement == null) {
+                refinement = new SearchRefinement();
+                searchRefinements.put(searchCallback, refinement);
+            }
+            return refinement;
+        }
     }
 
     public boolean fullSearch(String searchText, int limit, int offset, String searchDatabaseName, SearchCallback localSearchCallback, SearchCallback remoteSearchCallback) {
@@ -413,6 +910,9 @@ public class SearchManager extends Manager
             }
         }
         setupFileDirectories(context);
+        if (indexJournal != null) {
+            indexJournal.reset();
+        }
     }
     //endregion
 
@@ -0,0 +1,285 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Folds text so that spellings a reader would consider the same word index and search the same.
+ * Accents are stripped, letters outside ASCII are lower cased, full width forms become ASCII,
+ * typographic quotes and dashes become their ASCII versions, other punctuation outside ASCII
+ * becomes a space, and runs of whitespace collapse to one space with none at the ends.
+ *
+ * ASCII letters keep their case. The FTS tokenizer already folds them, and leaving them alone
+ * keeps snippets, which come from the indexed text, readable.
+ *
+ * Every character below TABLE_SIZE is folded with a single lookup, and text that is already plain
+ * ASCII is returned as is without being copied. Anything else is folded into a buffer kept per
+ * thread, so normalizing allocates nothing but the result.
+ */
+final class SearchNormalizer
+{
+    //region Constants
+    private static final int TABLE_SIZE = 0x2070;
+    private static final char DROP = '\uFFFF';
+    private static final char EXPAND = '\uFFFE';
+    // The most characters a single character expands to
+    private static final int MAX_EXPANSION = 3;
+    // Larger buffers are only used once rather than kept around for the thread
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Languages where a ring, umlaut or slash makes a letter of its own rather than an accented
+     * one. Searching Swedish for a plain a should not find an a with a ring any more than a b.
+     */
+    private static final String[] NORDIC_LANGUAGES = {"da", "et", "fi", "is", "nb", "nn", "no", "sv"};
+    private static final String NORDIC_LETTERS = "\u00E5\u00E4\u00F6\u00E6\u00F8\u00C5\u00C4\u00D6\u00C6\u00D8";
+    //endregion
+
+    //region Properties
+    private static final SearchNormalizer defaultNormalizer = new SearchNormalizer(defaultTable());
+    private static final Map<String, SearchNormalizer> normalizersByLanguage = new ConcurrentHashMap<>();
+    private static final ThreadLocal<char[]> buffers = new ThreadLocal<>();
+
+    private final char[] table;
+    //endregion
+
+    //region Initialize
+    private SearchNormalizer(char[] table) {
+        this.table = table;
+    }
+
+    /**
+     * The normalizer for documents in language, which may be a bare code like "sv" or carry a
+     * region like "sv-SE". Languages without rules of their own, and null, get the default one.
+     */
+    static SearchNormalizer forLanguage(String language) {
+        String code = languageCode(language);
+        if (code == null) {
+            return defaultNormalizer;
+        }
+        SearchNormalizer normalizer = normalizersByLanguage.get(code);
+        if (normalizer == null) {
+            normalizer = newNormalizerForLanguageCode(code);
+            normalizersByLanguage.put(code, normalizer);
+        }
+        return normalizer;
+    }
+
+    private static SearchNormalizer newNormalizerForLanguageCode(String code) {
+        for (String nordicLanguage: NORDIC_LANGUAGES) {
+            if (nordicLanguage.equals(code)) {
+                char[] table = defaultNormalizer.table.clone();
+                for (int i=0; i<NORDIC_LETTERS.length(); i++) {
+                    char letter = NORDIC_LETTERS.charAt(i);
+                    table[letter] = Character.toLowerCase(letter);
+                }
+                return new SearchNormalizer(table);
+            }
+        }
+        return defaultNormalizer;
+    }
+    //endregion
+
+    //region Normalize
+    String normalize(String text) {
+        if (text == null || text.length() < 1) {
+            return text;
+        }
+        int length = text.length();
+
+        // Plain ASCII with single spaces between words needs nothing done
+        int position = 0;
+        boolean isPreviousSpace = true;
+        for (; position<length; position++) {
+            char character = text.charAt(position);
+            if (character >= 0x7F) {
+                break;
+            }
+            boolean isSpace = character <= ' ';
+            if (isSpace && (character != ' ' || isPreviousSpace)) {
+                break;
+            }
+            isPreviousSpace = isSpace;
+        }
+        if (position == length && !isPreviousSpace) {
+            return text;
+        }
+
+        char[] buffer = buffer(length * MAX_EXPANSION);
+        text.getChars(0, position, buffer, 0);
+        int count = position;
+        boolean isSpacePending = false;
+        if (count > 0 && buffer[count - 1] == ' ') {
+            count--;
+            isSpacePending = true;
+        }
+
+        for (; position<length; position++) {
+            char character = text.charAt(position);
+            char folded = (character < TABLE_SIZE) ? table[character] : foldCharacter(character);
+            if (folded == DROP) {
+                continue;
+            }
+            if (folded == ' ') {
+                isSpacePending = count > 0;
+                continue;
+            }
+            if (isSpacePending) {
+                buffer[count++] = ' ';
+                isSpacePending = false;
+            }
+            if (folded == EXPAND) {
+                String expansion = expansion(character);
+                expansion.getChars(0, expansion.length(), buffer, count);
+                count += expansion.length();
+            } else {
+                buffer[count++] = folded;
+            }
+        }
+        return new String(buffer, 0, count);
+    }
+    //endregion
+
+    //region Folding
+    private static char[] defaultTable() {
+        char[] table = new char[TABLE_SIZE];
+        for (int i=0; i<TABLE_SIZE; i++) {
+            char character = (char) i;
+            if (character < 0x80) {
+                table[i] = character <= ' ' || character == 0x7F ? ' ' : character;
+            } else {
+                table[i] = foldCharacter(character);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Folds a single character outside ASCII. Called for every character while building the table,
+     * and afterwards only for the characters the table does not cover.
+     */
+    private static char foldCharacter(char character) {
+        if (expansion(character) != null) {
+            return EXPAND;
+        }
+        if (character >= 0xFF01 && character <= 0xFF5E) {
+            // Full width forms of ASCII
+            return (char) (character - 0xFEE0);
+        }
+        switch (character) {
+            case '\u0131': return 'i';
+            case '\u00F8': return 'o';
+            case '\u00D8': return 'O';
+            case '\u0111': return 'd';
+            case '\u0110': return 'D';
+            case '\u0127': return 'h';
+            case '\u0126': return 'H';
+            case '\u0142': return 'l';
+            case '\u0141': return 'L';
+            case '\u0167': return 't';
+            case '\u0166': return 'T';
+            case '\u03C2': return '\u03C3';
+            case '\u00AD':
+            case '\u200B':
+            case '\u200C':
+            case '\u200D':
+            case '\u2060':
+            case '\uFEFF':
+                // Soft hyphens and zero width characters only ever split a word by accident
+                return DROP;
+        }
+
+        int type = Character.getType(character);
+        if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK) {
+            return DROP;
+        }
+        if (Character.isWhitespace(character) || Character.isSpaceChar(character) || type == Character.CONTROL) {
+            return ' ';
+        }
+        if (type == Character.DASH_PUNCTUATION) {
+            return '-';
+        }
+        if (type == Character.INITIAL_QUOTE_PUNCTUATION || type == Character.FINAL_QUOTE_PUNCTUATION) {
+            return isSingleQuote(character) ? '\'' : '"';
+        }
+        if (type == Character.CONNECTOR_PUNCTUATION || type == Character.START_PUNCTUATION || type == Character.END_PUNCTUATION || type == Character.OTHER_PUNCTUATION) {
+            return ' ';
+        }
+        if (Character.isLetter(character)) {
+            if (hasStrippableAccents(character)) {
+                char base = Normalizer.normalize(String.valueOf(character), Normalizer.Form.NFD).charAt(0);
+                if (Character.isLetter(base)) {
+                    character = base;
+                }
+            }
+            return character < 0x80 ? character : Character.toLowerCase(character);
+        }
+        return character;
+    }
+
+    /**
+     * Latin and Greek letters are stripped down to their base letter. Decomposing other scripts
+     * would change which letter it is, like turning the Cyrillic short i into a plain i.
+     */
+    private static boolean hasStrippableAccents(char character) {
+        return (character >= 0xC0 && character <= 0x24F) || (character >= 0x370 && character <= 0x3FF) || (character >= 0x1E00 && character <= 0x1FFF);
+    }
+
+    private static boolean isSingleQuote(char character) {
+        return character == '\u2018' || character == '\u2019' || character == '\u201A' || character == '\u201B' || character == '\u2039' || character == '\u203A';
+    }
+
+    private static String expansion(char character) {
+        switch (character) {
+            case '\u00DF': return "ss";
+            case '\u1E9E': return "SS";
+            case '\u00E6': return "ae";
+            case '\u00C6': return "AE";
+            case '\u0153': return "oe";
+            case '\u0152': return "OE";
+            case '\u00FE': return "th";
+            case '\u00DE': return "TH";
+            case '\u0133': return "ij";
+            case '\u0132': return "IJ";
+            case '\uFB00': return "ff";
+            case '\uFB01': return "fi";
+            case '\uFB02': return "fl";
+            case '\uFB03': return "ffi";
+            case '\uFB04': return "ffl";
+            case '\uFB05':
+            case '\uFB06': return "st";
+        }
+        return null;
+    }
+    //endregion
+
+    //region Helpers
+    static String languageCode(String language) {
+        if (language == null) {
+            return null;
+        }
+        int end = 0;
+        while (end < language.length() && language.charAt(end) != '-' && language.charAt(end) != '_') {
+            end++;
+        }
+        if (end < 1) {
+            return null;
+        }
+        return language.substring(0, end).toLowerCase(Locale.US);
+    }
+
+    private static char[] buffer(int capacity) {
+        if (capacity > MAX_RETAINED_BUFFER_SIZE) {
+            return new char[capacity];
+        }
+        char[] buffer = buffers.get();
+        if (buffer == null || buffer.length < capacity) {
+            buffer = new char[Math.max(capacity, 256)];
+            buffers.set(buffer);
+        }
+        return buffer;
+    }
+    //endregion
+}
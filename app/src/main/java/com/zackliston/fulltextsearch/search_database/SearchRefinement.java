@@ -0,0 +1,580 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Remembers the complete match set of the last phrase search made in one type-ahead session, so
+ * that a query which only grows ("car", "card", "cardi") can be answered from those candidates
+ * instead of going back to the FTS index.
+ *
+ * Growing a phrase query can only narrow its matches: every earlier token stays the same and the
+ * last one gets longer or is followed by new ones. So when the previous match set was small
+ * enough to keep in full, the new matches are exactly the candidates that still contain the
+ * phrase. The candidates keep the text of every indexed column, which is enough to rebuild the
+ * matchinfo and norms FTS would have returned and rank them with the same Rank.rank.
+ *
+ * Snippets for refined results are built here the same way FTS's snippet() picks and shifts its
+ * fragment, so results do not change from one keystroke to the next depending on where they came
+ * from.
+ */
+class SearchRefinement
+{
+    //region Constants
+    /** Match sets larger than this are not kept. */
+    static final int MAX_CANDIDATES = 128;
+    /** Nor are match sets whose indexed text adds up to more characters than this. */
+    static final int MAX_CANDIDATE_CHARACTERS = 512 * 1024;
+
+    /** moduleid through weight4. The PRIMARY column FTS adds after them is always null. */
+    static final int NUMBER_OF_INDEXED_COLUMNS = 9;
+    static final int NUMBER_OF_MATCHINFO_COLUMNS = 10;
+
+    /** FTS never splits a snippet into more fragments than this. */
+    private static final int MAX_SNIPPET_FRAGMENTS = 4;
+    //endregion
+
+    //region Candidate
+    static class Candidate {
+        final long docId;
+        final double boost;
+        final String[] columns;
+
+        final String moduleId;
+        final String fileId;
+        final String title;
+        final String subtitle;
+        final String uri;
+        final String type;
+        final String imageUri;
+
+        Candidate(long docId, double boost, String[] columns, String moduleId, String fileId, String title, String subtitle, String uri, String type, String imageUri) {
+            this.docId = docId;
+            this.boost = boost;
+            this.columns = columns;
+            this.moduleId = moduleId;
+            this.fileId = fileId;
+            this.title = title;
+            this.subtitle = subtitle;
+            this.uri = uri;
+            this.type = type;
+            this.imageUri = imageUri;
+        }
+
+        int numberOfCharacters() {
+            int count = 0;
+            for (String column: columns) {
+                if (column != null) {
+                    count += column.length();
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Collects the docid and boost of every row the rank pass sees, until there are too many of them
+     * to keep.
+     */
+    static class Collector {
+        private final long[] docIds = new long[MAX_CANDIDATES];
+        private final double[] boosts = new double[MAX_CANDIDATES];
+        private int count = 0;
+        private boolean overflowed = false;
+
+        void add(long docId, double boost) {
+            if (overflowed) {
+                return;
+            }
+            if (count == MAX_CANDIDATES) {
+                overflowed = true;
+                return;
+            }
+            docIds[count] = docId;
+            boosts[count] = boost;
+            count++;
+        }
+
+        boolean isComplete() {
+            return !overflowed;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        long getDocId(int index) {
+            return docIds[index];
+        }
+
+        double getBoost(int index) {
+            return boosts[index];
+        }
+    }
+    //endregion
+
+    //region State
+    /**
+     * The complete match set of one search, ranked if it came from refining an earlier one.
+     */
+    static class State {
+        final String formattedSearchText;
+        final String searchText;
+        final IndexStatistics statistics;
+        final List<Candidate> candidates;
+        private final List<RankedCandidate> rankedCandidates;
+
+        State(String formattedSearchText, IndexStatistics statistics, List<Candidate> candidates) {
+            this(formattedSearchText, statistics, candidates, null);
+        }
+
+        private State(String formattedSearchText, IndexStatistics statistics, List<Candidate> candidates, List<RankedCandidate> rankedCandidates) {
+            this.formattedSearchText = formattedSearchText;
+            this.searchText = stripPrefixOperator(formattedSearchText);
+            this.statistics = statistics;
+            this.candidates = candidates;
+            this.rankedCandidates = rankedCandidates;
+        }
+
+        static State newState(String formattedSearchText, IndexStatistics statistics, List<Candidate> candidates) {
+            int numberOfCharacters = 0;
+            for (Candidate candidate: candidates) {
+                numberOfCharacters += candidate.numberOfCharacters();
+            }
+            if (numberOfCharacters > MAX_CANDIDATE_CHARACTERS) {
+                return null;
+            }
+            return new State(formattedSearchText, statistics, candidates);
+        }
+
+        /**
+         * True if every match of formattedSearchText is among this state's candidates.
+         */
+        boolean canRefine(String formattedSearchText) {
+            return stripPrefixOperator(formattedSearchText).startsWith(searchText);
+        }
+
+        /**
+         * Filters the candidates down to the ones matching the phrase formattedSearchText and ranks
+         * them with profile.
+         */
+        State refine(String formattedSearchText, RankingProfile profile, SearchHandle handle) {
+            Phrase phrase = Phrase.newPhrase(formattedSearchText);
+            if (phrase == null) {
+                return null;
+            }
+
+            List<Candidate> matches = new ArrayList<>();
+            List<int[]> hitCounts = new ArrayList<>();
+            List<Long> norms = new ArrayList<>();
+            int[] numberOfRowsWithHit = new int[NUMBER_OF_MATCHINFO_COLUMNS];
+
+            for (Candidate candidate: candidates) {
+                if (handle != null && handle.isCancelled()) {
+                    return null;
+                }
+                int[] candidateHits = new int[NUMBER_OF_MATCHINFO_COLUMNS];
+                int[] candidateLengths = new int[IndexStatistics.NUMBER_OF_FIELDS];
+                boolean isMatch = false;
+                for (int column=0; column<NUMBER_OF_INDEXED_COLUMNS; column++) {
+                    String text = candidate.columns[column];
+                    SimpleTokenizer.Tokens tokens = SimpleTokenizer.tokenize(text);
+                    if (column >= Rank.WEIGHT_0_COLUMN_NUMBER) {
+                        candidateLengths[column - Rank.WEIGHT_0_COLUMN_NUMBER] = tokens.count;
+                    }
+                    candidateHits[column] = phrase.hitPositions(text, tokens, null);
+                    if (candidateHits[column] > 0) {
+                        isMatch = true;
+                    }
+                }
+                if (isMatch) {
+                    for (int column=0; column<NUMBER_OF_MATCHINFO_COLUMNS; column++) {
+                        if (candidateHits[column] > 0) {
+                            numberOfRowsWithHit[column]++;
+                        }
+                    }
+                    matches.add(candidate);
+                    hitCounts.add(candidateHits);
+                    norms.add(IndexStatistics.packNorms(candidateLengths));
+                }
+            }
+
+            List<RankedCandidate> ranked = new ArrayList<>(matches.size());
+            double[] inverseDocumentFrequencies = null;
+            for (int i=0; i<matches.size(); i++) {
+                int[] matchinfo = matchinfo(hitCounts.get(i), numberOfRowsWithHit);
+                if (inverseDocumentFrequencies == null) {
+                    inverseDocumentFrequencies = Rank.inverseDocumentFrequencies(matchinfo, statistics, profile);
+                }
+                ranked.add(new RankedCandidate(matches.get(i), Rank.rank(matchinfo, norms.get(i), statistics, inverseDocumentFrequencies, matches.get(i).boost, profile)));
+            }
+            Collections.sort(ranked, new Comparator<RankedCandidate>() {
+                @Override
+                public int compare(RankedCandidate lhs, RankedCandidate rhs) {
+                    return Double.compare(rhs.rank, lhs.rank);
+                }
+            });
+
+            List<Candidate> rankedMatches = new ArrayList<>(ranked.size());
+            for (RankedCandidate rankedCandidate: ranked) {
+                rankedMatches.add(rankedCandidate.candidate);
+            }
+            return new State(formattedSearchText, statistics, rankedMatches, ranked);
+        }
+
+        /**
+         * The page of a refined state's results, each with a snippetSize token snippet.
+         */
+        List<SearchResult> searchResults(int limit, int offset, int snippetSize) {
+            List<SearchResult> results = new ArrayList<>();
+            if (rankedCandidates == null) {
+                return results;
+            }
+            Phrase phrase = Phrase.newPhrase(formattedSearchText);
+            for (int i=offset; i<rankedCandidates.size() && i<offset+limit; i++) {
+                Candidate candidate = rankedCandidates.get(i).candidate;
+                SearchResult result = SearchResult.newSearchResult(candidate.title, candidate.subtitle, null, candidate.uri, candidate.type, candidate.imageUri, false, candidate.fileId, candidate.moduleId);
+                result.snippet = snippet(candidate, phrase, snippetSize);
+                results.add(result);
+            }
+            return results;
+        }
+
+        /**
+         * The same layout matchinfo(searchindex, 'pcx') returns for a single phrase.
+         */
+        private static int[] matchinfo(int[] hits, int[] numberOfRowsWithHit) {
+            int columns = NUMBER_OF_MATCHINFO_COLUMNS;
+            int[] matchinfo = new int[2 + columns * 3];
+            matchinfo[0] = 1;
+            matchinfo[1] = columns;
+            int phraseInfoStart = 2;
+            for (int column=0; column<columns; column++) {
+                matchinfo[phraseInfoStart + column * 3] = hits[column];
+                matchinfo[phraseInfoStart + column * 3 + 2] = numberOfRowsWithHit[column];
+            }
+            return matchinfo;
+        }
+    }
+
+    private static class RankedCandidate {
+        final Candidate candidate;
+        final double rank;
+
+        RankedCandidate(Candidate candidate, double rank) {
+            this.candidate = candidate;
+            this.rank = rank;
+        }
+    }
+    //endregion
+
+    //region Properties
+    private SearchDatabase database;
+    private long indexGeneration;
+    private State state;
+    //endregion
+
+    //region Public Methods
+    /**
+     * The state formattedSearchText can be refined from, or null if it has to go to the index.
+     */
+    synchronized State stateForRefinement(SearchDatabase database, long indexGeneration, String formattedSearchText) {
+        if (state == null || this.database != database || this.indexGeneration != indexGeneration || !state.canRefine(formattedSearchText)) {
+            return null;
+        }
+        return state;
+    }
+
+    synchronized void update(SearchDatabase database, long indexGeneration, State state) {
+        this.database = database;
+        this.indexGeneration = indexGeneration;
+        this.state = state;
+    }
+
+    synchronized void clear() {
+        database = null;
+        state = null;
+    }
+    //endregion
+
+    //region Phrase
+    /**
+     * A phrase query parsed the way FTS parses the inside of a quoted string. A token is a prefix
+     * if a '*' follows it directly.
+     */
+    static class Phrase {
+        final String[] terms;
+        final boolean[] isPrefix;
+
+        private Phrase(String[] terms, boolean[] isPrefix) {
+            this.terms = terms;
+            this.isPrefix = isPrefix;
+        }
+
+        static Phrase newPhrase(String formattedSearchText) {
+            SimpleTokenizer.Tokens tokens = SimpleTokenizer.tokenize(formattedSearchText);
+            if (tokens.count == 0) {
+                return null;
+            }
+            String[] terms = new String[tokens.count];
+            boolean[] isPrefix = new boolean[tokens.count];
+            for (int i=0; i<tokens.count; i++) {
+                StringBuilder term = new StringBuilder(tokens.ends[i] - tokens.starts[i]);
+                for (int j=tokens.starts[i]; j<tokens.ends[i]; j++) {
+                    term.append(SimpleTokenizer.toLowerCase(formattedSearchText.charAt(j)));
+                }
+                terms[i] = term.toString();
+                isPrefix[i] = tokens.ends[i] < formattedSearchText.length() && formattedSearchText.charAt(tokens.ends[i]) == '*';
+            }
+            return new Phrase(terms, isPrefix);
+        }
+
+        /**
+         * Counts the places the phrase occurs in text. If positions is not null the token position
+         * of each occurrence's last token is written to it, the way FTS records phrase positions.
+         */
+        int hitPositions(String text, SimpleTokenizer.Tokens tokens, int[] positions) {
+            int hits = 0;
+            for (int start=0; start + terms.length <= tokens.count; start++) {
+                boolean isMatch = true;
+                for (int i=0; i<terms.length && isMatch; i++) {
+                    isMatch = SimpleTokenizer.tokenMatches(text, tokens.starts[start + i], tokens.ends[start + i], terms[i], isPrefix[i]);
+                }
+                if (isMatch) {
+                    if (positions != null) {
+                        positions[hits] = start + terms.length - 1;
+                    }
+                    hits++;
+                }
+            }
+            return hits;
+        }
+    }
+    //endregion
+
+    //region Snippet
+    /**
+     * Mirrors snippet(searchindex, '', '', '', -1, snippetSize) for a single phrase.
+     */
+    static String snippet(Candidate candidate, Phrase phrase, int snippetSize) {
+        if (phrase == null) {
+            return null;
+        }
+        return snippet(candidate, new Phrase[] {phrase}, snippetSize);
+    }
+
+    /**
+     * Mirrors snippet(searchindex, '', '', '', -1, snippetSize). Every column is scored by its best
+     * window of snippetSize tokens, 1000 for the first hit of each phrase in the window and 1 for
+     * each one after it, and the first column with the best score wins. The window is then shifted
+     * right to balance the tokens on either side of its hits.
+     *
+     * When one window does not hold every phrase found in the row, FTS tries again with two
+     * fragments of half the size, then three and four, each scoring the phrases the ones before it
+     * already hold as ordinary hits. The fragments are joined with nothing between them.
+     */
+    static String snippet(Candidate candidate, Phrase[] phrases, int snippetSize) {
+        if (phrases == null || phrases.length < 1 || snippetSize < 1) {
+            return null;
+        }
+        ColumnHits[] columnHits = new ColumnHits[NUMBER_OF_INDEXED_COLUMNS];
+        long seenPhrases = 0;
+        for (int column=0; column<NUMBER_OF_INDEXED_COLUMNS; column++) {
+            columnHits[column] = new ColumnHits(candidate.columns[column], phrases);
+            seenPhrases |= columnHits[column].phrases;
+        }
+
+        Fragment[] fragments;
+        int fragmentSize;
+        for (int numberOfFragments=1; ; numberOfFragments++) {
+            fragmentSize = (snippetSize + numberOfFragments - 1) / numberOfFragments;
+            fragments = new Fragment[numberOfFragments];
+            long coveredPhrases = 0;
+            for (int i=0; i<numberOfFragments; i++) {
+                for (int column=0; column<NUMBER_OF_INDEXED_COLUMNS; column++) {
+                    Fragment fragment = columnHits[column].bestFragment(column, phrases, fragmentSize, coveredPhrases);
+                    if (fragments[i] == null || fragment.score > fragments[i].score) {
+                        fragments[i] = fragment;
+                    }
+                }
+                coveredPhrases |= fragments[i].coveredPhrases;
+            }
+            if (coveredPhrases == seenPhrases || numberOfFragments == MAX_SNIPPET_FRAGMENTS) {
+                break;
+            }
+        }
+
+        StringBuilder snippet = null;
+        for (int i=0; i<fragments.length; i++) {
+            String text = columnHits[fragments[i].column].fragmentText(fragments[i], fragmentSize, i == 0);
+            if (text != null) {
+                snippet = (snippet == null) ? new StringBuilder(text) : snippet.append(text);
+            }
+        }
+        return (snippet == null) ? null : snippet.toString();
+    }
+
+    /**
+     * A window of a column chosen for a snippet.
+     */
+    private static class Fragment {
+        final int column;
+        final int start;
+        final int score;
+        final long highlights;
+        final long coveredPhrases;
+
+        Fragment(int column, int start, int score, long highlights, long coveredPhrases) {
+            this.column = column;
+            this.start = start;
+            this.score = score;
+            this.highlights = highlights;
+            this.coveredPhrases = coveredPhrases;
+        }
+    }
+
+    /**
+     * The hits of every phrase in one column, in position order.
+     */
+    private static class ColumnHits {
+        final String text;
+        final SimpleTokenizer.Tokens tokens;
+        final int[] positions;
+        final int[] phraseIndexes;
+        final int count;
+        // A bit for every phrase with a hit in the column
+        final long phrases;
+
+        ColumnHits(String text, Phrase[] phrases) {
+            this.text = text;
+            tokens = SimpleTokenizer.tokenize(text);
+
+            // Each hit is packed with the index of its phrase so sorting keeps them together
+            int[] phrasePositions = new int[tokens.count];
+            long[] hits = new long[tokens.count * phrases.length];
+            int count = 0;
+            long phrasesWithHits = 0;
+            for (int phraseIndex=0; phraseIndex<phrases.length; phraseIndex++) {
+                int phraseHits = phrases[phraseIndex].hitPositions(text, tokens, phrasePositions);
+                for (int i=0; i<phraseHits; i++) {
+                    hits[count++] = ((long) phrasePositions[i] << 32) | phraseIndex;
+                }
+                if (phraseHits > 0) {
+                    phrasesWithHits |= phraseMask(phraseIndex);
+                }
+            }
+            if (phrases.length > 1) {
+                Arrays.sort(hits, 0, count);
+            }
+            positions = new int[count];
+            phraseIndexes = new int[count];
+            for (int i=0; i<count; i++) {
+                positions[i] = (int) (hits[i] >>> 32);
+                phraseIndexes[i] = (int) hits[i];
+            }
+            this.count = count;
+            this.phrases = phrasesWithHits;
+        }
+
+        Fragment bestFragment(int column, Phrase[] phrases, int fragmentSize, long coveredPhrases) {
+            Fragment best = null;
+
+            // The first window always starts at 0, then one ends on each hit past it
+            int windowStart = 0;
+            int nextHit = 0;
+            while (nextHit < count && positions[nextHit] < fragmentSize) {
+                nextHit++;
+            }
+            while (true) {
+                int score = 0;
+                long windowPhrases = 0;
+                long highlights = 0;
+                for (int i=0; i<count; i++) {
+                    int position = positions[i];
+                    if (position >= windowStart && position < windowStart + fragmentSize) {
+                        long phraseMask = phraseMask(phraseIndexes[i]);
+                        score += ((windowPhrases | coveredPhrases) & phraseMask) == 0 ? 1000 : 1;
+                        windowPhrases |= phraseMask;
+                        for (int j=0; j<phrases[phraseIndexes[i]].terms.length; j++) {
+                            int highlighted = position - windowStart - j;
+                            if (highlighted >= 0) {
+                                highlights |= 1L << highlighted;
+                            }
+                        }
+                    }
+                }
+                if (best == null || score > best.score) {
+                    best = new Fragment(column, windowStart, score, highlights, windowPhrases);
+                }
+                if (nextHit >= count) {
+                    return best;
+                }
+                int windowEnd = positions[nextHit];
+                windowStart = windowEnd - fragmentSize + 1;
+                while (nextHit < count && positions[nextHit] <= windowEnd) {
+                    nextHit++;
+                }
+            }
+        }
+
+        /**
+         * The text of the fragment, with the punctuation before its first token if it is the
+         * first fragment and starts the column, and after its last token if that ends the column.
+         */
+        String fragmentText(Fragment fragment, int fragmentSize, boolean isFirstFragment) {
+            if (text == null) {
+                return null;
+            }
+            int start = fragment.start;
+            if (tokens.count == 0 || start >= tokens.count) {
+                return text;
+            }
+            start += shiftForHighlights(fragment.highlights, fragmentSize, tokens.count - start);
+
+            int end = Math.min(start + fragmentSize, tokens.count) - 1;
+            int textStart = (start == 0 && isFirstFragment) ? 0 : tokens.starts[start];
+            int textEnd = (end == tokens.count - 1) ? text.length() : tokens.ends[end];
+            return text.substring(textStart, textEnd);
+        }
+    }
+
+    private static long phraseMask(int phraseIndex) {
+        return 1L << (phraseIndex % 64);
+    }
+
+    /**
+     * How far FTS moves a fragment right so the tokens before its first hit and after its last one
+     * even out, limited by the number of tokens left in the column.
+     */
+    static int shiftForHighlights(long highlights, int snippetSize, int numberOfTokensFromStart) {
+        if (highlights == 0) {
+            return 0;
+        }
+        int numberOnLeft = 0;
+        while ((highlights & (1L << numberOnLeft)) == 0) {
+            numberOnLeft++;
+        }
+        int numberOnRight = 0;
+        while ((highlights & (1L << (snippetSize - 1 - numberOnRight))) == 0) {
+            numberOnRight++;
+        }
+        int desiredShift = (numberOnLeft - numberOnRight) / 2;
+        if (desiredShift <= 0) {
+            return 0;
+        }
+        return Math.max(Math.min(desiredShift, numberOfTokensFromStart - snippetSize), 0);
+    }
+    //endregion
+
+    //region Helpers
+    private static String stripPrefixOperator(String formattedSearchText) {
+        if (formattedSearchText.endsWith("*")) {
+            return formattedSearchText.substring(0, formattedSearchText.length() - 1);
+        }
+        return formattedSearchText;
+    }
+    //endregion
+}
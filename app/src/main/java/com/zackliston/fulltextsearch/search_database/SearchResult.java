@@ -15,6 +15,7 @@ public class SearchResult
     boolean isFavorited = false;
     String fileId = null;
     String moduleId = null;
+    String snippet = null;
 
     SearchManager.IsSearchResultFavorited isSearchResultFavoritedDelegate;
     //endregion
@@ -72,5 +73,9 @@ public class SearchResult
     public String getModuleId() {
         return moduleId;
     }
+
+    public String getSnippet() {
+        return snippet;
+    }
     //endregion
 }
@@ -0,0 +1,188 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of local search results, keyed by database, normalized query,
+ * limit, offset and whether phrase searching was preferred.
+ *
+ * Every entry remembers the index generation of the database it was read from. Any write to
+ * that database moves it to a new generation, so an entry is only ever returned while the index
+ * still holds exactly what it was computed from.
+ */
+public class SearchResultCache
+{
+    //region Constants
+    public static final int DEFAULT_MAX_SIZE = 64;
+    //endregion
+
+    //region Key
+    static class Key {
+        final String databaseName;
+        final String searchText;
+        final int limit;
+        final int offset;
+        final boolean preferPhraseSearching;
+
+        private Key(String databaseName, String searchText, int limit, int offset, boolean preferPhraseSearching) {
+            this.databaseName = databaseName;
+            this.searchText = searchText;
+            this.limit = limit;
+            this.offset = offset;
+            this.preferPhraseSearching = preferPhraseSearching;
+        }
+
+        /**
+         * Returns null if there is nothing to search for, those searches are not worth caching.
+         */
+        static Key newKey(String databaseName, String searchText, int limit, int offset, boolean preferPhraseSearching) {
+            String normalizedSearchText = normalizedSearchText(searchText);
+            if (databaseName == null || normalizedSearchText == null) {
+                return null;
+            }
+            return new Key(databaseName, normalizedSearchText, limit, offset, preferPhraseSearching);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) object;
+            return limit == key.limit && offset == key.offset && preferPhraseSearching == key.preferPhraseSearching &&
+                    databaseName.equals(key.databaseName) && searchText.equals(key.searchText);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = databaseName.hashCode();
+            result = 31 * result + searchText.hashCode();
+            result = 31 * result + limit;
+            result = 31 * result + offset;
+            result = 31 * result + (preferPhraseSearching ? 1 : 0);
+            return result;
+        }
+    }
+
+    private static class Entry {
+        final long indexGeneration;
+        final SearchDatabase.SearchReturn searchReturn;
+
+        Entry(long indexGeneration, SearchDatabase.SearchReturn searchReturn) {
+            this.indexGeneration = indexGeneration;
+            this.searchReturn = searchReturn;
+        }
+    }
+    //endregion
+
+    //region Properties
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxSize;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    //endregion
+
+    //region Initialize
+    SearchResultCache(int maxSize) {
+        this.maxSize = Math.max(maxSize, 0);
+    }
+    //endregion
+
+    //region Cache
+    /**
+     * The cached results for key, or null if there are none from indexGeneration.
+     */
+    synchronized SearchDatabase.SearchReturn get(Key key, long indexGeneration) {
+        if (key == null) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null || entry.indexGeneration != indexGeneration) {
+            if (entry != null) {
+                entries.remove(key);
+            }
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.searchReturn.snapshot();
+    }
+
+    synchronized void put(Key key, long indexGeneration, SearchDatabase.SearchReturn searchReturn) {
+        if (key == null || searchReturn == null || maxSize < 1) {
+            return;
+        }
+        entries.put(key, new Entry(indexGeneration, searchReturn.snapshot()));
+        trimToSize(maxSize);
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(maxSize, 0);
+        trimToSize(this.maxSize);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private void trimToSize(int size) {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > size && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+    //endregion
+
+    //region Metrics
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * The number of entries dropped to stay within the max size. Entries dropped because the index
+     * changed are counted as misses instead.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+    //endregion
+
+    //region Helpers
+    /**
+     * FTS folds ASCII letters to lower case, so queries that only differ in ASCII case or spacing
+     * return the same results.
+     */
+    static String normalizedSearchText(String searchText) {
+        String formattedSearchText = SearchDatabase.formatSearchText(searchText);
+        if (formattedSearchText == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder(formattedSearchText.length());
+        for (int i=0; i<formattedSearchText.length(); i++) {
+            builder.append(SimpleTokenizer.toLowerCase(formattedSearchText.charAt(i)));
+        }
+        return builder.toString();
+    }
+    //endregion
+}
@@ -0,0 +1,226 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The tables of a search database and the SQL that SearchDatabase and SearchStatementCache run
+ * against them. Nothing here touches Android, so the benchmark module compiles this class as it is
+ * and measures the same statements on sqlite-jdbc.
+ */
+final class SearchSchema
+{
+    //region Table Names
+    static final String INDEX_TABLE_NAME        = "searchindex";
+    static final String CONTENT_TABLE_NAME      = "searchdocuments";
+    static final String LEGACY_INDEX_TABLE_NAME = "searchindex_legacy";
+    static final String METADATA_TABLE_NAME     = "searchmetadata";
+    static final String STATISTICS_TABLE_NAME   = "searchstatistics";
+    //endregion
+
+    //region Field Names
+    static final String MODULE_ID_KEY           = "moduleid";
+    static final String FILE_ID_KEY             = "fileid";
+    static final String LANGUAGE_KEY            = "language";
+    static final String BOOST_KEY               = "boost";
+    static final String WEIGHT_0_KEY            = "weight0";
+    static final String WEIGHT_1_KEY            = "weight1";
+    static final String WEIGHT_2_KEY            = "weight2";
+    static final String WEIGHT_3_KEY            = "weight3";
+    static final String WEIGHT_4_KEY            = "weight4";
+
+    static final String[] INDEX_TABLE_COLUMNS = {MODULE_ID_KEY, FILE_ID_KEY, LANGUAGE_KEY, BOOST_KEY, WEIGHT_0_KEY, WEIGHT_1_KEY, WEIGHT_2_KEY, WEIGHT_3_KEY, WEIGHT_4_KEY};
+
+    static final String TITLE_KEY               = "title";
+    static final String SUBTITLE_KEY            = "subtitle";
+    static final String URI_KEY                 = "uri";
+    static final String TYPE_KEY                = "type";
+    static final String IMAGE_URI_KEY           = "imageuri";
+
+    static final String[] METADATA_TABLE_COLUMNS = {MODULE_ID_KEY, FILE_ID_KEY, TITLE_KEY, SUBTITLE_KEY, URI_KEY, TYPE_KEY, IMAGE_URI_KEY};
+
+    static final String DOCID_KEY               = "docid";
+    static final String SNIPPET_KEY             = "snippet";
+    static final String MATCHINFO_KEY           = "matchinfo";
+    static final String NORMS_KEY               = "norms";
+    static final String DOCUMENTS_KEY           = "documents";
+    //endregion
+
+    //region Tables
+    static final String CONTENT_TABLE_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + CONTENT_TABLE_NAME + " (" +
+            DOCID_KEY + " INTEGER PRIMARY KEY, " +
+            MODULE_ID_KEY + " TEXT NOT NULL, " +
+            FILE_ID_KEY + " TEXT NOT NULL, " +
+            LANGUAGE_KEY + " TEXT NOT NULL, " +
+            BOOST_KEY + " FLOAT NOT NULL, " +
+            WEIGHT_0_KEY + " TEXT, " +
+            WEIGHT_1_KEY + " TEXT, " +
+            WEIGHT_2_KEY + " TEXT, " +
+            WEIGHT_3_KEY + " TEXT, " +
+            WEIGHT_4_KEY + " TEXT, " +
+            NORMS_KEY + " INTEGER NOT NULL DEFAULT 0, " +
+            "UNIQUE (" + MODULE_ID_KEY + ", " + FILE_ID_KEY + "));";
+
+    static final String METADATA_TABLE_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + METADATA_TABLE_NAME + " (" +
+            MODULE_ID_KEY + " TEXT NOT NULL, " +
+            FILE_ID_KEY + " TEXT NOT NULL, " +
+            TITLE_KEY + " TEXT, " +
+            SUBTITLE_KEY + " TEXT, " +
+            URI_KEY + " TEXT, " +
+            TYPE_KEY + " TEXT, " +
+            IMAGE_URI_KEY + " TEXT, " +
+            "PRIMARY KEY (" + MODULE_ID_KEY + ", " + FILE_ID_KEY + "));";
+
+    static final String STATISTICS_TABLE_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + STATISTICS_TABLE_NAME + " (" +
+            DOCUMENTS_KEY + " INTEGER NOT NULL, " +
+            WEIGHT_0_KEY + " INTEGER NOT NULL, " +
+            WEIGHT_1_KEY + " INTEGER NOT NULL, " +
+            WEIGHT_2_KEY + " INTEGER NOT NULL, " +
+            WEIGHT_3_KEY + " INTEGER NOT NULL, " +
+            WEIGHT_4_KEY + " INTEGER NOT NULL);";
+    static final String STATISTICS_TABLE_INITIALIZE_COMMAND = "INSERT INTO " + STATISTICS_TABLE_NAME + " SELECT 0, 0, 0, 0, 0, 0 WHERE NOT EXISTS (SELECT 1 FROM " + STATISTICS_TABLE_NAME + ");";
+
+    /**
+     * The FTS4 index over the content table's columns, an external content index without document
+     * sizes if hasExternalContent.
+     */
+    static String indexTableCreateCommand(boolean hasExternalContent) {
+        //todo crashes if we use if not exists. Figure out if not using it is ok
+        String command = "CREATE VIRTUAL TABLE " + INDEX_TABLE_NAME + " USING FTS4 ( " +
+                MODULE_ID_KEY + ", " +
+                FILE_ID_KEY + ", " +
+                LANGUAGE_KEY + ", " +
+                BOOST_KEY + ", " +
+                WEIGHT_0_KEY + ", " +
+                WEIGHT_1_KEY + ", " +
+                WEIGHT_2_KEY + ", " +
+                WEIGHT_3_KEY + ", " +
+                WEIGHT_4_KEY;
+        if (hasExternalContent) {
+            command += ", content=\"" + CONTENT_TABLE_NAME + "\", matchinfo=\"fts3\"";
+        }
+        return command + ");";
+    }
+    //endregion
+
+    //region Statements
+    private static final String DOCUMENT_COLUMNS = DOCID_KEY + ", " + MODULE_ID_KEY + ", " + FILE_ID_KEY + ", " + LANGUAGE_KEY + ", " + BOOST_KEY + ", " +
+            WEIGHT_0_KEY + ", " + WEIGHT_1_KEY + ", " + WEIGHT_2_KEY + ", " + WEIGHT_3_KEY + ", " + WEIGHT_4_KEY;
+
+    // A document that is already in the content table is ignored rather than replaced, replacing it would orphan its terms in the index
+    static final String CONTENT_INSERT_COMMAND = "INSERT OR IGNORE INTO " + CONTENT_TABLE_NAME + " (" + DOCUMENT_COLUMNS + ", " + NORMS_KEY + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+    static final String INDEX_INSERT_COMMAND = "INSERT INTO " + INDEX_TABLE_NAME + " (" + DOCUMENT_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+    static final String METADATA_INSERT_COMMAND = "INSERT OR REPLACE INTO " + METADATA_TABLE_NAME + " (" + MODULE_ID_KEY + ", " + FILE_ID_KEY + ", " + TITLE_KEY + ", " + SUBTITLE_KEY + ", " +
+            TYPE_KEY + ", " + URI_KEY + ", " + IMAGE_URI_KEY + ") VALUES (?, ?, ?, ?, ?, ?, ?);";
+    static final String DOCID_QUERY = "SELECT " + DOCID_KEY + " FROM " + CONTENT_TABLE_NAME + " WHERE " + MODULE_ID_KEY + " = ? AND " + FILE_ID_KEY + " = ?;";
+    static final String METADATA_DELETE_COMMAND = "DELETE FROM " + METADATA_TABLE_NAME + " WHERE " + MODULE_ID_KEY + " = ? AND " + FILE_ID_KEY + " = ?;";
+    static final String INDEX_DELETE_BY_DOCID_COMMAND = "DELETE FROM " + INDEX_TABLE_NAME + " WHERE " + DOCID_KEY + " = ?;";
+    static final String CONTENT_DELETE_BY_DOCID_COMMAND = "DELETE FROM " + CONTENT_TABLE_NAME + " WHERE " + DOCID_KEY + " = ?;";
+    static final String NORMS_QUERY = "SELECT " + NORMS_KEY + " FROM " + CONTENT_TABLE_NAME + " WHERE " + DOCID_KEY + " = ?;";
+    static final String MODULE_DOCIDS_QUERY = "SELECT " + DOCID_KEY + ", " + NORMS_KEY + " FROM " + CONTENT_TABLE_NAME + " WHERE " + MODULE_ID_KEY + " = ?;";
+    static final String MODULE_CONTENT_DELETE_COMMAND = "DELETE FROM " + CONTENT_TABLE_NAME + " WHERE " + MODULE_ID_KEY + " = ?;";
+    static final String MODULE_METADATA_DELETE_COMMAND = "DELETE FROM " + METADATA_TABLE_NAME + " WHERE " + MODULE_ID_KEY + " = ?;";
+    static final String FILE_EXISTS_QUERY = "SELECT EXISTS (SELECT 1 FROM " + METADATA_TABLE_NAME + " WHERE " + MODULE_ID_KEY + " = ? AND " + FILE_ID_KEY + " = ?);";
+    static final String STATISTICS_QUERY = "SELECT " + DOCUMENTS_KEY + ", " + WEIGHT_0_KEY + ", " + WEIGHT_1_KEY + ", " + WEIGHT_2_KEY + ", " + WEIGHT_3_KEY + ", " + WEIGHT_4_KEY +
+            " FROM " + STATISTICS_TABLE_NAME + ";";
+    static final String STATISTICS_UPDATE_COMMAND = "UPDATE " + STATISTICS_TABLE_NAME + " SET " + DOCUMENTS_KEY + " = " + DOCUMENTS_KEY + " + ?, " +
+            WEIGHT_0_KEY + " = " + WEIGHT_0_KEY + " + ?, " + WEIGHT_1_KEY + " = " + WEIGHT_1_KEY + " + ?, " + WEIGHT_2_KEY + " = " + WEIGHT_2_KEY + " + ?, " +
+            WEIGHT_3_KEY + " = " + WEIGHT_3_KEY + " + ?, " + WEIGHT_4_KEY + " = " + WEIGHT_4_KEY + " + ?;";
+    static final String DOCUMENT_SAVEPOINT_COMMAND = "SAVEPOINT document;";
+    // Android ends its own transaction for any statement starting with ROLLBACK, the comment keeps it from seeing one
+    static final String DOCUMENT_ROLLBACK_COMMAND = "/* document */ ROLLBACK TO document;";
+    static final String DOCUMENT_RELEASE_COMMAND = "RELEASE document;";
+    static final String OPTIMIZE_COMMAND = "INSERT INTO " + INDEX_TABLE_NAME + "(" + INDEX_TABLE_NAME + ") VALUES('optimize');";
+    //endregion
+
+    //region Queries
+    // SQLite's default SQLITE_MAX_VARIABLE_NUMBER, the most arguments a statement can bind on Android
+    static final int MAX_NUMBER_OF_ARGUMENTS = 999;
+    // The results query also binds the snippet size and the search text
+    static final int MAX_DOCIDS_PER_RESULTS_QUERY = MAX_NUMBER_OF_ARGUMENTS - 2;
+    // The module rank query also binds the search text
+    static final int MAX_MODULE_IDS_PER_RANK_QUERY = MAX_NUMBER_OF_ARGUMENTS - 1;
+
+    // Only the hit counts come from matchinfo, the lengths Rank needs are the row's norms and the
+    // statistics table. CROSS JOIN keeps the FTS table as the outer loop, so the content row is
+    // looked up by docid for each match, which is where the boost was read from before as well.
+    private static final String RANK_QUERY_PREFIX = "SELECT " + INDEX_TABLE_NAME + "." + DOCID_KEY + ", matchinfo(" + INDEX_TABLE_NAME + ", 'pcx') AS " + MATCHINFO_KEY + ", " +
+            CONTENT_TABLE_NAME + "." + BOOST_KEY + ", " + CONTENT_TABLE_NAME + "." + NORMS_KEY +
+            " FROM " + INDEX_TABLE_NAME + " CROSS JOIN " + CONTENT_TABLE_NAME + " ON " + CONTENT_TABLE_NAME + "." + DOCID_KEY + " = " + INDEX_TABLE_NAME + "." + DOCID_KEY +
+            " WHERE " + INDEX_TABLE_NAME + " MATCH ?";
+    static final String RANK_QUERY = RANK_QUERY_PREFIX + ";";
+
+    private static final Map<Integer, String> resultsQueries = new HashMap<>();
+    private static final Map<Integer, String> candidateQueries = new HashMap<>();
+    private static final Map<Integer, String> moduleRankQueries = new HashMap<>();
+
+    /**
+     * The results query takes the docids as bound arguments. The number of placeholders is rounded
+     * up to a power of two so only a handful of distinct statements ever reach SQLite, which keeps
+     * them in the connection's prepared statement cache instead of being parsed on every search.
+     * It is never rounded past maxNumberOfPlaceholders, which numberOfDocuments must not exceed.
+     */
+    static int numberOfPlaceholdersForCount(int numberOfDocuments, int maxNumberOfPlaceholders) {
+        int numberOfPlaceholders = 1;
+        while (numberOfPlaceholders < numberOfDocuments) {
+            numberOfPlaceholders *= 2;
+        }
+        return Math.min(numberOfPlaceholders, maxNumberOfPlaceholders);
+    }
+
+    static String rankQueryForModulePlaceholders(int numberOfPlaceholders) {
+        synchronized (moduleRankQueries) {
+            String query = moduleRankQueries.get(numberOfPlaceholders);
+            if (query == null) {
+                StringBuilder placeholders = new StringBuilder();
+                for (int i=0; i<numberOfPlaceholders; i++) {
+                    placeholders.append(i == 0 ? "?" : ", ?");
+                }
+                query = RANK_QUERY_PREFIX + " AND " + CONTENT_TABLE_NAME + "." + MODULE_ID_KEY + " IN (" + placeholders + ");";
+                moduleRankQueries.put(numberOfPlaceholders, query);
+            }
+            return query;
+        }
+    }
+
+    static String resultsQueryForPlaceholders(int numberOfPlaceholders) {
+        synchronized (resultsQueries) {
+            String query = resultsQueries.get(numberOfPlaceholders);
+            if (query == null) {
+                StringBuilder placeholders = new StringBuilder();
+                for (int i=0; i<numberOfPlaceholders; i++) {
+                    placeholders.append(i == 0 ? "?" : ", ?");
+                }
+                query = "SELECT " + INDEX_TABLE_NAME + "." + DOCID_KEY + ", " + MODULE_ID_KEY + ", " + FILE_ID_KEY + ", " + TITLE_KEY + ", " + SUBTITLE_KEY + ", " + URI_KEY + ", " + TYPE_KEY + ", " + IMAGE_URI_KEY +
+                        ", snippet(" + INDEX_TABLE_NAME + ", '', '', '', -1, ?) AS " + SNIPPET_KEY +
+                        " FROM " + INDEX_TABLE_NAME + " LEFT JOIN " + METADATA_TABLE_NAME + " USING(" + MODULE_ID_KEY + ", " + FILE_ID_KEY + ")" +
+                        " WHERE " + INDEX_TABLE_NAME + " MATCH ? AND " + INDEX_TABLE_NAME + "." + DOCID_KEY + " IN (" + placeholders + ");";
+                resultsQueries.put(numberOfPlaceholders, query);
+            }
+            return query;
+        }
+    }
+
+    static String candidateQueryForPlaceholders(int numberOfPlaceholders) {
+        synchronized (candidateQueries) {
+            String query = candidateQueries.get(numberOfPlaceholders);
+            if (query == null) {
+                StringBuilder placeholders = new StringBuilder();
+                for (int i=0; i<numberOfPlaceholders; i++) {
+                    placeholders.append(i == 0 ? "?" : ", ?");
+                }
+                // FTS tokenizes boost as SQLite's own text for the REAL, which CAST reproduces and Cursor.getString does not
+                query = "SELECT " + INDEX_TABLE_NAME + "." + DOCID_KEY + ", " + MODULE_ID_KEY + ", " + FILE_ID_KEY + ", " + LANGUAGE_KEY + ", CAST(" + BOOST_KEY + " AS TEXT), " +
+                        WEIGHT_0_KEY + ", " + WEIGHT_1_KEY + ", " + WEIGHT_2_KEY + ", " + WEIGHT_3_KEY + ", " + WEIGHT_4_KEY + ", " +
+                        TITLE_KEY + ", " + SUBTITLE_KEY + ", " + URI_KEY + ", " + TYPE_KEY + ", " + IMAGE_URI_KEY +
+                        " FROM " + INDEX_TABLE_NAME + " LEFT JOIN " + METADATA_TABLE_NAME + " USING(" + MODULE_ID_KEY + ", " + FILE_ID_KEY + ")" +
+                        " WHERE " + INDEX_TABLE_NAME + "." + DOCID_KEY + " IN (" + placeholders + ");";
+                candidateQueries.put(numberOfPlaceholders, query);
+            }
+            return query;
+        }
+    }
+    //endregion
+
+    private SearchSchema() {}
+}
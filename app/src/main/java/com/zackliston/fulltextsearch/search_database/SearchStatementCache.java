@@ -0,0 +1,325 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.CONTENT_DELETE_BY_DOCID_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.CONTENT_INSERT_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.DOCID_QUERY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.DOCUMENT_RELEASE_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.DOCUMENT_ROLLBACK_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.DOCUMENT_SAVEPOINT_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.FILE_EXISTS_QUERY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.INDEX_DELETE_BY_DOCID_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.INDEX_INSERT_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.METADATA_DELETE_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.METADATA_INSERT_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.MODULE_CONTENT_DELETE_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.MODULE_DOCIDS_QUERY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.MODULE_METADATA_DELETE_COMMAND;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.NORMS_QUERY;
+import static com.zackliston.fulltextsearch.search_database.SearchSchema.STATISTICS_UPDATE_COMMAND;
+
+
+/**
+ * The compiled write statements for one open SQLiteDatabase. Each statement is compiled the first
+ * time it is used and then rebound for every call until the cache is closed.
+ *
+ * SQLiteStatement bindings are not thread safe, so callers must hold SearchDatabase's statement
+ * lock while using the cache.
+ */
+class SearchStatementCache
+{
+    //region Constants
+    static final int NUMBER_OF_SEARCHABLE_STRINGS = 5;
+    //endregion
+
+    //region Properties
+    final SQLiteDatabase database;
+
+    private SQLiteStatement contentInsert;
+    private SQLiteStatement indexInsert;
+    private SQLiteStatement metadataInsert;
+    private SQLiteStatement docIdQuery;
+    private SQLiteStatement metadataDelete;
+    private SQLiteStatement indexDeleteByDocId;
+    private SQLiteStatement contentDeleteByDocId;
+    private SQLiteStatement fileExists;
+    private SQLiteStatement normsQuery;
+    private SQLiteStatement statisticsUpdate;
+
+    // What the writes since the last writeStatisticsChange did to the statistics table
+    private long numberOfDocumentsChange = 0;
+    private final long[] totalLengthChanges = new long[IndexStatistics.NUMBER_OF_FIELDS];
+    // The statistics change as it was at beginDocument
+    private long documentNumberOfDocumentsChange = 0;
+    private final long[] documentTotalLengthChanges = new long[IndexStatistics.NUMBER_OF_FIELDS];
+    //endregion
+
+    //region Initialize
+    SearchStatementCache(SQLiteDatabase database) {
+        this.database = database;
+    }
+    //endregion
+
+    //region Statements
+    /**
+     * Adds a document to the content table and its terms to the index under the same docid. Pass
+     * a docid below zero to have one assigned. searchableStrings holds the text for weight0 to
+     * weight4, any of which may be null. The document's norms are worked out from the text and
+     * stored with it.
+     *
+     * Returns the document's docid, or -1 if the content table already has a document for the
+     * moduleId and fileId, in which case nothing is written.
+     */
+    long insertDocument(long docId, String moduleId, String fileId, String language, double boost, String[] searchableStrings) {
+        if (contentInsert == null) {
+            contentInsert = database.compileStatement(CONTENT_INSERT_COMMAND);
+        }
+        if (indexInsert == null) {
+            indexInsert = database.compileStatement(INDEX_INSERT_COMMAND);
+        }
+        long norms = IndexStatistics.normsForSearchableStrings(searchableStrings);
+        bindDocument(contentInsert, docId, moduleId, fileId, language, boost, searchableStrings);
+        contentInsert.bindLong(11, norms);
+        long insertedDocId = contentInsert.executeInsert();
+        if (insertedDocId < 0) {
+            return -1;
+        }
+        recordStatisticsChange(norms, 1);
+        bindDocument(indexInsert, insertedDocId, moduleId, fileId, language, boost, searchableStrings);
+        indexInsert.executeInsert();
+        return insertedDocId;
+    }
+
+    SQLiteStatement metadataInsert() {
+        if (metadataInsert == null) {
+            metadataInsert = database.compileStatement(METADATA_INSERT_COMMAND);
+        }
+        metadataInsert.clearBindings();
+        return metadataInsert;
+    }
+
+    /**
+     * Removes the file from the index and its metadata. The docid is found through the content
+     * table's unique index, so this costs an index lookup rather than a scan of the FTS table.
+     *
+     * Returns the docid the file had, or -1 if it was not in the index.
+     */
+    long delete(String moduleId, String fileId) {
+        if (metadataDelete == null) {
+            metadataDelete = database.compileStatement(METADATA_DELETE_COMMAND);
+        }
+        long docId = docIdForFile(moduleId, fileId);
+        if (docId >= 0) {
+            deleteIndexRow(docId);
+        }
+
+        metadataDelete.bindString(1, moduleId);
+        metadataDelete.bindString(2, fileId);
+        metadataDelete.execute();
+        return docId;
+    }
+
+    /**
+     * Removes a document's terms from the index and then its row from the content table. An
+     * external content index reads the row to find the terms it has to remove, so the order matters.
+     */
+    void deleteIndexRow(long docId) {
+        if (indexDeleteByDocId == null) {
+            indexDeleteByDocId = database.compileStatement(INDEX_DELETE_BY_DOCID_COMMAND);
+        }
+        if (contentDeleteByDocId == null) {
+            contentDeleteByDocId = database.compileStatement(CONTENT_DELETE_BY_DOCID_COMMAND);
+        }
+        if (normsQuery == null) {
+            normsQuery = database.compileStatement(NORMS_QUERY);
+        }
+        // Read before the row goes, the statistics lose what the row added to them
+        normsQuery.bindLong(1, docId);
+        Long norms;
+        try {
+            norms = normsQuery.simpleQueryForLong();
+        } catch (SQLiteDoneException exception) {
+            norms = null;
+        }
+        indexDeleteByDocId.bindLong(1, docId);
+        indexDeleteByDocId.execute();
+
+        contentDeleteByDocId.bindLong(1, docId);
+        contentDeleteByDocId.execute();
+        if (norms != null) {
+            recordStatisticsChange(norms, -1);
+        }
+    }
+
+    /**
+     * Removes every file in the module from the index and its metadata, returning how many there
+     * were. The FTS rows are deleted one docid at a time, before the content rows they read from,
+     * and the content and metadata rows are then deleted by moduleId in one statement each.
+     */
+    int deleteModule(String moduleId) {
+        if (indexDeleteByDocId == null) {
+            indexDeleteByDocId = database.compileStatement(INDEX_DELETE_BY_DOCID_COMMAND);
+        }
+        List<Long> docIds = new ArrayList<>();
+        List<Long> norms = new ArrayList<>();
+        Cursor cursor = database.rawQuery(MODULE_DOCIDS_QUERY, new String[]{moduleId});
+        try {
+            while (cursor.moveToNext()) {
+                docIds.add(cursor.getLong(0));
+                norms.add(cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (long docId: docIds) {
+            indexDeleteByDocId.bindLong(1, docId);
+            indexDeleteByDocId.execute();
+        }
+
+        String[] arguments = new String[]{moduleId};
+        database.execSQL(MODULE_CONTENT_DELETE_COMMAND, arguments);
+        database.execSQL(MODULE_METADATA_DELETE_COMMAND, arguments);
+        for (long documentNorms: norms) {
+            recordStatisticsChange(documentNorms, -1);
+        }
+        return docIds.size();
+    }
+
+    /**
+     * The docid of the document for moduleId and fileId, or -1 if it is not in the index.
+     */
+    long docIdForFile(String moduleId, String fileId) {
+        if (docIdQuery == null) {
+            docIdQuery = database.compileStatement(DOCID_QUERY);
+        }
+        docIdQuery.bindString(1, moduleId);
+        docIdQuery.bindString(2, fileId);
+        try {
+            return docIdQuery.simpleQueryForLong();
+        } catch (SQLiteDoneException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds what the documents written and removed since the last call did to the statistics
+     * table. Call it in the same transaction as the writes, so the table only changes with them.
+     */
+    void writeStatisticsChange() {
+        if (numberOfDocumentsChange == 0) {
+            boolean hasChange = false;
+            for (long totalLengthChange: totalLengthChanges) {
+                hasChange |= totalLengthChange != 0;
+            }
+            if (!hasChange) {
+                return;
+            }
+        }
+        if (statisticsUpdate == null) {
+            statisticsUpdate = database.compileStatement(STATISTICS_UPDATE_COMMAND);
+        }
+        statisticsUpdate.bindLong(1, numberOfDocumentsChange);
+        for (int field=0; field<IndexStatistics.NUMBER_OF_FIELDS; field++) {
+            statisticsUpdate.bindLong(2 + field, totalLengthChanges[field]);
+        }
+        statisticsUpdate.execute();
+        clearStatisticsChange();
+    }
+
+    /**
+     * Forgets the statistics change of writes that are being rolled back.
+     */
+    void clearStatisticsChange() {
+        numberOfDocumentsChange = 0;
+        Arrays.fill(totalLengthChanges, 0);
+    }
+
+    /**
+     * Starts the writes of one document inside the open transaction, so that rollBackDocument can
+     * undo them without giving up the rest of the transaction.
+     */
+    void beginDocument() {
+        database.execSQL(DOCUMENT_SAVEPOINT_COMMAND);
+        documentNumberOfDocumentsChange = numberOfDocumentsChange;
+        System.arraycopy(totalLengthChanges, 0, documentTotalLengthChanges, 0, totalLengthChanges.length);
+    }
+
+    void endDocument() {
+        database.execSQL(DOCUMENT_RELEASE_COMMAND);
+    }
+
+    /**
+     * Undoes every write and statistics change since beginDocument and ends the document.
+     */
+    void rollBackDocument() {
+        database.execSQL(DOCUMENT_ROLLBACK_COMMAND);
+        database.execSQL(DOCUMENT_RELEASE_COMMAND);
+        numberOfDocumentsChange = documentNumberOfDocumentsChange;
+        System.arraycopy(documentTotalLengthChanges, 0, totalLengthChanges, 0, totalLengthChanges.length);
+    }
+
+    boolean doesFileExist(String moduleId, String fileId) {
+        if (fileExists == null) {
+            fileExists = database.compileStatement(FILE_EXISTS_QUERY);
+        }
+        fileExists.bindString(1, moduleId);
+        fileExists.bindString(2, fileId);
+        return fileExists.simpleQueryForLong() != 0;
+    }
+    //endregion
+
+    //region Helpers
+    private void recordStatisticsChange(long norms, int sign) {
+        numberOfDocumentsChange += sign;
+        for (int field=0; field<IndexStatistics.NUMBER_OF_FIELDS; field++) {
+            totalLengthChanges[field] += sign * IndexStatistics.lengthFromNorms(norms, field);
+        }
+    }
+
+    private static void bindDocument(SQLiteStatement statement, long docId, String moduleId, String fileId, String language, double boost, String[] searchableStrings) {
+        statement.clearBindings();
+        if (docId >= 0) {
+            statement.bindLong(1, docId);
+        }
+        statement.bindString(2, moduleId);
+        statement.bindString(3, fileId);
+        statement.bindString(4, language);
+        statement.bindDouble(5, boost);
+        for (int i=0; i<NUMBER_OF_SEARCHABLE_STRINGS; i++) {
+            String searchableString = (searchableStrings != null && i < searchableStrings.length) ? searchableStrings[i] : null;
+            if (searchableString != null) {
+                statement.bindString(6 + i, searchableString);
+            }
+        }
+    }
+    //endregion
+
+    //region Close
+    void close() {
+        SQLiteStatement[] statements = {contentInsert, indexInsert, metadataInsert, docIdQuery, metadataDelete, indexDeleteByDocId, contentDeleteByDocId, fileExists, normsQuery, statisticsUpdate};
+        for (SQLiteStatement statement: statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        contentInsert = null;
+        indexInsert = null;
+        metadataInsert = null;
+        docIdQuery = null;
+        metadataDelete = null;
+        indexDeleteByDocId = null;
+        contentDeleteByDocId = null;
+        fileExists = null;
+        normsQuery = null;
+        statisticsUpdate = null;
+    }
+    //endregion
+}
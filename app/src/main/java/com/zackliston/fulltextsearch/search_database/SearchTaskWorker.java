@@ -8,12 +8,11 @@ import com.zackliston.taskmanager.TaskWorker;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -34,6 +33,8 @@ public class SearchTaskWorker extends TaskWorker
     public static final String SEARCHABLE_STRINGS_KEY = "searchablestrings";
     public static final String FILE_METADATA_KEY = "filemetadata";
     public static final String DATABASE_NAME_KEY = "databasename";
+
+    static final int DEFAULT_INDEX_BATCH_SIZE = 100;
     //endregion
 
     //region Properties
@@ -43,7 +44,13 @@ public class SearchTaskWorker extends TaskWorker
     SearchManager.ActionType type;
     List<String> urlArray;
     SearchDatabase searchDatabase;
+    String searchDatabaseName;
+    SearchManager.IndexMaintenanceDelegate indexMaintenanceDelegate;
+    boolean isIndexMaintenanceEnabled = false;
     List<Map<String, String>> succeededIndexFileInfoMaps;
+    int indexBatchSize = DEFAULT_INDEX_BATCH_SIZE;
+    // 0 reads, parses and writes every file on the task thread
+    int indexPipelineThreadCount = 0;
     //endregion
 
     //region Setup
@@ -55,7 +62,11 @@ public class SearchTaskWorker extends TaskWorker
             return;
         }
         try {
-            JSONArray jsonUrlArray = workItem.getJsonData().getJSONArray(URL_ARRAY_KEY);
+            // Remove tasks have no files to index
+            JSONArray jsonUrlArray = workItem.getJsonData().optJSONArray(URL_ARRAY_KEY);
+            if (jsonUrlArray == null) {
+                jsonUrlArray = new JSONArray();
+            }
             int typeValue = workItem.getJsonData().getInt(ACTION_TYPE_KEY);
             String searchDBName = workItem.getJsonData().getString(DATABASE_NAME_KEY);
 
@@ -71,6 +82,7 @@ public class SearchTaskWorker extends TaskWorker
                 urlArray.add(jsonUrlArray.getString(i));
             }
             type = SearchManager.ActionType.actionTypeFromValue(typeValue);
+            searchDatabaseName = searchDBName;
             searchDatabase = SearchManager.getInstance().searchDatabaseForName(searchDBName);
             succeededIndexFileInfoMaps = new ArrayList<>(urlArray.size());
         } catch (JSONException exception) {
@@ -82,6 +94,20 @@ public class SearchTaskWorker extends TaskWorker
     //region Run
     @Override
     public void run() {
+        if (searchDatabase == null) {
+            runTask();
+            return;
+        }
+        // Keep the database open for the whole task rather than letting it idle out between batches
+        searchDatabase.acquire();
+        try {
+            runTask();
+        } finally {
+            searchDatabase.release();
+        }
+    }
+
+    private void runTask() {
         if (isCancelled()) {
             taskFinishedWasSuccessful(false);
             return;
@@ -89,13 +115,25 @@ public class SearchTaskWorker extends TaskWorker
         boolean success = true;
         if (type == SearchManager.ActionType.REMOVE_FILE_FROM_INDEX) {
             success = searchDatabase.removeFileFromIndex(moduleId, fileId);
+        } else if (type == SearchManager.ActionType.REMOVE_MODULE_FROM_INDEX) {
+            success = searchDatabase.removeModule(moduleId);
+        } else if (type == SearchManager.ActionType.MAINTAIN_INDEX) {
+            success = maintainIndex();
+        } else if (type == SearchManager.ActionType.INDEX_FILE && indexPipelineThreadCount > 0) {
+            success = indexFilesWithPipeline();
+            if (isCancelled()) {
+                taskFinishedWasSuccessful(false);
+                return;
+            }
         } else if (type == SearchManager.ActionType.INDEX_FILE) {
-            for (String url: urlArray) {
+            int batchSize = Math.max(indexBatchSize, 1);
+            for (int start=0; start<urlArray.size(); start+=batchSize) {
                 if (isCancelled()) {
                     taskFinishedWasSuccessful(false);
                     return;
                 }
-                boolean indexSuccess = indexFileFromURL(url);
+                List<String> batch = urlArray.subList(start, Math.min(start + batchSize, urlArray.size()));
+                boolean indexSuccess = indexFilesFromURLs(batch);
                 if (!indexSuccess) {
                     success = false;
                 }
@@ -107,64 +145,170 @@ public class SearchTaskWorker extends TaskWorker
     //endregion
 
     //region Index
-    boolean indexFileFromURL(String url) {
-        String absoluteURL = SearchManager.absoluteURLForFileIndexInfoFromRelativeURL(url);
-        JSONObject data = SearchManager.readJSONFromFile(absoluteURL);
-        if (data == null) {
-            Log.e("SearchTaskWorker", "Could not read JSON data on disk");
-            return false;
-        }
-        boolean success = false;
-        try {
-            String moduleId = data.getString(MODULE_ID_KEY);
-            String fileId = data.getString(FILE_ID_KEY);
-            String language = data.getString(LANGUAGE_KEY);
-            double boost = data.getDouble(BOOST_KEY);
-            JSONObject jsonSearchableStrings = data.getJSONObject(SEARCHABLE_STRINGS_KEY);
-            JSONObject jsonFileMetadata = data.getJSONObject(FILE_METADATA_KEY);
-
-            Map<String, String> searchableStrings = new HashMap<>(jsonSearchableStrings.length());
-            Iterator<String> searchableIterator = jsonSearchableStrings.keys();
-            while (searchableIterator.hasNext()) {
-                String key = searchableIterator.next();
-                String text = jsonSearchableStrings.getString(key);
-                searchableStrings.put(key, text);
+    /**
+     * Indexes every file in the batch in a single SearchDatabase transaction. Returns false if any
+     * of the files could not be read or indexed; the ones that did make it are still recorded in
+     * succeededIndexFileInfoMaps.
+     */
+    boolean indexFilesFromURLs(List<String> urls) {
+        boolean success = true;
+        List<IndexDocument> documents = new ArrayList<>(urls.size());
+        List<String> documentUrls = new ArrayList<>(urls.size());
+        for (String url: urls) {
+            IndexDocument document = preparedIndexDocumentFromURL(url);
+            if (document == null) {
+                success = false;
+                continue;
             }
-            Map<String, String> fileMetadata = new HashMap<>(jsonFileMetadata.length());
-            Iterator<String> metaIterator = jsonFileMetadata.keys();
-            while (metaIterator.hasNext()) {
-                String key = metaIterator.next();
-                String text = jsonFileMetadata.getString(key);
-                fileMetadata.put(key, text);
+            documents.add(document);
+            documentUrls.add(url);
+        }
+        return indexDocuments(documents, documentUrls) && success;
+    }
+
+    /**
+     * Indexes every file in urlArray through an IndexPipeline, preparing the documents on
+     * indexPipelineThreadCount threads while this one writes them in batches of indexBatchSize.
+     */
+    boolean indexFilesWithPipeline() {
+        int batchSize = Math.max(indexBatchSize, 1);
+        IndexPipeline pipeline = new IndexPipeline(indexPipelineThreadCount, batchSize, batchSize * 2);
+        return pipeline.run(urlArray, new IndexPipeline.Stages() {
+            @Override
+            public IndexDocument prepareDocument(String url) {
+                return preparedIndexDocumentFromURL(url);
             }
 
-            success = searchDatabase.indexFile(moduleId, fileId, language, boost, searchableStrings, fileMetadata);
+            @Override
+            public boolean writeDocuments(List<IndexDocument> documents, List<String> urls) {
+                return indexDocuments(documents, urls);
+            }
 
-            if (success) {
-                Map<String, String> fileIndexInfoMap = new HashMap<>(3);
-                fileIndexInfoMap.put(MODULE_ID_KEY, moduleId);
-                fileIndexInfoMap.put(FILE_ID_KEY, fileId);
-                fileIndexInfoMap.put(URL_KEY, url);
-                succeededIndexFileInfoMaps.add(fileIndexInfoMap);
+            @Override
+            public boolean isCancelled() {
+                return SearchTaskWorker.this.isCancelled();
             }
-        } catch (JSONException exception) {
-            Log.e("SearchTaskWorker", "There was an error getting the data in indexFileFromURL " + url + " : " + exception);
+        });
+    }
+
+    /**
+     * Writes the documents in one transaction and records the ones that made it. urls holds the
+     * url each document was read from, in the same order.
+     */
+    boolean indexDocuments(List<IndexDocument> documents, List<String> urls) {
+        if (documents.size() < 1) {
+            return true;
+        }
+        Map<IndexDocument, String> urlsByDocument = new IdentityHashMap<>(documents.size());
+        for (int i=0; i<documents.size(); i++) {
+            urlsByDocument.put(documents.get(i), urls.get(i));
+        }
+
+        List<IndexDocument> indexedDocuments = searchDatabase.indexFiles(documents);
+        for (IndexDocument document: indexedDocuments) {
+            addSucceededIndexFileInfo(document, urlsByDocument.get(document));
+        }
+        return indexedDocuments.size() == documents.size();
+    }
+
+    /**
+     * Reads the document at url and normalizes its searchable strings, ready to be written.
+     * Safe to call from several threads at once.
+     */
+    IndexDocument preparedIndexDocumentFromURL(String url) {
+        IndexDocument document = indexDocumentFromURL(url);
+        if (document == null || document.searchableStrings == null) {
+            return document;
+        }
+        Map<String, String> searchableStrings = new HashMap<>(document.searchableStrings.size());
+        for (Map.Entry<String, String> entry: document.searchableStrings.entrySet()) {
+            searchableStrings.put(entry.getKey(), SearchDatabase.searchableStringFromString(entry.getValue(), document.language));
+        }
+        document.searchableStrings = searchableStrings;
+        document.searchableStringsAreNormalized = true;
+        return document;
+    }
+
+    IndexDocument indexDocumentFromURL(String url) {
+        if (IndexJournal.Reference.isReference(url)) {
+            return indexDocumentFromJournal(url);
+        }
+        String absoluteURL = SearchManager.absoluteURLForFileIndexInfoFromRelativeURL(url);
+        if (absoluteURL == null) {
+            return null;
+        }
+        IndexDocument document = IndexFileInfoReader.readIndexDocument(new File(absoluteURL));
+        if (document == null) {
+            Log.e("SearchTaskWorker", "Could not read JSON data on disk");
+        }
+        return document;
+    }
+
+    IndexDocument indexDocumentFromJournal(String url) {
+        IndexJournal journal = SearchManager.getInstance().indexJournal;
+        IndexJournal.Reference reference = IndexJournal.Reference.fromString(url);
+        if (journal == null || reference == null) {
+            Log.e("SearchTaskWorker", "Could not read index journal reference " + url);
+            return null;
+        }
+        return journal.read(reference);
+    }
+
+    private void addSucceededIndexFileInfo(IndexDocument document, String url) {
+        Map<String, String> fileIndexInfoMap = new HashMap<>(3);
+        fileIndexInfoMap.put(MODULE_ID_KEY, document.moduleId);
+        fileIndexInfoMap.put(FILE_ID_KEY, document.fileId);
+        fileIndexInfoMap.put(URL_KEY, url);
+        succeededIndexFileInfoMaps.add(fileIndexInfoMap);
+    }
+    //endregion
+
+    //region Maintenance
+    /**
+     * Runs a round of index maintenance and reports it to the delegate. A round that stopped early
+     * because the index was being searched fails, so the task manager runs it again later.
+     */
+    boolean maintainIndex() {
+        IndexMaintenance.Report report = searchDatabase.maintainIndex();
+        if (report == null) {
             return false;
         }
+        if (indexMaintenanceDelegate != null) {
+            indexMaintenanceDelegate.indexMaintenanceFinished(searchDatabaseName, report);
+        }
+        return report.isComplete();
+    }
 
-        return success;
+    private void queueIndexMaintenanceIfNeeded() {
+        if (!isIndexMaintenanceEnabled || searchDatabase == null || searchDatabaseName == null) {
+            return;
+        }
+        if (searchDatabase.needsMaintenance()) {
+            SearchManager.getInstance().queueIndexMaintenance(searchDatabaseName);
+        }
     }
     //endregion
 
     //region Task Finished
     @Override
     protected void taskFinishedWasSuccessful(boolean wasSuccessful) {
+        // Merging segments leaves every search result as it was
+        if (searchDatabase != null && type != SearchManager.ActionType.MAINTAIN_INDEX) {
+            // Whatever this task managed to write, results cached before it are out of date
+            searchDatabase.indexDidChange();
+        }
         if (isCancelled()) {
             super.taskFinishedWasSuccessful(false);
             return;
         }
 
-        if (type == SearchManager.ActionType.REMOVE_FILE_FROM_INDEX) {
+        if (type == SearchManager.ActionType.MAINTAIN_INDEX) {
+            super.taskFinishedWasSuccessful(wasSuccessful);
+            return;
+        }
+        queueIndexMaintenanceIfNeeded();
+
+        if (type == SearchManager.ActionType.REMOVE_FILE_FROM_INDEX || type == SearchManager.ActionType.REMOVE_MODULE_FROM_INDEX) {
             super.taskFinishedWasSuccessful(wasSuccessful);
             return;
         }
@@ -181,6 +325,7 @@ public class SearchTaskWorker extends TaskWorker
 
         List<String> completedFileIds = new ArrayList<>(succeededIndexFileInfoMaps.size());
         List<String> completedModuleIds = new ArrayList<>(succeededIndexFileInfoMaps.size());
+        List<IndexJournal.Reference> indexedJournalReferences = new ArrayList<>();
 
         for (Map<String, String> indexFileInfo: succeededIndexFileInfoMaps) {
             String fileId = indexFileInfo.get(FILE_ID_KEY);
@@ -189,16 +334,27 @@ public class SearchTaskWorker extends TaskWorker
             completedModuleIds.add(moduleId);
 
             String url = indexFileInfo.get(URL_KEY);
-            String absoluteURL = SearchManager.absoluteURLForFileIndexInfoFromRelativeURL(url);
-            File file = new File(absoluteURL);
-            if (file.exists()) {
-                boolean success = file.delete();
-                if (!success) {
-                    Log.e("SearchTaskWorker", "Could not delete indexFileInfo on disk in taskFinishedWasSuccessful URL : " + absoluteURL);
+            if (IndexJournal.Reference.isReference(url)) {
+                IndexJournal.Reference reference = IndexJournal.Reference.fromString(url);
+                if (reference != null) {
+                    indexedJournalReferences.add(reference);
+                }
+            } else {
+                String absoluteURL = SearchManager.absoluteURLForFileIndexInfoFromRelativeURL(url);
+                File file = new File(absoluteURL);
+                if (file.exists()) {
+                    boolean success = file.delete();
+                    if (!success) {
+                        Log.e("SearchTaskWorker", "Could not delete indexFileInfo on disk in taskFinishedWasSuccessful URL : " + absoluteURL);
+                    }
                 }
             }
             remainingUrls.remove(url);
         }
+        IndexJournal journal = SearchManager.getInstance().indexJournal;
+        if (journal != null && indexedJournalReferences.size() > 0) {
+            journal.markIndexed(indexedJournalReferences);
+        }
 
         delegate.searchWorkerIndexedFiles(completedModuleIds, completedFileIds);
         try {
@@ -0,0 +1,215 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A local search across several SearchDatabases at once, for content split into one database per
+ * module. Every database ranks its own matches in parallel and keeps only its best offset + limit,
+ * without loading anything else. Those rankings are merged by score, and only the documents that
+ * land on the requested page have their metadata and snippets loaded, each from its own database.
+ *
+ * Each database scores with its own BM25F statistics, so the merged order is only as fair as the
+ * databases are alike. Splitting one kind of content by module keeps them close enough.
+ */
+class ShardedSearch
+{
+    //region Hit
+    static class Hit {
+        final int shard;
+        final int position;
+        final SearchDatabase.RankedDocument document;
+
+        Hit(int shard, int position, SearchDatabase.RankedDocument document) {
+            this.shard = shard;
+            this.position = position;
+            this.document = document;
+        }
+    }
+
+    private static final Comparator<Hit> HIT_ORDER = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit lhs, Hit rhs) {
+            int order = Double.compare(rhs.document.rank, lhs.document.rank);
+            if (order != 0) {
+                return order;
+            }
+            // Ties keep the order the databases were given in, so pages never overlap
+            if (lhs.shard != rhs.shard) {
+                return lhs.shard < rhs.shard ? -1 : 1;
+            }
+            return lhs.position < rhs.position ? -1 : (lhs.position == rhs.position ? 0 : 1);
+        }
+    };
+
+    private interface ShardPass<T> {
+        T run(int shard, SearchHandle shardHandle);
+    }
+    //endregion
+
+    //region Search
+    /**
+     * Returns empty results if the handle is cancelled or the thread interrupted. handle may be null.
+     * Every database ranks with the same profile, so their ranks can be merged.
+     */
+    static SearchDatabase.SearchReturn search(final List<SearchDatabase> databases, final String searchText, int limit, int offset, final boolean preferPhraseSearching, final RankingProfile profile, SearchHandle handle, Executor executor) {
+        SearchDatabase.SearchReturn searchReturn = new SearchDatabase.SearchReturn();
+        if (databases.size() < 1 || limit < 1 || offset < 0) {
+            return searchReturn;
+        }
+
+        final int maxNumberOfResults = limit + offset;
+        List<List<SearchDatabase.RankedDocument>> rankings = runOnEveryShard(databases.size(), handle, executor, new ShardPass<List<SearchDatabase.RankedDocument>>() {
+            @Override
+            public List<SearchDatabase.RankedDocument> run(int shard, SearchHandle shardHandle) {
+                return databases.get(shard).rankedDocuments(searchText, maxNumberOfResults, preferPhraseSearching, profile, shardHandle);
+            }
+        });
+        if (rankings == null || isCancelled(handle)) {
+            return searchReturn;
+        }
+
+        List<Hit> page = mergeRankings(rankings, limit, offset);
+        final List<List<SearchDatabase.RankedDocument>> pageByShard = new ArrayList<>(databases.size());
+        for (int shard=0; shard<databases.size(); shard++) {
+            pageByShard.add(new ArrayList<SearchDatabase.RankedDocument>());
+        }
+        for (Hit hit: page) {
+            pageByShard.get(hit.shard).add(hit.document);
+        }
+        List<Map<Long, SearchResult>> resultsByShard = runOnEveryShard(databases.size(), handle, executor, new ShardPass<Map<Long, SearchResult>>() {
+            @Override
+            public Map<Long, SearchResult> run(int shard, SearchHandle shardHandle) {
+                List<SearchDatabase.RankedDocument> documents = pageByShard.get(shard);
+                if (documents.size() < 1) {
+                    return new HashMap<>(0);
+                }
+                return databases.get(shard).searchResultsByDocId(searchText, documents, preferPhraseSearching);
+            }
+        });
+        if (resultsByShard == null || isCancelled(handle)) {
+            return searchReturn;
+        }
+
+        for (Hit hit: page) {
+            SearchResult result = resultsByShard.get(hit.shard).get(hit.document.docId);
+            if (result != null) {
+                searchReturn.getResults().add(result);
+            }
+        }
+        return searchReturn;
+    }
+
+    /**
+     * Merges rankings that are each sorted best first, and returns the hits from offset to
+     * offset + limit. The heap never holds more than one hit per database.
+     */
+    static List<Hit> mergeRankings(List<List<SearchDatabase.RankedDocument>> rankings, int limit, int offset) {
+        PriorityQueue<Hit> heap = new PriorityQueue<>(Math.max(rankings.size(), 1), HIT_ORDER);
+        for (int shard=0; shard<rankings.size(); shard++) {
+            List<SearchDatabase.RankedDocument> ranking = rankings.get(shard);
+            if (ranking.size() > 0) {
+                heap.add(new Hit(shard, 0, ranking.get(0)));
+            }
+        }
+
+        List<Hit> page = new ArrayList<>(Math.max(limit, 0));
+        int numberSkipped = 0;
+        while (page.size() < limit && !heap.isEmpty()) {
+            Hit hit = heap.poll();
+            if (numberSkipped < offset) {
+                numberSkipped++;
+            } else {
+                page.add(hit);
+            }
+            List<SearchDatabase.RankedDocument> ranking = rankings.get(hit.shard);
+            int nextPosition = hit.position + 1;
+            if (nextPosition < ranking.size()) {
+                heap.add(new Hit(hit.shard, nextPosition, ranking.get(nextPosition)));
+            }
+        }
+        return page;
+    }
+    //endregion
+
+    //region Helpers
+    /**
+     * Runs the pass for every database, all but the first on the executor while the calling thread
+     * does the first. Returns the results in database order, or null if interrupted.
+     */
+    private static <T> List<T> runOnEveryShard(int numberOfShards, SearchHandle handle, Executor executor, final ShardPass<T> pass) {
+        List<FutureTask<T>> tasks = new ArrayList<>(numberOfShards - 1);
+        List<SearchHandle> shardHandles = new ArrayList<>(numberOfShards);
+        for (int shard=0; shard<numberOfShards; shard++) {
+            shardHandles.add(handle == null ? null : handle.newChildHandle());
+        }
+        for (int shard=1; shard<numberOfShards; shard++) {
+            final int finalShard = shard;
+            final SearchHandle shardHandle = shardHandles.get(shard);
+            FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+                @Override
+                public T call() {
+                    return pass.run(finalShard, shardHandle);
+                }
+            });
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException exception) {
+                // The executor has been shut down, finish the search on this thread
+                task.run();
+            }
+        }
+
+        List<T> results = new ArrayList<>(numberOfShards);
+        try {
+            results.add(pass.run(0, shardHandles.get(0)));
+            for (FutureTask<T> task: tasks) {
+                results.add(task.get());
+            }
+            return results;
+        } catch (InterruptedException exception) {
+            cancel(tasks, shardHandles);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException exception) {
+            cancel(tasks, shardHandles);
+            Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (RuntimeException exception) {
+            cancel(tasks, shardHandles);
+            throw exception;
+        }
+    }
+
+    private static <T> void cancel(List<FutureTask<T>> tasks, List<SearchHandle> shardHandles) {
+        for (SearchHandle shardHandle: shardHandles) {
+            if (shardHandle != null) {
+                shardHandle.cancelQuery();
+            }
+        }
+        for (FutureTask<T> task: tasks) {
+            task.cancel(true);
+        }
+    }
+
+    private static boolean isCancelled(SearchHandle handle) {
+        return handle != null && handle.isCancelled();
+    }
+    //endregion
+}
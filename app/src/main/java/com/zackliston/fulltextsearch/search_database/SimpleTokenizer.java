@@ -0,0 +1,92 @@
+package com.zackliston.fulltextsearch.search_database;
+
+/**
+ * Splits text the same way the FTS "simple" tokenizer splits it. Runs of ASCII letters and digits,
+ * and any character outside ASCII, make up a token. Everything else in ASCII separates tokens, and
+ * ASCII letters are compared without case.
+ *
+ * Tokens are kept as offsets into the original text so nothing is copied while matching.
+ */
+final class SimpleTokenizer
+{
+    //region Tokens
+    static class Tokens {
+        int count = 0;
+        int[] starts;
+        int[] ends;
+
+        Tokens(int capacity) {
+            starts = new int[Math.max(capacity, 4)];
+            ends = new int[starts.length];
+        }
+
+        private void add(int start, int end) {
+            if (count == starts.length) {
+                int[] newStarts = new int[count * 2];
+                int[] newEnds = new int[count * 2];
+                System.arraycopy(starts, 0, newStarts, 0, count);
+                System.arraycopy(ends, 0, newEnds, 0, count);
+                starts = newStarts;
+                ends = newEnds;
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+    }
+    //endregion
+
+    private SimpleTokenizer() {}
+
+    //region Public Methods
+    static boolean isTokenCharacter(char character) {
+        return character >= 0x80 || (character >= '0' && character <= '9') || (character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z');
+    }
+
+    static Tokens tokenize(String text) {
+        if (text == null) {
+            return new Tokens(0);
+        }
+        Tokens tokens = new Tokens(text.length() / 6);
+        int length = text.length();
+        int position = 0;
+        while (position < length) {
+            while (position < length && !isTokenCharacter(text.charAt(position))) {
+                position++;
+            }
+            int start = position;
+            while (position < length && isTokenCharacter(text.charAt(position))) {
+                position++;
+            }
+            if (position > start) {
+                tokens.add(start, position);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * True if the token of text between start and end equals term, or starts with it when isPrefix
+     * is set. term must already be lower case.
+     */
+    static boolean tokenMatches(String text, int start, int end, String term, boolean isPrefix) {
+        int tokenLength = end - start;
+        if (tokenLength < term.length() || (!isPrefix && tokenLength != term.length())) {
+            return false;
+        }
+        for (int i=0; i<term.length(); i++) {
+            if (toLowerCase(text.charAt(start + i)) != term.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static char toLowerCase(char character) {
+        if (character >= 'A' && character <= 'Z') {
+            return (char) (character + ('a' - 'A'));
+        }
+        return character;
+    }
+    //endregion
+}
@@ -0,0 +1,178 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class IndexFileInfoReaderTest {
+
+    @Before
+    public void setup() {
+        SearchManager.getInstance().initialize(Robolectric.application);
+        SearchManager.getInstance().resetFileIndexInfoCache();
+    }
+
+    @After
+    public void tearDown() {
+        SearchManager.getInstance().resetFileIndexInfoCache();
+        SearchManager.teardownForTest();
+    }
+
+    private static File file(String relativeURL) {
+        return new File(SearchManager.absoluteURLForFileIndexInfoFromRelativeURL(relativeURL));
+    }
+
+    private static File write(String name, String json) throws Exception {
+        File file = file(SearchManager.relativeURLForFileIndexInfo("module", name));
+        FileUtils.writeStringToFile(file, json, "UTF-8");
+        return file;
+    }
+
+    /**
+     * Reads the file the way index info files were read before IndexFileInfoReader, through a
+     * JSONObject.
+     */
+    private static IndexDocument readWithJSONObject(File file) throws Exception {
+        JSONObject data = SearchManager.readJSONFromFile(file.getPath());
+        return IndexDocument.newIndexDocument(data.getString(SearchTaskWorker.MODULE_ID_KEY), data.getString(SearchTaskWorker.FILE_ID_KEY),
+                data.getString(SearchTaskWorker.LANGUAGE_KEY), data.getDouble(SearchTaskWorker.BOOST_KEY),
+                stringMap(data.getJSONObject(SearchTaskWorker.SEARCHABLE_STRINGS_KEY)), stringMap(data.getJSONObject(SearchTaskWorker.FILE_METADATA_KEY)));
+    }
+
+    private static Map<String, String> stringMap(JSONObject object) throws Exception {
+        Map<String, String> map = new HashMap<>();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            map.put(key, object.getString(key));
+        }
+        return map;
+    }
+
+    private static void assertSameDocument(IndexDocument actual, IndexDocument expected) {
+        assertThat(actual.moduleId, is(expected.moduleId));
+        assertThat(actual.fileId, is(expected.fileId));
+        assertThat(actual.language, is(expected.language));
+        assertThat(actual.boost, is(expected.boost));
+        assertThat(actual.searchableStrings, is(expected.searchableStrings));
+        assertThat(actual.fileMetadata, is(expected.fileMetadata));
+    }
+
+    //region Test Read
+    @Test
+    public void testReadsSavedFileLikeJSONObject() throws Exception {
+        Map<String, String> searchableStrings = new HashMap<>();
+        searchableStrings.put(SearchSchema.WEIGHT_0_KEY, "The heart pumps blood\nthrough \"arteries\" and/or veins");
+        searchableStrings.put(SearchSchema.WEIGHT_4_KEY, "Caf\u00e9 \\ cardiology \u2764");
+        Map<String, String> fileMetadata = new HashMap<>();
+        fileMetadata.put(SearchSchema.TITLE_KEY, "Heart");
+        fileMetadata.put(SearchSchema.URI_KEY, "content://module/files/heart");
+        fileMetadata.put(SearchManager.FILE_TYPE, "article");
+
+        String relativeURL = SearchManager.saveIndexFileInfoToFile("module", "heart-1", "en", 2.5, searchableStrings, fileMetadata);
+        assertThat(relativeURL, notNullValue());
+        File file = file(relativeURL);
+        // JSONObject writes every slash as \/
+        assertThat(FileUtils.readFileToString(file, "UTF-8").contains("\\/"), is(true));
+
+        IndexDocument document = IndexFileInfoReader.readIndexDocument(file);
+        assertThat(document, notNullValue());
+        assertSameDocument(document, readWithJSONObject(file));
+        assertThat(document.fileId, is("heart-1"));
+        assertThat(document.fileMetadata.get(SearchSchema.URI_KEY), is("content://module/files/heart"));
+    }
+
+    @Test
+    public void testReadsEscapedSlashes() throws Exception {
+        File file = write("slashes", "{\"moduleid\":\"module\",\"fileid\":\"a\\/b\",\"language\":\"en\",\"boost\":1," +
+                "\"searchablestrings\":{\"weight0\":\"and\\/or\"},\"filemetadata\":{\"uri\":\"http:\\/\\/example.com\\/a\"}}");
+
+        IndexDocument document = IndexFileInfoReader.readIndexDocument(file);
+
+        assertSameDocument(document, readWithJSONObject(file));
+        assertThat(document.fileId, is("a/b"));
+        assertThat(document.searchableStrings.get("weight0"), is("and/or"));
+        assertThat(document.fileMetadata.get("uri"), is("http://example.com/a"));
+    }
+
+    @Test
+    public void testReadsNullAndNumericMetadata() throws Exception {
+        File file = write("values", "{\"moduleid\":\"module\",\"fileid\":\"values\",\"language\":\"en\",\"boost\":\"1.5\"," +
+                "\"searchablestrings\":{\"weight0\":\"heart\"},\"filemetadata\":{\"title\":null,\"order\":3,\"rating\":1.5,\"featured\":true}}");
+
+        IndexDocument document = IndexFileInfoReader.readIndexDocument(file);
+        IndexDocument expected = readWithJSONObject(file);
+
+        assertThat(document.boost, is(1.5));
+        assertThat(document.fileMetadata.get("order"), is(expected.fileMetadata.get("order")));
+        assertThat(document.fileMetadata.get("rating"), is(expected.fileMetadata.get("rating")));
+        assertThat(document.fileMetadata.get("featured"), is(expected.fileMetadata.get("featured")));
+        // JSONObject.getString turned a null into the text "null", the reader keeps it null
+        assertThat(document.fileMetadata.containsKey("title"), is(true));
+        assertThat(document.fileMetadata.get("title"), nullValue());
+        assertThat(expected.fileMetadata.get("title"), is("null"));
+    }
+
+    @Test
+    public void testSkipsUnknownKeys() throws Exception {
+        File file = write("unknown", "{\"version\":2,\"moduleid\":\"module\",\"extra\":{\"a\":[1,{\"b\":null}]},\"fileid\":\"unknown\"," +
+                "\"language\":\"en\",\"boost\":1,\"tags\":[\"x\",\"y\"]," +
+                "\"searchablestrings\":{\"weight0\":\"heart\",\"nested\":{\"weight1\":\"lung\"}},\"filemetadata\":{\"title\":\"Heart\",\"list\":[1,2]}}");
+
+        IndexDocument document = IndexFileInfoReader.readIndexDocument(file);
+
+        assertThat(document, notNullValue());
+        assertThat(document.moduleId, is("module"));
+        assertThat(document.fileId, is("unknown"));
+        assertThat(document.searchableStrings.size(), is(1));
+        assertThat(document.searchableStrings.get("weight0"), is("heart"));
+        assertThat(document.fileMetadata.size(), is(1));
+        assertThat(document.fileMetadata.get("title"), is("Heart"));
+    }
+
+    @Test
+    public void testMissingRequiredFieldsAreNotRead() throws Exception {
+        String[] required = {"moduleid", "fileid", "language", "boost", "searchablestrings", "filemetadata"};
+        String[] values = {"\"module\"", "\"file\"", "\"en\"", "1", "{\"weight0\":\"heart\"}", "{}"};
+
+        for (int missing=0; missing<required.length; missing++) {
+            StringBuilder json = new StringBuilder("{");
+            for (int i=0; i<required.length; i++) {
+                if (i != missing) {
+                    json.append(json.length() > 1 ? "," : "").append('"').append(required[i]).append("\":").append(values[i]);
+                }
+            }
+            json.append('}');
+            assertThat(IndexFileInfoReader.readIndexDocument(write("missing" + missing, json.toString())), nullValue());
+        }
+        assertThat(IndexFileInfoReader.readIndexDocument(write("nullmodule", "{\"moduleid\":null,\"fileid\":\"file\",\"language\":\"en\",\"boost\":1," +
+                "\"searchablestrings\":{},\"filemetadata\":{}}")), nullValue());
+    }
+
+    @Test
+    public void testUnreadableFilesAreNotRead() throws Exception {
+        assertThat(IndexFileInfoReader.readIndexDocument(write("truncated", "{\"moduleid\":\"module\",\"fileid\":")), nullValue());
+        assertThat(IndexFileInfoReader.readIndexDocument(write("badboost", "{\"moduleid\":\"module\",\"fileid\":\"file\",\"language\":\"en\",\"boost\":\"high\"," +
+                "\"searchablestrings\":{},\"filemetadata\":{}}")), nullValue());
+        assertThat(IndexFileInfoReader.readIndexDocument(file("missing.json")), nullValue());
+    }
+    //endregion
+}
@@ -0,0 +1,148 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class IndexJournalTest {
+    private File directory;
+
+    @Before
+    public void setup() throws Exception {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private IndexDocument document(String fileId, String text) {
+        Map<String, String> searchableStrings = new HashMap<>(1);
+        searchableStrings.put(SearchManager.WEIGHT_0, text);
+        Map<String, String> fileMetadata = new HashMap<>(1);
+        fileMetadata.put(SearchManager.TITLE, "title " + fileId);
+        return IndexDocument.newIndexDocument("mod", fileId, "en", 2.5, searchableStrings, fileMetadata);
+    }
+
+    @Test
+    public void testAppendAndRead() {
+        IndexJournal journal = new IndexJournal(directory);
+        List<IndexDocument> documents = new ArrayList<>(2);
+        documents.add(document("file1", "first text"));
+        documents.add(document("file2", "second text \u00e9"));
+
+        List<IndexJournal.Reference> references = journal.append(documents);
+        assertThat(references.size(), is(2));
+
+        IndexJournal.Reference parsed = IndexJournal.Reference.fromString(references.get(1).toString());
+        IndexDocument read = journal.read(parsed);
+        assertThat(read, notNullValue());
+        assertThat(read.getModuleId(), is("mod"));
+        assertThat(read.getFileId(), is("file2"));
+        assertThat(read.getLanguage(), is("en"));
+        assertThat(read.getBoost(), is(2.5));
+        assertThat(read.getSearchableStrings().get(SearchManager.WEIGHT_0), is("second text \u00e9"));
+        assertThat(read.getFileMetadata().get(SearchManager.TITLE), is("title file2"));
+    }
+
+    @Test
+    public void testReadAfterMoreAppends() {
+        IndexJournal journal = new IndexJournal(directory);
+        List<IndexDocument> first = new ArrayList<>(1);
+        first.add(document("file1", "first"));
+        IndexJournal.Reference firstReference = journal.append(first).get(0);
+        assertThat(journal.read(firstReference).getFileId(), is("file1"));
+
+        List<IndexDocument> second = new ArrayList<>(1);
+        second.add(document("file2", "second"));
+        IndexJournal.Reference secondReference = journal.append(second).get(0);
+        assertThat(journal.read(secondReference).getFileId(), is("file2"));
+    }
+
+    @Test
+    public void testSegmentDeletedOnceIndexed() {
+        IndexJournal journal = new IndexJournal(directory, 64);
+        List<IndexDocument> documents = new ArrayList<>(2);
+        documents.add(document("file1", "a long enough body of text to fill the first segment"));
+        documents.add(document("file2", "and another one which rolls over into a new segment"));
+
+        List<IndexJournal.Reference> references = journal.append(documents);
+        assertThat(references.get(0).segment, is(0));
+        assertThat(references.get(1).segment, is(1));
+
+        List<IndexJournal.Reference> indexed = new ArrayList<>(1);
+        indexed.add(references.get(0));
+        journal.markIndexed(indexed);
+
+        assertThat(journal.segmentFile(0).exists(), is(false));
+        assertThat(journal.segmentFile(1).exists(), is(true));
+        assertThat(journal.read(references.get(0)), nullValue());
+    }
+
+    @Test
+    public void testTornRecordIsTruncatedBeforeNextAppend() throws Exception {
+        IndexJournal journal = new IndexJournal(directory);
+        List<IndexDocument> first = new ArrayList<>(2);
+        first.add(document("file1", "first"));
+        first.add(document("file2", "second"));
+        List<IndexJournal.Reference> references = new ArrayList<>(journal.append(first));
+        journal.reset();
+
+        // Simulate a crash part way through writing a third record
+        ByteBuffer torn = IndexJournal.encode(document("torn", "never finished"));
+        FileOutputStream outputStream = new FileOutputStream(journal.segmentFile(0), true);
+        try {
+            outputStream.write(torn.array(), 0, torn.remaining() / 2);
+        } finally {
+            outputStream.close();
+        }
+
+        IndexJournal reopened = new IndexJournal(directory);
+        List<IndexDocument> second = new ArrayList<>(1);
+        second.add(document("file3", "third"));
+        references.addAll(reopened.append(second));
+
+        assertThat(references.size(), is(3));
+        assertThat(references.get(2).offset, is(references.get(1).offset + IndexJournal.encode(first.get(1)).remaining()));
+        assertThat(reopened.read(references.get(0)).getFileId(), is("file1"));
+        assertThat(reopened.read(references.get(1)).getFileId(), is("file2"));
+        assertThat(reopened.read(references.get(2)).getFileId(), is("file3"));
+        assertThat(reopened.read(references.get(2)).getSearchableStrings().get(SearchManager.WEIGHT_0), is("third"));
+    }
+
+    @Test
+    public void testReferenceParsing() {
+        assertThat(IndexJournal.Reference.isReference("ZLSearch_Index_Info/mod.file.json"), is(false));
+        assertThat(IndexJournal.Reference.fromString("journal:bad"), nullValue());
+        IndexJournal.Reference reference = IndexJournal.Reference.fromString("journal:3:128");
+        assertThat(reference.segment, is(3));
+        assertThat(reference.offset, is(128L));
+    }
+}
@@ -0,0 +1,115 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class IndexPipelineTest {
+
+    private static class RecordingStages implements IndexPipeline.Stages {
+        final List<List<String>> writtenBatches = Collections.synchronizedList(new ArrayList<List<String>>());
+        final AtomicInteger maxPending = new AtomicInteger();
+        final AtomicInteger pending = new AtomicInteger();
+        volatile int cancelAfterNumberOfBatches = -1;
+
+        @Override
+        public IndexDocument prepareDocument(String url) {
+            int currentPending = pending.incrementAndGet();
+            int currentMax = maxPending.get();
+            while (currentPending > currentMax && !maxPending.compareAndSet(currentMax, currentPending)) {
+                currentMax = maxPending.get();
+            }
+            if (url.startsWith("bad")) {
+                return null;
+            }
+            return IndexDocument.newIndexDocument("module", url, "en", 1.0, null, null);
+        }
+
+        @Override
+        public boolean writeDocuments(List<IndexDocument> documents, List<String> urls) {
+            pending.addAndGet(-documents.size());
+            for (int i=0; i<documents.size(); i++) {
+                assertThat(documents.get(i).fileId, is(urls.get(i)));
+            }
+            writtenBatches.add(new ArrayList<>(urls));
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelAfterNumberOfBatches >= 0 && writtenBatches.size() >= cancelAfterNumberOfBatches;
+        }
+    }
+
+    private static List<String> urls(int count) {
+        List<String> urls = new ArrayList<>(count);
+        for (int i=0; i<count; i++) {
+            urls.add("url" + i);
+        }
+        return urls;
+    }
+
+    //region Test Run
+    @Test
+    public void testWritesInOrderAndInBatches() {
+        RecordingStages stages = new RecordingStages();
+
+        boolean success = new IndexPipeline(3, 4, 8).run(urls(10), stages);
+
+        assertThat(success, is(true));
+        assertThat(stages.writtenBatches.size(), is(3));
+        assertThat(stages.writtenBatches.get(0).size(), is(4));
+        assertThat(stages.writtenBatches.get(2).size(), is(2));
+        List<String> written = new ArrayList<>();
+        for (List<String> batch: stages.writtenBatches) {
+            written.addAll(batch);
+        }
+        assertThat(written, is(urls(10)));
+    }
+
+    @Test
+    public void testUnreadableFileFailsButOthersAreWritten() {
+        RecordingStages stages = new RecordingStages();
+        List<String> urls = urls(3);
+        urls.add(1, "badURL");
+
+        boolean success = new IndexPipeline(2, 10, 20).run(urls, stages);
+
+        assertThat(success, is(false));
+        assertThat(stages.writtenBatches.size(), is(1));
+        assertThat(stages.writtenBatches.get(0), is(urls(3)));
+    }
+
+    @Test
+    public void testStopsWritingWhenCancelled() {
+        RecordingStages stages = new RecordingStages();
+        stages.cancelAfterNumberOfBatches = 1;
+
+        boolean success = new IndexPipeline(2, 2, 4).run(urls(10), stages);
+
+        assertThat(success, is(false));
+        assertThat(stages.writtenBatches.size(), is(1));
+    }
+
+    @Test
+    public void testParsersDoNotReadAheadOfTheQueue() {
+        RecordingStages stages = new RecordingStages();
+
+        new IndexPipeline(4, 2, 4).run(urls(50), stages);
+
+        // Four in the queue and up to two more in the batch being filled
+        assertThat(stages.maxPending.get() <= 6, is(true));
+    }
+    //endregion
+}
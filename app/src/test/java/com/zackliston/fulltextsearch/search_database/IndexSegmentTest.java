@@ -0,0 +1,150 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class IndexSegmentTest {
+
+    private static SearchRefinement.Candidate row(long docId, String moduleId, String weight0) {
+        String[] columns = {moduleId, "file" + docId, "en", "1.0", weight0, null, null, null, null};
+        return new SearchRefinement.Candidate(docId, 1.0, columns, moduleId, "file" + docId, "Title " + docId, null, "uri" + docId, "type", null);
+    }
+
+    private static List<Long> search(MemorySearchIndex index, String formattedSearchText) {
+        List<Long> docIds = new ArrayList<>();
+        for (SearchDatabase.RankedDocument rankedDocument: index.rankedDocuments(formattedSearchText, 100, null, null)) {
+            docIds.add(rankedDocument.docId);
+        }
+        Collections.sort(docIds);
+        return docIds;
+    }
+
+    //region Test Segment
+    @Test
+    public void testWrittenSegmentReadsBackRows() throws IOException {
+        File file = File.createTempFile("segment", "");
+        try {
+            IndexSegment.write(Arrays.asList(row(7, "b", "lung"), row(3, "a", "heart attack")), file);
+            IndexSegment segment = IndexSegment.open(file);
+
+            assertThat(segment.numberOfRows, is(2));
+            assertThat(segment.slotForDocId(3), is(0));
+            assertThat(segment.slotForDocId(7), is(1));
+            assertThat(segment.slotForDocId(5), is(-1));
+            assertThat(segment.row(0).title, is("Title 3"));
+            assertThat(segment.row(0).subtitle, is(nullValue()));
+            assertThat(segment.row(1).columns[4], is("lung"));
+            assertThat(segment.moduleId(segment.moduleOrdinal(1)), is("b"));
+            assertThat(segment.columnLength(4, 0), is(2));
+            assertThat(segment.termIndex("attack") >= 0, is(true));
+            assertThat(segment.termIndex("attac"), is(-1));
+            assertThat(segment.numberOfRowsWithHit(segment.termIndex("heart"), 0), is(1));
+            assertThat(segment.numberOfRowsWithHit(segment.termIndex("heart"), 4), is(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testOpenRejectsTruncatedFile() throws IOException {
+        File file = File.createTempFile("segment", "");
+        try {
+            IndexSegment.write(Arrays.asList(row(1, "a", "heart")), file);
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(file.length() / 2);
+            randomAccessFile.close();
+
+            IndexSegment.open(file);
+        } finally {
+            file.delete();
+        }
+    }
+    //endregion
+
+    //region Test Index
+    @Test
+    public void testSearchesSegmentAndRowsAddedSince() throws IOException {
+        MemorySearchIndex index = new MemorySearchIndex(IndexSegment.newHeapSegment(Arrays.asList(row(1, "a", "heart"), row(2, "a", "heart rate"), row(3, "b", "lung"))));
+        index.indexFile(row(4, "b", "heart"));
+        index.indexFile(row(2, "a", "lung"));
+
+        assertThat(search(index, "heart*"), is(Arrays.asList(1L, 4L)));
+        assertThat(search(index, "lung*"), is(Arrays.asList(2L, 3L)));
+        assertThat(index.rankedDocuments("heart*", 100, null, Arrays.asList("b")).get(0).docId, is(4L));
+        assertThat(index.getNumberOfRows(), is(4));
+        assertThat(index.getNumberOfChangesSinceSegment(), is(3));
+
+        Map<Long, SearchResult> results = index.searchResultsByDocId("lung*", index.rankedDocuments("lung*", 10, null, null), 2);
+        assertThat(results.get(3L).getTitle(), is("Title 3"));
+        assertThat(results.get(2L).snippet, is("lung"));
+    }
+
+    @Test
+    public void testRemovesRowsFromSegment() throws IOException {
+        MemorySearchIndex index = new MemorySearchIndex(IndexSegment.newHeapSegment(Arrays.asList(row(1, "a", "heart"), row(2, "a", "heart"), row(3, "b", "heart"))));
+
+        index.removeFileFromIndex(1);
+        assertThat(search(index, "heart*"), is(Arrays.asList(2L, 3L)));
+        assertThat(index.searchResultsByDocId("heart*", Arrays.asList(new SearchDatabase.RankedDocument(1, 1.0)), 2).isEmpty(), is(true));
+
+        index.removeModule("b");
+        assertThat(search(index, "heart*"), is(Arrays.asList(2L)));
+        assertThat(index.getNumberOfRows(), is(1));
+    }
+
+    @Test
+    public void testExactTermsRankTheSameAfterRemovingFromSegment() throws IOException {
+        MemorySearchIndex index = new MemorySearchIndex(IndexSegment.newHeapSegment(Arrays.asList(row(1, "a", "heart"), row(2, "a", "heart lung"), row(3, "a", "lung"))));
+        index.indexFile(row(4, "a", "heart heart"));
+        index.removeFileFromIndex(2);
+        MemorySearchIndex expected = new MemorySearchIndex();
+        expected.indexFile(row(1, "a", "heart"));
+        expected.indexFile(row(3, "a", "lung"));
+        expected.indexFile(row(4, "a", "heart heart"));
+
+        List<SearchDatabase.RankedDocument> actual = index.rankedDocuments("heart", 100, null, null);
+        List<SearchDatabase.RankedDocument> fresh = expected.rankedDocuments("heart", 100, null, null);
+        assertThat(actual.size(), is(2));
+        for (int i=0; i<actual.size(); i++) {
+            assertThat(actual.get(i).docId, is(fresh.get(i).docId));
+            assertThat(actual.get(i).rank, is(fresh.get(i).rank));
+        }
+    }
+
+    @Test
+    public void testReplaceWithSegmentKeepsResults() throws IOException {
+        MemorySearchIndex index = new MemorySearchIndex(IndexSegment.newHeapSegment(Arrays.asList(row(1, "a", "heart"), row(2, "a", "lung"))));
+        index.removeFileFromIndex(2);
+        index.indexFile(row(5, "b", "heart rate"));
+        List<SearchDatabase.RankedDocument> before = index.rankedDocuments("heart*", 100, null, null);
+
+        index.replaceWithSegment(IndexSegment.newHeapSegment(index.rows()));
+
+        assertThat(index.getNumberOfChangesSinceSegment(), is(0));
+        assertThat(index.getNumberOfSlots(), is(2));
+        List<SearchDatabase.RankedDocument> after = index.rankedDocuments("heart*", 100, null, null);
+        assertThat(after.size(), is(before.size()));
+        for (int i=0; i<after.size(); i++) {
+            assertThat(after.get(i).docId, is(before.get(i).docId));
+            assertThat(after.get(i).rank, is(before.get(i).rank));
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,71 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class IndexStatisticsTest {
+
+    //region Test Norms
+    @Test
+    public void testShortLengthsAreExact() {
+        for (int length=0; length<IndexStatistics.NUMBER_OF_EXACT_NORMS; length++) {
+            assertThat(IndexStatistics.quantizedLength(length), is(length));
+        }
+    }
+
+    @Test
+    public void testNormsFitInAByteAndKeepTheOrderOfLengths() {
+        int previousNorm = -1;
+        for (int length=0; length<1000000; length++) {
+            int norm = IndexStatistics.encodeNorm(length);
+            assertThat(norm >= previousNorm && norm <= 0xFF, is(true));
+            assertThat(IndexStatistics.quantizedLength(length) <= length, is(true));
+            assertThat(IndexStatistics.quantizedLength(length) * 8 >= length * 7 - IndexStatistics.NUMBER_OF_EXACT_NORMS * 7, is(true));
+            previousNorm = norm;
+        }
+    }
+
+    @Test
+    public void testPackedNormsKeepEveryField() {
+        long norms = IndexStatistics.packNorms(new int[]{0, 3, 23, 100, 5000});
+
+        assertThat(IndexStatistics.lengthFromNorms(norms, 0), is(0));
+        assertThat(IndexStatistics.lengthFromNorms(norms, 1), is(3));
+        assertThat(IndexStatistics.lengthFromNorms(norms, 2), is(23));
+        assertThat(IndexStatistics.lengthFromNorms(norms, 3), is(IndexStatistics.quantizedLength(100)));
+        assertThat(IndexStatistics.lengthFromNorms(norms, 4), is(IndexStatistics.quantizedLength(5000)));
+    }
+
+    @Test
+    public void testNormsOfSearchableStringsCountTokens() {
+        long norms = IndexStatistics.normsForSearchableStrings(new String[]{"heart attack", null, "", "one, two-three", "a"});
+
+        assertThat(IndexStatistics.lengthFromNorms(norms, 0), is(2));
+        assertThat(IndexStatistics.lengthFromNorms(norms, 1), is(0));
+        assertThat(IndexStatistics.lengthFromNorms(norms, 2), is(0));
+        assertThat(IndexStatistics.lengthFromNorms(norms, 3), is(3));
+        assertThat(IndexStatistics.lengthFromNorms(norms, 4), is(1));
+    }
+    //endregion
+
+    //region Test Averages
+    @Test
+    public void testAveragesRoundToTheNearestToken() {
+        IndexStatistics statistics = new IndexStatistics(4, new long[]{10, 9, 0, 1, 2});
+
+        assertThat(statistics.averageLengths[0], is(3));
+        assertThat(statistics.averageLengths[1], is(2));
+        assertThat(statistics.averageLengths[2], is(0));
+        assertThat(statistics.averageLengths[3], is(0));
+        assertThat(statistics.averageLengths[4], is(1));
+        assertThat(IndexStatistics.EMPTY.averageLengths[0], is(0));
+    }
+    //endregion
+}
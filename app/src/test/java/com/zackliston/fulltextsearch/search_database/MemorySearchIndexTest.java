@@ -0,0 +1,223 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class MemorySearchIndexTest {
+
+    private static SearchRefinement.Candidate row(long docId, String moduleId, double boost, String weight0, String weight4) {
+        String[] columns = {moduleId, "file" + docId, "en", SearchDatabase.boostText(boost), weight0, null, null, null, weight4};
+        return new SearchRefinement.Candidate(docId, boost, columns, moduleId, "file" + docId, "Title " + docId, null, "uri", "type", null);
+    }
+
+    private static List<Long> docIds(List<SearchDatabase.RankedDocument> rankedDocuments) {
+        List<Long> docIds = new ArrayList<>();
+        for (SearchDatabase.RankedDocument rankedDocument: rankedDocuments) {
+            docIds.add(rankedDocument.docId);
+        }
+        return docIds;
+    }
+
+    /**
+     * The docids matching the search, in docid order.
+     */
+    private static List<Long> search(MemorySearchIndex index, String formattedSearchText) {
+        List<Long> docIds = docIds(index.rankedDocuments(formattedSearchText, 100, null, null));
+        Collections.sort(docIds);
+        return docIds;
+    }
+
+    //region Test Search
+    @Test
+    public void testEveryWordHasToMatch() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        index.indexFile(row(1, "module", 1.0, "heart attack", null));
+        index.indexFile(row(2, "module", 1.0, "heart rate", null));
+        index.indexFile(row(3, "module", 1.0, "Attack of the clones", null));
+
+        assertThat(search(index, "heart*"), is(Arrays.asList(1L, 2L)));
+        assertThat(search(index, "heart att*"), is(Arrays.asList(1L)));
+        assertThat(search(index, "attack heart*"), is(Arrays.asList(1L)));
+        assertThat(search(index, "clone"), is((List<Long>) new ArrayList<Long>()));
+    }
+
+    @Test
+    public void testQuotedSearchMatchesPhrase() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        index.indexFile(row(1, "module", 1.0, "heart attack", null));
+        index.indexFile(row(2, "module", 1.0, "attack on the heart", null));
+
+        assertThat(search(index, "\"heart att*\""), is(Arrays.asList(1L)));
+        assertThat(search(index, "\"attack heart*\""), is((List<Long>) new ArrayList<Long>()));
+    }
+
+    @Test
+    public void testPrefixMatchesEveryTermStartingWithIt() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        index.indexFile(row(1, "module", 1.0, "cardiology", null));
+        index.indexFile(row(2, "module", 1.0, "cart", null));
+        index.indexFile(row(3, "module", 1.0, "car", null));
+        index.indexFile(row(4, "module", 1.0, "cab", null));
+
+        assertThat(search(index, "car*").size(), is(3));
+        assertThat(search(index, "car"), is(Arrays.asList(3L)));
+    }
+
+    @Test
+    public void testRanksWithColumnWeights() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        index.indexFile(row(1, "module", 1.0, "heart", null));
+        index.indexFile(row(2, "module", 1.0, null, "heart"));
+        index.indexFile(row(3, "module", 1.0, "lung", null));
+
+        assertThat(docIds(index.rankedDocuments("heart*", 100, null, null)), is(Arrays.asList(2L, 1L)));
+        assertThat(docIds(index.rankedDocuments("heart*", 1, null, null)), is(Arrays.asList(2L)));
+    }
+
+    @Test
+    public void testTopResultsAreTheBestOfAllMatches() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        String[] words = {"heart", "heart heart", "heart lung", "lung heart rate", "heartbeat"};
+        for (int docId=0; docId<MemorySearchIndex.BLOCK_SIZE * 8; docId++) {
+            String text = words[docId % words.length];
+            index.indexFile(row(docId, "module", 1.0, (docId % 3 == 0) ? text : null, (docId % 7 == 0) ? text : null));
+        }
+
+        for (String searchText: new String[]{"heart", "heart lung", "heart*", "heart lung*", "\"lung heart\"*"}) {
+            List<SearchDatabase.RankedDocument> all = index.rankedDocuments(searchText, 1000, null, null);
+            List<SearchDatabase.RankedDocument> top = index.rankedDocuments(searchText, 5, null, null);
+            assertThat(top.size(), is(5));
+            for (int i=0; i<top.size(); i++) {
+                assertThat(top.get(i).rank, is(all.get(i).rank));
+            }
+        }
+    }
+
+    @Test
+    public void testExactTermsRankFromCountsKeptThroughRemovals() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        MemorySearchIndex expected = new MemorySearchIndex();
+        String[] words = {"heart", "heart heart lung", "lung", "heart rate", "rate"};
+        for (int docId=0; docId<MemorySearchIndex.BLOCK_SIZE * 4; docId++) {
+            SearchRefinement.Candidate row = row(docId, (docId % 2 == 0) ? "even" : "odd", 1.0, words[docId % words.length], words[(docId / 3) % words.length]);
+            index.indexFile(row);
+            if (docId % 3 != 0 && docId % 2 == 0) {
+                expected.indexFile(row);
+            }
+        }
+        for (int docId=0; docId<MemorySearchIndex.BLOCK_SIZE * 4; docId+=3) {
+            index.removeFileFromIndex(docId);
+        }
+        index.removeModule("odd");
+
+        for (String searchText: new String[]{"heart", "heart lung", "rate heart"}) {
+            List<SearchDatabase.RankedDocument> actual = index.rankedDocuments(searchText, 1000, null, null);
+            List<SearchDatabase.RankedDocument> fresh = expected.rankedDocuments(searchText, 1000, null, null);
+            assertThat(actual.size(), is(fresh.size()));
+            for (int i=0; i<actual.size(); i++) {
+                assertThat(actual.get(i).rank, is(fresh.get(i).rank));
+            }
+        }
+    }
+
+    @Test
+    public void testSearchOnlyFindsModules() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        index.indexFile(row(1, "a", 1.0, "heart", null));
+        index.indexFile(row(2, "b", 1.0, "heart", null));
+        index.indexFile(row(3, "c", 1.0, "heart", null));
+
+        List<Long> docIds = docIds(index.rankedDocuments("heart*", 100, null, Arrays.asList("a", "c", "missing")));
+
+        assertThat(docIds.size(), is(2));
+        assertThat(docIds.contains(2L), is(false));
+    }
+    //endregion
+
+    //region Test Results
+    @Test
+    public void testResultsHaveMetadataAndSnippet() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        index.indexFile(row(1, "module", 1.0, "the heart is a muscle that pumps blood", null));
+
+        List<SearchDatabase.RankedDocument> rankedDocuments = index.rankedDocuments("muscle*", 10, null, null);
+        Map<Long, SearchResult> results = index.searchResultsByDocId("muscle*", rankedDocuments, 2);
+
+        assertThat(results.size(), is(1));
+        assertThat(results.get(1L).getTitle(), is("Title 1"));
+        assertThat(results.get(1L).getModuleId(), is("module"));
+        assertThat(results.get(1L).getFileId(), is("file1"));
+        assertThat(results.get(1L).snippet, is("a muscle"));
+    }
+
+    @Test
+    public void testSnippetSplitsIntoFragmentsForDistantWords() {
+        String[] columns = {"module", "file1", "en", "1.0", "heart one two three four five six blood", null, null, null, null};
+        SearchRefinement.Candidate candidate = new SearchRefinement.Candidate(1, 1.0, columns, "module", "file1", null, null, null, null, null);
+
+        assertThat(SearchRefinement.snippet(candidate, MemorySearchIndex.phrasesForSearchText("heart blood*"), 3), is("heart onesix blood"));
+    }
+    //endregion
+
+    //region Test Write
+    @Test
+    public void testIndexingAgainReplacesRow() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        index.indexFile(row(1, "module", 1.0, "heart", null));
+        index.indexFile(row(1, "module", 1.0, "lung", null));
+
+        assertThat(search(index, "heart*").size(), is(0));
+        assertThat(search(index, "lung*"), is(Arrays.asList(1L)));
+        assertThat(index.getNumberOfRows(), is(1));
+    }
+
+    @Test
+    public void testRemoveFileAndModule() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        index.indexFile(row(1, "a", 1.0, "heart", null));
+        index.indexFile(row(2, "a", 1.0, "heart", null));
+        index.indexFile(row(3, "b", 1.0, "heart", null));
+
+        index.removeFileFromIndex(1);
+        assertThat(search(index, "heart*"), is(Arrays.asList(2L, 3L)));
+        assertThat(index.searchResultsByDocId("heart*", index.rankedDocuments("heart*", 10, null, null), 2).containsKey(1L), is(false));
+
+        index.removeModule("b");
+        assertThat(search(index, "heart*"), is(Arrays.asList(2L)));
+
+        index.clear();
+        assertThat(search(index, "heart*").size(), is(0));
+        assertThat(index.getNumberOfRows(), is(0));
+    }
+
+    @Test
+    public void testRebuildsOnceMostSlotsAreRemoved() {
+        MemorySearchIndex index = new MemorySearchIndex();
+        int numberOfRows = MemorySearchIndex.MIN_REMOVED_SLOTS_BEFORE_REBUILD * 2 + 2;
+        for (int docId=0; docId<numberOfRows; docId++) {
+            index.indexFile(row(docId, "module", 1.0, (docId % 2 == 0) ? "heart" : "lung", null));
+        }
+        for (int docId=0; docId<numberOfRows - 2; docId++) {
+            index.removeFileFromIndex(docId);
+        }
+
+        assertThat(index.getNumberOfRows(), is(2));
+        assertThat(index.getNumberOfSlots() < numberOfRows, is(true));
+        assertThat(search(index, "heart*"), is(Arrays.asList((long) numberOfRows - 2)));
+        assertThat(search(index, "lung*"), is(Arrays.asList((long) numberOfRows - 1)));
+    }
+    //endregion
+}
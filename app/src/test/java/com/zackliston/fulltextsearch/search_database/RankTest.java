@@ -0,0 +1,119 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class RankTest {
+    private static final int NUMBER_OF_COLUMNS = 10;
+
+    /**
+     * Builds a 'pcx' matchinfo array for a single phrase query.
+     */
+    private int[] matchinfo(int[] hitsInRow, int[] rowsWithHit) {
+        int[] matchinfo = new int[2 + (NUMBER_OF_COLUMNS * 3)];
+        matchinfo[0] = 1;
+        matchinfo[1] = NUMBER_OF_COLUMNS;
+        int phraseStart = 2;
+        for (int i=0; i<Rank.NUMBER_OF_WEIGHTED_COLUMNS; i++) {
+            int column = Rank.WEIGHT_0_COLUMN_NUMBER + i;
+            matchinfo[phraseStart + (column * 3)] = hitsInRow[i];
+            matchinfo[phraseStart + (column * 3) + 1] = hitsInRow[i];
+            matchinfo[phraseStart + (column * 3) + 2] = rowsWithHit[i];
+        }
+        return matchinfo;
+    }
+
+    /**
+     * Statistics of totalRows rows whose weighted columns average averageLength tokens.
+     */
+    private IndexStatistics statistics(int totalRows, int averageLength) {
+        long[] totalLengths = new long[IndexStatistics.NUMBER_OF_FIELDS];
+        Arrays.fill(totalLengths, (long) totalRows * averageLength);
+        return new IndexStatistics(totalRows, totalLengths);
+    }
+
+    /**
+     * The norms of a row whose weighted columns are all rowLength tokens long.
+     */
+    private long norms(int rowLength) {
+        int[] lengths = new int[IndexStatistics.NUMBER_OF_FIELDS];
+        Arrays.fill(lengths, rowLength);
+        return IndexStatistics.packNorms(lengths);
+    }
+
+    @Test
+    public void testRankPrefersHeavierColumns() {
+        int[] titleHit = matchinfo(new int[]{0, 0, 0, 0, 1}, new int[]{0, 0, 0, 0, 5});
+        int[] bodyHit = matchinfo(new int[]{1, 0, 0, 0, 0}, new int[]{5, 0, 0, 0, 0});
+
+        double titleRank = Rank.rank(titleHit, norms(10), statistics(100, 10), 1.0, RankingProfile.DEFAULT);
+        double bodyRank = Rank.rank(bodyHit, norms(10), statistics(100, 10), 1.0, RankingProfile.DEFAULT);
+
+        assertThat(titleRank > bodyRank, is(true));
+        assertThat(bodyRank > 0.0, is(true));
+    }
+
+    @Test
+    public void testRankNoRows() {
+        int[] empty = matchinfo(new int[]{1, 1, 1, 1, 1}, new int[]{0, 0, 0, 0, 0});
+        assertThat(Rank.rank(empty, norms(0), IndexStatistics.EMPTY, 1.0, RankingProfile.DEFAULT), is(0.0));
+    }
+
+    @Test
+    public void testLongerRowsRankLower() {
+        int[] hit = matchinfo(new int[]{0, 0, 0, 0, 1}, new int[]{0, 0, 0, 0, 5});
+
+        double shortRank = Rank.rank(hit, norms(4), statistics(100, 10), 1.0, RankingProfile.DEFAULT);
+        double longRank = Rank.rank(hit, norms(40), statistics(100, 10), 1.0, RankingProfile.DEFAULT);
+
+        assertThat(shortRank > longRank, is(true));
+    }
+
+    @Test
+    public void testPhraseHelpersAgreeWithRank() {
+        int[] hitsInRow = {0, 2, 0, 1, 1};
+        int[] rowsWithHit = {0, 7, 0, 30, 2};
+        int[] matchinfo = matchinfo(hitsInRow, rowsWithHit);
+
+        int[] hits = new int[NUMBER_OF_COLUMNS];
+        int[] columnRowsWithHit = new int[NUMBER_OF_COLUMNS];
+        int[] wordCounts = new int[NUMBER_OF_COLUMNS];
+        int[] averageWordCounts = new int[NUMBER_OF_COLUMNS];
+        for (int i=0; i<Rank.NUMBER_OF_WEIGHTED_COLUMNS; i++) {
+            hits[Rank.WEIGHT_0_COLUMN_NUMBER + i] = hitsInRow[i];
+            columnRowsWithHit[Rank.WEIGHT_0_COLUMN_NUMBER + i] = rowsWithHit[i];
+            wordCounts[Rank.WEIGHT_0_COLUMN_NUMBER + i] = 14;
+            averageWordCounts[Rank.WEIGHT_0_COLUMN_NUMBER + i] = 10;
+        }
+        double[] termFrequencies = {Rank.termFrequencyForPhrase(hits, wordCounts, averageWordCounts, RankingProfile.DEFAULT)};
+        double[] inverseDocumentFrequencies = {Rank.inverseDocumentFrequencyForPhrase(100, columnRowsWithHit, RankingProfile.DEFAULT)};
+        double rank = Rank.BM25F(termFrequencies, inverseDocumentFrequencies, Rank.SATURATION_CONSTANT, 1);
+
+        assertThat(rank, is(Rank.rank(matchinfo, norms(14), statistics(100, 10), 1.0, RankingProfile.DEFAULT)));
+        assertThat(Rank.maxPhraseRank(termFrequencies[0], inverseDocumentFrequencies[0], RankingProfile.DEFAULT) >= rank, is(true));
+        assertThat(Rank.maxPhraseRank(termFrequencies[0], -1.0, RankingProfile.DEFAULT), is(0.0));
+    }
+
+    @Test
+    public void testMatchinfoFromBlob() {
+        ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.nativeOrder());
+        buffer.putInt(1).putInt(10).putInt(42);
+
+        int[] matchinfo = Rank.matchinfoFromBlob(buffer.array());
+        assertThat(matchinfo.length, is(3));
+        assertThat(matchinfo[0], is(1));
+        assertThat(matchinfo[1], is(10));
+        assertThat(matchinfo[2], is(42));
+    }
+}
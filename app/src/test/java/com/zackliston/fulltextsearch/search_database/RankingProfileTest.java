@@ -0,0 +1,108 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class RankingProfileTest {
+    private static final double[] TITLE_ONLY_WEIGHTS = {0, 0, 0, 0, 1};
+
+    private static SearchRefinement.Candidate row(long docId, double boost, String weight3, String weight4) {
+        String[] columns = {"module", "file" + docId, "en", SearchDatabase.boostText(boost), null, null, null, weight3, weight4};
+        return new SearchRefinement.Candidate(docId, boost, columns, "module", "file" + docId, "Title " + docId, null, "uri", "type", null);
+    }
+
+    /**
+     * An index holding rows, and enough rows without a match that every match ranks above 0.
+     */
+    private static MemorySearchIndex index(SearchRefinement.Candidate... rows) {
+        MemorySearchIndex index = new MemorySearchIndex();
+        for (SearchRefinement.Candidate row: rows) {
+            index.indexFile(row);
+        }
+        for (int docId=100; docId<110; docId++) {
+            index.indexFile(row(docId, 1.0, "lung", "lung"));
+        }
+        return index;
+    }
+
+    private static List<Long> docIds(List<SearchDatabase.RankedDocument> rankedDocuments) {
+        List<Long> docIds = new ArrayList<>();
+        for (SearchDatabase.RankedDocument rankedDocument: rankedDocuments) {
+            docIds.add(rankedDocument.docId);
+        }
+        return docIds;
+    }
+
+    //region Test Create
+    @Test
+    public void testInvalidProfilesAreNotCreated() {
+        double[] bConstants = {0.4, 0.4, 0.4, 0.4, 0.4};
+
+        assertThat(RankingProfile.newRankingProfile(null), nullValue());
+        assertThat(RankingProfile.newRankingProfile(new double[]{1, 2, 3}), nullValue());
+        assertThat(RankingProfile.newRankingProfile(new double[]{0, 0, 0, 0, 0}), nullValue());
+        assertThat(RankingProfile.newRankingProfile(new double[]{1, -1, 0, 0, 0}), nullValue());
+        assertThat(RankingProfile.newRankingProfile(TITLE_ONLY_WEIGHTS, 0.0, bConstants, 0.0), nullValue());
+        assertThat(RankingProfile.newRankingProfile(TITLE_ONLY_WEIGHTS, 1.2, new double[]{0.4, 0.4, 1.5, 0.4, 0.4}, 0.0), nullValue());
+        assertThat(RankingProfile.newRankingProfile(TITLE_ONLY_WEIGHTS, 1.2, bConstants, 1.0), notNullValue());
+    }
+
+    @Test
+    public void testProfileKeepsItsOwnCopyOfTheWeights() {
+        double[] weights = {1, 2, 3, 4, 5};
+        RankingProfile profile = RankingProfile.newRankingProfile(weights);
+        weights[0] = 100;
+
+        assertThat(profile.getWeights()[0], is(1.0));
+        assertThat(profile.key.equals(RankingProfile.newRankingProfile(new double[]{1, 2, 3, 4, 5}).key), is(true));
+        assertThat(profile.key.equals(RankingProfile.DEFAULT.key), is(false));
+    }
+    //endregion
+
+    //region Test Rank
+    @Test
+    public void testDefaultWeightsRankLikeTheDefaultProfile() {
+        MemorySearchIndex index = index(row(1, 1.0, "heart", null), row(2, 1.0, "heart lung heart", "heart"), row(3, 1.0, null, "heart rate"));
+
+        List<SearchDatabase.RankedDocument> expected = index.rankedDocuments("heart*", 10, RankingProfile.DEFAULT, null, null);
+        List<SearchDatabase.RankedDocument> actual = index.rankedDocuments("heart*", 10, RankingProfile.newRankingProfile(Rank.DEFAULT_WEIGHTS), null, null);
+
+        assertThat(actual.size(), is(3));
+        for (int i=0; i<actual.size(); i++) {
+            assertThat(actual.get(i).docId, is(expected.get(i).docId));
+            assertThat(actual.get(i).rank, is(expected.get(i).rank));
+        }
+    }
+
+    @Test
+    public void testTitleOnlyProfileIgnoresOtherColumns() {
+        MemorySearchIndex index = index(row(1, 1.0, "heart heart heart", "lung heart"), row(2, 1.0, null, "heart"));
+        RankingProfile titleOnly = RankingProfile.newRankingProfile(TITLE_ONLY_WEIGHTS);
+
+        assertThat(docIds(index.rankedDocuments("heart*", 10, RankingProfile.DEFAULT, null, null)), is(Arrays.asList(1L, 2L)));
+        assertThat(docIds(index.rankedDocuments("heart*", 10, titleOnly, null, null)), is(Arrays.asList(2L, 1L)));
+    }
+
+    @Test
+    public void testBoostInfluenceLiftsBoostedRows() {
+        MemorySearchIndex index = index(row(1, 1.0, null, "heart"), row(2, 4.0, "heart", null));
+        RankingProfile boosted = RankingProfile.newRankingProfile(Rank.DEFAULT_WEIGHTS, Rank.SATURATION_CONSTANT, RankingProfile.DEFAULT.getBConstants(), 2.0);
+
+        assertThat(docIds(index.rankedDocuments("heart*", 10, RankingProfile.DEFAULT, null, null)), is(Arrays.asList(1L, 2L)));
+        assertThat(docIds(index.rankedDocuments("heart*", 10, boosted, null, null)), is(Arrays.asList(2L, 1L)));
+    }
+    //endregion
+}
@@ -0,0 +1,87 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SearchAnalyzerTest {
+
+    @After
+    public void tearDown() {
+        SearchAnalyzer.setAnalyzerForLanguage("en", null);
+    }
+
+    //region Test Analyze
+    @Test
+    public void testEnglishDropsStopwordsAndFoldsPlurals() {
+        SearchAnalyzer analyzer = SearchAnalyzer.newEnglishAnalyzer();
+
+        assertThat(analyzer.analyze("The Symptoms of Heart Attacks"), is("symptom heart attack"));
+        assertThat(analyzer.analyze("allergies in the glasses"), is("allergy glass"));
+        assertThat(analyzer.analyze("the of and"), is(""));
+    }
+
+    @Test
+    public void testSpanish() {
+        SearchAnalyzer analyzer = SearchAnalyzer.newSpanishAnalyzer();
+
+        assertThat(analyzer.analyze("Las canciones de los pacientes"), is("cancion paciente"));
+        assertThat(analyzer.analyze("luces y meses"), is("luz mes"));
+    }
+
+    @Test
+    public void testFrench() {
+        SearchAnalyzer analyzer = SearchAnalyzer.newFrenchAnalyzer();
+
+        assertThat(analyzer.analyze("Les hopitaux et l'eau des bateaux"), is("hopital eau bateau"));
+        assertThat(analyzer.analyze("maladies graves"), is("maladie grave"));
+    }
+
+    @Test
+    public void testCustomTokenizerAndNoStemmer() {
+        SearchAnalyzer analyzer = SearchAnalyzer.newSearchAnalyzer(new SearchAnalyzer.Tokenizer() {
+            @Override
+            public List<String> tokenize(String text) {
+                return new ArrayList<>(Arrays.asList(text.split(",")));
+            }
+        }, Arrays.asList("skip"), null);
+
+        assertThat(analyzer.analyze("One,skip,Twos"), is("one twos"));
+    }
+    //endregion
+
+    //region Test Stemmers
+    @Test
+    public void testEnglishStemmerLeavesSingularsAlone() {
+        assertThat(SearchAnalyzer.stemEnglish("bus"), is("bus"));
+        assertThat(SearchAnalyzer.stemEnglish("toes"), is("toes"));
+        assertThat(SearchAnalyzer.stemEnglish("is"), is("is"));
+        assertThat(SearchAnalyzer.stemEnglish("heart"), is("heart"));
+    }
+    //endregion
+
+    //region Test Registry
+    @Test
+    public void testSearchableStringFromStringUsesRegisteredAnalyzer() {
+        assertThat(SearchAnalyzer.forLanguage("en-US"), nullValue());
+        assertThat(SearchDatabase.searchableStringFromString("The Heart Attacks", "en"), is("The Heart Attacks"));
+
+        SearchAnalyzer.setAnalyzerForLanguage("en", SearchAnalyzer.newEnglishAnalyzer());
+
+        assertThat(SearchDatabase.searchableStringFromString("The Heart Attacks", "en-US"), is("heart attack"));
+        assertThat(SearchDatabase.searchableStringFromString("The Heart Attacks", "es"), is("The Heart Attacks"));
+    }
+    //endregion
+}
@@ -0,0 +1,306 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SearchDatabaseTest {
+    private static final String DATABASE_NAME = "searchdatabasetest";
+    private static final String FRESH_DATABASE_NAME = "searchdatabasetestfresh";
+    private SearchDatabase database;
+
+    @Before
+    public void setup() {
+        database = new SearchDatabase(Robolectric.application, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        Robolectric.application.deleteDatabase(DATABASE_NAME);
+        Robolectric.application.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    private static IndexDocument document(String moduleId, String fileId, String text) {
+        Map<String, String> searchableStrings = new HashMap<>();
+        searchableStrings.put(SearchSchema.WEIGHT_0_KEY, text);
+        Map<String, String> fileMetadata = new HashMap<>();
+        fileMetadata.put(SearchSchema.TITLE_KEY, fileId);
+        return IndexDocument.newIndexDocument(moduleId, fileId, "en", 1.0, searchableStrings, fileMetadata);
+    }
+
+    private static Set<String> fileIds(List<SearchResult> results) {
+        Set<String> fileIds = new HashSet<>();
+        for (SearchResult result: results) {
+            fileIds.add(result.getFileId());
+        }
+        return fileIds;
+    }
+
+    private static Set<String> set(String... strings) {
+        return new HashSet<>(Arrays.asList(strings));
+    }
+
+    /**
+     * Every table and index in db, with the columns of each table, in name order.
+     */
+    private static List<String> schema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+        Cursor objects = db.rawQuery("SELECT type, name FROM sqlite_master ORDER BY name;", null);
+        try {
+            while (objects.moveToNext()) {
+                String type = objects.getString(0);
+                String name = objects.getString(1);
+                schema.add(type + " " + name);
+                if (!type.equals("table")) {
+                    continue;
+                }
+                Cursor columns = db.rawQuery("PRAGMA table_info(" + name + ");", null);
+                try {
+                    while (columns.moveToNext()) {
+                        schema.add(name + "." + columns.getString(1));
+                    }
+                } finally {
+                    columns.close();
+                }
+            }
+        } finally {
+            objects.close();
+        }
+        return schema;
+    }
+
+    private static void assertStatisticsMatchContent(SearchDatabase searchDatabase) {
+        SQLiteDatabase db = searchDatabase.getReadableDatabase();
+        long numberOfDocuments = 0;
+        long[] totalLengths = new long[IndexStatistics.NUMBER_OF_FIELDS];
+        Cursor cursor = db.rawQuery("SELECT " + SearchSchema.NORMS_KEY + " FROM " + SearchSchema.CONTENT_TABLE_NAME + ";", null);
+        try {
+            while (cursor.moveToNext()) {
+                numberOfDocuments++;
+                for (int field=0; field<totalLengths.length; field++) {
+                    totalLengths[field] += IndexStatistics.lengthFromNorms(cursor.getLong(0), field);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        IndexStatistics statistics = searchDatabase.statistics(db);
+        assertThat(statistics.numberOfDocuments, is(numberOfDocuments));
+        for (int field=0; field<totalLengths.length; field++) {
+            assertThat(statistics.totalLengths[field], is(totalLengths[field]));
+        }
+    }
+
+    private static SQLiteDatabase openOldDatabase() {
+        return SQLiteDatabase.openOrCreateDatabase(Robolectric.application.getDatabasePath(DATABASE_NAME), null);
+    }
+
+    private static void assertUpgradedSchemaIsCurrent(SearchDatabase upgraded) {
+        SearchDatabase fresh = new SearchDatabase(Robolectric.application, FRESH_DATABASE_NAME);
+        try {
+            assertThat(schema(upgraded.getReadableDatabase()), is(schema(fresh.getReadableDatabase())));
+        } finally {
+            fresh.close();
+        }
+    }
+
+    private void indexDocuments(String moduleId, int count, String text) {
+        List<IndexDocument> documents = new ArrayList<>(count);
+        for (int i=0; i<count; i++) {
+            documents.add(document(moduleId, "file" + i, text));
+        }
+        assertThat(database.indexFiles(documents).size(), is(count));
+    }
+
+    //region Test Search
+    @Test
+    public void testSearchReturnsPageLargerThanArgumentLimit() {
+        int count = SearchSchema.MAX_DOCIDS_PER_RESULTS_QUERY + 100;
+        indexDocuments("module", count, "heart attack");
+
+        List<SearchResult> results = database.search("heart", count, 0, false).getResults();
+
+        assertThat(results.size(), is(count));
+        assertThat(fileIds(results).size(), is(count));
+    }
+
+    @Test
+    public void testSearchFiltersByMoreModulesThanArgumentLimit() {
+        int numberOfModules = SearchSchema.MAX_MODULE_IDS_PER_RANK_QUERY + 200;
+        List<IndexDocument> documents = new ArrayList<>(numberOfModules);
+        for (int i=0; i<numberOfModules; i++) {
+            documents.add(document("module" + i, "file" + i, "heart attack"));
+        }
+        database.indexFiles(documents);
+
+        // Every other module, so each chunk of the filter leaves some out
+        List<String> moduleIds = new ArrayList<>();
+        Set<String> expectedFileIds = new HashSet<>();
+        for (int i=0; i<numberOfModules; i+=2) {
+            moduleIds.add("module" + i);
+            expectedFileIds.add("file" + i);
+        }
+        moduleIds.addAll(moduleIds.subList(0, 10));
+        for (int i=0; i<SearchSchema.MAX_MODULE_IDS_PER_RANK_QUERY; i++) {
+            moduleIds.add("missing" + i);
+        }
+        moduleIds.add("module1");
+        expectedFileIds.add("file1");
+
+        List<SearchResult> results = database.search("heart", numberOfModules, 0, false, moduleIds).getResults();
+
+        assertThat(results.size(), is(expectedFileIds.size()));
+        assertThat(fileIds(results), is(expectedFileIds));
+    }
+
+    @Test
+    public void testNumberOfPlaceholdersIsCappedAtMaximum() {
+        assertThat(SearchSchema.numberOfPlaceholdersForCount(3, SearchSchema.MAX_NUMBER_OF_ARGUMENTS), is(4));
+        assertThat(SearchSchema.numberOfPlaceholdersForCount(513, SearchSchema.MAX_NUMBER_OF_ARGUMENTS), is(SearchSchema.MAX_NUMBER_OF_ARGUMENTS));
+        assertThat(SearchSchema.numberOfPlaceholdersForCount(600, SearchSchema.MAX_DOCIDS_PER_RESULTS_QUERY), is(SearchSchema.MAX_DOCIDS_PER_RESULTS_QUERY));
+    }
+    //endregion
+
+    //region Test Index
+    @Test
+    public void testFailingDocumentRollsBackOnlyItself() {
+        List<IndexDocument> first = new ArrayList<>(2);
+        first.add(document("module", "file0", "heart attack"));
+        first.add(document("module", "bad", "heart murmur"));
+        database.indexFiles(first);
+        // Fail the document's last write, after its old version is deleted and the new one inserted
+        database.getWritableDatabase().execSQL("CREATE TRIGGER failbad BEFORE INSERT ON " + SearchSchema.METADATA_TABLE_NAME +
+                " WHEN NEW." + SearchSchema.FILE_ID_KEY + " = 'bad' BEGIN SELECT RAISE(ABORT, 'bad document'); END;");
+
+        List<IndexDocument> second = new ArrayList<>(3);
+        second.add(document("module", "file1", "heart stroke"));
+        second.add(document("module", "bad", "a much longer replacement text for the heart"));
+        second.add(document("module", "file2", "heart failure"));
+        List<IndexDocument> indexed = database.indexFiles(second);
+
+        assertThat(indexed.size(), is(2));
+        assertThat(indexed.get(0).getFileId(), is("file1"));
+        assertThat(indexed.get(1).getFileId(), is("file2"));
+        assertThat(fileIds(database.search("heart", 10, 0, false).getResults()), is(set("file0", "bad", "file1", "file2")));
+        assertThat(fileIds(database.search("murmur", 10, 0, false).getResults()), is(set("bad")));
+        assertThat(database.search("replacement", 10, 0, false).getResults().size(), is(0));
+        assertThat(database.statistics(database.getReadableDatabase()).numberOfDocuments, is(4L));
+        assertStatisticsMatchContent(database);
+    }
+
+    @Test
+    public void testStatisticsFollowEveryWrite() {
+        indexDocuments("module", 3, "heart attack");
+        assertStatisticsMatchContent(database);
+
+        List<IndexDocument> reindexed = new ArrayList<>(2);
+        reindexed.add(document("module", "file0", "a longer text about the heart than before"));
+        reindexed.add(document("other", "file0", "heart"));
+        database.indexFiles(reindexed);
+        assertThat(database.statistics(database.getReadableDatabase()).numberOfDocuments, is(4L));
+        assertStatisticsMatchContent(database);
+
+        assertThat(database.removeFileFromIndex("module", "file1"), is(true));
+        assertThat(database.statistics(database.getReadableDatabase()).numberOfDocuments, is(3L));
+        assertStatisticsMatchContent(database);
+
+        assertThat(database.removeModule("module"), is(true));
+        assertThat(database.statistics(database.getReadableDatabase()).numberOfDocuments, is(1L));
+        assertStatisticsMatchContent(database);
+    }
+    //endregion
+
+    //region Test Upgrade
+    @Test
+    public void testUpgradeFromVersion1() {
+        database.close();
+        SQLiteDatabase db = openOldDatabase();
+        db.execSQL("CREATE VIRTUAL TABLE searchindex USING FTS3 (moduleid TEXT NOT NULL, fileid TEXT NOT NULL, language TEXT NOT NULL, boost FLOAT NOT NULL, " +
+                "weight0 TEXT, weight1 TEXT, weight2 TEXT, weight3 TEXT, weight4 TEXT, PRIMARY KEY (moduleid, fileid));");
+        db.execSQL("CREATE TABLE searchmetadata (moduleid TEXT NOT NULL, fileid TEXT NOT NULL, title TEXT, subtitle TEXT, uri TEXT, type TEXT, imageuri TEXT, PRIMARY KEY (moduleid, fileid));");
+        db.execSQL("INSERT INTO searchindex (moduleid, fileid, language, boost, weight0) VALUES ('module', 'file0', 'en', 1.0, 'heart attack');");
+        db.execSQL("INSERT INTO searchmetadata (moduleid, fileid, title) VALUES ('module', 'file0', 'file0');");
+        db.setVersion(1);
+        db.close();
+
+        database = new SearchDatabase(Robolectric.application, DATABASE_NAME);
+
+        assertUpgradedSchemaIsCurrent(database);
+        // Version 1 indexes are dropped and indexed again from their source files
+        assertThat(database.search("heart", 10, 0, false).getResults().size(), is(0));
+        assertStatisticsMatchContent(database);
+        indexDocuments("module", 2, "heart attack");
+        assertThat(fileIds(database.search("heart", 10, 0, false).getResults()), is(set("file0", "file1")));
+    }
+
+    @Test
+    public void testUpgradeFromVersion2() {
+        database.close();
+        SQLiteDatabase db = openOldDatabase();
+        db.execSQL("CREATE VIRTUAL TABLE searchindex USING FTS4 (moduleid TEXT NOT NULL, fileid TEXT NOT NULL, language TEXT NOT NULL, boost FLOAT NOT NULL, " +
+                "weight0 TEXT, weight1 TEXT, weight2 TEXT, weight3 TEXT, weight4 TEXT, PRIMARY KEY (moduleid, fileid));");
+        db.execSQL("CREATE TABLE searchmetadata (moduleid TEXT NOT NULL, fileid TEXT NOT NULL, title TEXT, subtitle TEXT, uri TEXT, type TEXT, imageuri TEXT, PRIMARY KEY (moduleid, fileid));");
+        db.execSQL("INSERT INTO searchindex (moduleid, fileid, language, boost, weight0, weight1) VALUES ('module', 'file0', 'en', 1.0, 'Heart Attack', 'chest pain');");
+        db.execSQL("INSERT INTO searchindex (moduleid, fileid, language, boost, weight0) VALUES ('module', 'file1', 'en', 2.0, 'heart failure');");
+        db.execSQL("INSERT INTO searchmetadata (moduleid, fileid, title) VALUES ('module', 'file0', 'file0');");
+        db.execSQL("INSERT INTO searchmetadata (moduleid, fileid, title) VALUES ('module', 'file1', 'file1');");
+        db.setVersion(2);
+        db.close();
+
+        database = new SearchDatabase(Robolectric.application, DATABASE_NAME);
+
+        assertUpgradedSchemaIsCurrent(database);
+        assertThat(fileIds(database.search("heart", 10, 0, false).getResults()), is(set("file0", "file1")));
+        assertThat(fileIds(database.search("chest", 10, 0, false).getResults()), is(set("file0")));
+        assertThat(database.statistics(database.getReadableDatabase()).numberOfDocuments, is(2L));
+        assertStatisticsMatchContent(database);
+    }
+
+    @Test
+    public void testUpgradeFromVersion3() {
+        database.close();
+        SQLiteDatabase db = openOldDatabase();
+        db.execSQL("CREATE TABLE searchdocuments (docid INTEGER PRIMARY KEY, moduleid TEXT NOT NULL, fileid TEXT NOT NULL, language TEXT NOT NULL, boost FLOAT NOT NULL, " +
+                "weight0 TEXT, weight1 TEXT, weight2 TEXT, weight3 TEXT, weight4 TEXT, UNIQUE (moduleid, fileid));");
+        db.execSQL("CREATE VIRTUAL TABLE searchindex USING FTS4 (moduleid, fileid, language, boost, weight0, weight1, weight2, weight3, weight4, content=\"searchdocuments\");");
+        db.execSQL("CREATE TABLE searchmetadata (moduleid TEXT NOT NULL, fileid TEXT NOT NULL, title TEXT, subtitle TEXT, uri TEXT, type TEXT, imageuri TEXT, PRIMARY KEY (moduleid, fileid));");
+        db.execSQL("INSERT INTO searchdocuments (docid, moduleid, fileid, language, boost, weight0, weight1) VALUES (7, 'module', 'file0', 'en', 1.0, 'heart attack', 'chest pain');");
+        db.execSQL("INSERT INTO searchdocuments (docid, moduleid, fileid, language, boost, weight0) VALUES (9, 'module', 'file1', 'en', 2.0, 'heart failure');");
+        db.execSQL("INSERT INTO searchindex (searchindex) VALUES ('rebuild');");
+        db.execSQL("INSERT INTO searchmetadata (moduleid, fileid, title) VALUES ('module', 'file0', 'file0');");
+        db.execSQL("INSERT INTO searchmetadata (moduleid, fileid, title) VALUES ('module', 'file1', 'file1');");
+        db.setVersion(3);
+        db.close();
+
+        database = new SearchDatabase(Robolectric.application, DATABASE_NAME);
+
+        assertUpgradedSchemaIsCurrent(database);
+        assertThat(fileIds(database.search("heart", 10, 0, false).getResults()), is(set("file0", "file1")));
+        assertThat(fileIds(database.search("chest", 10, 0, false).getResults()), is(set("file0")));
+        assertThat(database.statistics(database.getReadableDatabase()).numberOfDocuments, is(2L));
+        assertStatisticsMatchContent(database);
+    }
+    //endregion
+}
@@ -0,0 +1,233 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SearchExecutorTest {
+    private SearchExecutor executor;
+    private CountDownLatch blockerStarted;
+    private CountDownLatch releaseBlocker;
+
+    @Before
+    public void setup() {
+        executor = new SearchExecutor(1, 1);
+        blockerStarted = new CountDownLatch(1);
+        releaseBlocker = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        releaseBlocker.countDown();
+        executor.shutdown();
+    }
+
+    private Runnable blocker() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                blockerStarted.countDown();
+                try {
+                    releaseBlocker.await();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    //region Test Execute
+    @Test
+    public void testExecuteRunsSearch() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Future<?> future = executor.execute(null, new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+
+        assertThat(future, notNullValue());
+        future.get(5, TimeUnit.SECONDS);
+        assertThat(ran.getCount(), is(0L));
+        assertThat(executor.getSubmittedCount(), is(1L));
+        assertThat(executor.getCompletedCount(), is(1L));
+        assertThat(executor.getPoolSize(), is(1));
+        assertThat(executor.getQueueCapacity(), is(1));
+    }
+
+    @Test
+    public void testExecuteSupersedesQueuedSearchWithSameKey() throws Exception {
+        Object key = new Object();
+        executor.execute(null, blocker());
+        assertThat(blockerStarted.await(5, TimeUnit.SECONDS), is(true));
+
+        final AtomicBoolean olderRan = new AtomicBoolean(false);
+        Future<?> older = executor.execute(key, new Runnable() {
+            @Override
+            public void run() {
+                olderRan.set(true);
+            }
+        });
+        final CountDownLatch newerRan = new CountDownLatch(1);
+        Future<?> newer = executor.execute(key, new Runnable() {
+            @Override
+            public void run() {
+                newerRan.countDown();
+            }
+        });
+
+        assertThat(older.isCancelled(), is(true));
+        assertThat(newer, notNullValue());
+        assertThat(executor.getSupersededCount(), is(1L));
+
+        releaseBlocker.countDown();
+        newer.get(5, TimeUnit.SECONDS);
+        assertThat(newerRan.getCount(), is(0L));
+        assertThat(olderRan.get(), is(false));
+    }
+
+    @Test
+    public void testExecuteInterruptsRunningSearchWithSameKey() throws Exception {
+        Object key = new Object();
+        Future<?> running = executor.execute(key, blocker());
+        assertThat(blockerStarted.await(5, TimeUnit.SECONDS), is(true));
+
+        Future<?> newer = executor.execute(key, new Runnable() {
+            @Override
+            public void run() {}
+        });
+
+        assertThat(running.isCancelled(), is(true));
+        newer.get(5, TimeUnit.SECONDS);
+        assertThat(executor.getSupersededCount(), is(1L));
+    }
+
+    @Test
+    public void testExecuteRejectsWhenQueueIsFull() throws Exception {
+        executor.execute(null, blocker());
+        assertThat(blockerStarted.await(5, TimeUnit.SECONDS), is(true));
+
+        Future<?> queued = executor.execute(null, new Runnable() {
+            @Override
+            public void run() {}
+        });
+        Future<?> rejected = executor.execute(null, new Runnable() {
+            @Override
+            public void run() {}
+        });
+
+        assertThat(queued, notNullValue());
+        assertThat(rejected, nullValue());
+        assertThat(executor.getQueueDepth(), is(1));
+        assertThat(executor.getRejectedCount(), is(1L));
+        assertThat(executor.getSubmittedCount(), is(3L));
+    }
+    //endregion
+
+    //region Test Debounce
+    @Test
+    public void testDebouncedSearchIsReplacedByNewerSearch() throws Exception {
+        Object key = new Object();
+        final AtomicBoolean olderRan = new AtomicBoolean(false);
+        SearchHandle olderHandle = new SearchHandle();
+        Future<?> older = executor.execute(key, new Runnable() {
+            @Override
+            public void run() {
+                olderRan.set(true);
+            }
+        }, olderHandle, 200, 0);
+        final CountDownLatch newerRan = new CountDownLatch(1);
+        Future<?> newer = executor.execute(key, new Runnable() {
+            @Override
+            public void run() {
+                newerRan.countDown();
+            }
+        }, new SearchHandle(), 200, 0);
+
+        assertThat(older.isCancelled(), is(true));
+        assertThat(olderHandle.isCancelled(), is(true));
+        newer.get(5, TimeUnit.SECONDS);
+        assertThat(newerRan.getCount(), is(0L));
+        assertThat(olderRan.get(), is(false));
+        assertThat(executor.getDebouncedCount(), is(2L));
+        assertThat(executor.getSupersededCount(), is(1L));
+    }
+
+    @Test
+    public void testCoalescingWindowCapsDebounce() throws Exception {
+        Object key = new Object();
+        long start = System.nanoTime();
+        executor.execute(key, new Runnable() {
+            @Override
+            public void run() {}
+        }, null, 10000, 100);
+        Future<?> newer = executor.execute(key, new Runnable() {
+            @Override
+            public void run() {}
+        }, null, 10000, 100);
+
+        newer.get(5, TimeUnit.SECONDS);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000, is(true));
+    }
+
+    @Test
+    public void testSupersessionCancelsRunningHandle() throws Exception {
+        Object key = new Object();
+        SearchHandle runningHandle = new SearchHandle();
+        executor.execute(key, blocker(), runningHandle, 0, 0);
+        assertThat(blockerStarted.await(5, TimeUnit.SECONDS), is(true));
+
+        executor.execute(key, new Runnable() {
+            @Override
+            public void run() {}
+        }, new SearchHandle(), 0, 0).get(5, TimeUnit.SECONDS);
+
+        assertThat(runningHandle.isCancelled(), is(true));
+        assertThat(runningHandle.isDone(), is(true));
+    }
+
+    @Test
+    public void testCancelledSearchIsNoLongerTheLatest() throws Exception {
+        Object key = new Object();
+        SearchHandle handle = new SearchHandle();
+        Future<?> debounced = executor.execute(key, new Runnable() {
+            @Override
+            public void run() {}
+        }, handle, 10000, 0);
+        assertThat(executor.getLatestTaskCount(), is(1));
+
+        debounced.cancel(false);
+
+        assertThat(handle.isCancelled(), is(true));
+        assertThat(executor.getLatestTaskCount(), is(0));
+
+        executor.execute(null, blocker());
+        assertThat(blockerStarted.await(5, TimeUnit.SECONDS), is(true));
+        Future<?> queued = executor.execute(key, new Runnable() {
+            @Override
+            public void run() {}
+        });
+        assertThat(executor.getLatestTaskCount(), is(1));
+
+        queued.cancel(false);
+
+        assertThat(executor.getLatestTaskCount(), is(0));
+    }
+    //endregion
+}
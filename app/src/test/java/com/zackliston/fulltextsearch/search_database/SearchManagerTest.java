@@ -42,6 +42,7 @@ import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.CoreMatchers.is;
 import static org.mockito.Mockito.times;
@@ -79,6 +80,17 @@ public class SearchManagerTest {
         manager.initialize(context);
         verify(mockManager).setupFileDirectories(eq(context));
     }
+
+    @Test
+    public void testInitializeTwiceKeepsIndexJournal() {
+        SearchManager manager = new SearchManager();
+        manager.initialize(Robolectric.application);
+        IndexJournal journal = manager.indexJournal;
+
+        manager.initialize(Robolectric.application);
+
+        assertThat(manager.indexJournal, sameInstance(journal));
+    }
     //endregion
 
     //region Test Setup
@@ -96,6 +108,17 @@ public class SearchManagerTest {
         assertThat(afterDatabase.getDatabaseName(), is(name));
     }
 
+    @Test
+    public void testSetupSearchDatabaseTwiceKeepsFirstDatabase() throws Exception {
+        String name = "dbName";
+        SearchManager.getInstance().setupSearchDatabase(Robolectric.application, name);
+        SearchDatabase firstDatabase = SearchManager.getInstance().searchDatabaseMap.get(name);
+
+        SearchManager.getInstance().setupSearchDatabase(Robolectric.application, name);
+
+        assertThat(SearchManager.getInstance().searchDatabaseMap.get(name), is(firstDatabase));
+    }
+
     @Test
     public void testSetupFileSystem() {
         Context context = Robolectric.application;
@@ -482,6 +505,53 @@ public class SearchManagerTest {
         boolean success = mockManager.queueRemoveFile(moduleId, fileId, searchDatabaseName);
         assertThat(success, is(false));
     }
+
+    @Test
+    public void testQueueRemoveModule() throws Exception {
+        String moduleId = "moaedasdf";
+        String searchDatabaseName = "searchDB12";
+
+        SearchManager manager = new SearchManager();
+        manager.initialize(Robolectric.application);
+
+        SearchManager mockManager = spy(manager);
+
+        TaskManager mockTaskManager = mock(TaskManager.class);
+        doReturn(true).when(mockTaskManager).queueTask(Matchers.any(Task.class));
+
+        doReturn(mockTaskManager).when(mockManager).getTaskManager(Matchers.any(Context.class));
+
+        boolean success = mockManager.queueRemoveModule(moduleId, searchDatabaseName);
+        assertThat(success, is(true));
+
+        ArgumentCaptor<Task> captor = ArgumentCaptor.forClass(Task.class);
+        verify(mockTaskManager).queueTask(captor.capture());
+
+        Task task = captor.getValue();
+        assertThat(task.getTaskType(), is(SearchManager.TASK_TYPE));
+        assertThat(task.getMinorPriority(), is(SearchManager.MINOR_PRIORITY_REMOVE));
+
+        JSONObject jsonData = task.getJsonData();
+        assertThat(jsonData.getString(SearchTaskWorker.MODULE_ID_KEY), is(moduleId));
+        assertThat(jsonData.has(SearchTaskWorker.FILE_ID_KEY), is(false));
+        assertThat(jsonData.getInt(SearchTaskWorker.ACTION_TYPE_KEY), is(SearchManager.ActionType.REMOVE_MODULE_FROM_INDEX.getValue()));
+        assertThat(jsonData.getString(SearchTaskWorker.DATABASE_NAME_KEY), is(searchDatabaseName));
+    }
+
+    @Test
+    public void testQueueRemoveModuleNoModuleId() throws Exception {
+        SearchManager manager = new SearchManager();
+        manager.initialize(Robolectric.application);
+
+        SearchManager mockManager = spy(manager);
+
+        TaskManager mockTaskManager = mock(TaskManager.class);
+        doReturn(mockTaskManager).when(mockManager).getTaskManager(Matchers.any(Context.class));
+
+        boolean success = mockManager.queueRemoveModule(null, "searchDB12");
+        assertThat(success, is(false));
+        verify(mockTaskManager, never()).queueTask(Matchers.any(Task.class));
+    }
     //endregion
 
     //region Test File Operations
@@ -558,6 +628,32 @@ public class SearchManagerTest {
 
         SearchTaskWorker searchTaskWorker = (SearchTaskWorker)worker;
         assertThat(searchTaskWorker.delegate, is(SearchManager.getInstance().searchWorkerDelegate));
+        assertThat(searchTaskWorker.indexBatchSize, is(SearchTaskWorker.DEFAULT_INDEX_BATCH_SIZE));
+    }
+
+    @Test
+    public void testTaskWorkerForWorkItemUsesIndexBatchSize() throws Exception {
+        SearchManager.getInstance().setIndexBatchSize(25);
+        SearchManager.getInstance().setIndexBatchSize(0);
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        InternalWorkItem mockWorkItem = spy(workItem);
+        when(mockWorkItem.getTaskType()).thenReturn(SearchManager.TASK_TYPE);
+
+        SearchTaskWorker searchTaskWorker = (SearchTaskWorker) SearchManager.getInstance().taskWorkerForWorkItem(mockWorkItem);
+        assertThat(searchTaskWorker.indexBatchSize, is(25));
+    }
+    //endregion
+
+    //region Test Local Search
+    @Test
+    public void testLocalSearchDatabaseNotSetup() throws Exception {
+        SearchManager.SearchCallback callback = mock(SearchManager.SearchCallback.class);
+
+        boolean success = SearchManager.getInstance().localSearch("heart", 10, 0, "notsetup", callback);
+
+        assertThat(success, is(false));
+        assertThat(SearchManager.getInstance().localSearch("heart", 10, 0, "notsetup", 0, 0, callback), nullValue());
     }
     //endregion
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SearchNormalizerTest {
+
+    private static String normalize(String text) {
+        return SearchNormalizer.forLanguage(null).normalize(text);
+    }
+
+    //region Test Normalize
+    @Test
+    public void testPlainASCIIIsReturnedAsIs() {
+        String text = "Heart attack, (acute) 12mg";
+
+        assertThat(normalize(text), sameInstance(text));
+        assertThat(normalize(""), is(""));
+        assertThat(normalize(null), nullValue());
+    }
+
+    @Test
+    public void testWhitespaceIsCollapsedAndTrimmed() {
+        assertThat(normalize("  heart \t\n attack "), is("heart attack"));
+        assertThat(normalize("heart\u00A0\u3000attack"), is("heart attack"));
+        assertThat(normalize("   "), is(""));
+    }
+
+    @Test
+    public void testAccentsAreStripped() {
+        assertThat(normalize("Caf\u00E9 cr\u00E8me br\u00FBl\u00E9e"), is("Cafe creme brulee"));
+        assertThat(normalize("\u00C9CLAIR"), is("ECLAIR"));
+        // Already decomposed, with a combining acute accent
+        assertThat(normalize("cafe\u0301"), is("cafe"));
+        assertThat(normalize("Ni\u00F1o \u0141\u00F3d\u017A"), is("Nino Lodz"));
+    }
+
+    @Test
+    public void testLettersOutsideASCIIAreLowerCased() {
+        assertThat(normalize("\u0391\u03A3\u03A0\u0399\u03A1\u0399\u039D\u0397"), is("\u03B1\u03C3\u03C0\u03B9\u03C1\u03B9\u03BD\u03B7"));
+        assertThat(normalize("\u0439\u041E\u0414"), is("\u0439\u043E\u0434"));
+        assertThat(normalize("\u03BA\u03CC\u03C3\u03BC\u03BF\u03C2"), is("\u03BA\u03BF\u03C3\u03BC\u03BF\u03C3"));
+    }
+
+    @Test
+    public void testFullWidthFormsBecomeASCII() {
+        assertThat(normalize("\uFF21\uFF53\uFF50\uFF49\uFF52\uFF49\uFF4E\u3000\uFF15\uFF10\uFF10"), is("Aspirin 500"));
+    }
+
+    @Test
+    public void testPunctuation() {
+        assertThat(normalize("Parkinson\u2019s \u201Cdisease\u201D \u2014 early\u2013onset"), is("Parkinson's \"disease\" - early-onset"));
+        assertThat(normalize("\u00BFQu\u00E9?\u2026 s\u00ED"), is("Que? si"));
+        assertThat(normalize("acetyl\u00ADsalicylic\u200B acid"), is("acetylsalicylic acid"));
+    }
+
+    @Test
+    public void testExpansions() {
+        assertThat(normalize("Stra\u00DFe \u00C6sop \u0153uvre \uFB01le"), is("Strasse AEsop oeuvre file"));
+    }
+    //endregion
+
+    //region Test Language
+    @Test
+    public void testNordicLettersAreKeptForNordicLanguages() {
+        String text = "Bl\u00C5b\u00E6r \u00F6l caf\u00E9";
+
+        assertThat(SearchNormalizer.forLanguage("sv").normalize(text), is("Bl\u00E5b\u00E6r \u00F6l cafe"));
+        assertThat(SearchNormalizer.forLanguage("nb-NO").normalize(text), is("Bl\u00E5b\u00E6r \u00F6l cafe"));
+        assertThat(SearchNormalizer.forLanguage("en").normalize(text), is("BlAbaer ol cafe"));
+    }
+
+    @Test
+    public void testLanguagesWithoutRulesShareTheDefault() {
+        assertThat(SearchNormalizer.forLanguage("en_US"), sameInstance(SearchNormalizer.forLanguage(null)));
+        assertThat(SearchNormalizer.forLanguage(""), sameInstance(SearchNormalizer.forLanguage(null)));
+        assertThat(SearchNormalizer.forLanguage("SV"), sameInstance(SearchNormalizer.forLanguage("sv")));
+    }
+
+    @Test
+    public void testSearchableStringFromStringUsesLanguage() {
+        assertThat(SearchDatabase.searchableStringFromString("\u00C5ngstr\u00F6m"), is("Angstrom"));
+        assertThat(SearchDatabase.searchableStringFromString("\u00C5ngstr\u00F6m", "sv"), is("\u00E5ngstr\u00F6m"));
+    }
+    //endregion
+}
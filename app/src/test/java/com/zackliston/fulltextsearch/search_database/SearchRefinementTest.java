@@ -0,0 +1,134 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SearchRefinementTest {
+
+    private static SearchRefinement.Candidate candidate(long docId, String weight0, String weight4) {
+        String[] columns = {"module", "file" + docId, "en", "1.0", weight0, null, null, null, weight4};
+        return new SearchRefinement.Candidate(docId, 1.0, columns, "module", "file" + docId, "Title " + docId, null, "uri", "type", null);
+    }
+
+    private static SearchRefinement.State state(String formattedSearchText, List<SearchRefinement.Candidate> candidates) {
+        return new SearchRefinement.State(formattedSearchText, new IndexStatistics(100, new long[IndexStatistics.NUMBER_OF_FIELDS]), candidates);
+    }
+
+    //region Test Phrase
+    @Test
+    public void testPhraseTokenizesLikeFTS() {
+        SearchRefinement.Phrase phrase = SearchRefinement.Phrase.newPhrase("Card-io he*");
+
+        assertThat(phrase.terms.length, is(3));
+        assertThat(phrase.terms[0], is("card"));
+        assertThat(phrase.isPrefix[0], is(false));
+        assertThat(phrase.terms[1], is("io"));
+        assertThat(phrase.isPrefix[1], is(false));
+        assertThat(phrase.terms[2], is("he"));
+        assertThat(phrase.isPrefix[2], is(true));
+    }
+
+    @Test
+    public void testPhraseWithoutTokens() {
+        assertThat(SearchRefinement.Phrase.newPhrase("--*"), nullValue());
+    }
+
+    @Test
+    public void testHitPositionsRecordsLastToken() {
+        SearchRefinement.Phrase phrase = SearchRefinement.Phrase.newPhrase("heart car*");
+        String text = "Heart, cardiology and the heart cart";
+        SimpleTokenizer.Tokens tokens = SimpleTokenizer.tokenize(text);
+        int[] positions = new int[tokens.count];
+
+        assertThat(phrase.hitPositions(text, tokens, positions), is(2));
+        assertThat(positions[0], is(1));
+        assertThat(positions[1], is(5));
+    }
+    //endregion
+
+    //region Test Refine
+    @Test
+    public void testCanRefineOnlyGrowingQueries() {
+        SearchRefinement.State state = state("car*", new ArrayList<SearchRefinement.Candidate>());
+
+        assertThat(state.canRefine("card*"), is(true));
+        assertThat(state.canRefine("car d*"), is(true));
+        assertThat(state.canRefine("car*"), is(true));
+        assertThat(state.canRefine("ca*"), is(false));
+        assertThat(state.canRefine("cat*"), is(false));
+    }
+
+    @Test
+    public void testRefineFiltersAndRanksCandidates() {
+        List<SearchRefinement.Candidate> candidates = new ArrayList<>();
+        candidates.add(candidate(1, "a car in the body", null));
+        candidates.add(candidate(2, "cardiology in the body", null));
+        candidates.add(candidate(3, "nothing here", "Cardiology"));
+
+        SearchRefinement.State refined = state("car*", candidates).refine("cardio*", RankingProfile.DEFAULT, null);
+
+        assertThat(refined, notNullValue());
+        assertThat(refined.candidates.size(), is(2));
+        // A hit in weight4 is worth more than one in weight0
+        assertThat(refined.candidates.get(0).docId, is(3L));
+        assertThat(refined.candidates.get(1).docId, is(2L));
+        assertThat(refined.canRefine("cardiol*"), is(true));
+
+        List<SearchResult> results = refined.searchResults(1, 1, 2);
+        assertThat(results.size(), is(1));
+        assertThat(results.get(0).getSnippet(), is("cardiology in"));
+    }
+
+    @Test
+    public void testRefineStopsWhenCancelled() {
+        List<SearchRefinement.Candidate> candidates = new ArrayList<>();
+        candidates.add(candidate(1, "car", null));
+        SearchHandle handle = new SearchHandle();
+        handle.cancelQuery();
+
+        assertThat(state("car*", candidates).refine("card*", RankingProfile.DEFAULT, handle), nullValue());
+    }
+
+    @Test
+    public void testRefinementIsDroppedWhenIndexChanges() {
+        SearchRefinement refinement = new SearchRefinement();
+        SearchRefinement.State state = state("car*", new ArrayList<SearchRefinement.Candidate>());
+        refinement.update(null, 1, state);
+
+        assertThat(refinement.stateForRefinement(null, 1, "card*"), is(state));
+        assertThat(refinement.stateForRefinement(null, 2, "card*"), nullValue());
+        refinement.clear();
+        assertThat(refinement.stateForRefinement(null, 1, "card*"), nullValue());
+    }
+    //endregion
+
+    //region Test Snippet
+    @Test
+    public void testSnippetIsShiftedToCenterTheHit() {
+        SearchRefinement.Candidate candidate = candidate(1, "one two three four five six seven heart eight nine ten eleven", null);
+        SearchRefinement.Phrase phrase = SearchRefinement.Phrase.newPhrase("heart*");
+
+        assertThat(SearchRefinement.snippet(candidate, phrase, 5), is("six seven heart eight nine"));
+    }
+
+    @Test
+    public void testSnippetKeepsLeadingAndTrailingText() {
+        SearchRefinement.Candidate candidate = candidate(1, "(heart body).", null);
+        SearchRefinement.Phrase phrase = SearchRefinement.Phrase.newPhrase("heart*");
+
+        assertThat(SearchRefinement.snippet(candidate, phrase, 4), is("(heart body)."));
+    }
+    //endregion
+}
@@ -0,0 +1,106 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SearchResultCacheTest {
+    private SearchResultCache cache;
+
+    @Before
+    public void setup() {
+        cache = new SearchResultCache(2);
+    }
+
+    private static SearchDatabase.SearchReturn searchReturn(String title) {
+        List<SearchResult> results = new ArrayList<>();
+        results.add(SearchResult.newSearchResult(title, null, null, "uri", "type", null, false, "file", "module"));
+        return new SearchDatabase.SearchReturn(results, new ArrayList<String>());
+    }
+
+    private static SearchResultCache.Key key(String searchText) {
+        return SearchResultCache.Key.newKey("database", searchText, 10, 0, true);
+    }
+
+    //region Test Key
+    @Test
+    public void testKeyNormalizesSearchText() {
+        assertThat(key("  Heart   Attack "), is(key("heart attack")));
+        assertThat(key("heart"), not(key("heart attack")));
+        assertThat(SearchResultCache.Key.newKey("database", "heart", 10, 10, true), not(key("heart")));
+        assertThat(SearchResultCache.Key.newKey("other", "heart", 10, 0, true), not(key("heart")));
+    }
+
+    @Test
+    public void testKeyForEmptySearch() {
+        assertThat(key("   "), nullValue());
+    }
+    //endregion
+
+    //region Test Cache
+    @Test
+    public void testGetReturnsSnapshotOfPut() {
+        SearchDatabase.SearchReturn searchReturn = searchReturn("Heart");
+        cache.put(key("heart"), 1, searchReturn);
+
+        SearchDatabase.SearchReturn cached = cache.get(key("heart"), 1);
+
+        assertThat(cached, notNullValue());
+        assertThat(cached.getResults().size(), is(1));
+        assertThat(cached.getResults().get(0).getTitle(), is("Heart"));
+        assertThat(cached.getResults().get(0), not(sameInstance(searchReturn.getResults().get(0))));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(0L));
+    }
+
+    @Test
+    public void testGetMissesAfterIndexGenerationChanges() {
+        cache.put(key("heart"), 1, searchReturn("Heart"));
+
+        assertThat(cache.get(key("heart"), 2), nullValue());
+        assertThat(cache.get(key("heart"), 1), nullValue());
+        assertThat(cache.getMissCount(), is(2L));
+        assertThat(cache.getSize(), is(0));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        cache.put(key("one"), 1, searchReturn("One"));
+        cache.put(key("two"), 1, searchReturn("Two"));
+        cache.get(key("one"), 1);
+        cache.put(key("three"), 1, searchReturn("Three"));
+
+        assertThat(cache.getSize(), is(2));
+        assertThat(cache.getEvictionCount(), is(1L));
+        assertThat(cache.get(key("two"), 1), nullValue());
+        assertThat(cache.get(key("one"), 1), notNullValue());
+        assertThat(cache.get(key("three"), 1), notNullValue());
+    }
+
+    @Test
+    public void testSetMaxSizeTrimsAndDisables() {
+        cache.put(key("one"), 1, searchReturn("One"));
+        cache.put(key("two"), 1, searchReturn("Two"));
+
+        cache.setMaxSize(0);
+        cache.put(key("three"), 1, searchReturn("Three"));
+
+        assertThat(cache.getSize(), is(0));
+        assertThat(cache.getEvictionCount(), is(2L));
+    }
+    //endregion
+}
@@ -13,11 +13,14 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,9 +28,7 @@ import java.util.Map;
 import static org.hamcrest.CoreMatchers.any;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Matchers.anyList;
-import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
@@ -144,6 +145,61 @@ public class SearchTaskWorkerTest {
         verify(mockTaskFinishedInterface).taskWorkerFinishedSuccessfully(eq(taskWorker), eq(false));
     }
 
+    @Test
+    public void testRunRemoveModule() {
+        String moduleId = "123mod";
+        SearchDatabase mockDb = mock(SearchDatabase.class);
+
+        taskWorker.moduleId = moduleId;
+        taskWorker.searchDatabase = mockDb;
+        taskWorker.type = SearchManager.ActionType.REMOVE_MODULE_FROM_INDEX;
+
+        when(mockDb.removeModule(anyString())).thenReturn(true);
+
+        taskWorker.run();
+
+        verify(mockDb).removeModule(eq(moduleId));
+        verify(mockDb, never()).removeFileFromIndex(anyString(), anyString());
+        verify(mockTaskFinishedInterface).taskWorkerFinishedSuccessfully(eq(taskWorker), eq(true));
+    }
+
+    @Test
+    public void testRunMaintainIndexReportsToDelegate() {
+        SearchDatabase mockDb = mock(SearchDatabase.class);
+        SearchManager.IndexMaintenanceDelegate mockDelegate = mock(SearchManager.IndexMaintenanceDelegate.class);
+        IndexMaintenance.Report report = new IndexMaintenance.Report();
+        report.isComplete = true;
+
+        taskWorker.searchDatabase = mockDb;
+        taskWorker.searchDatabaseName = "maintainedDB";
+        taskWorker.indexMaintenanceDelegate = mockDelegate;
+        taskWorker.type = SearchManager.ActionType.MAINTAIN_INDEX;
+
+        when(mockDb.maintainIndex()).thenReturn(report);
+
+        taskWorker.run();
+
+        verify(mockDelegate).indexMaintenanceFinished(eq("maintainedDB"), eq(report));
+        verify(mockDb, never()).indexDidChange();
+        verify(mockTaskFinishedInterface).taskWorkerFinishedSuccessfully(eq(taskWorker), eq(true));
+    }
+
+    @Test
+    public void testRunMaintainIndexInterruptedBySearchFails() {
+        SearchDatabase mockDb = mock(SearchDatabase.class);
+        IndexMaintenance.Report report = new IndexMaintenance.Report();
+        report.isComplete = false;
+
+        taskWorker.searchDatabase = mockDb;
+        taskWorker.type = SearchManager.ActionType.MAINTAIN_INDEX;
+
+        when(mockDb.maintainIndex()).thenReturn(report);
+
+        taskWorker.run();
+
+        verify(mockTaskFinishedInterface).taskWorkerFinishedSuccessfully(eq(taskWorker), eq(false));
+    }
+
     @Test
     public void testRunIndexSuccess() throws Exception {
         String url1 = "oneURL";
@@ -156,11 +212,10 @@ public class SearchTaskWorkerTest {
 
         SearchTaskWorker mockWorker = spy(taskWorker);
         doNothing().when(mockWorker).taskFinishedWasSuccessful(anyBoolean());
-        when(mockWorker.indexFileFromURL(anyString())).thenReturn(true);
+        doReturn(true).when(mockWorker).indexFilesFromURLs(anyList());
 
         mockWorker.run();
-        verify(mockWorker).indexFileFromURL(eq(url1));
-        verify(mockWorker).indexFileFromURL(eq(url2));
+        verify(mockWorker).indexFilesFromURLs(eq(taskWorker.urlArray));
         verify(mockWorker).taskFinishedWasSuccessful(eq(true));
     }
 
@@ -176,19 +231,52 @@ public class SearchTaskWorkerTest {
 
         SearchTaskWorker mockWorker = spy(taskWorker);
         doNothing().when(mockWorker).taskFinishedWasSuccessful(anyBoolean());
-        when(mockWorker.indexFileFromURL(eq(url1))).thenReturn(true);
-        when(mockWorker.indexFileFromURL(eq(url2))).thenReturn(false);
+        doReturn(false).when(mockWorker).indexFilesFromURLs(anyList());
 
         mockWorker.run();
-        verify(mockWorker).indexFileFromURL(eq(url1));
-        verify(mockWorker).indexFileFromURL(eq(url2));
+        verify(mockWorker).indexFilesFromURLs(eq(taskWorker.urlArray));
         verify(mockWorker).taskFinishedWasSuccessful(eq(false));
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRunIndexInBatches() throws Exception {
+        taskWorker.urlArray = new ArrayList<>(3);
+        taskWorker.urlArray.add("oneURL");
+        taskWorker.urlArray.add("twoURL");
+        taskWorker.urlArray.add("threeURL");
+        taskWorker.type = SearchManager.ActionType.INDEX_FILE;
+        taskWorker.indexBatchSize = 2;
+
+        SearchTaskWorker mockWorker = spy(taskWorker);
+        doNothing().when(mockWorker).taskFinishedWasSuccessful(anyBoolean());
+        doReturn(true).when(mockWorker).indexFilesFromURLs(anyList());
+
+        mockWorker.run();
+
+        ArgumentCaptor<List> batchCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockWorker, times(2)).indexFilesFromURLs(batchCaptor.capture());
+        assertThat(batchCaptor.getAllValues().get(0).size(), is(2));
+        assertThat(batchCaptor.getAllValues().get(1).size(), is(1));
+        assertThat((String) batchCaptor.getAllValues().get(1).get(0), is("threeURL"));
+        verify(mockWorker).taskFinishedWasSuccessful(eq(true));
+    }
     //endregion
 
     //region Test Index
+    private static void assertIndexDocument(IndexDocument document, String moduleId, String fileId, String language, double boost,
+                                            Map<String, String> searchableStrings, Map<String, String> fileMetadata) {
+        assertThat(document.getModuleId(), is(moduleId));
+        assertThat(document.getFileId(), is(fileId));
+        assertThat(document.getLanguage(), is(language));
+        assertThat(document.getBoost(), is(boost));
+        assertThat(document.getSearchableStrings(), is(searchableStrings));
+        assertThat(document.getFileMetadata(), is(fileMetadata));
+    }
+
+    @SuppressWarnings("unchecked")
     @Test
-    public void testIndexFileFromURLSuccess() throws Exception {
+    public void testIndexFilesFromURLsSuccess() throws Exception {
         String moduleId = "Mod234";
         String fileId = "file222";
         String language = "3n";
@@ -214,13 +302,20 @@ public class SearchTaskWorkerTest {
         SearchManager.writeJSONToFile(absoluteURL, data);
 
         SearchDatabase mockDB = mock(SearchDatabase.class);
-        when(mockDB.indexFile(anyString(), anyString(), anyString(), anyDouble(), anyMap(), anyMap())).thenReturn(true);
+        ArgumentCaptor<List> documentsCaptor = ArgumentCaptor.forClass(List.class);
+        when(mockDB.indexFiles(documentsCaptor.capture())).thenAnswer(new Answer<List<IndexDocument>>() {
+            @Override
+            public List<IndexDocument> answer(InvocationOnMock invocation) throws Throwable {
+                return (List<IndexDocument>) invocation.getArguments()[0];
+            }
+        });
         taskWorker.searchDatabase = mockDB;
         taskWorker.succeededIndexFileInfoMaps = new ArrayList<>(1);
 
-        boolean success = taskWorker.indexFileFromURL(relativeURL);
+        boolean success = taskWorker.indexFilesFromURLs(Arrays.asList(relativeURL));
         assertThat(success, is(true));
-        verify(mockDB).indexFile(eq(moduleId), eq(fileId), eq(language), eq(boost), eq(searchableStrings), eq(fileMetadata));
+        assertThat(documentsCaptor.getValue().size(), is(1));
+        assertIndexDocument((IndexDocument) documentsCaptor.getValue().get(0), moduleId, fileId, language, boost, searchableStrings, fileMetadata);
 
         assertThat(taskWorker.succeededIndexFileInfoMaps.size(), is(1));
         Map<String, String> map = taskWorker.succeededIndexFileInfoMaps.get(0);
@@ -229,8 +324,9 @@ public class SearchTaskWorkerTest {
         assertThat(map.get(SearchTaskWorker.URL_KEY), is(relativeURL));
     }
 
+    @SuppressWarnings("unchecked")
     @Test
-    public void testIndexFileFromURLFailure() throws Exception {
+    public void testIndexFilesFromURLsFailure() throws Exception {
         String moduleId = "Mod234";
         String fileId = "file222";
         String language = "3n";
@@ -256,16 +352,68 @@ public class SearchTaskWorkerTest {
         SearchManager.writeJSONToFile(absoluteURL, data);
 
         SearchDatabase mockDB = mock(SearchDatabase.class);
-        when(mockDB.indexFile(anyString(), anyString(), anyString(), anyDouble(), anyMap(), anyMap())).thenReturn(false);
+        ArgumentCaptor<List> documentsCaptor = ArgumentCaptor.forClass(List.class);
+        when(mockDB.indexFiles(documentsCaptor.capture())).thenReturn(new ArrayList<IndexDocument>());
         taskWorker.searchDatabase = mockDB;
         taskWorker.succeededIndexFileInfoMaps = new ArrayList<>(1);
 
-        boolean success = taskWorker.indexFileFromURL(relativeURL);
+        boolean success = taskWorker.indexFilesFromURLs(Arrays.asList(relativeURL));
         assertThat(success, is(false));
-        verify(mockDB).indexFile(eq(moduleId), eq(fileId), eq(language), eq(boost), eq(searchableStrings), eq(fileMetadata));
+        assertThat(documentsCaptor.getValue().size(), is(1));
+        assertIndexDocument((IndexDocument) documentsCaptor.getValue().get(0), moduleId, fileId, language, boost, searchableStrings, fileMetadata);
 
         assertThat(taskWorker.succeededIndexFileInfoMaps.size(), is(0));
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testIndexFilesFromURLsPartialSuccess() throws Exception {
+        List<String> urls = new ArrayList<>(2);
+        for (String fileId: new String[]{"file1", "file2"}) {
+            Map<String, String> searchableStrings = new HashMap<>(1);
+            searchableStrings.put(SearchManager.WEIGHT_0, "text " + fileId);
+            urls.add(SearchManager.saveIndexFileInfoToFile("mod", fileId, "en", 1.0, searchableStrings, new HashMap<String, String>()));
+        }
+
+        SearchDatabase mockDB = mock(SearchDatabase.class);
+        final ArgumentCaptor<List> documentsCaptor = ArgumentCaptor.forClass(List.class);
+        when(mockDB.indexFiles(documentsCaptor.capture())).thenAnswer(new Answer<List<IndexDocument>>() {
+            @Override
+            public List<IndexDocument> answer(InvocationOnMock invocation) throws Throwable {
+                List<IndexDocument> documents = (List<IndexDocument>) invocation.getArguments()[0];
+                return documents.subList(1, 2);
+            }
+        });
+        taskWorker.searchDatabase = mockDB;
+        taskWorker.succeededIndexFileInfoMaps = new ArrayList<>(2);
+
+        boolean success = taskWorker.indexFilesFromURLs(urls);
+        assertThat(success, is(false));
+        verify(mockDB, times(1)).indexFiles(anyList());
+        assertThat(documentsCaptor.getValue().size(), is(2));
+
+        assertThat(taskWorker.succeededIndexFileInfoMaps.size(), is(1));
+        Map<String, String> map = taskWorker.succeededIndexFileInfoMaps.get(0);
+        assertThat(map.get(SearchTaskWorker.FILE_ID_KEY), is("file2"));
+        assertThat(map.get(SearchTaskWorker.URL_KEY), is(urls.get(1)));
+    }
+
+    @Test
+    public void testIndexDocumentFromJournalReference() throws Exception {
+        Map<String, String> searchableStrings = new HashMap<>(1);
+        searchableStrings.put(SearchManager.WEIGHT_0, "journal text");
+        List<IndexDocument> documents = new ArrayList<>(1);
+        documents.add(IndexDocument.newIndexDocument("mod", "file", "en", 1.5, searchableStrings, new HashMap<String, String>()));
+
+        List<String> urls = SearchManager.getInstance().saveIndexFileInfoToJournal(documents);
+        assertThat(urls.size(), is(1));
+
+        IndexDocument document = taskWorker.indexDocumentFromURL(urls.get(0));
+        assertThat(document.getModuleId(), is("mod"));
+        assertThat(document.getFileId(), is("file"));
+        assertThat(document.getBoost(), is(1.5));
+        assertThat(document.getSearchableStrings().get(SearchManager.WEIGHT_0), is("journal text"));
+    }
     //endregion
 
     //region Test Finished
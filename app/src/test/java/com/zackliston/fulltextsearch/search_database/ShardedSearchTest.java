@@ -0,0 +1,90 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class ShardedSearchTest {
+
+    private static List<SearchDatabase.RankedDocument> ranking(double... ranks) {
+        List<SearchDatabase.RankedDocument> ranking = new ArrayList<>(ranks.length);
+        for (int i=0; i<ranks.length; i++) {
+            ranking.add(new SearchDatabase.RankedDocument(i + 1, ranks[i]));
+        }
+        return ranking;
+    }
+
+    //region Test Merge
+    @Test
+    public void testMergeOrdersByRankAcrossShards() {
+        List<List<SearchDatabase.RankedDocument>> rankings = new ArrayList<>();
+        rankings.add(ranking(9, 5, 1));
+        rankings.add(ranking(8, 7, 6));
+        rankings.add(ranking());
+
+        List<ShardedSearch.Hit> page = ShardedSearch.mergeRankings(rankings, 4, 0);
+
+        assertThat(page.size(), is(4));
+        assertThat(page.get(0).document.rank, is(9.0));
+        assertThat(page.get(0).shard, is(0));
+        assertThat(page.get(1).document.rank, is(8.0));
+        assertThat(page.get(1).shard, is(1));
+        assertThat(page.get(2).document.rank, is(7.0));
+        assertThat(page.get(3).document.rank, is(6.0));
+        assertThat(page.get(3).document.docId, is(3L));
+    }
+
+    @Test
+    public void testMergeAppliesOffsetGlobally() {
+        List<List<SearchDatabase.RankedDocument>> rankings = new ArrayList<>();
+        rankings.add(ranking(9, 5, 1));
+        rankings.add(ranking(8, 7, 6));
+
+        List<ShardedSearch.Hit> page = ShardedSearch.mergeRankings(rankings, 2, 3);
+
+        assertThat(page.size(), is(2));
+        assertThat(page.get(0).document.rank, is(6.0));
+        assertThat(page.get(1).document.rank, is(5.0));
+
+        assertThat(ShardedSearch.mergeRankings(rankings, 10, 5).size(), is(1));
+        assertThat(ShardedSearch.mergeRankings(rankings, 10, 6).size(), is(0));
+    }
+
+    @Test
+    public void testMergeBreaksTiesByShardOrder() {
+        List<List<SearchDatabase.RankedDocument>> rankings = new ArrayList<>();
+        rankings.add(ranking(3, 3));
+        rankings.add(ranking(3));
+
+        List<ShardedSearch.Hit> page = ShardedSearch.mergeRankings(rankings, 3, 0);
+
+        assertThat(page.get(0).shard, is(0));
+        assertThat(page.get(0).position, is(0));
+        assertThat(page.get(1).shard, is(0));
+        assertThat(page.get(1).position, is(1));
+        assertThat(page.get(2).shard, is(1));
+    }
+    //endregion
+
+    //region Test Handle
+    @Test
+    public void testChildHandleIsCancelledWithParent() {
+        SearchHandle handle = new SearchHandle();
+        SearchHandle child = handle.newChildHandle();
+
+        handle.cancel();
+
+        assertThat(child.isCancelled(), is(true));
+        assertThat(handle.newChildHandle().isCancelled(), is(true));
+    }
+    //endregion
+}
@@ -0,0 +1,328 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The tables, statements and search passes of SearchDatabase and SearchStatementCache on a
+ * sqlite-jdbc connection, so they can be measured on a plain JVM. SearchDatabase needs an Android
+ * SQLiteDatabase, but the SQL comes from SearchSchema, which both of them compile.
+ *
+ * Searchable strings go through SearchAnalyzer.searchableString and rows are ranked with Rank,
+ * both compiled from the library itself.
+ */
+final class BenchmarkIndex
+{
+    //region Constants
+    // Android's executeInsert returns the rowid itself, JDBC has to ask for it
+    private static final String LAST_INSERT_ROWID_QUERY = "SELECT last_insert_rowid();";
+    //endregion
+
+    //region Properties
+    private final File file;
+    private final Connection connection;
+    private final PreparedStatement contentInsert;
+    private final PreparedStatement indexInsert;
+    private final PreparedStatement metadataInsert;
+    private final PreparedStatement lastInsertRowId;
+    private final PreparedStatement statisticsUpdate;
+    private final PreparedStatement rankQuery;
+    private final Map<Integer, PreparedStatement> resultsQueries = new HashMap<>();
+
+    private long numberOfDocumentsChange;
+    private final long[] totalLengthChanges = new long[IndexStatistics.NUMBER_OF_FIELDS];
+    /** Read again after every write, like SearchDatabase does when the index generation moves. */
+    private IndexStatistics statistics;
+    //endregion
+
+    //region Constructors
+    private BenchmarkIndex(File file, Connection connection) throws SQLException {
+        this.file = file;
+        this.connection = connection;
+        contentInsert = connection.prepareStatement(SearchSchema.CONTENT_INSERT_COMMAND);
+        indexInsert = connection.prepareStatement(SearchSchema.INDEX_INSERT_COMMAND);
+        metadataInsert = connection.prepareStatement(SearchSchema.METADATA_INSERT_COMMAND);
+        lastInsertRowId = connection.prepareStatement(LAST_INSERT_ROWID_QUERY);
+        statisticsUpdate = connection.prepareStatement(SearchSchema.STATISTICS_UPDATE_COMMAND);
+        rankQuery = connection.prepareStatement(SearchSchema.RANK_QUERY);
+    }
+
+    /**
+     * Opens a new index in a temporary file, in write-ahead logging mode like SearchDatabase.
+     */
+    static BenchmarkIndex newBenchmarkIndex() throws IOException, SQLException {
+        File file = File.createTempFile("searchbenchmark", ".db");
+        if (!file.delete()) {
+            throw new IOException("Could not replace temporary file " + file);
+        }
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA journal_mode=WAL;");
+            statement.execute(SearchSchema.CONTENT_TABLE_CREATE_COMMAND);
+            statement.execute(SearchSchema.indexTableCreateCommand(true));
+            statement.execute(SearchSchema.METADATA_TABLE_CREATE_COMMAND);
+            statement.execute(SearchSchema.STATISTICS_TABLE_CREATE_COMMAND);
+            statement.execute(SearchSchema.STATISTICS_TABLE_INITIALIZE_COMMAND);
+        } finally {
+            statement.close();
+        }
+        connection.setAutoCommit(false);
+        return new BenchmarkIndex(file, connection);
+    }
+
+    /**
+     * Closes the index and deletes its file along with the write-ahead log.
+     */
+    void close() throws SQLException {
+        connection.close();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        file.delete();
+    }
+    //endregion
+
+    //region Index
+    /**
+     * Writes the documents and what they add to the statistics in one transaction, like
+     * SearchDatabase.indexFiles.
+     */
+    void indexDocuments(List<SyntheticCorpus.Document> documents) throws SQLException {
+        numberOfDocumentsChange = 0;
+        Arrays.fill(totalLengthChanges, 0);
+        try {
+            for (SyntheticCorpus.Document document: documents) {
+                insertDocument(document);
+            }
+            statisticsUpdate.setLong(1, numberOfDocumentsChange);
+            for (int field=0; field<IndexStatistics.NUMBER_OF_FIELDS; field++) {
+                statisticsUpdate.setLong(2 + field, totalLengthChanges[field]);
+            }
+            statisticsUpdate.executeUpdate();
+            connection.commit();
+        } catch (SQLException exception) {
+            connection.rollback();
+            throw exception;
+        } finally {
+            statistics = null;
+        }
+    }
+
+    /**
+     * Indexes the first numberOfDocuments documents of the corpus in transactions of batchSize.
+     */
+    void indexCorpus(SyntheticCorpus corpus, int numberOfDocuments, int batchSize) throws SQLException {
+        List<SyntheticCorpus.Document> batch = new ArrayList<>(batchSize);
+        for (int number=0; number<numberOfDocuments; number++) {
+            batch.add(corpus.document(number));
+            if (batch.size() == batchSize || number == numberOfDocuments - 1) {
+                indexDocuments(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Merges the index into a single segment, like IndexMaintenance does after a bulk load.
+     */
+    void optimize() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(SearchSchema.OPTIMIZE_COMMAND);
+        } finally {
+            statement.close();
+        }
+        connection.commit();
+    }
+
+    private void insertDocument(SyntheticCorpus.Document document) throws SQLException {
+        String[] searchableStrings = new String[document.fields.length];
+        for (int i=0; i<searchableStrings.length; i++) {
+            searchableStrings[i] = SearchAnalyzer.searchableString(document.fields[i], document.language);
+        }
+
+        long norms = IndexStatistics.normsForSearchableStrings(searchableStrings);
+        contentInsert.setNull(1, Types.INTEGER);
+        bindDocument(contentInsert, document, searchableStrings);
+        contentInsert.setLong(11, norms);
+        if (contentInsert.executeUpdate() < 1) {
+            return;
+        }
+        numberOfDocumentsChange++;
+        for (int field=0; field<IndexStatistics.NUMBER_OF_FIELDS; field++) {
+            totalLengthChanges[field] += IndexStatistics.lengthFromNorms(norms, field);
+        }
+        long docId;
+        ResultSet resultSet = lastInsertRowId.executeQuery();
+        try {
+            resultSet.next();
+            docId = resultSet.getLong(1);
+        } finally {
+            resultSet.close();
+        }
+
+        indexInsert.setLong(1, docId);
+        bindDocument(indexInsert, document, searchableStrings);
+        indexInsert.executeUpdate();
+
+        metadataInsert.setString(1, document.moduleId);
+        metadataInsert.setString(2, document.fileId);
+        metadataInsert.setString(3, document.title());
+        metadataInsert.setString(4, document.fields[document.fields.length - 2]);
+        metadataInsert.setString(5, "content://" + document.moduleId + "/" + document.fileId);
+        metadataInsert.setString(6, "article");
+        metadataInsert.setNull(7, Types.VARCHAR);
+        metadataInsert.executeUpdate();
+    }
+
+    private static void bindDocument(PreparedStatement statement, SyntheticCorpus.Document document, String[] searchableStrings) throws SQLException {
+        statement.setString(2, document.moduleId);
+        statement.setString(3, document.fileId);
+        statement.setString(4, document.language);
+        statement.setDouble(5, document.boost);
+        for (int i=0; i<searchableStrings.length; i++) {
+            statement.setString(6 + i, searchableStrings[i]);
+        }
+    }
+    //endregion
+
+    //region Search
+    /**
+     * The statistics table, like SearchDatabase.statistics.
+     */
+    IndexStatistics statistics() throws SQLException {
+        if (statistics != null) {
+            return statistics;
+        }
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery(SearchSchema.STATISTICS_QUERY);
+            long[] totalLengths = new long[IndexStatistics.NUMBER_OF_FIELDS];
+            resultSet.next();
+            for (int field=0; field<IndexStatistics.NUMBER_OF_FIELDS; field++) {
+                totalLengths[field] = resultSet.getLong(2 + field);
+            }
+            statistics = new IndexStatistics(resultSet.getLong(1), totalLengths);
+        } finally {
+            statement.close();
+        }
+        return statistics;
+    }
+
+    /**
+     * The docids of the best maxNumberOfResults rows for the match expression, best first. Ranks
+     * every matching row and keeps a heap of the best, like SearchDatabase.rankedDocuments.
+     */
+    List<Long> rankedDocIds(String matchExpression, int maxNumberOfResults) throws SQLException {
+        PriorityQueue<double[]> heap = new PriorityQueue<>(Math.max(maxNumberOfResults, 1), new Comparator<double[]>() {
+            @Override
+            public int compare(double[] lhs, double[] rhs) {
+                return Double.compare(lhs[1], rhs[1]);
+            }
+        });
+
+        IndexStatistics statistics = statistics();
+        double[] inverseDocumentFrequencies = null;
+        rankQuery.setString(1, matchExpression);
+        ResultSet resultSet = rankQuery.executeQuery();
+        try {
+            while (resultSet.next()) {
+                long docId = resultSet.getLong(1);
+                int[] matchinfo = Rank.matchinfoFromBlob(resultSet.getBytes(2));
+                if (inverseDocumentFrequencies == null) {
+                    inverseDocumentFrequencies = Rank.inverseDocumentFrequencies(matchinfo, statistics, RankingProfile.DEFAULT);
+                }
+                double rank = Rank.rank(matchinfo, resultSet.getLong(4), statistics, inverseDocumentFrequencies, resultSet.getDouble(3), RankingProfile.DEFAULT);
+                if (heap.size() < maxNumberOfResults) {
+                    heap.add(new double[]{docId, rank});
+                } else if (heap.peek()[1] < rank) {
+                    heap.poll();
+                    heap.add(new double[]{docId, rank});
+                }
+            }
+        } finally {
+            resultSet.close();
+        }
+
+        List<double[]> ranked = new ArrayList<>(heap);
+        Collections.sort(ranked, Collections.reverseOrder(heap.comparator()));
+        List<Long> docIds = new ArrayList<>(ranked.size());
+        for (double[] entry: ranked) {
+            docIds.add((long) entry[0]);
+        }
+        return docIds;
+    }
+
+    /**
+     * The matchinfo blob and norms of every row matching the expression, for measuring Rank on its
+     * own. Adds the blobs to blobs and the norms to norms.
+     */
+    void matchingRows(String matchExpression, List<byte[]> blobs, List<Long> norms) throws SQLException {
+        rankQuery.setString(1, matchExpression);
+        ResultSet resultSet = rankQuery.executeQuery();
+        try {
+            while (resultSet.next()) {
+                blobs.add(resultSet.getBytes(2));
+                norms.add(resultSet.getLong(4));
+            }
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    /**
+     * Ranks the rows, then reads metadata and snippets for the best limit of them, the two passes
+     * of SearchDatabase.search. Returns the number of results.
+     */
+    int search(String matchExpression, int limit, int snippetSize) throws SQLException {
+        List<Long> docIds = rankedDocIds(matchExpression, limit);
+        if (docIds.size() < 1) {
+            return 0;
+        }
+        int numberOfPlaceholders = SearchSchema.numberOfPlaceholdersForCount(docIds.size(), SearchSchema.MAX_DOCIDS_PER_RESULTS_QUERY);
+        PreparedStatement resultsQuery = resultsQuery(numberOfPlaceholders);
+        resultsQuery.setString(1, String.valueOf(snippetSize));
+        resultsQuery.setString(2, matchExpression);
+        for (int i=0; i<numberOfPlaceholders; i++) {
+            resultsQuery.setLong(3 + i, docIds.get(Math.min(i, docIds.size() - 1)));
+        }
+
+        int numberOfResults = 0;
+        ResultSet resultSet = resultsQuery.executeQuery();
+        try {
+            while (resultSet.next()) {
+                if (resultSet.getString(4) != null && resultSet.getString(9) != null) {
+                    numberOfResults++;
+                }
+            }
+        } finally {
+            resultSet.close();
+        }
+        return numberOfResults;
+    }
+
+    private PreparedStatement resultsQuery(int numberOfPlaceholders) throws SQLException {
+        PreparedStatement resultsQuery = resultsQueries.get(numberOfPlaceholders);
+        if (resultsQuery == null) {
+            resultsQuery = connection.prepareStatement(SearchSchema.resultsQueryForPlaceholders(numberOfPlaceholders));
+            resultsQueries.put(numberOfPlaceholders, resultsQuery);
+        }
+        return resultsQuery;
+    }
+    //endregion
+}
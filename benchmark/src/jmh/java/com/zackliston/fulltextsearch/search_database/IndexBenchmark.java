@@ -0,0 +1,94 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Documents indexed per second, normalizing included. One document per transaction is what
+ * SearchDatabase.indexFile does, larger transactions are SearchDatabase.indexFiles with a batch.
+ *
+ * Every iteration starts from an empty index, so iterations measure the same amount of growth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IndexBenchmark
+{
+    //region Constants
+    private static final int DOCUMENTS_PER_INVOCATION = 100;
+    private static final int NUMBER_OF_PREPARED_DOCUMENTS = 1000;
+    //endregion
+
+    //region Parameters
+    @Param({"1", "20", "100"})
+    public int documentsPerTransaction;
+
+    @Param({"400,100,20,8,4"})
+    public String wordsPerField;
+
+    @Param({"50000"})
+    public int vocabularySize;
+
+    @Param({"1.0"})
+    public double skew;
+    //endregion
+
+    //region Properties
+    private List<SyntheticCorpus.Document> documents;
+    private BenchmarkIndex index;
+    private int nextDocumentNumber;
+    //endregion
+
+    //region Setup
+    @Setup(Level.Trial)
+    public void setUpCorpus() {
+        SyntheticCorpus corpus = SyntheticCorpus.newSyntheticCorpus(SyntheticCorpus.wordsPerFieldFromString(wordsPerField), vocabularySize, skew, 1);
+        documents = new ArrayList<>(NUMBER_OF_PREPARED_DOCUMENTS);
+        for (int number=0; number<NUMBER_OF_PREPARED_DOCUMENTS; number++) {
+            documents.add(corpus.document(number));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIndex() throws Exception {
+        index = BenchmarkIndex.newBenchmarkIndex();
+        nextDocumentNumber = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIndex() throws Exception {
+        index.close();
+    }
+    //endregion
+
+    //region Benchmarks
+    @Benchmark
+    @OperationsPerInvocation(DOCUMENTS_PER_INVOCATION)
+    public int indexDocuments() throws Exception {
+        List<SyntheticCorpus.Document> batch = new ArrayList<>(documentsPerTransaction);
+        for (int i=0; i<DOCUMENTS_PER_INVOCATION; i++) {
+            // Reuse the generated text under a new file id, so generating it is not measured
+            int number = nextDocumentNumber++;
+            batch.add(documents.get(number % documents.size()).renumbered(number));
+            if (batch.size() == documentsPerTransaction || i == DOCUMENTS_PER_INVOCATION - 1) {
+                index.indexDocuments(batch);
+                batch.clear();
+            }
+        }
+        return nextDocumentNumber;
+    }
+    //endregion
+}
@@ -0,0 +1,204 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JSON round trip of an index info file: written by SearchManager.saveIndexFileInfoToFile and
+ * read back by SearchTaskWorker.indexDocumentFromURL, which streams it with IndexFileInfoReader.
+ * readJSONObject parses the whole file into a JSONObject, the way it was read before, for comparison.
+ *
+ * The library code needs Android, so its steps are repeated here with the same libraries: org.json
+ * and commons-io, and Gson's JsonReader, which android.util.JsonReader was copied from.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IndexFileInfoBenchmark
+{
+    //region Constants
+    private static final int NUMBER_OF_FILES = 64;
+    private static final String[] SEARCHABLE_STRING_KEYS = {"0", "1", "2", "3", "4"};
+    //endregion
+
+    //region Parameters
+    @Param({"400,100,20,8,4"})
+    public String wordsPerField;
+
+    @Param({"50000"})
+    public int vocabularySize;
+
+    @Param({"1.0"})
+    public double skew;
+    //endregion
+
+    //region Properties
+    private SyntheticCorpus.Document[] documents;
+    private File directory;
+    private int nextFile;
+    //endregion
+
+    //region Setup
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SyntheticCorpus corpus = SyntheticCorpus.newSyntheticCorpus(SyntheticCorpus.wordsPerFieldFromString(wordsPerField), vocabularySize, skew, 1);
+        directory = File.createTempFile("indexfileinfo", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        documents = new SyntheticCorpus.Document[NUMBER_OF_FILES];
+        for (int i=0; i<NUMBER_OF_FILES; i++) {
+            documents[i] = corpus.document(i);
+            writeIndexFileInfo(documents[i], file(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+    //endregion
+
+    //region Benchmarks
+    @Benchmark
+    public File write() throws Exception {
+        nextFile = (nextFile + 1) % NUMBER_OF_FILES;
+        File file = file(nextFile);
+        writeIndexFileInfo(documents[nextFile], file);
+        return file;
+    }
+
+    @Benchmark
+    public IndexDocument readStreaming() throws IOException {
+        nextFile = (nextFile + 1) % NUMBER_OF_FILES;
+        return readIndexDocumentStreaming(file(nextFile));
+    }
+
+    @Benchmark
+    public IndexDocument readJSONObject() throws Exception {
+        nextFile = (nextFile + 1) % NUMBER_OF_FILES;
+        return readIndexDocumentFromJSONObject(file(nextFile));
+    }
+    //endregion
+
+    //region Write
+    private static void writeIndexFileInfo(SyntheticCorpus.Document document, File file) throws Exception {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("moduleid", document.moduleId);
+        jsonObject.put("fileid", document.fileId);
+        jsonObject.put("language", document.language);
+        jsonObject.put("boost", document.boost);
+
+        JSONObject searchableStringsJson = new JSONObject();
+        for (int i=0; i<document.fields.length; i++) {
+            searchableStringsJson.put(SEARCHABLE_STRING_KEYS[i], document.fields[i]);
+        }
+        JSONObject fileMetadataJson = new JSONObject();
+        fileMetadataJson.put("title", document.title());
+        fileMetadataJson.put("uri", "content://" + document.moduleId + "/" + document.fileId);
+
+        jsonObject.put("searchablestrings", searchableStringsJson);
+        jsonObject.put("filemetadata", fileMetadataJson);
+        FileUtils.writeStringToFile(file, jsonObject.toString());
+    }
+    //endregion
+
+    //region Read
+    private static IndexDocument readIndexDocumentStreaming(File file) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8"));
+        try {
+            String moduleId = null;
+            String fileId = null;
+            String language = null;
+            double boost = 0.0;
+            Map<String, String> searchableStrings = null;
+            Map<String, String> fileMetadata = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("moduleid".equals(name)) {
+                    moduleId = reader.nextString();
+                } else if ("fileid".equals(name)) {
+                    fileId = reader.nextString();
+                } else if ("language".equals(name)) {
+                    language = reader.nextString();
+                } else if ("boost".equals(name)) {
+                    boost = reader.nextDouble();
+                } else if ("searchablestrings".equals(name)) {
+                    searchableStrings = readStringMap(reader);
+                } else if ("filemetadata".equals(name)) {
+                    fileMetadata = readStringMap(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return IndexDocument.newIndexDocument(moduleId, fileId, language, boost, searchableStrings, fileMetadata);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Map<String, String> readStringMap(JsonReader reader) throws IOException {
+        Map<String, String> map = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                map.put(key, null);
+            } else {
+                map.put(key, reader.nextString());
+            }
+        }
+        reader.endObject();
+        return map;
+    }
+
+    private static IndexDocument readIndexDocumentFromJSONObject(File file) throws Exception {
+        JSONObject data = new JSONObject(FileUtils.readFileToString(file));
+        return IndexDocument.newIndexDocument(data.getString("moduleid"), data.getString("fileid"), data.getString("language"), data.getDouble("boost"),
+                stringMap(data.getJSONObject("searchablestrings")), stringMap(data.getJSONObject("filemetadata")));
+    }
+
+    private static Map<String, String> stringMap(JSONObject jsonObject) throws Exception {
+        Map<String, String> map = new HashMap<>(jsonObject.length());
+        Iterator<?> iterator = jsonObject.keys();
+        while (iterator.hasNext()) {
+            String key = (String) iterator.next();
+            map.put(key, jsonObject.getString(key));
+        }
+        return map;
+    }
+    //endregion
+
+    //region Helpers
+    private File file(int number) {
+        return new File(directory, "file" + number + ".json");
+    }
+    //endregion
+}
@@ -0,0 +1,100 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The text preparation done for every searchable string while indexing, and for the query on
+ * every search. Plain text is already plain ASCII, which SearchNormalizer returns without copying,
+ * accented text takes the folding path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NormalizationBenchmark
+{
+    //region Constants
+    private static final int NUMBER_OF_TEXTS = 64;
+    private static final String LANGUAGE = "en";
+    //endregion
+
+    //region Parameters
+    @Param({"ACCENTED", "PLAIN"})
+    public String text;
+
+    @Param({"false", "true"})
+    public boolean isAnalyzed;
+
+    @Param({"400,100,20,8,4"})
+    public String wordsPerField;
+
+    @Param({"50000"})
+    public int vocabularySize;
+
+    @Param({"1.0"})
+    public double skew;
+    //endregion
+
+    //region Properties
+    private String[] bodies;
+    private String[] titles;
+    private int nextText;
+    //endregion
+
+    //region Setup
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCorpus corpus = SyntheticCorpus.newSyntheticCorpus(SyntheticCorpus.wordsPerFieldFromString(wordsPerField), vocabularySize, skew, 1);
+        boolean isPlain = "PLAIN".equals(text);
+        bodies = new String[NUMBER_OF_TEXTS];
+        titles = new String[NUMBER_OF_TEXTS];
+        for (int i=0; i<NUMBER_OF_TEXTS; i++) {
+            SyntheticCorpus.Document document = corpus.document(i);
+            bodies[i] = isPlain ? SearchNormalizer.forLanguage(null).normalize(document.fields[0]) : document.fields[0];
+            titles[i] = isPlain ? SearchNormalizer.forLanguage(null).normalize(document.title()) : document.title();
+        }
+        SearchAnalyzer.setAnalyzerForLanguage(LANGUAGE, isAnalyzed ? SearchAnalyzer.newEnglishAnalyzer() : null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SearchAnalyzer.setAnalyzerForLanguage(LANGUAGE, null);
+    }
+    //endregion
+
+    //region Benchmarks
+    /**
+     * searchableStringFromString on the body of a document, the longest field.
+     */
+    @Benchmark
+    public String searchableBody() {
+        nextText = (nextText + 1) % NUMBER_OF_TEXTS;
+        return SearchAnalyzer.searchableString(bodies[nextText], LANGUAGE);
+    }
+
+    /**
+     * searchableStringFromString on a title, about as long as a query.
+     */
+    @Benchmark
+    public String searchableTitle() {
+        nextText = (nextText + 1) % NUMBER_OF_TEXTS;
+        return SearchAnalyzer.searchableString(titles[nextText], LANGUAGE);
+    }
+
+    @Benchmark
+    public int tokenizeBody() {
+        nextText = (nextText + 1) % NUMBER_OF_TEXTS;
+        return SimpleTokenizer.tokenize(bodies[nextText]).count;
+    }
+    //endregion
+}
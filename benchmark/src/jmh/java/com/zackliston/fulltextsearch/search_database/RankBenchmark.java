@@ -0,0 +1,116 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranking a single matching row, which SearchDatabase.rankedDocuments does for every row a query
+ * matches. The matchinfo, norms and statistics come from real queries against an index of the
+ * corpus, and the inverse document frequencies are worked out once per query as they are there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RankBenchmark
+{
+    //region Constants
+    private static final int NUMBER_OF_QUERIES = 32;
+    private static final int INDEX_BATCH_SIZE = 500;
+    //endregion
+
+    //region Parameters
+    @Param({"SINGLE_TERM", "MULTI_TERM"})
+    public SearchBenchmark.QueryShape queryShape;
+
+    @Param({"2000"})
+    public int numberOfDocuments;
+
+    @Param({"400,100,20,8,4"})
+    public String wordsPerField;
+
+    @Param({"50000"})
+    public int vocabularySize;
+
+    @Param({"1.0"})
+    public double skew;
+    //endregion
+
+    //region Properties
+    private byte[][] blobs;
+    private int[][] matchinfos;
+    private long[] norms;
+    private double[][] inverseDocumentFrequencies;
+    private IndexStatistics statistics;
+    private int nextRow;
+    //endregion
+
+    //region Setup
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SyntheticCorpus corpus = SyntheticCorpus.newSyntheticCorpus(SyntheticCorpus.wordsPerFieldFromString(wordsPerField), vocabularySize, skew, 1);
+        BenchmarkIndex index = BenchmarkIndex.newBenchmarkIndex();
+        List<byte[]> rows = new ArrayList<>();
+        List<Long> rowNorms = new ArrayList<>();
+        List<double[]> rowInverseDocumentFrequencies = new ArrayList<>();
+        try {
+            index.indexCorpus(corpus, numberOfDocuments, INDEX_BATCH_SIZE);
+            statistics = index.statistics();
+            Random random = new Random(2);
+            for (int i=0; i<NUMBER_OF_QUERIES; i++) {
+                int firstRow = rows.size();
+                index.matchingRows(queryShape.matchExpression(corpus, random), rows, rowNorms);
+                if (rows.size() > firstRow) {
+                    // The rows of a query share one array, as they do in rankedDocuments
+                    double[] queryInverseDocumentFrequencies = Rank.inverseDocumentFrequencies(Rank.matchinfoFromBlob(rows.get(firstRow)), statistics, RankingProfile.DEFAULT);
+                    for (int row=firstRow; row<rows.size(); row++) {
+                        rowInverseDocumentFrequencies.add(queryInverseDocumentFrequencies);
+                    }
+                }
+            }
+        } finally {
+            index.close();
+        }
+        if (rows.size() < 1) {
+            throw new IllegalStateException("No rows matched the queries");
+        }
+
+        blobs = rows.toArray(new byte[rows.size()][]);
+        matchinfos = new int[blobs.length][];
+        norms = new long[blobs.length];
+        for (int i=0; i<blobs.length; i++) {
+            matchinfos[i] = Rank.matchinfoFromBlob(blobs[i]);
+            norms[i] = rowNorms.get(i);
+        }
+        inverseDocumentFrequencies = rowInverseDocumentFrequencies.toArray(new double[rows.size()][]);
+    }
+    //endregion
+
+    //region Benchmarks
+    @Benchmark
+    public double rank() {
+        nextRow = (nextRow + 1) % matchinfos.length;
+        return Rank.rank(matchinfos[nextRow], norms[nextRow], statistics, inverseDocumentFrequencies[nextRow], 1.0, RankingProfile.DEFAULT);
+    }
+
+    /**
+     * Decoding the blob and ranking it, everything done per row besides reading the cursor.
+     */
+    @Benchmark
+    public double decodeAndRank() {
+        nextRow = (nextRow + 1) % blobs.length;
+        return Rank.rank(Rank.matchinfoFromBlob(blobs[nextRow]), norms[nextRow], statistics, inverseDocumentFrequencies[nextRow], 1.0, RankingProfile.DEFAULT);
+    }
+    //endregion
+}
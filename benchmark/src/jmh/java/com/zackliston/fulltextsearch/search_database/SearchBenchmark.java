@@ -0,0 +1,143 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search latency per query shape. Sampled, so the results carry the latency percentiles as well
+ * as the mean. rankedDocuments is the first pass of SearchDatabase.search on its own, search adds
+ * the pass that reads metadata and snippets for the page of results.
+ *
+ * SearchDatabase.formatSearchText turns the last word of every query into a prefix, so prefix and
+ * phrase queries ending in one are what type-ahead search sends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark
+{
+    //region Query Shapes
+    public enum QueryShape {
+        SINGLE_TERM {
+            @Override
+            String matchExpression(SyntheticCorpus corpus, Random random) {
+                return searchableWord(corpus, random);
+            }
+        },
+        PREFIX {
+            @Override
+            String matchExpression(SyntheticCorpus corpus, Random random) {
+                return searchableWord(corpus, random).substring(0, 3) + "*";
+            }
+        },
+        PHRASE {
+            @Override
+            String matchExpression(SyntheticCorpus corpus, Random random) {
+                // Two words next to each other in a body, so the phrase is found at least once
+                String body = SearchAnalyzer.searchableString(corpus.document(random.nextInt(NUMBER_OF_DOCUMENTS_FOR_PHRASES)).fields[0], null);
+                String[] words = body.split(" ");
+                int start = random.nextInt(words.length - 1);
+                return "\"" + words[start] + " " + words[start + 1] + "*\"";
+            }
+        },
+        MULTI_TERM {
+            @Override
+            String matchExpression(SyntheticCorpus corpus, Random random) {
+                return searchableWord(corpus, random) + " " + searchableWord(corpus, random) + " " + searchableWord(corpus, random) + "*";
+            }
+        };
+
+        abstract String matchExpression(SyntheticCorpus corpus, Random random);
+
+        private static String searchableWord(SyntheticCorpus corpus, Random random) {
+            return SearchAnalyzer.searchableString(corpus.word(random), null);
+        }
+    }
+    //endregion
+
+    //region Constants
+    private static final int NUMBER_OF_QUERIES = 256;
+    private static final int NUMBER_OF_DOCUMENTS_FOR_PHRASES = 100;
+    private static final int INDEX_BATCH_SIZE = 500;
+    private static final int LIMIT = 20;
+    //endregion
+
+    //region Parameters
+    @Param({"SINGLE_TERM", "PREFIX", "PHRASE", "MULTI_TERM"})
+    public QueryShape queryShape;
+
+    @Param({"10000"})
+    public int numberOfDocuments;
+
+    @Param({"400,100,20,8,4"})
+    public String wordsPerField;
+
+    @Param({"50000"})
+    public int vocabularySize;
+
+    @Param({"1.0"})
+    public double skew;
+    //endregion
+
+    //region Properties
+    private BenchmarkIndex index;
+    private String[] matchExpressions;
+    private int nextMatchExpression;
+    //endregion
+
+    //region Setup
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SyntheticCorpus corpus = SyntheticCorpus.newSyntheticCorpus(SyntheticCorpus.wordsPerFieldFromString(wordsPerField), vocabularySize, skew, 1);
+        index = BenchmarkIndex.newBenchmarkIndex();
+        index.indexCorpus(corpus, numberOfDocuments, INDEX_BATCH_SIZE);
+        index.optimize();
+
+        Random random = new Random(2);
+        matchExpressions = new String[NUMBER_OF_QUERIES];
+        for (int i=0; i<NUMBER_OF_QUERIES; i++) {
+            matchExpressions[i] = queryShape.matchExpression(corpus, random);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        index.close();
+    }
+    //endregion
+
+    //region Benchmarks
+    @Benchmark
+    public List<Long> rankedDocuments() throws Exception {
+        return index.rankedDocIds(nextMatchExpression(), LIMIT);
+    }
+
+    @Benchmark
+    public int search() throws Exception {
+        String matchExpression = nextMatchExpression();
+        // One word more than the query, like SearchDatabase.search asks for
+        int snippetSize = matchExpression.split(" ").length + 1;
+        return index.search(matchExpression, LIMIT, snippetSize);
+    }
+    //endregion
+
+    //region Helpers
+    private String nextMatchExpression() {
+        String matchExpression = matchExpressions[nextMatchExpression];
+        nextMatchExpression = (nextMatchExpression + 1) % matchExpressions.length;
+        return matchExpression;
+    }
+    //endregion
+}
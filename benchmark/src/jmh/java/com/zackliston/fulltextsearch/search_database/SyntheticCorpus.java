@@ -0,0 +1,161 @@
+package com.zackliston.fulltextsearch.search_database;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates documents whose words follow a Zipf distribution over a made up vocabulary, the way
+ * the words of real text do: a few appear in nearly every document and most in only a handful.
+ * Skew is the Zipf exponent, 1 is close to English and larger values make common words commoner.
+ *
+ * Documents are generated from the seed and their number alone, so the same corpus comes back on
+ * every run without being held in memory. Every tenth word of the vocabulary carries an accent, so
+ * normalizing has something to fold.
+ */
+final class SyntheticCorpus
+{
+    //region Document
+    static class Document {
+        final String moduleId;
+        final String fileId;
+        final String language;
+        final double boost;
+        // weight0 to weight4, from the body down to the title
+        final String[] fields;
+
+        Document(String moduleId, String fileId, String language, double boost, String[] fields) {
+            this.moduleId = moduleId;
+            this.fileId = fileId;
+            this.language = language;
+            this.boost = boost;
+            this.fields = fields;
+        }
+
+        /**
+         * The same text filed under number, for indexing it again as another file.
+         */
+        Document renumbered(int number) {
+            return new Document("module" + (number / DOCUMENTS_PER_MODULE), "file" + number, language, boost, fields);
+        }
+
+        String title() {
+            return fields[fields.length - 1];
+        }
+    }
+    //endregion
+
+    //region Constants
+    static final int[] DEFAULT_WORDS_PER_FIELD = {400, 100, 20, 8, 4};
+    static final int DEFAULT_VOCABULARY_SIZE = 50000;
+    static final double DEFAULT_ZIPF_SKEW = 1.0;
+    static final int DOCUMENTS_PER_MODULE = 100;
+
+    private static final String CONSONANTS = "bcdfghjklmnprstv";
+    private static final String VOWELS = "aeiou";
+    private static final String ACCENTED_VOWELS = "\u00E1\u00E9\u00ED\u00F3\u00FA";
+    //endregion
+
+    //region Properties
+    final int[] wordsPerField;
+    final String[] vocabulary;
+    private final double[] cumulativeProbabilities;
+    private final long seed;
+    //endregion
+
+    //region Constructors
+    private SyntheticCorpus(int[] wordsPerField, String[] vocabulary, double[] cumulativeProbabilities, long seed) {
+        this.wordsPerField = wordsPerField;
+        this.vocabulary = vocabulary;
+        this.cumulativeProbabilities = cumulativeProbabilities;
+        this.seed = seed;
+    }
+
+    static SyntheticCorpus newSyntheticCorpus(int[] wordsPerField, int vocabularySize, double skew, long seed) {
+        if (wordsPerField.length != Rank.NUMBER_OF_WEIGHTED_COLUMNS) {
+            throw new IllegalArgumentException("Expected words for " + Rank.NUMBER_OF_WEIGHTED_COLUMNS + " fields, got " + wordsPerField.length);
+        }
+        String[] vocabulary = new String[vocabularySize];
+        double[] cumulativeProbabilities = new double[vocabularySize];
+        double total = 0.0;
+        for (int rank=0; rank<vocabularySize; rank++) {
+            vocabulary[rank] = word(rank);
+            total += 1.0 / Math.pow(rank + 1, skew);
+            cumulativeProbabilities[rank] = total;
+        }
+        for (int rank=0; rank<vocabularySize; rank++) {
+            cumulativeProbabilities[rank] /= total;
+        }
+        return new SyntheticCorpus(wordsPerField.clone(), vocabulary, cumulativeProbabilities, seed);
+    }
+
+    /**
+     * Parses words per field written as a comma separated list, like "400,100,20,8,4".
+     */
+    static int[] wordsPerFieldFromString(String wordsPerField) {
+        String[] sizes = wordsPerField.split(",");
+        int[] result = new int[sizes.length];
+        for (int i=0; i<sizes.length; i++) {
+            result[i] = Integer.parseInt(sizes[i].trim());
+        }
+        return result;
+    }
+    //endregion
+
+    //region Generate
+    Document document(int number) {
+        Random random = new Random(seed * 31 + number);
+        String[] fields = new String[wordsPerField.length];
+        for (int i=0; i<fields.length; i++) {
+            fields[i] = text(random, wordsPerField[i]);
+        }
+        return new Document("module" + (number / DOCUMENTS_PER_MODULE), "file" + number, "en", 1.0 + random.nextInt(4), fields);
+    }
+
+    String text(Random random, int numberOfWords) {
+        StringBuilder builder = new StringBuilder(numberOfWords * 8);
+        for (int i=0; i<numberOfWords; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(word(random));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A word drawn with its Zipf probability. Queries are drawn the same way, so common words are
+     * searched for more often, like they are in practice.
+     */
+    String word(Random random) {
+        int index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return vocabulary[Math.min(index, vocabulary.length - 1)];
+    }
+    //endregion
+
+    //region Helpers
+    /**
+     * The word at rank, made of at least two syllables so every word has a three letter prefix.
+     * Syllables are a consonant and a vowel, so different ranks always spell different words.
+     */
+    private static String word(int rank) {
+        int numberOfSyllables = CONSONANTS.length() * VOWELS.length();
+        StringBuilder builder = new StringBuilder();
+        // Bijective numbering, so no two ranks share a spelling
+        int value = rank + numberOfSyllables + 1;
+        while (value > 0) {
+            value--;
+            int syllable = value % numberOfSyllables;
+            builder.append(CONSONANTS.charAt(syllable / VOWELS.length()));
+            builder.append(VOWELS.charAt(syllable % VOWELS.length()));
+            value /= numberOfSyllables;
+        }
+        if (rank % 10 == 9) {
+            builder.setCharAt(1, ACCENTED_VOWELS.charAt(VOWELS.indexOf(builder.charAt(1))));
+        }
+        return builder.toString();
+    }
+    //endregion
+}
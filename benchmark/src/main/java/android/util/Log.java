@@ -0,0 +1,16 @@
+package android.util;
+
+/**
+ * Stands in for android.util.Log, the only Android class the library sources this module compiles
+ * use, so the benchmarks do not need the Android runtime on their classpath.
+ */
+public final class Log
+{
+    private Log() {
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+}